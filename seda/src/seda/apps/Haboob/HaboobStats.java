@@ -38,6 +38,8 @@ public class HaboobStats {
   public static int numStaticRequests;
   public static int numCacheHits;
   public static int numCacheMisses;
+  // Kept by PageCache only; PageCacheSized counts per segment instead,
+  // see pageTable
   public static int cacheSizeBytes;
   public static int cacheSizeEntries;
 
@@ -57,5 +59,9 @@ public class HaboobStats {
   // Allow different modules to find each other
   public static seda.apps.Haboob.http.HttpSend httpSend;
   public static seda.apps.Haboob.http.HttpRecv httpRecv;
+  // Set when PageCacheSized is in use
+  public static seda.apps.Haboob.cache.SegmentedPageTable pageTable;
+  // Set when PageCacheSized is using a mapped file tier
+  public static seda.apps.Haboob.cache.MappedFileCache mappedCache;
 
 }
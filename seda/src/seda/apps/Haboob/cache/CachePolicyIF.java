@@ -0,0 +1,75 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.apps.Haboob.cache;
+
+/**
+ * A CachePolicyIF decides which pages the Haboob page cache evicts
+ * when it is full, and optionally which pages it admits at all. The
+ * cache calls <tt>insert()</tt> for each page it adds, which returns a
+ * policy-specific handle for the page; the handle is passed back on
+ * each hit and when the page is removed. Each segment of the cache has
+ * its own policy object. All methods except <tt>access()</tt> are called
+ * with the segment locked; <tt>access()</tt> is called on every cache 
+ * hit without any lock held, possibly concurrently with the others.
+ *
+ * @see PageCacheSized
+ * @see SegmentedPageTable
+ */
+public interface CachePolicyIF {
+
+  /**
+   * Record that a page has been added to the cache. 'owner' is the
+   * object returned by <tt>victims()</tt> to identify the page.
+   * Returns the handle for the page.
+   */
+  public Object insert(Object owner, String url, int size);
+
+  /**
+   * Record a hit on the page with the given handle. The page may have
+   * been removed concurrently, in which case this should have no effect.
+   */
+  public void access(Object handle);
+
+  /**
+   * Record that the page with the given handle has been removed from
+   * the cache.
+   */
+  public void remove(Object handle);
+
+  /**
+   * Return up to 'max' pages (as the 'owner' passed to 
+   * <tt>insert()</tt>), in the order in which they should be evicted 
+   * to make room for a page of the given size. The cache evicts the 
+   * first that is not still being loaded.
+   */
+  public Object[] victims(int size, int max);
+
+  /**
+   * Called on each cache miss, before the page is added. Returns false
+   * if the page should not be cached, in which case it is sent to the
+   * client directly from the file. 'mustEvict' indicates whether adding
+   * the page requires evicting others.
+   */
+  public boolean admit(String url, int size, boolean mustEvict);
+
+}
@@ -0,0 +1,192 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+
+package seda.apps.Haboob.cache;
+
+import java.io.*;
+import java.text.DecimalFormat;
+import java.util.*;
+
+/**
+ * CacheTraceReplay replays a web server access log against simulated
+ * page caches using each of the given eviction policies (see 
+ * CachePolicyIF), and reports the hit ratio each achieves. The 
+ * simulation follows the same admission and eviction steps as 
+ * PageCacheSized, for a single segment of the given size.
+ *
+ * <p>The log must be in Common Log Format, as written by Apache and
+ * most other servers; only successful requests with a known size are 
+ * replayed.
+ *
+ * <pre>
+ *   java seda.apps.Haboob.cache.CacheTraceReplay access_log 204800 lru tinylfu
+ * </pre>
+ */
+public class CacheTraceReplay {
+
+  private static final int MAX_VICTIMS = 16;
+  private static final String POLICIES[] = { "sizeclass", "lru", "clock", "tinylfu" };
+
+  private String policyName;
+  private CachePolicyIF policy;
+  private long maxBytes, sizeBytes, peakBytes;
+  private HashMap pages = new HashMap();
+  private long requests, hits, bytes, hitBytes, rejected;
+
+  // A simulated cache entry
+  private static class page {
+    String url;
+    int size;
+    Object policyNode;
+  }
+
+  private CacheTraceReplay(String policyName, long maxBytes) {
+    this.policyName = policyName;
+    this.policy = SegmentedPageTable.createPolicy(policyName);
+    this.maxBytes = maxBytes;
+  }
+
+  private void request(String url, int size) {
+    requests++;
+    bytes += size;
+    page p = (page)pages.get(url);
+    if ((p != null) && (p.size == size)) {
+      hits++;
+      hitBytes += size;
+      policy.access(p.policyNode);
+      return;
+    }
+    if (p != null) {
+      // Page has changed size; drop the stale copy
+      remove(p);
+    }
+
+    boolean full = (sizeBytes + size > maxBytes);
+    if (!policy.admit(url, size, full)) {
+      rejected++;
+      return;
+    }
+    while (sizeBytes + size > maxBytes) {
+      Object victims[] = policy.victims(size, MAX_VICTIMS);
+      if (victims.length == 0) break;
+      page victim = (page)victims[0];
+      remove(victim);
+      if (victim.size == size) break;
+    }
+    p = new page();
+    p.url = url;
+    p.size = size;
+    p.policyNode = policy.insert(p, url, size);
+    pages.put(url, p);
+    sizeBytes += size;
+    if (sizeBytes > peakBytes) peakBytes = sizeBytes;
+  }
+
+  private void remove(page p) {
+    pages.remove(p.url);
+    policy.remove(p.policyNode);
+    sizeBytes -= p.size;
+  }
+
+  private void report() {
+    DecimalFormat df = new DecimalFormat("0.0000");
+    System.out.println(policyName+": "+requests+" requests, hit ratio "+
+	df.format((double)hits / requests)+", byte hit ratio "+
+	df.format((double)hitBytes / bytes)+", "+rejected+" not admitted, "+
+	"peak size "+(peakBytes/1024)+" Kb");
+  }
+
+  /**
+   * Parse one Common Log Format line, e.g.
+   * <pre>
+   *   host - - [date] "GET /url HTTP/1.0" 200 1234
+   * </pre>
+   * and return the URL, or null if the line is malformed or not a
+   * successful request with a size. The size is stored in size[0].
+   */
+  private static String parse(String line, int size[]) {
+    int q1 = line.indexOf('"');
+    if (q1 == -1) return null;
+    int q2 = line.indexOf('"', q1+1);
+    if (q2 == -1) return null;
+    StringTokenizer st = new StringTokenizer(line.substring(q1+1, q2));
+    if (st.countTokens() < 2) return null;
+    if (!st.nextToken().equals("GET")) return null;
+    String url = st.nextToken();
+
+    st = new StringTokenizer(line.substring(q2+1));
+    if (st.countTokens() < 2) return null;
+    if (!st.nextToken().equals("200")) return null;
+    try {
+      size[0] = Integer.parseInt(st.nextToken());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (size[0] <= 0) return null;
+    return url;
+  }
+
+  private static void usage() {
+    System.err.println("usage: CacheTraceReplay <logfile> <cache size (KB)> [policy ...]");
+    System.exit(1);
+  }
+
+  public static void main(String args[]) throws IOException {
+    if (args.length < 2) usage();
+
+    long maxBytes = Long.parseLong(args[1]) * 1024L;
+    String names[];
+    if (args.length > 2) {
+      names = new String[args.length - 2];
+      System.arraycopy(args, 2, names, 0, names.length);
+    } else {
+      names = POLICIES;
+    }
+    CacheTraceReplay sims[] = new CacheTraceReplay[names.length];
+    for (int i = 0; i < names.length; i++) {
+      sims[i] = new CacheTraceReplay(names[i], maxBytes);
+    }
+
+    BufferedReader in = new BufferedReader(new FileReader(args[0]));
+    String line;
+    int size[] = new int[1];
+    int skipped = 0;
+    while ((line = in.readLine()) != null) {
+      String url = parse(line, size);
+      if (url == null) {
+	skipped++;
+	continue;
+      }
+      for (int i = 0; i < sims.length; i++) {
+	sims[i].request(url, size[0]);
+      }
+    }
+    in.close();
+
+    System.out.println("CacheTraceReplay: "+args[0]+", cache size "+args[1]+" Kb, "+skipped+" lines skipped");
+    for (int i = 0; i < sims.length; i++) {
+      sims[i].report();
+    }
+  }
+
+}
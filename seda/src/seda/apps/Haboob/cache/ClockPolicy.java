@@ -0,0 +1,116 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.apps.Haboob.cache;
+
+/**
+ * The CLOCK approximation of LRU. Pages are kept on a circular list 
+ * with a reference bit each; a hit only sets the bit, without taking
+ * any lock. To find victims, the clock hand sweeps the list, clearing
+ * reference bits and choosing the pages whose bit was already clear.
+ */
+public class ClockPolicy implements CachePolicyIF {
+
+  private node hand;
+  private int count;
+
+  public synchronized Object insert(Object owner, String url, int size) {
+    node n = new node(owner);
+    n.referenced = true;
+    if (hand == null) {
+      n.prev = n.next = n;
+      hand = n;
+    } else {
+      // Insert just behind the hand, so it is examined last
+      n.next = hand;
+      n.prev = hand.prev;
+      hand.prev.next = n;
+      hand.prev = n;
+    }
+    count++;
+    return n;
+  }
+
+  public void access(Object handle) {
+    ((node)handle).referenced = true;
+  }
+
+  public synchronized void remove(Object handle) {
+    node n = (node)handle;
+    if (n.removed) return;
+    n.removed = true;
+    count--;
+    if (count == 0) {
+      hand = null;
+    } else {
+      if (hand == n) hand = n.next;
+      n.prev.next = n.next;
+      n.next.prev = n.prev;
+    }
+    n.prev = n.next = null;
+  }
+
+  public synchronized Object[] victims(int size, int max) {
+    max = Math.min(max, count);
+    Object ret[] = new Object[max];
+    int found = 0;
+    // Two full sweeps clear every bit, unless hits keep setting them
+    for (int i = 0; (i < 2*count) && (found == 0); i++) {
+      if (!hand.referenced) {
+	ret[found++] = hand.owner;
+      } else {
+	hand.referenced = false;
+	hand = hand.next;
+      }
+    }
+    // Further candidates are the unreferenced pages shortly after it;
+    // the hand stays at the first and no other bits are cleared
+    if (found > 0) {
+      int steps = 4*max;
+      for (node n = hand.next; (n != hand) && (found < max) && (steps-- > 0); n = n.next) {
+	if (!n.referenced) ret[found++] = n.owner;
+      }
+    }
+    if (found < max) {
+      Object tmp[] = new Object[found];
+      System.arraycopy(ret, 0, tmp, 0, found);
+      ret = tmp;
+    }
+    return ret;
+  }
+
+  public boolean admit(String url, int size, boolean mustEvict) {
+    return true;
+  }
+
+  private static class node {
+    Object owner;
+    volatile boolean referenced;
+    node prev, next;
+    boolean removed;
+
+    node(Object owner) {
+      this.owner = owner;
+    }
+  }
+
+}
@@ -0,0 +1,98 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.apps.Haboob.cache;
+
+/**
+ * A least-recently-used eviction policy. Pages are kept on a list in
+ * order of last access; each hit moves the page to the front, which
+ * takes the policy's lock.
+ */
+public class LRUPolicy implements CachePolicyIF {
+
+  // Most recently used page is at the head
+  protected node head, tail;
+
+  public synchronized Object insert(Object owner, String url, int size) {
+    node n = new node(owner, url, size);
+    linkHead(n);
+    return n;
+  }
+
+  public synchronized void access(Object handle) {
+    node n = (node)handle;
+    if (n.removed || (n == head)) return;
+    unlink(n);
+    linkHead(n);
+  }
+
+  public synchronized void remove(Object handle) {
+    node n = (node)handle;
+    if (n.removed) return;
+    unlink(n);
+    n.removed = true;
+  }
+
+  public synchronized Object[] victims(int size, int max) {
+    int count = 0;
+    for (node n = tail; (n != null) && (count < max); n = n.prev) count++;
+    Object ret[] = new Object[count];
+    node n = tail;
+    for (int i = 0; i < count; i++, n = n.prev) ret[i] = n.owner;
+    return ret;
+  }
+
+  public boolean admit(String url, int size, boolean mustEvict) {
+    return true;
+  }
+
+  private void linkHead(node n) {
+    n.prev = null;
+    n.next = head;
+    if (head != null) head.prev = n;
+    head = n;
+    if (tail == null) tail = n;
+  }
+
+  private void unlink(node n) {
+    if (n.prev != null) n.prev.next = n.next;
+    else head = n.next;
+    if (n.next != null) n.next.prev = n.prev;
+    else tail = n.prev;
+    n.prev = n.next = null;
+  }
+
+  protected static class node {
+    Object owner;
+    String url;
+    int size;
+    node prev, next;
+    boolean removed;
+
+    node(Object owner, String url, int size) {
+      this.owner = owner;
+      this.url = url;
+      this.size = size;
+    }
+  }
+
+}
@@ -0,0 +1,224 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+
+package seda.apps.Haboob.cache;
+
+import seda.sandStorm.core.BufferElement;
+import seda.sandStorm.lib.http.httpOKResponse;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MappedFileCache is the second tier of the Haboob page cache. It 
+ * holds pages as read-only memory-mapped regions of their files, so 
+ * their contents live in the operating system's page cache rather than
+ * on the Java heap, and are sent without being copied. PageCacheSized
+ * uses it for files that are too large to hold on the heap, for pages
+ * that its cache policy does not admit, and for pages with several 
+ * hits that are evicted from the heap. Small pages that receive 
+ * enough hits here are promoted back to the heap.
+ *
+ * <p>Lookups take no lock. Pages are evicted in LRU order when the 
+ * total size mapped exceeds the given limit; the mapping itself is 
+ * released when the page's buffers are garbage collected.
+ *
+ * @see PageCacheSized
+ */
+public class MappedFileCache {
+
+  private static final boolean DEBUG = false;
+
+  private ConcurrentHashMap pages; // Map URL -> mappedPage
+  private CachePolicyIF policy;
+  private long maxBytes;
+  private int promoteHits;
+  private long sizeBytes;
+  private ConcurrentHashMap promoted; // URLs being moved to the heap
+
+  /** Statistics. */
+  public AtomicLong hits, maps, promotions, demotions, evictions;
+
+  /**
+   * Create a MappedFileCache holding at most 'maxBytes' bytes (-1 for
+   * no limit), in which a page is promoted after 'promoteHits' hits.
+   */
+  public MappedFileCache(long maxBytes, int promoteHits) {
+    this.maxBytes = maxBytes;
+    this.promoteHits = promoteHits;
+    pages = new ConcurrentHashMap();
+    promoted = new ConcurrentHashMap();
+    policy = new LRUPolicy();
+    hits = new AtomicLong();
+    maps = new AtomicLong();
+    promotions = new AtomicLong();
+    demotions = new AtomicLong();
+    evictions = new AtomicLong();
+  }
+
+  /**
+   * Return the mapped page for the given URL, or null.
+   */
+  public mappedPage get(String url) {
+    return (mappedPage)pages.get(url);
+  }
+
+  /**
+   * Map the given file and add it to the cache under the given URL,
+   * replacing any page already there. Returns the new page.
+   */
+  public mappedPage map(String url, String filename, String mimeType) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(filename, "r");
+    MappedByteBuffer mbb;
+    try {
+      FileChannel ch = raf.getChannel();
+      long len = ch.size();
+      if (len > Integer.MAX_VALUE) throw new IOException("MappedFileCache: "+filename+" is too large");
+      mbb = ch.map(FileChannel.MapMode.READ_ONLY, 0, len);
+    } finally {
+      // The mapping remains valid after the file is closed
+      raf.close();
+    }
+    if (DEBUG) System.err.println("MappedFileCache: Mapped "+filename+" ("+mbb.capacity()+" bytes)");
+
+    mappedPage page = new mappedPage(url, filename, mimeType, mbb);
+    maps.incrementAndGet();
+    synchronized (this) {
+      // Insert before publishing the page, since hit() is not locked
+      page.policyNode = policy.insert(page, url, page.size);
+      mappedPage old = (mappedPage)pages.put(url, page);
+      if (old != null) unlink(old);
+      sizeBytes += page.size;
+      while ((maxBytes != -1) && (sizeBytes > maxBytes)) {
+	Object victims[] = policy.victims(page.size, 1);
+	if ((victims.length == 0) || (victims[0] == page)) break;
+	mappedPage victim = (mappedPage)victims[0];
+	if (DEBUG) System.err.println("MappedFileCache: Evicting "+victim.url);
+	pages.remove(victim.url, victim);
+	unlink(victim);
+	evictions.incrementAndGet();
+      }
+    }
+    return page;
+  }
+
+  /**
+   * Add a page that is being evicted from the heap tier, if the file
+   * can be mapped.
+   */
+  public void demote(String url, String filename, String mimeType) {
+    try {
+      map(url, filename, mimeType);
+      demotions.incrementAndGet();
+    } catch (IOException ioe) {
+      if (DEBUG) System.err.println("MappedFileCache: Cannot demote "+filename+": "+ioe);
+    }
+  }
+
+  /**
+   * Record a hit on the given page. Returns true if the page should now
+   * be promoted to the heap tier, in which case it has been removed 
+   * from this cache and the next call to <tt>takePromotion()</tt> for 
+   * its URL returns true; otherwise the page should be sent from here.
+   * Only pages smaller than 'minMappedSize' are promoted.
+   */
+  public boolean hit(mappedPage page, long minMappedSize) {
+    hits.incrementAndGet();
+    policy.access(page.policyNode);
+    if ((page.size >= minMappedSize) || 
+	(page.hits.incrementAndGet() != promoteHits)) return false;
+    if (!pages.remove(page.url, page)) return false;
+    if (DEBUG) System.err.println("MappedFileCache: Promoting "+page.url);
+    synchronized (this) {
+      unlink(page);
+    }
+    promoted.put(page.url, page);
+    promotions.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Return true if the given URL was just promoted by <tt>hit()</tt>,
+   * so it should be added to the heap tier regardless of the cache
+   * policy. Only returns true once per promotion.
+   */
+  public boolean takePromotion(String url) {
+    return (promoted.remove(url) != null);
+  }
+
+  /**
+   * Return the number of pages in the cache.
+   */
+  public int getNumEntries() {
+    return pages.size();
+  }
+
+  /**
+   * Return the total size of the pages in the cache.
+   */
+  public synchronized long getSizeBytes() {
+    return sizeBytes;
+  }
+
+  // Called with this locked
+  private void unlink(mappedPage page) {
+    policy.remove(page.policyNode);
+    sizeBytes -= page.size;
+  }
+
+  /**
+   * A page held in the mapped tier.
+   */
+  public static class mappedPage {
+    String url, filename;
+    int size;
+    httpOKResponse response;
+    AtomicInteger hits;
+    Object policyNode;
+
+    mappedPage(String url, String filename, String mimeType, MappedByteBuffer mbb) {
+      this.url = url;
+      this.filename = filename;
+      this.size = mbb.capacity();
+      this.response = new httpOKResponse(mimeType, new BufferElement(mbb));
+      this.hits = new AtomicInteger();
+    }
+
+    /**
+     * Return the response used to send this page.
+     */
+    public httpOKResponse getResponse() {
+      return response;
+    }
+
+    public String toString() {
+      return "mappedPage [url="+url+", size="+size+"]";
+    }
+  }
+
+}
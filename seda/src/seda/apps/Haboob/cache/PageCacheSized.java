@@ -29,17 +29,20 @@ import seda.apps.Haboob.HaboobStats;
 import seda.apps.Haboob.http.HttpSend;
 import seda.sandStorm.api.*;
 import seda.sandStorm.core.BufferElement;
+import seda.sandStorm.core.FileRegion;
 import seda.sandStorm.core.ssLinkedList;
 import seda.sandStorm.lib.aDisk.AFile;
 import seda.sandStorm.lib.aDisk.AFileIOCompleted;
 import seda.sandStorm.lib.aDisk.AFileStat;
 import seda.sandStorm.lib.aDisk.FileIsDirectoryException;
+import seda.sandStorm.lib.aSocket.aSocketMgr;
 import seda.sandStorm.lib.http.*;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 // For JDK1.1 Collections package
 //import com.sun.java.util.collections.*;
@@ -48,6 +51,23 @@ import java.util.*;
  * This version of PageCache maintains a list of cacheEntries for each
  * page size, and attempts to reuse old entries of the same size on reject.
  * This is the best implementation of the Haboob web page cache.
+ *
+ * <p>Pages are kept in a SegmentedPageTable, so cache hits take no 
+ * shared lock. A miss is handled while holding the lock of the URL's
+ * segment; requests for a page that is still being read are queued on
+ * its entry and sent when the read completes. The number of segments
+ * is given by the <tt>numSegments</tt> initarg. The <tt>cachePolicy</tt>
+ * initarg selects how pages are evicted when the cache is full; see
+ * SegmentedPageTable.createPolicy(). The default, "sizeclass", only
+ * replaces a page with another of the same size.
+ *
+ * <p>If the <tt>mmapThreshold</tt> initarg is set, a second cache tier
+ * (see MappedFileCache) holds files of at least that many KB, pages not
+ * admitted by the cache policy, and pages with at least 
+ * <tt>promoteHits</tt> hits that are evicted from the heap. These are 
+ * sent from memory-mapped files, which do not count against 
+ * <tt>maxCacheSize</tt>. A small page that gets <tt>promoteHits</tt> 
+ * hits in the mapped tier is moved back to the heap.
  */
 public class PageCacheSized implements EventHandlerIF, HaboobConst {
 
@@ -59,6 +79,11 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
   // Don't even stat file; just allocate buffer of fixed size
   private static final boolean DEBUG_NO_FILE_READ_SAMESIZE = false;
   private static final int DEBUG_NO_FILE_READ_SAMESIZE_SIZE = 8192;
+  // Number of eviction candidates to consider at once
+  private static final int MAX_VICTIMS = 16;
+  // Default number of hits before a page moves between cache tiers
+  private static final int DEFAULT_PROMOTE_HITS = 4;
+
   // Don't read file through aFile interface - just do it directly
   private static final boolean DEBUG_DIRECT_FILE = false;
 
@@ -83,13 +108,22 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
   private String ROOT_DIR;
 
   private SinkIF mysink, sendSink;
-  private Hashtable pageTbl; // Map URL -> cacheEntry
-  private Hashtable sizeTbl; // Map size -> linked list of free cacheEntries
-  private Hashtable aFileTbl;  // Map aFile -> cacheEntry
+  private SegmentedPageTable pageTbl; // Map URL -> cacheEntry
+  private ConcurrentHashMap aFileTbl;  // Map aFile -> cacheEntry
   private int maxCacheSize; 
+  private int sendfileThreshold;
+  private MappedFileCache mappedTbl; // Null if not in use
+  private long mmapThreshold;
+  private int promoteHits;
   private Random rand;
 
-  private Hashtable mimeTbl; // Filename extension -> MIME type
+  // Filename extension -> MIME type
+  private static final String mimeExts[] = { 
+    ".html", ".gif", ".jpg", ".jpeg", ".pdf" 
+  };
+  private static final String mimeTypes[] = { 
+    "text/html", "image/gif", "image/jpeg", "image/jpeg", "application/pdf"
+  };
   private static final String defaultMimeType = "text/plain";
 
   // Used to initialize hit stage
@@ -101,13 +135,15 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
   PageCacheSized(PageCacheSized hitStage) {
     missStage = true;
     pageTbl = hitStage.pageTbl;
-    sizeTbl = hitStage.sizeTbl;
     aFileTbl = hitStage.aFileTbl;
-    mimeTbl = hitStage.mimeTbl;
     rand = new Random();
     DEFAULT_URL = hitStage.DEFAULT_URL;
     ROOT_DIR = hitStage.ROOT_DIR;
     maxCacheSize = hitStage.maxCacheSize;
+    sendfileThreshold = hitStage.sendfileThreshold;
+    mappedTbl = hitStage.mappedTbl;
+    mmapThreshold = hitStage.mmapThreshold;
+    promoteHits = hitStage.promoteHits;
     if (PRIORITIZE_HITS) {
       myComp = hitStage.myComp;
     }
@@ -119,23 +155,35 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
     sendSink = config.getManager().getStage(HTTP_SEND_STAGE).getSink();
 
     if (!missStage) {
-      pageTbl = new Hashtable();
-      sizeTbl = new Hashtable();
-      aFileTbl = new Hashtable();
+      aFileTbl = new ConcurrentHashMap();
       rand = new Random();
 
-      mimeTbl = new Hashtable();
-      mimeTbl.put(".html", "text/html");
-      mimeTbl.put(".gif", "image/gif");
-      mimeTbl.put(".jpg", "image/jpeg");
-      mimeTbl.put(".jpeg", "image/jpeg");
-      mimeTbl.put(".pdf", "application/pdf");
-
       DEFAULT_URL = config.getString("defaultURL");
       if (DEFAULT_URL == null) throw new IllegalArgumentException("Must specify defaultURL");
       ROOT_DIR = config.getString("rootDir");
       if (ROOT_DIR == null) throw new IllegalArgumentException("Must specify rootDir");
       maxCacheSize = config.getInt("maxCacheSize");
+      sendfileThreshold = config.getInt("sendfileThreshold");
+      int numSegments = config.getInt("numSegments");
+      if (numSegments <= 0) numSegments = SegmentedPageTable.DEFAULT_NUM_SEGMENTS;
+      pageTbl = new SegmentedPageTable(numSegments, 
+	  (maxCacheSize == -1) ? -1 : (maxCacheSize * 1024L),
+	  config.getString("cachePolicy"));
+      HaboobStats.pageTable = pageTbl;
+
+      int mt = config.getInt("mmapThreshold");
+      if ((mt != -1) && !aSocketMgr.usingNIO()) {
+	// NBIO copies each mapped page onto the heap to write it
+	System.err.println("PageCacheSized: Warning: mmapThreshold requires the NIO aSocket provider, disabling mapped files");
+      } else if (mt != -1) {
+	mmapThreshold = mt * 1024L;
+	promoteHits = config.getInt("promoteHits");
+	if (promoteHits <= 0) promoteHits = DEFAULT_PROMOTE_HITS;
+	int maxMappedSize = config.getInt("maxMappedSize");
+	mappedTbl = new MappedFileCache(
+	    (maxMappedSize == -1) ? -1 : (maxMappedSize * 1024L), promoteHits);
+	HaboobStats.mappedCache = mappedTbl;
+      }
 
       if (PRIORITIZE_HITS) {
 	myComp = new myComparator();
@@ -171,38 +219,75 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
         url = req.getURL();
       }
 
+      if (DEBUG) System.err.println("PageCacheSized: Checking cache for URL "+url);
+      SegmentedPageTable.segment seg = pageTbl.segmentFor(url);
       cacheEntry entry;
-      synchronized (pageTbl) {
-
-	if (DEBUG) System.err.println("PageCacheSized: Checking cache for URL "+url);
+      httpOKResponse response;
+      Object policyNode;
+      while (true) {
 	long t1 = 0, t2;
 	if (PROFILE) t1 = System.currentTimeMillis();
-	entry = (cacheEntry)pageTbl.get(url);
+	entry = (cacheEntry)seg.get(url);
 	if (PROFILE) {
 	  t2 = System.currentTimeMillis();
 	  HaboobStats.numCacheLookup++;
 	  HaboobStats.timeCacheLookup += (t2 - t1);
 	}
 
+	if ((entry == null) && (mappedTbl != null)) {
+	  // Try the mapped tier, unless the page is promoted to the heap
+	  MappedFileCache.mappedPage page = mappedTbl.get(url);
+	  if ((page != null) && !mappedTbl.hit(page, mmapThreshold)) {
+	    if (DEBUG) System.err.println("PageCacheSized: Sending mapped "+page);
+	    HaboobStats.numCacheHits++;
+	    HttpSend.sendResponse(new httpResponder(page.getResponse(), req));
+	    return;
+	  }
+	}
+
 	if (entry == null) {
-	  // Got a cache miss
-	  handleCacheMiss(req);
-	  return;
+	  if (SEPARATE_MISS_STAGE && !missStage) {
+	    // Pass to the miss stage
+	    handleCacheMiss(req, url, seg);
+	    return;
+	  }
+	  synchronized (seg) {
+	    // Check again, since an earlier miss may have loaded it
+	    entry = (cacheEntry)seg.get(url);
+	    if (entry == null) {
+	      // Got a cache miss
+	      handleCacheMiss(req, url, seg);
+	      return;
+	    }
+	  }
 	}
-      } 
 
-      if (DEBUG) System.err.println("PageCacheSized: Got entry "+entry);
-      HaboobStats.numCacheHits++;
-      synchronized (entry) {
-	if (entry.pending) {
-	  // Entry still pending - wait for it
-	  if (DEBUG) System.err.println("PageCacheSized: Entry still pending");
-	  entry.addWaiter(req);
-	} else {
-	  // Got a hit - send it
-	  if (DEBUG) System.err.println("PageCacheSized: Sending entry");
-	  entry.send(req);
+	if (DEBUG) System.err.println("PageCacheSized: Got entry "+entry);
+	synchronized (entry) {
+	  // The lookup was not locked, so the entry may have been evicted
+	  // or reused for another page since; if so, look the page up again
+	  if (entry.evicted || !url.equals(entry.url)) continue;
+	  policyNode = entry.policyNode;
+	  if (entry.pending) {
+	    // Entry still pending - wait for it
+	    if (DEBUG) System.err.println("PageCacheSized: Entry still pending");
+	    entry.addWaiter(req);
+	    response = null;
+	  } else {
+	    response = entry.response;
+	  }
 	}
+	break;
+      }
+
+      HaboobStats.numCacheHits++;
+      seg.hits.incrementAndGet();
+      seg.policy.access(policyNode);
+      entry.hits++;
+      if (response != null) {
+	// Got a hit - send it
+	if (DEBUG) System.err.println("PageCacheSized: Sending entry");
+	HttpSend.sendResponse(new httpResponder(response, req));
       }
 
     } else if (item instanceof AFileIOCompleted) {
@@ -276,33 +361,28 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
     else return -1;
   }
 
-  private void handleCacheMiss(httpRequest req) {
-    String url;
+  // Called with the segment locked, unless passing the request to the
+  // miss stage
+  private void handleCacheMiss(httpRequest req, String url, SegmentedPageTable.segment seg) {
     String fname;
     long t1 = 0, t2;
 
     if (SEPARATE_MISS_STAGE && !missStage) {
       if (!missStageSink.enqueue_lossy(req)) {
 	System.err.println("PageCacheSized: WARNING: Could not enqueue "+req+" to missStageSink");
+	HttpSend.sendResponse(new httpResponder(new httpServiceUnavailableResponse(req, "Cache miss stage is busy"), req, false));
       }
       return;
     }
 
     if (DEBUG) System.err.println("PageCacheSized: Handling cache miss for "+req);
     HaboobStats.numCacheMisses++;
+    seg.misses.incrementAndGet();
 
-    if (DEBUG_SINGLE_CACHE_PAGE) {
-      if (DEBUG_SINGLE_CACHE_PAGE_SAMENAME) {
-	// Rewrite url
-	url = DEBUG_SINGLE_CACHE_PAGE_FNAME;
-	fname = ROOT_DIR + url;
-      } else {
-	// Rewrite fname, not url
-	url = req.getURL();
-	fname = ROOT_DIR + DEBUG_SINGLE_CACHE_PAGE_FNAME;
-      }
+    if (DEBUG_SINGLE_CACHE_PAGE && !DEBUG_SINGLE_CACHE_PAGE_SAMENAME) {
+      // Rewrite fname, not url
+      fname = ROOT_DIR + DEBUG_SINGLE_CACHE_PAGE_FNAME;
     } else {
-      url = req.getURL();
       fname = ROOT_DIR + url;
     }
 
@@ -313,7 +393,7 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
     if (DEBUG_NO_FILE_READ && DEBUG_NO_FILE_READ_SAMESIZE) {
       // Create bogus entry
       if (DEBUG) System.err.println("PageCacheSized: Creating bogus cacheEntry");
-      entry = getEntry(req, null, DEBUG_NO_FILE_READ_SAMESIZE_SIZE);
+      entry = getEntry(req, url, seg, null, DEBUG_NO_FILE_READ_SAMESIZE_SIZE);
 
     } else if (DEBUG_DIRECT_FILE) {
 
@@ -322,7 +402,7 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
 	File f = new File(fname);
 	RandomAccessFile raf = new RandomAccessFile(f, "r");
 	if (DEBUG) System.err.println("PageCacheSized: Got file size "+f.length());
-	entry = getEntry(req, null, (int)f.length());
+	entry = getEntry(req, url, seg, null, (int)f.length());
 	if (DEBUG) System.err.println("PageCacheSized: Reading file directly, length "+f.length()+", entrysize "+entry.response.getPayload().getBytes().length);
 	BufferElement payload = entry.response.getPayload();
 	raf.readFully(payload.getBytes(), payload.offset, payload.size);
@@ -380,9 +460,32 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
 	}
       }
 
+      if ((sendfileThreshold != -1) && (stat.length > sendfileThreshold*1024L)) {
+	// Too big to be worth caching; send straight from the file
+	sendUncached(req, af, stat.length);
+	return;
+      }
+
+      boolean promote = (mappedTbl != null) && mappedTbl.takePromotion(url);
+      if ((mappedTbl != null) && !promote && (stat.length > 0) &&
+	  (stat.length >= mmapThreshold)) {
+	// Too big for the heap tier
+	sendMapped(req, url, af, stat.length);
+	return;
+      }
+
       // Allocate entry
       if (DEBUG) System.err.println("PageCacheSized: Got file size "+stat.length);
-      entry = getEntry(req, af, (int)stat.length);
+      entry = getEntry(req, url, seg, af, (int)stat.length, promote);
+      if (entry == null) {
+	// Not admitted by the cache policy
+	if ((mappedTbl != null) && (stat.length > 0)) {
+	  sendMapped(req, url, af, stat.length);
+	} else {
+	  sendUncached(req, af, stat.length);
+	}
+	return;
+      }
     }
 
     if (DEBUG_NO_FILE_READ) {
@@ -394,120 +497,139 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
     }
   }
 
+  // Send the file without caching it
+  private void sendUncached(httpRequest req, AFile af, long length) {
+    if (DEBUG) System.err.println("PageCacheSized: Sending "+af.getFilename()+" ("+length+" bytes) uncached");
+    af.close();
+    FileRegion region = new FileRegion(af.getFilename(), 0, (int)length);
+    httpOKResponse resp = new httpOKResponse(getMimeType(af.getFilename()), region);
+    HttpSend.sendResponse(new httpResponder(resp, req));
+  }
+
+  // Add the file to the mapped tier and send it from there
+  private void sendMapped(httpRequest req, String url, AFile af, long length) {
+    af.close();
+    MappedFileCache.mappedPage page;
+    try {
+      page = mappedTbl.map(url, af.getFilename(), getMimeType(af.getFilename()));
+    } catch (IOException ioe) {
+      System.err.println("PageCacheSized: Could not map file "+af.getFilename()+": "+ioe);
+      sendUncached(req, af, length);
+      return;
+    }
+    if (DEBUG) System.err.println("PageCacheSized: Sending newly mapped "+page);
+    HttpSend.sendResponse(new httpResponder(page.getResponse(), req));
+  }
+
   private String getMimeType(String url) {
-    Enumeration e = mimeTbl.keys();
-    while (e.hasMoreElements()) {
-      String key = (String)e.nextElement();
-      if (url.endsWith(key)) return (String)mimeTbl.get(key);
+    for (int i = 0; i < mimeExts.length; i++) {
+      if (url.endsWith(mimeExts[i])) return mimeTypes[i];
     }
     return defaultMimeType;
   }
 
-  // Obtain a new cache entry (either allocating a new entry or 
-  // reusing an old one)
-  private cacheEntry getEntry(httpRequest req, AFile af, int size) {
-    cacheEntry entry = null;
+  private cacheEntry getEntry(httpRequest req, String url, SegmentedPageTable.segment seg, AFile af, int size) {
+    return getEntry(req, url, seg, af, size, false);
+  }
 
+  // Obtain a new cache entry (either allocating a new entry or 
+  // reusing an old one from the same segment), or return null if the
+  // cache policy does not admit the page. Pages promoted from the 
+  // mapped tier are always admitted. Called with the segment locked.
+  private cacheEntry getEntry(httpRequest req, String url, SegmentedPageTable.segment seg, AFile af, int size, boolean promote) {
     if (DEBUG) System.err.println("PageCacheSized: Finding entry of size "+size);
 
-    if ((maxCacheSize != -1) && (HaboobStats.cacheSizeBytes + size > maxCacheSize*1024)) {
-      // Cache is full, try to reuse entry
-      if (DEBUG) System.err.println("PageCacheSized: Cache is full (size "+(HaboobStats.cacheSizeBytes/1024)+" Kb)");
-      Integer isz = new Integer(size);
-      ssLinkedList ll = (ssLinkedList)sizeTbl.get(isz);
-      if ((ll == null) || (ll.size() == 0)) {
-	// No entries available, allocate new
-	if (DEBUG) System.err.println("PageCacheSized: No entry of this size, allocating");
-	return new cacheEntry(req, af, size);
-      } else {
-	// Reuse entry
-	if (DEBUG) System.err.println("PageCacheSized: Sizelist has "+ll.size()+" elements");
-	boolean found = false;
-	int count = 0;
-	while (count < ll.size()) {
-	  entry = (cacheEntry)ll.remove_head();
-	  if (entry.pending) {
-	    ll.add_to_tail(entry);
-	    count++;
-	  } else {
-	    if (DEBUG) System.err.println("PageCacheSized: Reusing entry "+entry);
-	    found = true;
+    boolean full = !seg.hasRoom(size);
+    if ((af != null) && !promote && !seg.policy.admit(url, size, full)) return null;
+
+    String mimeType = (af == null) ? defaultMimeType : getMimeType(af.getFilename());
+    if (full) {
+      // Cache is full; evict entries chosen by the policy until there
+      // is room, reusing one of the same size and type if possible
+      if (DEBUG) System.err.println("PageCacheSized: Cache is full (size "+(pageTbl.getSizeBytes()/1024)+" Kb)");
+      while (!seg.hasRoom(size)) {
+	Object victims[] = seg.policy.victims(size, MAX_VICTIMS);
+	cacheEntry victim = null;
+	for (int i = 0; i < victims.length; i++) {
+	  cacheEntry e = (cacheEntry)victims[i];
+	  if (!e.pending) {
+	    victim = e;
 	    break;
 	  }
 	}
-	if (!found) {
-     	  // All entries pending, allocate anyway
-	  if (DEBUG) System.err.println("PageCacheSized: All entries pending, allocating new");
-	  return new cacheEntry(req, af, size);
-	} 
-
-       	// Place back on list and reuse
-	ll.add_to_tail(entry);
-	entry.reuse(req, af);
-	return entry;
+	if (victim == null) {
+	  // Nothing can be evicted, allocate anyway
+	  if (DEBUG) System.err.println("PageCacheSized: No entry to evict, allocating new");
+	  break;
+	}
+	if ((mappedTbl != null) && (victim.fname != null) && 
+	    (victim.hits >= promoteHits)) {
+	  // Still in use; keep it in the mapped tier
+	  mappedTbl.demote(victim.url, victim.fname, victim.mimeType);
+	}
+	if ((victim.size == size) && victim.mimeType.equals(mimeType)) {
+	  if (DEBUG) System.err.println("PageCacheSized: Reusing entry "+victim);
+	  victim.reuse(req, url, af);
+	  return victim;
+	}
+	if (DEBUG) System.err.println("PageCacheSized: Evicting entry "+victim);
+	victim.evict();
+	seg.evictions.incrementAndGet();
       }
-
-    } else {
-      if (DEBUG) System.err.println("PageCacheSized: Cache not full (size "+(HaboobStats.cacheSizeBytes/1024)+" Kb), allocating");
-      // Cache not full, go ahead and allocate
-      return new cacheEntry(req, af, size);
     }
 
+    if (DEBUG) System.err.println("PageCacheSized: Allocating new entry (size "+(pageTbl.getSizeBytes()/1024)+" Kb)");
+    return new cacheEntry(req, url, seg, af, size, mimeType);
   }
 
   private class cacheEntry {
     httpOKResponse response;
-    boolean pending;
+    volatile boolean pending;
+    // Set once the entry has been removed from the cache
+    boolean evicted;
     int size;
     AFile af;
-    ssLinkedList waiting, sizeList;
-    String url;
+    ssLinkedList waiting;
+    String url, fname, mimeType;
+    SegmentedPageTable.segment seg;
+    Object policyNode;
+    // Hits since the page was loaded; updated without locking, so only
+    // approximate
+    int hits;
     long tStartRead, tEndRead;
 
     // Allocate a new cache entry
-    private cacheEntry(httpRequest req, AFile af, int size) {
+    private cacheEntry(httpRequest req, String url, SegmentedPageTable.segment seg, AFile af, int size, String mimeType) {
       if (DEBUG) System.err.println("PageCacheSized: Allocating new cache entry for "+af.getFilename()+", size="+size);
 
-      if (af == null) {
-	this.response = new httpOKResponse("text/plain", size);
-      } else {
-	this.response = new httpOKResponse(getMimeType(af.getFilename()), size);
-      }
+      this.response = new httpOKResponse(mimeType, size);
+      this.mimeType = mimeType;
       this.size = size;
-      this.url = req.getURL();
+      this.url = url;
+      this.seg = seg;
       this.af = af;
+      if (af != null) this.fname = af.getFilename();
       pending = true;
       waiting = new ssLinkedList();
       addWaiter(req);
+      policyNode = seg.policy.insert(this, url, size);
 
-      // Add to pageTbl
-      pageTbl.put(url, this);
+      // Add to pageTbl last, since a hit may find the entry as soon as
+      // it is there
+      seg.put(url, this);
       // Add to aFileTbl
       if (af != null) {
        	aFileTbl.put(af, this);
       } 
-      // Add to sizeTbl
-      Integer isz = new Integer(size);
-      ssLinkedList ll = (ssLinkedList)sizeTbl.get(isz);
-      if (ll == null) {
-	ll = new ssLinkedList();
-	sizeTbl.put(isz, ll);
-      } 
-      ll.add_to_tail(this);
-      this.sizeList = ll;
-      HaboobStats.cacheSizeEntries++;
-      HaboobStats.cacheSizeBytes += size;
+      seg.added(size);
     }
     
-    // Reuse a cache entry
-    /* FIXME: Avoid reuse of cache entry that is currently being
-     * written out to another socket? (Maintain 'write count' which
-     * is incremented for each send, decremented for each SinkDreainedEvent,
-     * and SinkClosedEvent (when the associated SinkDrainedEvent did
-     * not arrive yet due to the conn being closed first).
-     */
-    private synchronized void reuse(httpRequest req, AFile af) {
+    // Reuse a cache entry. The old page may still be being written out
+    // to another socket, so it keeps its buffer and the entry gets a 
+    // new one; reading into the old buffer could send the wrong file.
+    private synchronized void reuse(httpRequest req, String url, AFile af) {
       if (DEBUG) System.err.println("PageCacheSized: entry "+this+" being reused for "+af.getFilename());
+      this.response = new httpOKResponse(mimeType, size);
       if (this.af != null) {
 	aFileTbl.remove(this.af);
 	this.af.close();
@@ -515,13 +637,16 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
       this.af = af;
       if (af != null) {
 	aFileTbl.put(af, this);
+	this.fname = af.getFilename();
       }
-      synchronized (pageTbl) {
-	pageTbl.remove(url);
-	this.url = req.getURL();
-	pageTbl.put(url, this);
-      }
+      hits = 0;
+      seg.remove(this.url);
+      seg.evictions.incrementAndGet();
+      seg.policy.remove(policyNode);
+      this.url = url;
       pending = true;
+      policyNode = seg.policy.insert(this, url, size);
+      seg.put(url, this);
       waiting.remove_all();
       addWaiter(req);
     }
@@ -549,14 +674,24 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
     // Free cache entry and remove from system for GC
     void free() {
       System.err.println("PageCacheSized: Freeing entry "+this);
+      evict();
+    }
+
+    // Remove entry to make room for another. The response is left for
+    // the GC rather than cleared, since it may still be being sent.
+    void evict() {
       if (af != null) {
 	aFileTbl.remove(af);
 	af.close();
 	af = null;
       }
-      pageTbl.remove(url);
-      sizeList.remove_item(this);
-      response = null;
+      seg.remove(url);
+      seg.policy.remove(policyNode);
+      seg.removed(size);
+      synchronized (this) {
+	// Set last, so that a hit which sees it finds the page gone
+	evicted = true;
+      }
     }
 
     synchronized void addWaiter(httpRequest req) {
@@ -595,12 +730,6 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
       }
     }
 
-    // Send cache entry on hit
-    void send(httpRequest req) {
-      httpResponder respd = new httpResponder(response, req);
-      HttpSend.sendResponse(respd);
-    }
-
     public String toString() {
       if (af != null) {
 	return "cacheEntry [af="+af.getFilename()+", size="+size+"]";
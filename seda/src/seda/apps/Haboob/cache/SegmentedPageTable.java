@@ -0,0 +1,212 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.apps.Haboob.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The table of pages held by PageCacheSized. The table is split into a
+ * number of segments, and each URL belongs to the segment selected by
+ * its hash. Looking up a URL takes no lock, so cache hits processed by
+ * different threads do not contend. Each segment has its own lock,
+ * which is held while a miss is being handled (so concurrent misses on
+ * the same URL load it only once), its own share of the cache size,
+ * its own eviction policy (see CachePolicyIF), and its own hit, miss
+ * and eviction counters.
+ */
+public class SegmentedPageTable {
+
+  /** The default number of segments. */
+  public static final int DEFAULT_NUM_SEGMENTS = 16;
+
+  private segment segs[];
+  private int mask;
+
+  /**
+   * Create a table with the given number of segments (rounded up to a 
+   * power of two), total size limit in bytes (-1 means no limit), and
+   * eviction policy name, as accepted by <tt>createPolicy()</tt>.
+   */
+  SegmentedPageTable(int numSegments, long maxBytes, String policy) {
+    int n = 1;
+    while (n < numSegments) n <<= 1;
+    segs = new segment[n];
+    mask = n - 1;
+    for (int i = 0; i < n; i++) {
+      segs[i] = new segment((maxBytes == -1) ? -1 : (maxBytes / n), 
+	  createPolicy(policy));
+    }
+  }
+
+  /**
+   * Create an eviction policy given its name: "sizeclass" (the 
+   * default), "lru", "clock" or "tinylfu". 
+   */
+  public static CachePolicyIF createPolicy(String name) {
+    if ((name == null) || name.equals("sizeclass")) {
+      return new SizeClassPolicy();
+    } else if (name.equals("lru")) {
+      return new LRUPolicy();
+    } else if (name.equals("clock")) {
+      return new ClockPolicy();
+    } else if (name.equals("tinylfu")) {
+      return new TinyLFUPolicy();
+    } else {
+      throw new IllegalArgumentException("Unknown cache policy: "+name);
+    }
+  }
+
+  /**
+   * Return the segment holding the given URL.
+   */
+  segment segmentFor(String url) {
+    int h = url.hashCode();
+    // Spread the high bits, since only the low bits select the segment
+    h ^= (h >>> 16);
+    h ^= (h >>> 8);
+    return segs[h & mask];
+  }
+
+  /**
+   * Return the entry for the given URL, or null. Does not count as a
+   * hit or a miss.
+   */
+  Object get(String url) {
+    return segmentFor(url).get(url);
+  }
+
+  /**
+   * Return the number of segments.
+   */
+  public int getNumSegments() {
+    return segs.length;
+  }
+
+  /**
+   * Return the number of entries in the given segment.
+   */
+  public int getNumEntries(int seg) {
+    return segs[seg].numEntries;
+  }
+
+  /**
+   * Return the total size in bytes of the entries in the given segment.
+   */
+  public long getSizeBytes(int seg) {
+    return segs[seg].sizeBytes;
+  }
+
+  /**
+   * Return the number of entries in the table, summed over the segments.
+   */
+  public int getNumEntries() {
+    int n = 0;
+    for (int i = 0; i < segs.length; i++) n += segs[i].numEntries;
+    return n;
+  }
+
+  /**
+   * Return the total size in bytes of the entries in the table, summed
+   * over the segments.
+   */
+  public long getSizeBytes() {
+    long n = 0;
+    for (int i = 0; i < segs.length; i++) n += segs[i].sizeBytes;
+    return n;
+  }
+
+  /**
+   * Return the number of cache hits in the given segment.
+   */
+  public long getHits(int seg) {
+    return segs[seg].hits.get();
+  }
+
+  /**
+   * Return the number of cache misses in the given segment.
+   */
+  public long getMisses(int seg) {
+    return segs[seg].misses.get();
+  }
+
+  /**
+   * Return the number of entries evicted from the given segment to
+   * make room for others.
+   */
+  public long getEvictions(int seg) {
+    return segs[seg].evictions.get();
+  }
+
+  /**
+   * One segment of the table. The size-related fields may only be
+   * changed while holding the segment's lock.
+   */
+  static class segment {
+    private ConcurrentHashMap pages;	// URL -> entry
+    CachePolicyIF policy;
+    long maxBytes;
+    volatile long sizeBytes;
+    volatile int numEntries;
+    AtomicLong hits, misses, evictions;
+
+    segment(long maxBytes, CachePolicyIF policy) {
+      this.pages = new ConcurrentHashMap();
+      this.policy = policy;
+      this.maxBytes = maxBytes;
+      this.hits = new AtomicLong();
+      this.misses = new AtomicLong();
+      this.evictions = new AtomicLong();
+    }
+
+    Object get(String url) {
+      return pages.get(url);
+    }
+
+    void put(String url, Object entry) {
+      pages.put(url, entry);
+    }
+
+    void remove(String url) {
+      pages.remove(url);
+    }
+
+    // Whether another entry of the given size fits within this
+    // segment's share of the cache
+    boolean hasRoom(int size) {
+      return ((maxBytes == -1) || (sizeBytes + size <= maxBytes));
+    }
+
+    // Account for an entry being added to or removed from the segment
+    void added(int size) {
+      numEntries++;
+      sizeBytes += size;
+    }
+
+    void removed(int size) {
+      numEntries--;
+      sizeBytes -= size;
+    }
+  }
+
+}
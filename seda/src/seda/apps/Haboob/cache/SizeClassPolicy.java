@@ -0,0 +1,83 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.apps.Haboob.cache;
+
+import seda.sandStorm.core.ssLinkedList;
+
+import java.util.Enumeration;
+import java.util.HashMap;
+
+/**
+ * The original PageCacheSized policy: pages are only ever replaced by
+ * pages of exactly the same size, so that the replacement can reuse the 
+ * buffer of the page it replaces. Pages of each size are replaced in 
+ * the order they were added. If no page of the right size is cached,
+ * the new page is added anyway, so the cache may grow beyond its
+ * maximum size. Hits are not recorded.
+ */
+public class SizeClassPolicy implements CachePolicyIF {
+
+  private HashMap sizeTbl = new HashMap(); // Integer size -> ssLinkedList
+
+  public Object insert(Object owner, String url, int size) {
+    Integer isz = new Integer(size);
+    ssLinkedList ll = (ssLinkedList)sizeTbl.get(isz);
+    if (ll == null) {
+      ll = new ssLinkedList();
+      sizeTbl.put(isz, ll);
+    }
+    ll.add_to_tail(owner);
+    return new handle(owner, ll);
+  }
+
+  public void access(Object handle) {
+  }
+
+  public void remove(Object h) {
+    handle hd = (handle)h;
+    hd.list.remove_item(hd.owner);
+  }
+
+  public Object[] victims(int size, int max) {
+    ssLinkedList ll = (ssLinkedList)sizeTbl.get(new Integer(size));
+    if (ll == null) return new Object[0];
+    Object ret[] = new Object[Math.min(max, ll.size())];
+    Enumeration e = ll.elements();
+    for (int i = 0; i < ret.length; i++) ret[i] = e.nextElement();
+    return ret;
+  }
+
+  public boolean admit(String url, int size, boolean mustEvict) {
+    return true;
+  }
+
+  private static class handle {
+    Object owner;
+    ssLinkedList list;
+    handle(Object owner, ssLinkedList list) {
+      this.owner = owner;
+      this.list = list;
+    }
+  }
+
+}
@@ -0,0 +1,116 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.apps.Haboob.cache;
+
+/**
+ * LRU eviction with TinyLFU admission. The policy keeps an approximate
+ * count of recent requests for every URL, cached or not, in a count-min
+ * sketch of 4-bit counters which are halved periodically so that old
+ * popularity fades. When the cache is full, a missed page is only
+ * admitted if it has been requested more often than the page LRU would
+ * evict for it; otherwise it is sent without being cached. This keeps
+ * one-off requests from flushing popular pages out of the cache.
+ */
+public class TinyLFUPolicy extends LRUPolicy {
+
+  /** The default number of counters in each row of the sketch. */
+  public static final int DEFAULT_WIDTH = 1 << 16;
+
+  private static final int DEPTH = 4;
+  private static final int MAX_COUNT = 15;
+  private static final int SEEDS[] = { 
+    0x9e3779b9, 0x7f4a7c15, 0x85ebca6b, 0xc2b2ae35 
+  };
+
+  private byte counts[];
+  private int mask;
+  private int additions, sampleSize;
+
+  public TinyLFUPolicy() {
+    this(DEFAULT_WIDTH);
+  }
+
+  /**
+   * Create a TinyLFUPolicy whose sketch has the given number of 
+   * counters in each row (rounded up to a power of two). This should
+   * be several times the number of pages the cache can hold.
+   */
+  public TinyLFUPolicy(int width) {
+    int w = 1;
+    while (w < width) w <<= 1;
+    counts = new byte[DEPTH * w];
+    mask = w - 1;
+    sampleSize = 10 * w;
+  }
+
+  public void access(Object handle) {
+    node n = (node)handle;
+    synchronized (this) {
+      increment(n.url);
+    }
+    super.access(handle);
+  }
+
+  public synchronized boolean admit(String url, int size, boolean mustEvict) {
+    increment(url);
+    if (!mustEvict || (tail == null)) return true;
+    return frequency(url) > frequency(tail.url);
+  }
+
+  /**
+   * Return the estimated number of recent requests for the given URL.
+   */
+  public synchronized int frequency(String url) {
+    int h = url.hashCode();
+    int min = MAX_COUNT;
+    for (int i = 0; i < DEPTH; i++) {
+      int c = counts[index(h, i)];
+      if (c < min) min = c;
+    }
+    return min;
+  }
+
+  private void increment(String url) {
+    int h = url.hashCode();
+    boolean added = false;
+    for (int i = 0; i < DEPTH; i++) {
+      int idx = index(h, i);
+      if (counts[idx] < MAX_COUNT) {
+	counts[idx]++;
+	added = true;
+      }
+    }
+    if (added && (++additions >= sampleSize)) {
+      // Age all counts
+      for (int i = 0; i < counts.length; i++) counts[i] >>= 1;
+      additions /= 2;
+    }
+  }
+
+  private int index(int h, int row) {
+    h *= SEEDS[row];
+    h ^= (h >>> 17);
+    return (row * (mask + 1)) + (h & mask);
+  }
+
+}
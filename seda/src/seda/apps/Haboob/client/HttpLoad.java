@@ -575,11 +575,11 @@ public class HttpLoad {
     // Handle the given packet, returning true if the entire response
     // has been read.
     boolean handlePacket(ATcpInPacket pkt) throws IOException {
-      if (DEBUG) System.err.println("<"+clientnum+"> got packet, "+pkt.getBytes().length+" bytes");
+      if (DEBUG) System.err.println("<"+clientnum+"> got packet, "+pkt.size()+" bytes");
 
       if (DEBUG) System.err.println("<"+clientnum+"> handlePacket(): content_length "+content_length+" lastCompleted "+lastCompleted+" header_seen "+header_seen);
 
-      mbs.addArray(pkt.getBytes());
+      mbs.addArray(pkt.getBytes(), 0, pkt.size());
 
       if (content_length == -1) {
 	String s = lnr.readLine();
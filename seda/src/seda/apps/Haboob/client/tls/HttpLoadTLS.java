@@ -517,8 +517,8 @@ public class HttpLoadTLS {
     // Handle the given packet, returning true if the entire response
     // has been read.
     boolean handlePacket(ATcpInPacket pkt) throws IOException {
-      if (DEBUG) System.err.println("<"+clientnum+"> got packet, "+pkt.getBytes().length+" bytes");
-      mbs.addArray(pkt.getBytes());
+      if (DEBUG) System.err.println("<"+clientnum+"> got packet, "+pkt.size()+" bytes");
+      mbs.addArray(pkt.getBytes(), 0, pkt.size());
 
       if (content_length == -1) {
 	String s = lnr.readLine();
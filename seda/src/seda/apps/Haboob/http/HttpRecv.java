@@ -26,6 +26,8 @@ package seda.apps.Haboob.http;
 
 import seda.apps.Haboob.HaboobConst;
 import seda.apps.Haboob.HaboobStats;
+import seda.apps.Haboob.cache.MappedFileCache;
+import seda.apps.Haboob.cache.SegmentedPageTable;
 import seda.apps.Haboob.hdapi.DynamicHttp;
 import seda.sandStorm.api.*;
 import seda.sandStorm.core.BufferElement;
@@ -199,6 +201,8 @@ public class HttpRecv implements EventHandlerIF, HaboobConst {
       if (DEBUG) System.err.println("HttpRecv: Sending to cacheSink");
       if (!cacheSink.enqueue_lossy(item)) {
 	System.err.println("HttpRecv: Warning: Could not enqueue_lossy "+item);
+	// Reply anyway, or the connection holds later responses for it
+	HttpSend.sendResponse(new httpResponder(new httpServiceUnavailableResponse(req, "Cache stage is busy"), req, false));
       }
 
     } else if (item instanceof SinkClosedEvent) {
@@ -287,12 +291,35 @@ public class HttpRecv implements EventHandlerIF, HaboobConst {
     repl += "<br>Errors: "+HaboobStats.numErrors+" ("+MDWUtil.format(pct)+"%)\n";     
 
     repl += "\n<p><b>Cache Statistics</b>\n";
+    SegmentedPageTable pt = HaboobStats.pageTable;
+    int cacheSizeEntries = HaboobStats.cacheSizeEntries;
     double cacheSizeKb = HaboobStats.cacheSizeBytes/1024.0;
-    repl += "<br>Current size of page cache: "+HaboobStats.cacheSizeEntries+" files, "+MDWUtil.format(cacheSizeKb)+" KBytes\n";
+    if (pt != null) {
+      // Sum the segment counters, which are only updated under the
+      // segment locks
+      cacheSizeEntries = pt.getNumEntries();
+      cacheSizeKb = pt.getSizeBytes()/1024.0;
+    }
+    repl += "<br>Current size of page cache: "+cacheSizeEntries+" files, "+MDWUtil.format(cacheSizeKb)+" KBytes\n";
     pct = (HaboobStats.numCacheHits * 100.0 / HaboobStats.numRequests);
     repl += "<br>Cache hits: "+HaboobStats.numCacheHits+" ("+MDWUtil.format(pct)+"%)\n";
     pct = (HaboobStats.numCacheMisses * 100.0 / HaboobStats.numRequests);
     repl += "<br>Cache misses: "+HaboobStats.numCacheMisses+" ("+MDWUtil.format(pct)+"%)\n"; 
+    if (pt != null) {
+      for (int i = 0; i < pt.getNumSegments(); i++) {
+	repl += "<br>Segment "+i+": "+pt.getNumEntries(i)+" files, "+
+	  MDWUtil.format(pt.getSizeBytes(i)/1024.0)+" KBytes, "+
+	  pt.getHits(i)+" hits, "+pt.getMisses(i)+" misses, "+
+	  pt.getEvictions(i)+" evictions\n";
+      }
+    }
+    MappedFileCache mc = HaboobStats.mappedCache;
+    if (mc != null) {
+      repl += "<br>Mapped tier: "+mc.getNumEntries()+" files, "+
+	MDWUtil.format(mc.getSizeBytes()/1024.0)+" KBytes, "+
+	mc.hits.get()+" hits, "+mc.promotions.get()+" promotions, "+
+	mc.demotions.get()+" demotions, "+mc.evictions.get()+" evictions\n";
+    }
 
     repl += "\n<p><b>Connection Statistics</b>\n";
     int numconns = HaboobStats.numConnectionsEstablished - HaboobStats.numConnectionsClosed;
@@ -51,7 +51,7 @@ package seda.nbio;
  *
  * @author Matt Welsh (mdw@cs.berkeley.edu)
  * @see Selectable
- * @see SelectSetImpl, SelectSetPollImpl, SelectSetDevPollImpl
+ * @see SelectSetImpl, SelectSetPollImpl, SelectSetDevPollImpl, SelectSetEpollImpl
  */
 public class SelectSet {
 
@@ -61,6 +61,7 @@ public class SelectSet {
   private SelectSetImpl impl;
   private static final int POLL_IMPL = 0;
   private static final int DEVPOLL_IMPL = 1;
+  private static final int EPOLL_IMPL = 2;
   private static int IMPL_TO_USE;
   static seda.util.Tracer tracer;
 
@@ -69,7 +70,10 @@ public class SelectSet {
 
     String implProp = System.getProperty("nbio.SelectSetImpl");
     if (implProp != null) {
-      if (implProp.equals("devpoll") && SelectSetDevPollImpl.isSupported()) { 
+      if (implProp.equals("epoll") && SelectSetEpollImpl.isSupported()) { 
+       	System.err.println("SelectSet: Using epoll");
+	IMPL_TO_USE = EPOLL_IMPL;
+      } else if (implProp.equals("devpoll") && SelectSetDevPollImpl.isSupported()) { 
        	System.err.println("SelectSet: Using /dev/poll");
 	IMPL_TO_USE = DEVPOLL_IMPL;
       } else if (implProp.equals("poll") && SelectSetPollImpl.isSupported()) {
@@ -79,7 +83,10 @@ public class SelectSet {
 	throw new UnsatisfiedLinkError("No SelectSetImpl supported on this platform!");
       }
     } else {
-      if (SelectSetDevPollImpl.isSupported()) {
+      if (SelectSetEpollImpl.isSupported()) {
+       	System.err.println("SelectSet: Using epoll");
+	IMPL_TO_USE = EPOLL_IMPL;
+      } else if (SelectSetDevPollImpl.isSupported()) {
        	System.err.println("SelectSet: Using /dev/poll");
 	IMPL_TO_USE = DEVPOLL_IMPL;
       } else if (SelectSetPollImpl.isSupported()) {
@@ -103,6 +110,9 @@ public class SelectSet {
       case DEVPOLL_IMPL:
 	impl = new SelectSetDevPollImpl();
 	break;
+      case EPOLL_IMPL:
+	impl = new SelectSetEpollImpl();
+	break;
       default:
 	throw new LinkageError("Error: SelectSet has bad value for IMPL_TO_USE; this is a bug - please contact <mdw@cs.berkeley.edu>");
     }
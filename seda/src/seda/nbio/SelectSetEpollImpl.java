@@ -0,0 +1,245 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.nbio;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * SelectSetEpollImpl is an implementation of SelectSet which uses the
+ * Linux epoll(7) interface. Unlike poll(2), the cost of each call to
+ * select() depends on the number of file descriptors with pending events
+ * rather than the number registered, and updating the event mask of a 
+ * SelectItem only touches that file descriptor, and only if the mask has
+ * changed.
+ *
+ * <p>File descriptors are normally registered level-triggered, which
+ * gives the same semantics as the other SelectSet implementations.
+ * If the <tt>nbio.epoll.edgeTriggered</tt> property is set to
+ * <tt>true</tt>, they are registered edge-triggered (EPOLLET) instead:
+ * an event is then reported only when the file descriptor becomes ready,
+ * so the application must read or write until the operation would block
+ * before expecting another event.
+ *
+ * @see SelectSet
+ */
+class SelectSetEpollImpl extends SelectSetImpl {
+
+  /**
+   * The maximum number of events to return on each call to doSelect().
+   */
+  private static final int MAX_EVENTS_PER_SELECT = 32768;
+
+  // The initial size of the internal SelectItem vector.
+  private static final int TO_ALLOCATE = 256;
+
+  private static final boolean EDGE_TRIGGERED = 
+    Boolean.getBoolean("nbio.epoll.edgeTriggered");
+
+  private long native_state;      // Internal pointer to native state
+  private Vector vec;             // Vector of registered SelectItems
+  private Hashtable fdtbl;        // Maps NBIOFileDescriptor to SelectItem
+  private SelectItem retevents[]; // List of returned events
+  private int retevents_length;   // Number of valid entries in retevents
+  private int num_active;         // Number of SelectItems with events != 0
+
+  // Return true if supported
+  private static native boolean supported();
+  // Initialize native code
+  private native void init(int max_retevents, boolean edge_triggered);
+  // Push the event mask of a SelectItem to native code. Returns 1 if 
+  // the SelectItem has become active, -1 if it has become inactive, 
+  // and 0 otherwise.
+  private native int register(SelectItem sel);
+  // Deregister a SelectItem with native code. Returns -1 if the 
+  // SelectItem was active, and 0 otherwise.
+  private native int deregister(SelectItem sel);
+  // Actually do select; return number of events 
+  // Places returned events in retevents array
+  private native int doSelect(int timeout);
+  // Does a signal to knock pollers out of wait.
+  public native void interruptSelect();
+
+  /**
+   * Returns true if epoll is supported on this platform.
+   */
+  static boolean isSupported() {
+    return supported();
+  }
+
+  /**
+   * Create a SelectSetEpollImpl with no SelectItems.
+   */
+  SelectSetEpollImpl() {
+    vec = new Vector(TO_ALLOCATE, TO_ALLOCATE);
+    fdtbl = new Hashtable(TO_ALLOCATE);
+    retevents = new SelectItem[MAX_EVENTS_PER_SELECT];
+    retevents_length = 0;
+    init(MAX_EVENTS_PER_SELECT, EDGE_TRIGGERED);
+  }
+
+  /**
+   * Add a SelectItem to this SelectSetEpollImpl.
+   */
+  synchronized void add(SelectItem sel) {
+    NBIOFileDescriptor fd = sel.getFD();
+    if (fdtbl.containsKey(fd)) throw new IllegalArgumentException("Cannot register SelectItem with same NBIOFileDescriptor twice");
+    vec.addElement(sel);
+    fdtbl.put(fd, sel);
+    num_active += register(sel);
+  }
+
+  /**
+   * Add all of the SelectItems in the given array to the SelectSetEpollImpl.
+   */
+  synchronized void add(SelectItem selarr[]) {
+    for (int i = 0; i < selarr.length; i++) {
+      add(selarr[i]);
+    }
+  }
+
+  /**
+   * Remove a SelectItem from the SelectSetEpollImpl.
+   */
+  synchronized void remove(SelectItem sel) {
+    if (!vec.removeElement(sel)) return;
+    fdtbl.remove(sel.getFD());
+    num_active += deregister(sel);
+  }
+
+  /**
+   * Remove all of the SelectItems in the given array from the 
+   * SelectSetEpollImpl.
+   */
+  synchronized void remove(SelectItem selarr[]) {
+    for (int i = 0; i < selarr.length; i++) {
+      remove(selarr[i]);
+    }
+  }
+
+  /**
+   * Remove the SelectItem at the given index from the SelectSetEpollImpl.
+   */
+  synchronized void remove(int index) {
+    remove((SelectItem)vec.elementAt(index));
+  }
+
+  /**
+   * Push updated event masks for all SelectItems in this SelectSet to 
+   * the kernel. Only those SelectItems whose masks have changed are 
+   * updated.
+   */
+  synchronized void update() {
+    for (int i = 0; i < vec.size(); i++) {
+      num_active += register((SelectItem)vec.elementAt(i));
+    }
+  }
+
+  /**
+   * Push the updated event mask for the given SelectItem to the kernel.
+   */
+  synchronized void update(SelectItem sel) {
+    num_active += register(sel);
+  }
+
+  /**
+   * Return the number of SelectItems in this SelectSetEpollImpl.
+   */
+  synchronized int size() {
+    return vec.size();
+  }
+
+  /**
+   * Return the number of active SelectItems in this SelectSetEpollImpl.
+   */
+  synchronized int numActive() {
+    return num_active;
+  }
+
+  /**
+   * Return the SelectItem at the given index.
+   */
+  synchronized SelectItem elementAt(int index) {
+    return (SelectItem)vec.elementAt(index);
+  }
+
+  /**
+   * Wait for events to occur on the SelectItems in this SelectSetEpollImpl.
+   * Upon return, the 'revents' field of each SelectItem will be
+   * set to the mask of events that occurred. Note that this method
+   * <b>does not</b> set revents to 0 when called; after processing an
+   * event, it is the application's responsibility to clear the revents
+   * field. 
+   *
+   * @param timeout The maximum number of milliseconds to block waiting
+   * for an event to occur. A timeout of 0 means than select should not block;
+   * a timeout of -1 means that select should block indefinitely.
+   *
+   * @return The number of events received, or 0 if no events occurred.
+   */
+  int select(int timeout) {
+    retevents_length = doSelect(timeout);
+    return retevents_length;
+  }
+
+  /**
+   * Returns an array of SelectItems for which events matching the given
+   * event mask have occurred (that is, that the revents field matches
+   * the given mask).
+   */
+  synchronized SelectItem[] getEvents(short mask) {
+    if (retevents_length == 0) return null;
+
+    int count = 0;
+    for (int i = 0; i < retevents_length; i++) {
+      if ((retevents[i].revents & mask) != 0) count++;
+    }
+    if (count == 0) return null;
+    SelectItem retarr[] = new SelectItem[count];
+    count = 0;
+    for (int i = 0; i < retevents_length; i++) {
+      if ((retevents[i].revents & mask) != 0) retarr[count++] = retevents[i];
+    }
+    return retarr;
+  }
+
+  /**
+   * Returns an array of SelectItems for which some events have occurred
+   * (that is, that the revents field is nonzero).
+   */
+  synchronized SelectItem[] getEvents() {
+    if (retevents_length == 0) return null;
+    SelectItem retarr[] = new SelectItem[retevents_length];
+    System.arraycopy(retevents, 0, retarr, 0, retevents_length);
+    return retarr;
+  }
+
+  public String toString() {
+    String s = "SelectSetEpollImpl:\n";
+    for (int i = 0; i < size(); i++) {
+      s = s + "\t"+elementAt(i).toString()+"\n";
+    }
+    return s;
+  }
+
+}
@@ -65,6 +65,11 @@
 	#include <sys/filio.h>
 #endif
 
+#ifdef HAS_EPOLL
+	#include <stdint.h>
+	#include <sys/epoll.h>
+#endif
+
 #ifdef HAS_DEVPOLL
 	#include <sys/devpoll.h>
 	#ifndef POLLREMOVE
@@ -76,6 +81,7 @@
 #include "NonblockingSocketInputStream.h"
 #include "NonblockingSocketOutputStream.h"
 #include "SelectSetDevPollImpl.h"
+#include "SelectSetEpollImpl.h"
 #include "SelectSetPollImpl.h"
 #include "mdw-exceptions.h"
 
@@ -119,6 +125,8 @@ static jfieldID FID_seda_nbio_SelectSetPollImpl_itemarr;
 static jfieldID FID_seda_nbio_SelectSetDevPollImpl_itemarr;
 static jfieldID FID_seda_nbio_SelectSetDevPollImpl_retevents;
 static jfieldID FID_seda_nbio_SelectSetDevPollImpl_native_state;
+static jfieldID FID_seda_nbio_SelectSetEpollImpl_retevents;
+static jfieldID FID_seda_nbio_SelectSetEpollImpl_native_state;
 
 static int nbio_init_fids(JNIEnv *env) {
 
@@ -243,6 +251,11 @@ static int nbio_init_fids(JNIEnv *env) {
 	NBIO_GET_FIELD("retevents", "[Lseda/nbio/SelectItem;", FID_seda_nbio_SelectSetDevPollImpl_retevents);
 	NBIO_GET_FIELD("native_state", "J", FID_seda_nbio_SelectSetDevPollImpl_native_state);
 
+	/* seda/nbio/SelectSetEpollImpl */
+	NBIO_GET_CLASS("seda/nbio/SelectSetEpollImpl");
+	NBIO_GET_FIELD("retevents", "[Lseda/nbio/SelectItem;", FID_seda_nbio_SelectSetEpollImpl_retevents);
+	NBIO_GET_FIELD("native_state", "J", FID_seda_nbio_SelectSetEpollImpl_native_state);
+
 #undef NBIO_GET_CLASS
 #undef NBIO_GET_FIELD
 
@@ -1935,6 +1948,364 @@ JNIEXPORT void JNICALL Java_seda_nbio_SelectSetDevPollImpl_interruptSelect(JNIEn
 
 #endif /* HAS_DEVPOLL */
 
+/* SelectSetEpollImpl ********************************************************/
+
+#ifndef HAS_EPOLL
+
+JNIEXPORT jboolean JNICALL Java_seda_nbio_SelectSetEpollImpl_supported(JNIEnv *env, jclass cls) {
+
+	/* Safe setting when compiling on systems where epoll not available */
+	return JNI_FALSE;
+}
+
+#else  /* HAS_EPOLL */
+
+/* Initial size of the fd -> SelectItem table; grown as needed */
+	#define EPOLL_INITIAL_FDS 1024
+
+typedef struct epoll_impl_state {
+	int epoll_fd;
+	int max_retevents;
+	int edge_triggered;
+	struct epoll_event *retevents;
+	int table_size;
+	jobject *selitems;		/* Global refs, indexed by fd */
+	unsigned int *masks;		/* Registered epoll events, indexed by fd */
+	int wakeup_sockets[2];
+} epoll_impl_state;
+
+static epoll_impl_state *nbio_epoll_state(JNIEnv *env, jobject this) {
+	return (epoll_impl_state *)(intptr_t)((*env)->GetLongField(env, this, FID_seda_nbio_SelectSetEpollImpl_native_state));
+}
+
+/* Grow the fd table to hold the given fd. Returns -1 on failure. */
+static int nbio_epoll_grow(JNIEnv *env, epoll_impl_state *state, int fd) {
+	int newsize = state->table_size;
+	jobject *newitems;
+	unsigned int *newmasks;
+	int i;
+
+	if (fd < state->table_size) return 0;
+	while (newsize <= fd) newsize *= 2;
+	newitems = (jobject *)realloc(state->selitems, newsize * sizeof(jobject));
+	if (newitems == NULL) {
+		THROW_EXCEPTION(env, "java/lang/OutOfMemoryError", "Cannot grow epoll fd table");
+		return -1;
+	}
+	state->selitems = newitems;
+	newmasks = (unsigned int *)realloc(state->masks, newsize * sizeof(unsigned int));
+	if (newmasks == NULL) {
+		THROW_EXCEPTION(env, "java/lang/OutOfMemoryError", "Cannot grow epoll fd table");
+		return -1;
+	}
+	state->masks = newmasks;
+	for (i = state->table_size; i < newsize; i++) {
+		state->selitems[i] = (jobject)NULL;
+		state->masks[i] = 0;
+	}
+	state->table_size = newsize;
+	return 0;
+}
+
+/* Remove fd from the epoll set and drop its SelectItem. Returns -1 if
+ * the fd was active, 0 otherwise. */
+static int nbio_epoll_remove(JNIEnv *env, epoll_impl_state *state, int fd) {
+	struct epoll_event ev;
+
+	if ((fd < 0) || (fd >= state->table_size) || (state->masks[fd] == 0)) {
+		return 0;
+	}
+	/* Fails with EBADF if the fd has already been closed, which also
+	 * removes it from the epoll set */
+	epoll_ctl(state->epoll_fd, EPOLL_CTL_DEL, fd, &ev);
+	(*env)->DeleteGlobalRef(env, state->selitems[fd]);
+	state->selitems[fd] = (jobject)NULL;
+	state->masks[fd] = 0;
+	return -1;
+}
+
+JNIEXPORT jboolean JNICALL Java_seda_nbio_SelectSetEpollImpl_supported(JNIEnv *env, jclass cls) {
+	int fd;
+
+	/* If we were compiled with epoll, but running on a kernel without
+	 * it, return false
+	 */
+	fd = epoll_create(1);
+	if (fd < 0) {
+		return JNI_FALSE;
+	}
+	close(fd);
+	return JNI_TRUE;
+}
+
+JNIEXPORT void JNICALL Java_seda_nbio_SelectSetEpollImpl_init (JNIEnv * env, jobject this, jint max_retevents, jboolean edge_triggered) {
+	epoll_impl_state *state;
+	struct epoll_event ev;
+	int i;
+
+	DEBUG(fprintf(stderr,"SelectSetEpollImpl.init(%d) called\n", max_retevents));
+
+	if (!_nbio_fids_init) {
+		if (nbio_init_fids(env) < 0) {
+			return;
+		}
+	}
+
+	// Allocate state
+	state = (epoll_impl_state *)malloc(sizeof(epoll_impl_state));
+	if (state == NULL) {
+		THROW_EXCEPTION(env, "java/lang/OutOfMemoryError", "Cannot allocate epoll_impl_state");
+		return;
+	}
+
+	state->max_retevents = max_retevents;
+	state->edge_triggered = (edge_triggered == JNI_TRUE);
+	state->epoll_fd = epoll_create(max_retevents);
+	if (state->epoll_fd < 0) {
+		THROW_EXCEPTION(env, "java/io/IOException", strerror(errno));
+		free(state);
+		return;
+	}
+
+	state->table_size = EPOLL_INITIAL_FDS;
+	state->selitems = (jobject *)malloc(state->table_size * sizeof(jobject));
+	state->masks = (unsigned int *)malloc(state->table_size * sizeof(unsigned int));
+	state->retevents = (struct epoll_event *)malloc(max_retevents * sizeof(struct epoll_event));
+	if ((state->selitems == NULL) || (state->masks == NULL) || (state->retevents == NULL)) {
+		THROW_EXCEPTION(env, "java/lang/OutOfMemoryError", "Cannot allocate epoll state tables");
+		close(state->epoll_fd);
+		free(state);
+		return;
+	}
+	for (i = 0; i < state->table_size; i++) {
+		state->selitems[i] = (jobject)NULL;
+		state->masks[i] = 0;
+	}
+
+	DEBUG(fprintf(stderr,"SelectSetEpollImpl.init created epoll fd %d\n", state->epoll_fd));
+
+	// Open and register wakeup socket for this SelectSet. This is
+	// always level-triggered; doSelect() reads it dry.
+	if (socketpair(PF_UNIX, SOCK_STREAM, 0, state->wakeup_sockets) != 0) {
+		char errmsg[160];
+		snprintf(errmsg, sizeof(errmsg), "opening socketpair for "
+			 "wakeup: %s", strerror(errno));
+		THROW_EXCEPTION(env, "java/net/SocketException", errmsg);
+		return;
+	}
+	if (fcntl(state->wakeup_sockets[0], F_SETFL, O_NONBLOCK) < 0    ||
+	    fcntl(state->wakeup_sockets[1], F_SETFL, O_NONBLOCK) < 0) {
+		char errmsg[160];
+		snprintf(errmsg, sizeof(errmsg), "SelectSetEpollImpl.init: setting wakeup sockets "
+			 "nonblocking: %s", strerror(errno));
+		THROW_EXCEPTION(env, "java/net/SocketException", errmsg);
+		return;
+	}
+	memset(&ev, 0, sizeof(ev));
+	ev.events = EPOLLIN;
+	ev.data.fd = state->wakeup_sockets[1];
+	if (epoll_ctl(state->epoll_fd, EPOLL_CTL_ADD, state->wakeup_sockets[1], &ev) < 0) {
+		THROW_EXCEPTION(env, "java/io/IOException", strerror(errno));
+		return;
+	}
+
+	// Set state field
+	(*env)->SetLongField(env, this, FID_seda_nbio_SelectSetEpollImpl_native_state, (jlong)(intptr_t)state);
+	DEBUG(fprintf(stderr,"SelectSetEpollImpl.init done, wakeup socket %d\n", state->wakeup_sockets[1]));
+}
+
+JNIEXPORT jint JNICALL Java_seda_nbio_SelectSetEpollImpl_register (JNIEnv * env, jobject this, jobject selitemobj) {
+	epoll_impl_state *state;
+	jobject fdobj;
+	short events;
+	unsigned int realevents, oldevents;
+	struct epoll_event ev;
+	int fd;
+
+	state = nbio_epoll_state(env, this);
+
+	// Get fd
+	fdobj = (*env)->GetObjectField(env, selitemobj, FID_seda_nbio_SelectItem_fd);
+	fd = (*env)->GetIntField(env, fdobj, FID_seda_nbio_NBIOFileDescriptor_fd);
+	if (fd < 0) return 0;
+	if (nbio_epoll_grow(env, state, fd) < 0) return 0;
+
+	// Get events
+	events = (*env)->GetShortField(env, selitemobj, FID_seda_nbio_SelectItem_events);
+	realevents = 0;
+	if (events & SELECTABLE_READ_READY) {
+		realevents |= (EPOLLIN | EPOLLPRI);
+	}
+	if (events & SELECTABLE_WRITE_READY) {
+		realevents |= EPOLLOUT;
+	}
+	oldevents = state->masks[fd];
+
+	DEBUG(fprintf(stderr,"SelectSetEpollImpl.register fd %d events 0x%x (was 0x%x)\n", fd, realevents, oldevents));
+
+	// Nothing to do if the mask has not changed, unless the fd's slot
+	// is held by another SelectItem (see below)
+	if ((realevents == oldevents) && 
+	    ((oldevents == 0) || (*env)->IsSameObject(env, state->selitems[fd], selitemobj))) return 0;
+
+	// An empty mask removes the fd, since epoll always reports errors
+	if (realevents == 0) {
+		return nbio_epoll_remove(env, state, fd);
+	}
+
+	memset(&ev, 0, sizeof(ev));
+	ev.events = realevents;
+	if (state->edge_triggered) ev.events |= EPOLLET;
+	ev.data.fd = fd;
+
+	if (oldevents == 0) {
+		if (epoll_ctl(state->epoll_fd, EPOLL_CTL_ADD, fd, &ev) < 0) {
+			THROW_EXCEPTION(env, "java/io/IOException", strerror(errno));
+			return 0;
+		}
+		state->selitems[fd] = (*env)->NewGlobalRef(env, selitemobj);
+		state->masks[fd] = realevents;
+		return 1;
+	} else {
+		if (epoll_ctl(state->epoll_fd, EPOLL_CTL_MOD, fd, &ev) < 0) {
+			/* If the fd was closed without being deregistered and its
+			 * number reused, the kernel has already dropped the old
+			 * registration and the slot is stale; add the fd afresh */
+			if ((errno != ENOENT) ||
+			    (epoll_ctl(state->epoll_fd, EPOLL_CTL_ADD, fd, &ev) < 0)) {
+				THROW_EXCEPTION(env, "java/io/IOException", strerror(errno));
+				return 0;
+			}
+		}
+		if (!(*env)->IsSameObject(env, state->selitems[fd], selitemobj)) {
+			// Replace the stale SelectItem, which is still counted
+			(*env)->DeleteGlobalRef(env, state->selitems[fd]);
+			state->selitems[fd] = (*env)->NewGlobalRef(env, selitemobj);
+		}
+		state->masks[fd] = realevents;
+		return 0;
+	}
+}
+
+JNIEXPORT jint JNICALL Java_seda_nbio_SelectSetEpollImpl_deregister (JNIEnv * env, jobject this, jobject selitemobj) {
+	epoll_impl_state *state;
+	jobject fdobj;
+	int fd, i;
+
+	state = nbio_epoll_state(env, this);
+
+	fdobj = (*env)->GetObjectField(env, selitemobj, FID_seda_nbio_SelectItem_fd);
+	fd = (*env)->GetIntField(env, fdobj, FID_seda_nbio_NBIOFileDescriptor_fd);
+
+	DEBUG(fprintf(stderr,"SelectSetEpollImpl.deregister fd %d\n", fd));
+
+	if (fd < 0) {
+		// The socket has already been closed (which removed it from the
+		// epoll set); find its entry in the table
+		for (i = 0; i < state->table_size; i++) {
+			if ((state->selitems[i] != (jobject)NULL) &&
+			    (*env)->IsSameObject(env, state->selitems[i], selitemobj)) {
+				return nbio_epoll_remove(env, state, i);
+			}
+		}
+		return 0;
+	}
+	return nbio_epoll_remove(env, state, fd);
+}
+
+JNIEXPORT jint JNICALL Java_seda_nbio_SelectSetEpollImpl_doSelect (JNIEnv * env, jobject this, jint timeout) {
+	epoll_impl_state *state;
+	jobject selitemobj;
+	jobjectArray retitemarr;
+	int retitemarrlen, ret, i, retfd, count;
+	struct epoll_event *ev;
+	short realevents;
+
+	state = nbio_epoll_state(env, this);
+
+	retitemarr = (jobjectArray)((*env)->GetObjectField(env, this, FID_seda_nbio_SelectSetEpollImpl_retevents));
+	retitemarrlen = (*env)->GetArrayLength(env, retitemarr);
+	if (retitemarrlen <= 0) {
+		THROW_EXCEPTION(env, "java/lang/ArrayIndexOutOfBoundsException", "SelectItem[] ret array has size <= 0");
+		return 0;
+	}
+
+	DEBUG(fprintf(stderr,"SelectSetEpollImpl.doSelect (epoll fd %d) doing epoll_wait\n", state->epoll_fd));
+
+	ret = epoll_wait(state->epoll_fd, state->retevents, 
+	    (retitemarrlen < state->max_retevents) ? retitemarrlen : state->max_retevents, timeout);
+
+	DEBUG(fprintf(stderr,"SelectSetEpollImpl.doSelect (epoll fd %d) epoll_wait returned %d\n", state->epoll_fd, ret));
+
+	if (ret == 0) {
+		return 0;
+	}
+	if (ret < 0) {
+		int myerrno = errno;
+		// Don't throw an exception if we were interrupted
+		if (myerrno != EINTR) {
+			THROW_EXCEPTION(env, "java/io/IOException", strerror(myerrno));
+		}
+		return 0;
+	}
+
+	// Need to synchronize in case register/deregister called while
+	// we assign SelectItems to retitemarr
+	(*env)->MonitorEnter(env, this); 
+
+	count = 0;
+	for (i = 0; i < ret; i++) {
+		ev = &(state->retevents[i]);
+		retfd = ev->data.fd;
+
+		if (retfd == state->wakeup_sockets[1]) {
+			nbio_read_wakeup_socket(retfd);
+			continue;
+		}
+
+		if ((retfd < 0) || (retfd >= state->table_size)) continue;
+		selitemobj = state->selitems[retfd];
+		if (selitemobj == (jobject)NULL) {
+			// This can be caused by a socket being deregistered 
+			// asynchronously with respect to a call to doSelect(). 
+			// In this case just skip over it
+			continue;
+		}
+
+		realevents = 0;
+		if (ev->events & (EPOLLIN | EPOLLPRI)) {
+			realevents |= SELECTABLE_READ_READY;
+		}
+		if (ev->events & EPOLLOUT) {
+			realevents |= SELECTABLE_WRITE_READY;
+		}
+		if (ev->events & (EPOLLERR | EPOLLHUP)) {
+			realevents |= SELECTABLE_SELECT_ERROR;
+		}
+
+		(*env)->SetShortField(env, selitemobj, FID_seda_nbio_SelectItem_revents, realevents);
+		(*env)->SetObjectArrayElement(env, retitemarr, count, selitemobj);
+		if ((*env)->ExceptionOccurred(env)) {
+			fprintf(stderr,"WARNING: *** NBIO EpollImpl.doSelect() got exception: this is a bug - please contact mdw@cs.berkeley.edu\n");
+			(*env)->ExceptionDescribe(env);
+			(*env)->ExceptionClear(env);
+			continue;
+		}
+		count++;
+	}
+
+	(*env)->MonitorExit(env, this); 
+	return count;
+}
+
+JNIEXPORT void JNICALL Java_seda_nbio_SelectSetEpollImpl_interruptSelect(JNIEnv *env, jobject this) {
+	epoll_impl_state *state;
+	state = nbio_epoll_state(env, this);
+	nbio_interrupt_select(env, state->wakeup_sockets[0]);
+}
+
+#endif /* HAS_EPOLL */
+
 /* SelectSetPollImpl *******************************************************/
 
 
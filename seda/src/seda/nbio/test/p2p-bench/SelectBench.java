@@ -0,0 +1,171 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ * Author: Matt Welsh <mdw@cs.berkeley.edu>
+ * 
+ */
+
+/* This benchmark measures the cost of SelectSet.select() as the number
+ * of registered sockets grows, in order to compare the SelectSet 
+ * implementations (e.g., poll(2) and epoll) with each other.
+ *
+ * For each socket count given on the command line it opens that many
+ * TCP connections to itself, registers the accepting end of each with
+ * a SelectSet, and then repeatedly writes one byte on <num active> 
+ * randomly chosen connections and selects until all of them have been
+ * read. Only a few sockets are ready on each iteration, so the time per
+ * iteration shows how select() scales with the number of idle sockets.
+ * 
+ * To run:
+ *
+ *   java -Dnbio.SelectSetImpl=poll SelectBench <num iters> <num active> <num sockets> ...
+ *   java -Dnbio.SelectSetImpl=epoll SelectBench <num iters> <num active> <num sockets> ...
+ *
+ * for instance 
+ *
+ *   java -Dnbio.SelectSetImpl=epoll SelectBench 1000 10 1000 10000 50000
+ *
+ * Each connection uses two file descriptors, so the per-process 
+ * descriptor limit (ulimit -n) must be raised for large socket counts.
+ * Connections are spread across several listening ports so that the
+ * number of ephemeral ports is not a limit.
+ *
+ */
+
+import seda.nbio.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Random;
+
+public class SelectBench {
+
+  private static final boolean DEBUG = false;
+
+  private static final int BASE_PORT = 5721;
+  private static final int CONNECTIONS_PER_PORT = 20000;
+  private static final int SELECT_TIMEOUT = 1000;
+
+  private static void runTest(int numsocks, int numiters, int numactive) throws IOException {
+    int numports = (numsocks + CONNECTIONS_PER_PORT - 1) / CONNECTIONS_PER_PORT;
+    NonblockingServerSocket servsocks[] = new NonblockingServerSocket[numports];
+    for (int i = 0; i < numports; i++) {
+      servsocks[i] = new NonblockingServerSocket(BASE_PORT+i, 1000);
+    }
+
+    InetAddress localhost = InetAddress.getByName("localhost");
+    Socket clients[] = new Socket[numsocks];
+    NonblockingSocket servers[] = new NonblockingSocket[numsocks];
+    OutputStream outs[] = new OutputStream[numsocks];
+    InputStream ins[] = new InputStream[numsocks];
+    SelectItem items[] = new SelectItem[numsocks];
+    SelectSet selset = new SelectSet();
+
+    System.out.println("Opening "+numsocks+" connections...");
+    long t1 = System.currentTimeMillis();
+    for (int i = 0; i < numsocks; i++) {
+      clients[i] = new Socket(localhost, BASE_PORT + (i / CONNECTIONS_PER_PORT));
+      clients[i].setTcpNoDelay(true);
+      outs[i] = clients[i].getOutputStream();
+      servers[i] = servsocks[i / CONNECTIONS_PER_PORT].accept();
+      ins[i] = servers[i].getInputStream();
+      items[i] = new SelectItem(servers[i], new Integer(i), Selectable.READ_READY);
+    }
+    long t2 = System.currentTimeMillis();
+    for (int i = 0; i < numsocks; i++) {
+      selset.add(items[i]);
+    }
+    long t3 = System.currentTimeMillis();
+    System.out.println("Opened connections in "+(t2-t1)+" ms, registered them in "+(t3-t2)+" ms");
+
+    Random r = new Random(0);
+    byte buf[] = new byte[1];
+    byte inbuf[] = new byte[64];
+    int chosen[] = new int[numactive];
+    long numselects = 0, numevents = 0;
+
+    t1 = System.currentTimeMillis();
+    for (int iter = 0; iter < numiters; iter++) {
+      for (int i = 0; i < numactive; i++) {
+	chosen[i] = r.nextInt(numsocks);
+	outs[chosen[i]].write(buf);
+      }
+
+      // Wait until every chosen socket has been read
+      int pending = numactive;
+      while (pending > 0) {
+	int n = selset.select(SELECT_TIMEOUT);
+	numselects++;
+	if (n == 0) continue;
+	SelectItem ret[] = selset.getEvents();
+	if (ret == null) continue;
+	for (int i = 0; i < ret.length; i++) {
+	  if ((ret[i].revents & Selectable.READ_READY) != 0) {
+	    int idx = ((Integer)ret[i].getObj()).intValue();
+	    int c = ins[idx].read(inbuf, 0, inbuf.length);
+	    if (DEBUG) System.err.println("Read "+c+" bytes from socket "+idx);
+	    pending -= c;
+	    numevents++;
+	  }
+	  ret[i].revents = 0;
+	}
+      }
+    }
+    t2 = System.currentTimeMillis();
+
+    double usec = (t2-t1) * 1000.0;
+    System.out.println(numsocks+" sockets, "+numactive+" active: "+numiters+" iterations in "+usec+" usec, or "+(usec/numiters)+" usec/iter.");
+    System.out.println("\t"+numselects+" selects, "+numevents+" events, "+(usec/numselects)+" usec/select.");
+
+    for (int i = 0; i < numsocks; i++) {
+      selset.remove(items[i]);
+      servers[i].close();
+      clients[i].close();
+    }
+    for (int i = 0; i < numports; i++) {
+      servsocks[i].close();
+    }
+  }
+
+  private static void usage() {
+    System.err.println("usage: java [-Dnbio.SelectSetImpl=<poll|epoll|devpoll>] SelectBench <num iters> <num active> <num sockets> ...");
+    System.exit(-1);
+  }
+
+  public static void main(String args[]) {
+    if (args.length < 3) usage();
+
+    try {
+      int numiters = Integer.parseInt(args[0]);
+      int numactive = Integer.parseInt(args[1]);
+      for (int i = 2; i < args.length; i++) {
+	int numsocks = Integer.parseInt(args[i]);
+	runTest(numsocks, numiters, Math.min(numactive, numsocks));
+      }
+    } catch (Exception e) {
+      System.err.println("SelectBench: Got exception: "+e);
+      e.printStackTrace();
+    }
+  }
+
+}
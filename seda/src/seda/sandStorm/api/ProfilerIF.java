@@ -24,6 +24,7 @@
 
 package seda.sandStorm.api;
 
+import seda.sandStorm.internal.MetricsSnapshot;
 import seda.sandStorm.internal.StageGraph;
 
 /**
@@ -51,6 +52,22 @@ public interface ProfilerIF {
    */
   public void add(String name, ProfilableIF pr);
 
+  /**
+   * Add a metric to the profile. This will cause the profiler to track
+   * the metric's value over time.
+   *
+   * @param name The name of the metric as it should appear in the profile.
+   * @param metric The metric to profile.
+   */
+  public void addMetric(String name, MetricIF metric);
+
+  /**
+   * Read the current value of every registered object and metric. 
+   * This may be called at any time, by any thread, and does not 
+   * require the profiling thread to be running.
+   */
+  public MetricsSnapshot getSnapshot();
+
   /**
    * Return a handle to the graph profiler. 
    */
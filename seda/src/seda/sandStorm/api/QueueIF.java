@@ -26,8 +26,8 @@ package seda.sandStorm.api;
 
 /**
  * A QueueIF implements a finite-length event queue.
- * In fact QueueIF simply extends SourceIF and SinkIF, 
- * which represent the 'source' and 'sink' ends of the queue.
+ * QueueIF extends SourceIF and SinkIF, which represent the 'source'
+ * and 'sink' ends of the queue, and adds a method to close the queue.
  *
  * @see SourceIF
  * @see SinkIF
@@ -36,6 +36,10 @@ package seda.sandStorm.api;
 
 public interface QueueIF extends SourceIF, SinkIF {
 
-  /* No additional methods: Just extends SourceIF and SinkIF */
+  /**
+   * Indicate that this queue will not be used anymore. Subsequent
+   * enqueue operations will throw a SinkClosedException.
+   */
+  public void close();
 
 }
@@ -0,0 +1,77 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.sandStorm.api.internal;
+
+import seda.sandStorm.api.QueueElementIF;
+import seda.sandStorm.api.SourceIF;
+
+/**
+ * A BatchSourceIF is a SourceIF which can fill a batch of events up
+ * to a target size before returning it. Rather than waking on every
+ * enqueue, a thread blocked in <tt>blocking_dequeue_batch()</tt> spins
+ * briefly, then parks until the first event arrives, and then waits
+ * (without being woken on each enqueue) until either the target batch
+ * size has been reached or a short fill deadline has passed.
+ *
+ * @see seda.sandStorm.internal.FillBatchSorter
+ */
+public interface BatchSourceIF extends SourceIF {
+
+  /**
+   * Dequeue a batch of at most <tt>target</tt> events.
+   *
+   * @param timeout_millis How long to wait for the first event to arrive.
+   *   As with <tt>blocking_dequeue()</tt>, 0 means do not block and -1
+   *   means block forever.
+   * @param target The target batch size.
+   * @param fill_millis Once the first event is available, how long to
+   *   wait for the batch to fill up to <tt>target</tt> events.
+   * @return The batch, or null if no events arrived before the timeout.
+   */
+  public QueueElementIF[] blocking_dequeue_batch(int timeout_millis, int target, int fill_millis);
+
+  /**
+   * Set the number of times <tt>blocking_dequeue_batch()</tt> polls an
+   * empty queue before parking.
+   */
+  public void setBatchSpin(int spin);
+
+  /**
+   * Return the number of batch dequeues which found an event while
+   * spinning, and so did not need to park.
+   */
+  public long getBatchSpinCount();
+
+  /**
+   * Return the number of times a batch dequeue has parked waiting for 
+   * the queue to become non-empty or for the batch to fill.
+   */
+  public long getBatchParkCount();
+
+  /**
+   * Return the number of batch dequeues which timed out without 
+   * returning any events.
+   */
+  public long getBatchTimeoutCount();
+
+}
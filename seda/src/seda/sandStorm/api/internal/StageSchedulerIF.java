@@ -0,0 +1,43 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.sandStorm.api.internal;
+
+/**
+ * A StageSchedulerIF is a ThreadManagerIF which schedules each stage
+ * individually when events arrive on its queue, rather than having
+ * threads block on (or poll) every queue. To learn which stage has
+ * work, it hands each stage's event queue its own ThreadManagerIF 
+ * whose <tt>wake()</tt> method schedules that stage.
+ *
+ * @see seda.sandStorm.internal.WSThreadManager
+ */
+public interface StageSchedulerIF extends ThreadManagerIF {
+
+  /**
+   * Return the ThreadManagerIF which should be passed to the event 
+   * queue of the stage with the given name. Calls to <tt>wake()</tt> on
+   * the returned object indicate that events are pending for that stage.
+   */
+  public ThreadManagerIF getStageWaker(String stagename);
+
+}
@@ -24,6 +24,9 @@
 
 package seda.sandStorm.api.internal;
 
+import seda.sandStorm.api.QueueElementIF;
+import seda.sandStorm.internal.LatencyHistogram;
+
 /**
  * This interface allows various components of the system to record and
  * gather statistics about the stage during execution.
@@ -54,5 +57,34 @@ public interface StageStatsIF {
    */
   public double get90thRT();
 
+  /**
+   * Record the latencies of a batch of events which the event handler
+   * has just finished processing, having taken 'serviceNanos' 
+   * nanoseconds. Each event is charged an equal share of the service 
+   * time. Events which carry a timestamp (see TimeStampedEvent) also 
+   * record their response time.
+   */
+  public void recordBatch(QueueElementIF events[], long serviceNanos);
+
+  /** 
+   * Get the histogram of the time, in usec, taken by the event handler
+   * to process each event.
+   */
+  public LatencyHistogram getServiceTimeHistogram();
+
+  /** 
+   * Get the histogram of the time, in usec, each event waited on the 
+   * stage's event queue. This is recorded by the queue itself (see
+   * QueueTimingIF) for every event, and is empty if the queue does not
+   * record waits.
+   */
+  public LatencyHistogram getQueueDelayHistogram();
+
+  /** 
+   * Get the histogram of the time, in usec, from each event's timestamp
+   * until the event handler finished processing it.
+   */
+  public LatencyHistogram getResponseTimeHistogram();
+
 }
 
@@ -0,0 +1,53 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.sandStorm.api.internal;
+
+/**
+ * A ThreadPoolIF is the sizing interface to a stage's pool of threads,
+ * used by the thread pool controller to grow and shrink the pool. An 
+ * implementation need not have a fixed set of threads; for example, it
+ * may simply bound the number of threads concurrently running the stage.
+ *
+ * @see seda.sandStorm.internal.ThreadPool
+ * @see seda.sandStorm.internal.ThreadPoolController
+ */
+public interface ThreadPoolIF {
+
+  /**
+   * Add up to <tt>num</tt> threads to the pool, subject to its maximum
+   * size. If <tt>start</tt> is true the new threads are started at once.
+   */
+  public void addThreads(int num, boolean start);
+
+  /**
+   * Remove up to <tt>num</tt> threads from the pool, subject to its 
+   * minimum size.
+   */
+  public void removeThreads(int num);
+
+  /**
+   * Return the number of threads in the pool.
+   */
+  public int numThreads();
+
+}
@@ -27,8 +27,14 @@ package seda.sandStorm.core;
 import seda.sandStorm.api.QueueElementIF;
 import seda.sandStorm.api.SinkIF;
 
+import java.nio.ByteBuffer;
+
 /**
  * A BufferElement is a QueueElementIF which represents a memory buffer.
+ * The buffer is normally a byte array, but may instead be a direct 
+ * ByteBuffer (see BufferPool.allocateDirect()) or a mapped file, in 
+ * which case the <tt>data</tt> field is only filled in, with a copy of
+ * the contents, when getBytes() is called.
  *
  * @author Matt Welsh 
  */
@@ -63,6 +69,14 @@ public class BufferElement implements QueueElementIF {
    */
   public int offset;
 
+  // The pool this buffer was allocated from, or null if unpooled
+  private BufferPool pool;
+  private int refCount;
+  // Used by BufferPool for leak detection
+  Object leakRef;
+  // Off-heap storage, or null if the data is held in 'data'
+  private ByteBuffer direct;
+
   /**
    * Create a BufferElement with the given data, an offset of 0, and a 
    * size of data.length.
@@ -108,9 +122,133 @@ public class BufferElement implements QueueElementIF {
   }
 
   /**
-   * Return the data.
+   * Create a pooled BufferElement; used by BufferPool.
+   */
+  BufferElement(byte data[], int size, BufferPool pool) {
+    this.data = data;
+    this.offset = 0;
+    this.size = size;
+    this.pool = pool;
+    this.refCount = 1;
+  }
+
+  /**
+   * Create a BufferElement backed by the given direct ByteBuffer; used 
+   * by BufferPool. If 'direct' is null, the BufferElement has no
+   * storage of its own, as for a FileRegion.
+   */
+  BufferElement(ByteBuffer direct, int size, BufferPool pool) {
+    this.direct = direct;
+    this.data = null;
+    this.offset = 0;
+    this.size = size;
+    this.pool = pool;
+    this.refCount = 1;
+  }
+
+  /**
+   * Create a BufferElement for the remaining contents of the given
+   * direct ByteBuffer, such as a MappedByteBuffer, without copying 
+   * them. Later changes to the ByteBuffer's position and limit do not
+   * affect the BufferElement.
+   */
+  public BufferElement(ByteBuffer direct) {
+    this(direct.slice(), direct.remaining(), null);
+    if (!direct.isDirect()) {
+      throw new IllegalArgumentException("BufferElement created with non-direct ByteBuffer");
+    }
+  }
+
+  // Called by BufferPool when recycling this buffer
+  ByteBuffer detachDirect() {
+    ByteBuffer bb = direct;
+    direct = null;
+    data = null;
+    return bb;
+  }
+
+  /**
+   * Return true if this buffer is backed by a direct ByteBuffer.
+   */
+  public boolean isDirect() {
+    return (direct != null);
+  }
+
+  /**
+   * Return a read-only ByteBuffer view of the valid region of this 
+   * buffer, positioned at its first byte. No data is copied.
+   */
+  public ByteBuffer getByteBuffer() {
+    return getWritableByteBuffer().asReadOnlyBuffer();
+  }
+
+  /**
+   * Return a ByteBuffer view of the valid region of this buffer, 
+   * positioned at its first byte, through which the contents may be
+   * filled in or modified. No data is copied.
+   */
+  public ByteBuffer getWritableByteBuffer() {
+    if (direct != null) {
+      ByteBuffer bb = direct.duplicate();
+      bb.limit(size);
+      bb.position(0);
+      return bb;
+    } else {
+      return ByteBuffer.wrap(data, offset, size);
+    }
+  }
+
+  /**
+   * Return true if this buffer was allocated from a BufferPool.
+   */
+  public boolean isPooled() {
+    return (pool != null);
+  }
+
+  /**
+   * Add a reference to this buffer, which must be matched by a later
+   * call to release(). Has no effect on unpooled buffers.
+   */
+  public BufferElement retain() {
+    if (pool == null) return this;
+    synchronized (this) {
+      if (refCount <= 0) throw new IllegalStateException("BufferElement: retain() called on released buffer");
+      refCount++;
+    }
+    return this;
+  }
+
+  /**
+   * Drop a reference to this buffer. When the last reference to a 
+   * pooled buffer is dropped, its data is returned to the pool and
+   * must not be used again. Has no effect on unpooled buffers.
+   */
+  public void release() {
+    if (pool == null) return;
+    synchronized (this) {
+      if (refCount <= 0) throw new IllegalStateException("BufferElement: release() called on released buffer");
+      if (--refCount > 0) return;
+    }
+    pool.recycle(this);
+  }
+
+  /**
+   * Return the data. For a buffer backed by a direct ByteBuffer, this
+   * copies the contents into a new array on the first call; later
+   * changes to the array are not reflected in the ByteBuffer.
    */
   public byte[] getBytes() {
+    if (direct != null) {
+      synchronized (this) {
+	if (data == null) {
+	  byte arr[] = new byte[size];
+	  ByteBuffer bb = direct.duplicate();
+	  bb.position(0);
+	  bb.get(arr, 0, size);
+	  data = arr;
+	}
+      }
+    }
     return data;
   }
 
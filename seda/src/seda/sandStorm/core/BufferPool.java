@@ -0,0 +1,394 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.sandStorm.core;
+
+import seda.sandStorm.api.ProfilableIF;
+
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.lang.ref.WeakReference;
+import java.util.Hashtable;
+
+/**
+ * A BufferPool hands out BufferElements whose data arrays are recycled
+ * rather than left to the garbage collector. Arrays are kept in size
+ * classes, each a power of two between MIN_CLASS_SIZE and MAX_CLASS_SIZE;
+ * a request is served from the smallest class that fits, so the data
+ * array of a pooled buffer may be longer than its size. Requests larger
+ * than MAX_CLASS_SIZE, or made while the pool is disabled, are satisfied 
+ * with an ordinary unpooled BufferElement of exactly the requested size.
+ *
+ * <p>A pooled BufferElement starts with a reference count of one. 
+ * Each party that wants to hold on to the buffer calls 
+ * <tt>retain()</tt>, and each calls <tt>release()</tt> when done with it;
+ * when the count drops to zero the data array returns to the pool
+ * and must no longer be touched. A pooled buffer that is never released
+ * is simply reclaimed by the garbage collector. With leak detection 
+ * enabled, the pool records where each buffer was allocated and reports
+ * buffers that were collected without being released.
+ *
+ * <p>Buffers allocated with <tt>allocateDirect()</tt> are backed by 
+ * direct (off-heap) ByteBuffers, which are kept in a separate set of
+ * size classes. These can be passed to NIO channels without an 
+ * intermediate copy.
+ *
+ * @see BufferElement
+ */
+public class BufferPool {
+
+  private static final boolean DEBUG = false;
+
+  /** The smallest size class, in bytes. */
+  public static final int MIN_CLASS_SIZE = 64;
+  /** The largest size class, in bytes. */
+  public static final int MAX_CLASS_SIZE = 65536;
+  /** The default number of free arrays cached per size class. */
+  public static final int DEFAULT_MAX_FREE = 256;
+
+  private static BufferPool defaultPool = new BufferPool(false, DEFAULT_MAX_FREE);
+
+  private boolean enabled;
+  private boolean leakDetection;
+  private sizeClass classes[], directClasses[];
+  private ReferenceQueue leakQueue;
+  private Hashtable leakRefs;
+  private int numLeaks = 0;
+
+  /**
+   * Create a BufferPool.
+   *
+   * @param enabled If false, all buffers are allocated unpooled.
+   * @param maxFree The maximum number of free arrays cached in each
+   *   size class; arrays released beyond this are dropped.
+   */
+  public BufferPool(boolean enabled, int maxFree) {
+    this.enabled = enabled;
+    this.leakDetection = false;
+    this.leakQueue = new ReferenceQueue();
+    this.leakRefs = new Hashtable();
+    int n = 0;
+    for (int sz = MIN_CLASS_SIZE; sz <= MAX_CLASS_SIZE; sz <<= 1) n++;
+    classes = new sizeClass[n];
+    directClasses = new sizeClass[n];
+    for (int i = 0, sz = MIN_CLASS_SIZE; i < n; i++, sz <<= 1) {
+      classes[i] = new sizeClass(sz, maxFree, false);
+      directClasses[i] = new sizeClass(sz, maxFree, true);
+    }
+  }
+
+  /**
+   * Return the default BufferPool shared by the aSocket, aDisk, and
+   * HTTP layers. This pool is disabled until configured by the 
+   * Sandstorm manager.
+   */
+  public static BufferPool getDefault() {
+    return defaultPool;
+  }
+
+  /**
+   * Enable or disable pooling. Buffers allocated while the pool was 
+   * enabled are still recycled when released.
+   */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Return true if pooling is enabled.
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Enable or disable leak detection. Leak detection records the 
+   * allocation site of every pooled buffer and is intended for debugging
+   * only.
+   */
+  public void setLeakDetection(boolean leakDetection) {
+    this.leakDetection = leakDetection;
+  }
+
+  /**
+   * Set the maximum number of free arrays cached in each size class.
+   */
+  public void setMaxFree(int maxFree) {
+    for (int i = 0; i < classes.length; i++) {
+      synchronized (classes[i]) {
+	classes[i].maxFree = maxFree;
+      }
+      synchronized (directClasses[i]) {
+	directClasses[i].maxFree = maxFree;
+      }
+    }
+  }
+
+  /**
+   * Allocate a BufferElement with the given size and an offset of 0. 
+   * The data array may be longer than 'size'.
+   */
+  public BufferElement allocate(int size) {
+    sizeClass sc = null;
+    if (enabled && (size <= MAX_CLASS_SIZE)) sc = classes[classIndex(size)];
+    if (sc == null) return new BufferElement(size);
+
+    if (leakDetection) pollLeaks();
+
+    byte data[] = (byte[])sc.take();
+    BufferElement buf = new BufferElement(data, size, this);
+    if (leakDetection) track(buf, sc);
+    return buf;
+  }
+
+  /**
+   * Allocate a BufferElement with the given size, backed by a direct
+   * ByteBuffer rather than a byte array. The BufferElement's data 
+   * field is null until getBytes() is called, which copies the contents
+   * into a new array.
+   */
+  public BufferElement allocateDirect(int size) {
+    sizeClass sc = null;
+    if (enabled && (size <= MAX_CLASS_SIZE)) sc = directClasses[classIndex(size)];
+    if (sc == null) return new BufferElement(ByteBuffer.allocateDirect(size), size, null);
+
+    if (leakDetection) pollLeaks();
+
+    ByteBuffer bb = (ByteBuffer)sc.take();
+    BufferElement buf = new BufferElement(bb, size, this);
+    if (leakDetection) track(buf, sc);
+    return buf;
+  }
+
+  // Record the allocation site of buf
+  private void track(BufferElement buf, sizeClass sc) {
+    leakRef ref = new leakRef(buf, sc, leakQueue);
+    buf.leakRef = ref;
+    leakRefs.put(ref, ref);
+  }
+
+  // Called by BufferElement when its reference count reaches zero
+  void recycle(BufferElement buf) {
+    if (buf.leakRef != null) {
+      leakRefs.remove(buf.leakRef);
+      ((leakRef)buf.leakRef).clear();
+      buf.leakRef = null;
+    }
+    ByteBuffer bb = buf.detachDirect();
+    if (bb != null) {
+      if (bb.capacity() > MAX_CLASS_SIZE) return;
+      sizeClass sc = directClasses[classIndex(bb.capacity())];
+      if (sc.size == bb.capacity()) sc.put(bb);
+      return;
+    }
+    byte data[] = buf.data;
+    buf.data = null;
+    if (data.length > MAX_CLASS_SIZE) return;
+    sizeClass sc = classes[classIndex(data.length)];
+    if (sc.size != data.length) return;
+    sc.put(data);
+  }
+
+  // Return the index of the smallest class that holds 'size' bytes
+  private int classIndex(int size) {
+    int idx = 0;
+    for (int sz = MIN_CLASS_SIZE; sz < size; sz <<= 1) idx++;
+    return idx;
+  }
+
+  // Report pooled buffers collected without being released
+  private void pollLeaks() {
+    leakRef ref;
+    while ((ref = (leakRef)leakQueue.poll()) != null) {
+      if (leakRefs.remove(ref) == null) continue;
+      synchronized (this) {
+	numLeaks++;
+      }
+      sizeClass sc = ref.sc;
+      synchronized (sc) {
+	sc.outstanding--;
+      }
+      System.err.println("BufferPool: WARNING: buffer of size class "+ref.sc.size+" was garbage collected without being released; allocated at:");
+      ref.site.printStackTrace();
+    }
+  }
+
+  /**
+   * Return the number of size classes.
+   */
+  public int numSizeClasses() {
+    return classes.length;
+  }
+
+  /**
+   * Return the array size of the given size class.
+   */
+  public int getClassSize(int sizeclass) {
+    return classes[sizeclass].size;
+  }
+
+  /**
+   * Return the number of buffers allocated from the given size class.
+   */
+  public long getAllocations(int sizeclass) {
+    synchronized (classes[sizeclass]) {
+      return classes[sizeclass].allocs;
+    }
+  }
+
+  /**
+   * Return the number of allocations from the given size class that 
+   * were satisfied by a recycled array.
+   */
+  public long getHits(int sizeclass) {
+    synchronized (classes[sizeclass]) {
+      return classes[sizeclass].hits;
+    }
+  }
+
+  /**
+   * Return the number of buffers from the given size class that have
+   * been allocated but not yet released.
+   */
+  public int getOutstanding(int sizeclass) {
+    synchronized (classes[sizeclass]) {
+      return classes[sizeclass].outstanding;
+    }
+  }
+
+  /**
+   * Return the number of direct buffers from the given size class that 
+   * have been allocated but not yet released.
+   */
+  public int getDirectOutstanding(int sizeclass) {
+    synchronized (directClasses[sizeclass]) {
+      return directClasses[sizeclass].outstanding;
+    }
+  }
+
+  /**
+   * Return the number of free arrays cached in the given size class.
+   */
+  public int getFree(int sizeclass) {
+    synchronized (classes[sizeclass]) {
+      return classes[sizeclass].numFree;
+    }
+  }
+
+  /**
+   * Return the number of leaked buffers detected so far. Always 0 
+   * unless leak detection is enabled.
+   */
+  public synchronized int getLeaks() {
+    return numLeaks;
+  }
+
+  /**
+   * Return a ProfilableIF reporting the number of outstanding buffers 
+   * in the given size class.
+   */
+  public ProfilableIF getProfilable(int sizeclass) {
+    return classes[sizeclass];
+  }
+
+  /**
+   * Return a ProfilableIF reporting the number of outstanding direct 
+   * buffers in the given size class.
+   */
+  public ProfilableIF getDirectProfilable(int sizeclass) {
+    return directClasses[sizeclass];
+  }
+
+  public String toString() {
+    StringBuffer sb = new StringBuffer("BufferPool [");
+    for (int i = 0; i < classes.length*2; i++) {
+      sizeClass sc = (i < classes.length) ? classes[i] : directClasses[i - classes.length];
+      synchronized (sc) {
+	if (sc.allocs == 0) continue;
+	sb.append(" "+sc.size+(sc.direct ? "d" : "")+": allocs="+sc.allocs+" hits="+sc.hits+" out="+sc.outstanding+" free="+sc.numFree);
+      }
+    }
+    sb.append(" leaks="+getLeaks()+" ]");
+    return sb.toString();
+  }
+
+  // A stack of free arrays (or direct ByteBuffers) of one size, with 
+  // statistics
+  private class sizeClass implements ProfilableIF {
+    int size;
+    int maxFree;
+    boolean direct;
+    Object free[];
+    int numFree = 0;
+    long allocs = 0, hits = 0;
+    int outstanding = 0;
+
+    sizeClass(int size, int maxFree, boolean direct) {
+      this.size = size;
+      this.maxFree = maxFree;
+      this.direct = direct;
+      this.free = new Object[Math.min(maxFree, 16)];
+    }
+
+    synchronized Object take() {
+      allocs++;
+      outstanding++;
+      if (numFree > 0) {
+	hits++;
+	Object data = free[--numFree];
+	free[numFree] = null;
+	return data;
+      }
+      if (DEBUG) System.err.println("BufferPool: allocating new "+(direct ? "direct buffer" : "array")+" of size "+size);
+      if (direct) return ByteBuffer.allocateDirect(size);
+      return new byte[size];
+    }
+
+    synchronized void put(Object data) {
+      outstanding--;
+      if (numFree >= maxFree) return;
+      if (numFree == free.length) {
+	Object newfree[] = new Object[Math.min(maxFree, free.length*2)];
+	System.arraycopy(free, 0, newfree, 0, numFree);
+	free = newfree;
+      }
+      free[numFree++] = data;
+    }
+
+    public synchronized int profileSize() {
+      return outstanding;
+    }
+  }
+
+  // Tracks an outstanding pooled buffer for leak detection
+  private static class leakRef extends WeakReference {
+    sizeClass sc;
+    Throwable site;
+
+    leakRef(BufferElement buf, sizeClass sc, ReferenceQueue q) {
+      super(buf, q);
+      this.sc = sc;
+      this.site = new Throwable("BufferElement allocation");
+    }
+  }
+
+}
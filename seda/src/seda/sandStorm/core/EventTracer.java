@@ -0,0 +1,395 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.sandStorm.core;
+
+import seda.sandStorm.api.EventHandlerException;
+import seda.sandStorm.api.EventHandlerIF;
+import seda.sandStorm.api.QueueElementIF;
+import seda.sandStorm.api.SandstormConfigIF;
+
+import java.io.PrintWriter;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * EventTracer follows a sample of events from stage to stage. When
+ * enabled (global.trace.enable), one in every sampleInterval events 
+ * enqueued onto a FiniteQueue or LockFreeQueue, outside of any trace,
+ * starts a new trace. The queue holds a traced event in a small
+ * wrapper. When the stage's thread manager hands a batch containing a
+ * traced event to the event handler, it passes the traced event in a
+ * batch of its own, with its trace as the current one of the thread;
+ * every event that thread enqueues until the handler returns then 
+ * joins the same trace, while the rest of the batch is handled 
+ * untraced. This follows a request
+ * through stages which pass on new events rather than the original,
+ * for example from httpServer through HttpRecv, PageCacheSized and 
+ * HttpSend to the aSocket write stage.
+ *
+ * <p>Each enqueue, dequeue and handler exit of a traced event is 
+ * recorded as a hop in a fixed-size ring, claimed with a single atomic
+ * increment, so the oldest hops are overwritten. dump() prints the 
+ * traces still in the ring as timelines. Untraced events cost one
+ * thread-local lookup per enqueue and dequeue while tracing is 
+ * enabled, and nothing when it is not.
+ *
+ * <p>Thread managers must call event handlers through handleEvents().
+ * Threads which dequeue without doing so (such as the aDisk workers)
+ * carry the trace of an event they dequeue on its own until their 
+ * next dequeue, and no trace otherwise.
+ */
+public final class EventTracer {
+
+  /** Hop recorded when a traced event is enqueued. */
+  public static final int ENQUEUE = 0;
+  /** Hop recorded when a traced event is dequeued. */
+  public static final int DEQUEUE = 1;
+  /** Hop recorded when the handler of a traced event returns. */
+  public static final int EXIT = 2;
+
+  private static final String KIND_NAMES[] = { "enqueue", "dequeue", "exit" };
+
+  // Hops after which a trace stops following new events, in case a
+  // traced event starts a cycle
+  private static final int MAX_HOPS = 256;
+
+  private static boolean enabled = false;
+  private static int sampleInterval = 1000;
+  private static String roots[];
+  private static AtomicInteger sampled = new AtomicInteger(0);
+  private static AtomicLong nextTrace = new AtomicLong(1);
+  private static AtomicReferenceArray ring;
+  private static int mask;
+  private static AtomicLong nextHop = new AtomicLong(0);
+
+  private static ThreadLocal current = new ThreadLocal() {
+    protected Object initialValue() {
+      return new Active();
+    }
+  };
+
+  private EventTracer() {
+  }
+
+  /**
+   * Configure tracing from the global.trace section of the given
+   * configuration. Called by the runtime before any stages are 
+   * created; queues created earlier are still traced.
+   */
+  public static synchronized void configure(SandstormConfigIF config) {
+    sampleInterval = Math.max(1, config.getInt("global.trace.sampleInterval"));
+    int size = 1;
+    while (size < config.getInt("global.trace.bufferSize")) size <<= 1;
+    ring = new AtomicReferenceArray(size);
+    mask = size - 1;
+    String r = config.getString("global.trace.roots");
+    if ((r != null) && (r.trim().length() > 0)) {
+      roots = r.trim().split("\\s*,\\s*");
+    } else {
+      roots = null;
+    }
+    enabled = config.getBoolean("global.trace.enable");
+  }
+
+  /**
+   * Returns true if tracing is enabled.
+   */
+  public static boolean enabled() {
+    return enabled;
+  }
+
+  /**
+   * Called by a queue for each element it enqueues. Returns the object
+   * the queue should hold: the element itself, or a wrapper if it is
+   * traced.
+   */
+  static Object enqueued(QueueElementIF el, String queue) {
+    if (!enabled) return el;
+    Active a = (Active)current.get();
+    Trace t = a.trace;
+    if (t == null) {
+      if (!isRoot(queue) || 
+	  (sampled.incrementAndGet() % sampleInterval != 0)) return el;
+      t = new Trace(nextTrace.getAndIncrement());
+    } else if (t.hops.get() >= MAX_HOPS) {
+      return el;
+    }
+    record(t, ENQUEUE, queue);
+    return new Traced(el, t);
+  }
+
+  /**
+   * Called by a queue before removing elements from it; ends any trace
+   * the dequeueing thread is still carrying, and forgets the traced 
+   * events of its last dequeue.
+   */
+  static void dequeuing() {
+    if (!enabled) return;
+    Active a = (Active)current.get();
+    a.trace = null;
+    a.clear();
+  }
+
+  /**
+   * Called by a queue for each object it removes, where 'batch' is the 
+   * number of elements removed together; returns the element. A traced
+   * element is remembered until it is passed to handleEvents(); if it 
+   * was removed on its own, its trace also becomes the current one of
+   * this thread.
+   */
+  static QueueElementIF dequeued(Object o, String queue, int batch) {
+    if (!(o instanceof Traced)) return (QueueElementIF)o;
+    Traced tr = (Traced)o;
+    record(tr.trace, DEQUEUE, queue);
+    Active a = (Active)current.get();
+    a.add(tr.el, tr.trace, queue);
+    if (batch == 1) {
+      a.trace = tr.trace;
+      a.queue = queue;
+    }
+    return tr.el;
+  }
+
+  /**
+   * Pass the given events to the handler, as thread managers must. 
+   * Each traced event dequeued by this thread is passed in a batch of
+   * its own with its trace current, and the exit of the handler is 
+   * recorded; the events between them are passed in batches as given.
+   */
+  public static void handleEvents(EventHandlerIF handler, QueueElementIF events[]) 
+    throws EventHandlerException {
+    if (!enabled) {
+      handler.handleEvents(events);
+      return;
+    }
+    Active a = (Active)current.get();
+    a.trace = null;
+    if (a.count == 0) {
+      handler.handleEvents(events);
+      return;
+    }
+    try {
+      int start = 0;
+      for (int i = 0; i < events.length; i++) {
+	int n = a.indexOf(events[i]);
+	if (n < 0) continue;
+	if (i > start) handler.handleEvents(slice(events, start, i));
+	Trace t = a.traces[n];
+	String queue = a.queues[n];
+	a.remove(n);
+	a.trace = t;
+	handler.handleEvents((events.length == 1) ? events : 
+	    new QueueElementIF[] { events[i] });
+	record(t, EXIT, queue);
+	a.trace = null;
+	start = i + 1;
+      }
+      if (start < events.length) {
+	handler.handleEvents((start == 0) ? events : 
+	    slice(events, start, events.length));
+      }
+    } finally {
+      a.trace = null;
+    }
+  }
+
+  private static QueueElementIF[] slice(QueueElementIF events[], int from, int to) {
+    QueueElementIF arr[] = new QueueElementIF[to - from];
+    System.arraycopy(events, from, arr, 0, arr.length);
+    return arr;
+  }
+
+  private static boolean isRoot(String queue) {
+    if (roots == null) return true;
+    if (queue == null) return false;
+    for (int i = 0; i < roots.length; i++) {
+      if (roots[i].equals(queue)) return true;
+    }
+    return false;
+  }
+
+  private static void record(Trace t, int kind, String queue) {
+    t.hops.incrementAndGet();
+    Hop h = new Hop(t.id, kind, (queue == null) ? "-" : queue,
+	Thread.currentThread().getName(), 
+	System.nanoTime());
+    ring.set((int)(nextHop.getAndIncrement() & mask), h);
+  }
+
+  /**
+   * Print the timelines of up to 'max' of the most recent traces in 
+   * the ring which passed through more than one queue. Hops of a trace 
+   * may already have been overwritten.
+   */
+  public static void dump(PrintWriter pw, int max) {
+    if (ring == null) {
+      pw.println("# Tracing is not enabled");
+      return;
+    }
+    Hashtable traces = new Hashtable();
+    for (int i = 0; i < ring.length(); i++) {
+      Hop h = (Hop)ring.get(i);
+      if (h == null) continue;
+      Long key = new Long(h.trace);
+      Vector v = (Vector)traces.get(key);
+      if (v == null) {
+	v = new Vector();
+	traces.put(key, v);
+      }
+      v.addElement(h);
+    }
+
+    // Most recent (highest numbered) traces first
+    long ids[] = new long[traces.size()];
+    int n = 0;
+    for (Enumeration e = traces.keys(); e.hasMoreElements(); ) {
+      ids[n++] = ((Long)e.nextElement()).longValue();
+    }
+    java.util.Arrays.sort(ids);
+
+    int shown = 0;
+    for (int i = n - 1; (i >= 0) && (shown < max); i--) {
+      Vector v = (Vector)traces.get(new Long(ids[i]));
+      Hop hops[] = new Hop[v.size()];
+      v.copyInto(hops);
+      java.util.Arrays.sort(hops);
+      Hashtable queues = new Hashtable();
+      for (int j = 0; j < hops.length; j++) {
+	queues.put(String.valueOf(hops[j].queue), hops[j]);
+      }
+      if (queues.size() < 2) continue;
+      shown++;
+
+      long start = hops[0].nanos;
+      pw.println("# trace "+ids[i]+": "+hops.length+" hops, "+queues.size()+
+	  " queues, "+((hops[hops.length-1].nanos - start)/1000)+" usec");
+      for (int j = 0; j < hops.length; j++) {
+	Hop h = hops[j];
+	pw.println(pad(Long.toString((h.nanos - start)/1000), 10)+" usec  "+
+	    pad(KIND_NAMES[h.kind], -8)+" "+h.queue+"  ["+h.thread+"]");
+      }
+    }
+    if (shown == 0) pw.println("# No traces recorded");
+  }
+
+  // Pad s with spaces to |width|, on the left if width is positive
+  private static String pad(String s, int width) {
+    StringBuffer sb = new StringBuffer();
+    for (int i = s.length(); i < Math.abs(width); i++) sb.append(' ');
+    return (width > 0) ? sb.append(s).toString() : s + sb.toString();
+  }
+
+  // The trace a thread is handling, and the queue it came from; and
+  // the traced events of its last dequeue not yet passed to a handler,
+  // with their traces and queues
+  private static class Active {
+    Trace trace;
+    String queue;
+    QueueElementIF els[] = new QueueElementIF[4];
+    Trace traces[] = new Trace[4];
+    String queues[] = new String[4];
+    int count;
+
+    void add(QueueElementIF el, Trace t, String q) {
+      if (count == els.length) {
+	QueueElementIF e2[] = new QueueElementIF[count * 2];
+	Trace t2[] = new Trace[count * 2];
+	String q2[] = new String[count * 2];
+	System.arraycopy(els, 0, e2, 0, count);
+	System.arraycopy(traces, 0, t2, 0, count);
+	System.arraycopy(queues, 0, q2, 0, count);
+	els = e2; traces = t2; queues = q2;
+      }
+      els[count] = el;
+      traces[count] = t;
+      queues[count] = q;
+      count++;
+    }
+
+    int indexOf(QueueElementIF el) {
+      for (int i = 0; i < count; i++) {
+	if (els[i] == el) return i;
+      }
+      return -1;
+    }
+
+    void remove(int i) {
+      count--;
+      els[i] = els[count];
+      traces[i] = traces[count];
+      queues[i] = queues[count];
+      els[count] = null;
+      traces[count] = null;
+      queues[count] = null;
+    }
+
+    void clear() {
+      while (count > 0) remove(count - 1);
+    }
+  }
+
+  private static class Trace {
+    long id;
+    AtomicInteger hops = new AtomicInteger(0);
+
+    Trace(long id) {
+      this.id = id;
+    }
+  }
+
+  // A traced element as held by a queue
+  private static class Traced {
+    QueueElementIF el;
+    Trace trace;
+
+    Traced(QueueElementIF el, Trace trace) {
+      this.el = el;
+      this.trace = trace;
+    }
+  }
+
+  private static class Hop implements Comparable {
+    long trace;
+    int kind;
+    String queue, thread;
+    long nanos;
+
+    Hop(long trace, int kind, String queue, String thread, long nanos) {
+      this.trace = trace;
+      this.kind = kind;
+      this.queue = queue;
+      this.thread = thread;
+      this.nanos = nanos;
+    }
+
+    public int compareTo(Object o) {
+      long other = ((Hop)o).nanos;
+      return (nanos < other) ? -1 : ((nanos == other) ? 0 : 1);
+    }
+  }
+
+}
@@ -0,0 +1,159 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.sandStorm.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A FileRegion is a BufferElement whose contents are a region of a 
+ * file, rather than an array in memory. When written to an 
+ * ATcpConnection using the NIO provider, the region is sent with
+ * <tt>FileChannel.transferTo()</tt>, so the data is never copied onto
+ * the Java heap; the NBIO provider streams it through a 64 KB buffer.
+ * Other consumers may call getBytes(), which reads the region into a 
+ * new array.
+ *
+ * <p>A FileRegion may be created on an open FileChannel, which is left
+ * open and must be closed by the caller, or on a pathname, in which 
+ * case the file is opened each time the region is sent and closed 
+ * again when the send completes. The file should not change size while
+ * the region is being sent.
+ *
+ * @see BufferElement
+ */
+public class FileRegion extends BufferElement {
+
+  private String path;
+  private FileChannel channel;
+  private long position;
+
+  /**
+   * Create a FileRegion for the entire contents of the named file.
+   */
+  public FileRegion(String path) throws IOException {
+    this(path, 0, checkLength(new File(path)));
+  }
+
+  /**
+   * Create a FileRegion for 'length' bytes of the named file starting
+   * at 'position'.
+   */
+  public FileRegion(String path, long position, int length) {
+    super((ByteBuffer)null, length, null);
+    this.path = path;
+    this.position = position;
+  }
+
+  /**
+   * Create a FileRegion for 'length' bytes of the given channel starting
+   * at 'position'. The channel is not closed by this class.
+   */
+  public FileRegion(FileChannel channel, long position, int length) {
+    super((ByteBuffer)null, length, null);
+    this.channel = channel;
+    this.position = position;
+  }
+
+  private static int checkLength(File f) throws IOException {
+    if (!f.isFile()) throw new IOException("FileRegion: "+f+" is not a file");
+    long len = f.length();
+    if (len > Integer.MAX_VALUE) throw new IOException("FileRegion: "+f+" is too large");
+    return (int)len;
+  }
+
+  /**
+   * Return the file offset at which this region starts.
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  /**
+   * Return the pathname of the file, or null if this region was 
+   * created on a FileChannel.
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Return a channel from which the region can be read. Each call must
+   * be matched by a call to closeChannel().
+   */
+  public FileChannel openChannel() throws IOException {
+    if (channel != null) return channel;
+    return new RandomAccessFile(path, "r").getChannel();
+  }
+
+  /**
+   * Release a channel obtained from openChannel().
+   */
+  public void closeChannel(FileChannel ch) {
+    if ((ch == null) || (ch == channel)) return;
+    try {
+      ch.close();
+    } catch (IOException ioe) {
+      // Ignore
+    }
+  }
+
+  /**
+   * Read the region into a new array, which is returned by later calls
+   * as well.
+   */
+  public synchronized byte[] getBytes() {
+    if (data != null) return data;
+    byte arr[] = new byte[size];
+    FileChannel ch = null;
+    try {
+      ch = openChannel();
+      ByteBuffer bb = ByteBuffer.wrap(arr);
+      while (bb.hasRemaining()) {
+	int n = ch.read(bb, position + bb.position());
+	if (n < 0) throw new IOException("FileRegion: unexpected end of file");
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException("FileRegion: cannot read "+this+": "+ioe.getMessage());
+    } finally {
+      closeChannel(ch);
+    }
+    data = arr;
+    return data;
+  }
+
+  /**
+   * Return a ByteBuffer view of the region; this reads it into memory.
+   */
+  public ByteBuffer getWritableByteBuffer() {
+    return ByteBuffer.wrap(getBytes(), 0, size);
+  }
+
+  public String toString() {
+    return "FileRegion ["+((path != null) ? path : channel.toString())+", pos="+position+", size="+size+"]";
+  }
+
+}
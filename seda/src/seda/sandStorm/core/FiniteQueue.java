@@ -25,24 +25,33 @@
 package seda.sandStorm.core;
 
 import seda.sandStorm.api.*;
+import seda.sandStorm.api.internal.BatchSourceIF;
+import seda.sandStorm.api.internal.QueueTimingIF;
 import seda.sandStorm.api.internal.ThreadManagerIF;
+import seda.sandStorm.internal.LatencyHistogram;
 
 import java.util.Hashtable;
 
 /**
  * The FiniteQueue class is a simple implementation of the QueueIF
- * interface, using a linked list.
+ * interface, using a linked list. If given a wait histogram, it keeps
+ * the enqueue stamp of each element (see WaitSampler) in a ring 
+ * alongside the list. Elements sampled by the EventTracer are held on
+ * the list in a wrapper.
  *
  * @author   Matt Welsh
  * @see      seda.sandStorm.api.QueueIF
  */
 
-public class FiniteQueue implements QueueIF, ProfilableIF {
+public class FiniteQueue implements QueueIF, BatchSourceIF, QueueTimingIF, ProfilableIF {
 
   private static final boolean DEBUG = false;
 
+  /** Default number of polls of an empty queue before a batch dequeue parks. */
+  public static final int DEFAULT_BATCH_SPIN = 100;
+
   private ssLinkedList qlist;
-  private int queueSize;
+  private volatile int queueSize;
   private Object blocker;
   private Hashtable provisionalTbl;
   private EnqueuePredicateIF pred;
@@ -50,6 +59,21 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
   private boolean closed;
   private ThreadManagerIF threadmgr;
 
+  // All protected by 'blocker'
+  private int waiters;
+  private int batchWaiters;
+  private int batchTarget = Integer.MAX_VALUE;
+  private long numBatchSpin, numBatchPark, numBatchTimeout;
+
+  private int batchSpin = DEFAULT_BATCH_SPIN;
+
+  // Enqueue stamps of the elements on qlist, oldest at stampHead, 
+  // kept while sampler is set; the length of stamps is a power of two.
+  // Protected by 'qlist'.
+  private WaitSampler sampler;
+  private long stamps[];
+  private int stampHead, stampCount;
+
   /** 
    * Create a FiniteQueue with the given enqueue predicate, name, and
    * thread manager.
@@ -136,10 +160,11 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 	  throw new SinkFullException("FiniteQueue is full!");
 	queueSize++;
 	if (DEBUG) System.err.println("**** ENQUEUE ("+name+") **** Add to tail");
-	qlist.add_to_tail(enqueueMe);  // wake up one blocker
+	qlist.add_to_tail(EventTracer.enqueued(enqueueMe, name));
+	if (sampler != null) addStamp(sampler.stamp());
       }
       if (DEBUG) System.err.println("**** ENQUEUE ("+name+") **** Doing notify");
-      blocker.notifyAll();
+      wakeWaiters();
     }
     if(threadmgr!=null)
       threadmgr.wake();
@@ -174,10 +199,11 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 
 	queueSize += qlen;
 	for (int i=0; i<qlen; i++) {
-	  qlist.add_to_tail(enqueueMe[i]);
+	  qlist.add_to_tail(EventTracer.enqueued(enqueueMe[i], name));
+	  if (sampler != null) addStamp(sampler.stamp());
 	}
       }
-      blocker.notifyAll();  // wake up all sleepers
+      wakeWaiters();
     }
     if(threadmgr!=null)
       threadmgr.wake();
@@ -191,7 +217,9 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 	if (qlist.size() == 0)
 	  return null;
 
-	el = (QueueElementIF) qlist.remove_head();
+	EventTracer.dequeuing();
+	el = EventTracer.dequeued(qlist.remove_head(), name, 1);
+	if (sampler != null) takeStamp(0);
 	queueSize--;
 	return el;
       }
@@ -206,8 +234,12 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 	if (qs == 0) return null;
 
 	QueueElementIF[] retIF = new QueueElementIF[qs];
-	for (int i=0; i<qs; i++)
-	  retIF[i] = (QueueElementIF) qlist.remove_head();
+	long now = 0;
+	EventTracer.dequeuing();
+	for (int i=0; i<qs; i++) {
+	  retIF[i] = EventTracer.dequeued(qlist.remove_head(), name, qs);
+	  if (sampler != null) now = takeStamp(now);
+	}
 	queueSize -= qs;
 	return retIF;
       }
@@ -224,8 +256,12 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 	  return null;
 
 	QueueElementIF[] retIF = new QueueElementIF[qs];
-	for (int i=0; i<qs; i++)
-	  retIF[i] = (QueueElementIF) qlist.remove_head();
+	long now = 0;
+	EventTracer.dequeuing();
+	for (int i=0; i<qs; i++) {
+	  retIF[i] = EventTracer.dequeued(qlist.remove_head(), name, qs);
+	  if (sampler != null) now = takeStamp(now);
+	}
 	queueSize -= qs;
 	return retIF;
       }
@@ -249,14 +285,94 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 	  return null;
 
 	QueueElementIF[] retIF = new QueueElementIF[qs];
-	for (int i=0; i<qs; i++)
-	  retIF[i] = (QueueElementIF) qlist.remove_head();
+	long now = 0;
+	EventTracer.dequeuing();
+	for (int i=0; i<qs; i++) {
+	  retIF[i] = EventTracer.dequeued(qlist.remove_head(), name, qs);
+	  if (sampler != null) now = takeStamp(now);
+	}
 	queueSize -= qs;
 	return retIF;
       }
     }
   }
 
+  // Called with 'qlist' held. Stamps the element just added to qlist.
+  private void addStamp(long now) {
+    if (stampCount == stamps.length) {
+      long grown[] = new long[stamps.length * 2];
+      for (int i = 0; i < stampCount; i++) {
+	grown[i] = stamps[(stampHead + i) & (stamps.length - 1)];
+      }
+      stamps = grown;
+      stampHead = 0;
+    }
+    stamps[(stampHead + stampCount) & (stamps.length - 1)] = now;
+    stampCount++;
+  }
+
+  // Called with 'qlist' held. Records the wait of the element just 
+  // removed from the head of qlist, if it was sampled. 'now' is the 
+  // current time, or 0 if not yet read; returns the time used.
+  private long takeStamp(long now) {
+    long t = stamps[stampHead];
+    stampHead = (stampHead + 1) & (stamps.length - 1);
+    stampCount--;
+    if (t != 0) {
+      if (now == 0) now = System.nanoTime();
+      sampler.record(t, now);
+    }
+    return now;
+  }
+
+  /**
+   * Record the time elements wait on the queue, in usec, into the
+   * given histogram, or stop recording if null. Elements already on 
+   * the queue are not measured.
+   */
+  public void setWaitHistogram(LatencyHistogram hist) {
+    synchronized(blocker) {
+      synchronized(qlist) {
+	if (hist == null) {
+	  sampler = null;
+	  stamps = null;
+	  return;
+	}
+	sampler = new WaitSampler(hist);
+	int n = qlist.size();
+	int cap = 16;
+	while (cap < n * 2) cap <<= 1;
+	stamps = new long[cap];
+	stampHead = 0;
+	stampCount = n;
+      }
+    }
+  }
+
+  // Called with 'blocker' held. Wakes threads blocked in a dequeue if
+  // any of them can make progress; batch dequeues are only woken once
+  // their batch has filled.
+  private void wakeWaiters() {
+    if ((waiters > 0) || ((batchWaiters > 0) && (queueSize >= batchTarget))) {
+      blocker.notifyAll();
+    }
+  }
+
+  // Called with 'blocker' held. Waits for an enqueue.
+  private void waitOnBlocker(long timeout_millis) {
+    waiters++;
+    try {
+      if (timeout_millis == -1) {
+	blocker.wait();
+      } else {
+	blocker.wait(timeout_millis);
+      }
+    } catch (InterruptedException ie) {
+    } finally {
+      waiters--;
+    }
+  }
+
   public QueueElementIF[] blocking_dequeue_all(int timeout_millis) {
     QueueElementIF[] rets = null;
     long    goal_time;
@@ -276,18 +392,7 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 	  return rets;
 	}
 
-	if (timeout_millis == -1) {
-	  try {
-	    blocker.wait();
-	  } catch (InterruptedException ie) {
-	  }
-	} else {
-	  try {
-	    if (DEBUG) System.err.println("**** B_DEQUEUE_A ("+name+") **** WAITING ON BLOCKER");
-	    blocker.wait(timeout_millis);
-	  } catch (InterruptedException ie) {
-	  }
-	}
+	waitOnBlocker(timeout_millis);
 	
 	if (DEBUG) System.err.println("**** B_DEQUEUE_A ("+name+") **** Doing D_A (2)");
 	rets = this.dequeue_all();
@@ -322,17 +427,7 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 	  return rets;
 	}
 
-	if (timeout_millis == -1) {
-	  try {
-	    blocker.wait();
-	  } catch (InterruptedException ie) {
-	  }
-	} else {
-	  try {
-	    blocker.wait(timeout_millis);
-	  } catch (InterruptedException ie) {
-	  }
-	}
+	waitOnBlocker(timeout_millis);
 	
 	rets = this.dequeue(num, mustReturnNum);
 	if (rets != null) {
@@ -368,17 +463,7 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 	  return rets;
 	}
 
-        if (timeout_millis == -1) {
-	  try {
-	    blocker.wait();
-	  } catch (InterruptedException ie) {
-	  }
-	} else {
-	  try {
-	    blocker.wait(timeout_millis);
-	  } catch (InterruptedException ie) {
-	  }
-	}
+	waitOnBlocker(timeout_millis);
 	
 	rets = this.dequeue();
 	if (rets != null) {
@@ -393,6 +478,98 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
     }
   }
 
+  /**
+   * Dequeue a batch of at most <tt>target</tt> elements, waiting up to
+   * <tt>timeout_millis</tt> for the first element and then up to
+   * <tt>fill_millis</tt> for the batch to fill.
+   * @see seda.sandStorm.api.internal.BatchSourceIF
+   */
+  public QueueElementIF[] blocking_dequeue_batch(int timeout_millis, int target, int fill_millis) {
+    if (target <= 0) target = Integer.MAX_VALUE;
+    if (timeout_millis == 0) return this.dequeue(target);
+
+    // Spin briefly before parking on an empty queue; queueSize is
+    // volatile, so each pass rereads it
+    boolean spun = false;
+    if (queueSize == 0) {
+      for (int i = 0; (i < batchSpin) && (queueSize == 0); i++) {
+	Thread.onSpinWait();
+      }
+      spun = (queueSize != 0);
+    }
+
+    long goal_time = System.currentTimeMillis() + timeout_millis;
+    synchronized(blocker) {
+      if (spun) numBatchSpin++;
+
+      // Park until the queue is non-empty
+      while (qlist.size() == 0) {
+	long delay = -1;
+	if (timeout_millis != -1) {
+	  delay = goal_time - System.currentTimeMillis();
+	  if (delay <= 0) {
+	    numBatchTimeout++;
+	    return null;
+	  }
+	}
+	numBatchPark++;
+	waitOnBlocker(delay);
+      }
+
+      // Wait for the batch to fill, but only be woken when it has
+      long fill_goal = System.currentTimeMillis() + fill_millis;
+      while ((qlist.size() < target) && (fill_millis > 0)) {
+	long delay = fill_goal - System.currentTimeMillis();
+	if (delay <= 0) break;
+	numBatchPark++;
+	batchWaiters++;
+	if (target < batchTarget) batchTarget = target;
+	try {
+	  blocker.wait(delay);
+	} catch (InterruptedException ie) {
+	} finally {
+	  if (--batchWaiters == 0) batchTarget = Integer.MAX_VALUE;
+	}
+      }
+      return this.dequeue(target);
+    }
+  }
+
+  /**
+   * Set the number of times a batch dequeue polls an empty queue before
+   * parking.
+   */
+  public void setBatchSpin(int spin) {
+    this.batchSpin = spin;
+  }
+
+  /**
+   * Return the number of batch dequeues satisfied while spinning.
+   */
+  public long getBatchSpinCount() {
+    synchronized(blocker) {
+      return numBatchSpin;
+    }
+  }
+
+  /**
+   * Return the number of times a batch dequeue has parked.
+   */
+  public long getBatchParkCount() {
+    synchronized(blocker) {
+      return numBatchPark;
+    }
+  }
+
+  /**
+   * Return the number of batch dequeues which timed out empty.
+   */
+  public long getBatchTimeoutCount() {
+    synchronized(blocker) {
+      return numBatchTimeout;
+    }
+  }
+
   /** 
    * Return the profile size of the queue.
    */
@@ -435,10 +612,11 @@ public class FiniteQueue implements QueueIF, ProfilableIF {
 	QueueElementIF elements[] = (QueueElementIF[])provisionalTbl.remove(key);
 	if (elements == null) throw new IllegalArgumentException("Unknown enqueue key "+key);
 	for (int i=0; i<elements.length; i++) {
-	  qlist.add_to_tail(elements[i]);
+	  qlist.add_to_tail(EventTracer.enqueued(elements[i], name));
+	  if (sampler != null) addStamp(sampler.stamp());
 	}
       }
-      blocker.notifyAll();
+      wakeWaiters();
     }
     if(threadmgr!=null)
       threadmgr.wake();
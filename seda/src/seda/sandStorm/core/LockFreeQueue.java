@@ -0,0 +1,604 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.sandStorm.core;
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.api.internal.BatchSourceIF;
+import seda.sandStorm.api.internal.QueueTimingIF;
+import seda.sandStorm.api.internal.ThreadManagerIF;
+import seda.sandStorm.internal.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * LockFreeQueue is a bounded, array-backed implementation of QueueIF
+ * which does not take any locks on the enqueue or dequeue path. Any
+ * number of threads may enqueue and dequeue concurrently.
+ *
+ * <p>Each slot in the ring carries a sequence number which tells
+ * producers when the slot is free and consumers when it is full.
+ * Producers first reserve space against the queue capacity and then
+ * claim a contiguous run of slots with a single atomic add, so
+ * <tt>enqueue_many()</tt> and <tt>enqueue_commit()</tt> never interleave
+ * their elements with those of another thread. A reservation guarantees
+ * that the claimed slots will become free, so a provisional enqueue
+ * can always be committed.
+ *
+ * <p>Consumers only touch the monitor when the queue is empty and they
+ * must block. Producers check whether anyone is blocked before taking
+ * the monitor, and then wake at most one consumer per element enqueued,
+ * rather than calling <tt>notifyAll()</tt> on every enqueue.
+ *
+ * <p>Note that the enqueue predicate (if any) is consulted before space
+ * is reserved, but without excluding concurrent enqueuers; a
+ * QueueThresholdPredicate may therefore be overshot by the number of
+ * threads enqueueing at the same time. The capacity of the queue is
+ * always enforced exactly.
+ *
+ * <p>If given a wait histogram, producers stamp each slot (see 
+ * WaitSampler) before publishing it, and consumers read the stamp 
+ * before releasing the slot. Elements sampled by the EventTracer are
+ * held in their slot in a wrapper.
+ *
+ * @see      seda.sandStorm.api.QueueIF
+ * @see      FiniteQueue
+ */
+public class LockFreeQueue implements QueueIF, BatchSourceIF, QueueTimingIF, ProfilableIF {
+
+  private static final boolean DEBUG = false;
+
+  /** The default capacity of a LockFreeQueue. */
+  public static final int DEFAULT_CAPACITY = 4096;
+
+  private final int capacity;
+  private final int mask;
+  private final AtomicReferenceArray slots;
+  private final AtomicLongArray seqs;
+  // Enqueue stamp of each slot, or 0 if its wait is not measured;
+  // published and released by the slot's sequence number
+  private final long stamps[];
+  private volatile WaitSampler sampler;
+  private final AtomicLong head;
+  private final AtomicLong tail;
+  // Number of elements enqueued plus provisionally reserved
+  private final AtomicInteger count;
+  // Number of consumers blocked (or about to block) on 'blocker'
+  private final AtomicInteger waiters;
+  private final Object blocker;
+  // Batch dequeues waiting for their batch to fill park on a separate
+  // monitor, and are only woken once the queue reaches batchTarget
+  private final AtomicInteger batchWaiters;
+  private volatile int batchTarget = Integer.MAX_VALUE;
+  private final Object batchBlocker;
+  private final AtomicLong numBatchSpin, numBatchPark, numBatchTimeout;
+  private int batchSpin = FiniteQueue.DEFAULT_BATCH_SPIN;
+
+  private EnqueuePredicateIF pred;
+  private String name;
+  private volatile boolean closed;
+  private ThreadManagerIF threadmgr;
+
+  /**
+   * Create a LockFreeQueue with the given capacity, enqueue predicate, 
+   * name, and thread manager. The capacity is rounded up to the next
+   * power of two.
+   */
+  public LockFreeQueue(int capacity, EnqueuePredicateIF pred, String name, ThreadManagerIF threadmgr) {
+    if (capacity <= 0) throw new IllegalArgumentException("LockFreeQueue capacity must be positive: "+capacity);
+    int cap = 1;
+    while (cap < capacity) cap <<= 1;
+    this.capacity = cap;
+    this.mask = cap - 1;
+    this.slots = new AtomicReferenceArray(cap);
+    this.seqs = new AtomicLongArray(cap);
+    this.stamps = new long[cap];
+    for (int i = 0; i < cap; i++) seqs.set(i, i);
+    this.head = new AtomicLong(0);
+    this.tail = new AtomicLong(0);
+    this.count = new AtomicInteger(0);
+    this.waiters = new AtomicInteger(0);
+    this.blocker = new Object();
+    this.batchWaiters = new AtomicInteger(0);
+    this.batchBlocker = new Object();
+    this.numBatchSpin = new AtomicLong(0);
+    this.numBatchPark = new AtomicLong(0);
+    this.numBatchTimeout = new AtomicLong(0);
+    this.pred = pred;
+    this.name = name;
+    this.threadmgr = threadmgr;
+  }
+
+  /**
+   * Create a LockFreeQueue with the given capacity, name, and thread
+   * manager.
+   */
+  public LockFreeQueue(int capacity, String name, ThreadManagerIF threadmgr) {
+    this(capacity, null, name, threadmgr);
+  }
+
+  /**
+   * Create a LockFreeQueue with the given capacity.
+   */
+  public LockFreeQueue(int capacity) {
+    this(capacity, null, null, null);
+  }
+
+  /**
+   * Create a LockFreeQueue with the default capacity.
+   */
+  public LockFreeQueue() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Return the capacity of this queue.
+   */
+  public int capacity() {
+    return capacity;
+  }
+
+  /** 
+   * Return the size of the queue. As with FiniteQueue, this includes
+   * elements which have been provisionally enqueued but not yet
+   * committed.
+   */
+  public int size() {
+    return count.get();
+  }
+
+  // Reserve space for n elements, or throw SinkFullException
+  private void reserve(int n) throws SinkFullException {
+    while (true) {
+      int c = count.get();
+      if (c + n > capacity) throw new SinkFullException("LockFreeQueue is full!");
+      if (count.compareAndSet(c, c + n)) return;
+    }
+  }
+
+  // Publish elements into previously reserved space. Claims a 
+  // contiguous run of slots so that batches are not interleaved.
+  private void publish(QueueElementIF elements[]) {
+    int n = elements.length;
+    WaitSampler ws = sampler;
+    long pos = tail.getAndAdd(n);
+    for (int i = 0; i < n; i++) {
+      long p = pos + i;
+      int idx = (int)(p & mask);
+      // The slot may still be in the hands of a consumer which
+      // has claimed it but not yet released it
+      while (seqs.get(idx) != p) Thread.yield();
+      slots.set(idx, EventTracer.enqueued(elements[i], name));
+      stamps[idx] = (ws != null) ? ws.stamp() : 0;
+      seqs.set(idx, p + 1);
+    }
+    signal(n);
+  }
+
+  private void publish(QueueElementIF element) {
+    WaitSampler ws = sampler;
+    long pos = tail.getAndIncrement();
+    int idx = (int)(pos & mask);
+    while (seqs.get(idx) != pos) Thread.yield();
+    slots.set(idx, EventTracer.enqueued(element, name));
+    stamps[idx] = (ws != null) ? ws.stamp() : 0;
+    seqs.set(idx, pos + 1);
+    signal(1);
+  }
+
+  // Wake up to n blocked consumers, if any
+  private void signal(int n) {
+    if (waiters.get() > 0) {
+      synchronized (blocker) {
+	int w = Math.min(n, waiters.get());
+	for (int i = 0; i < w; i++) blocker.notify();
+      }
+    }
+    if ((batchWaiters.get() > 0) && (count.get() >= batchTarget)) {
+      synchronized (batchBlocker) {
+	batchBlocker.notifyAll();
+      }
+    }
+    if (threadmgr != null) threadmgr.wake();
+  }
+
+  // Remove the element at the head, or return null if none are ready
+  private QueueElementIF take() {
+    while (true) {
+      long pos = head.get();
+      int idx = (int)(pos & mask);
+      long dif = seqs.get(idx) - (pos + 1);
+      if (dif == 0) {
+	if (head.compareAndSet(pos, pos + 1)) {
+	  EventTracer.dequeuing();
+	  QueueElementIF el = EventTracer.dequeued(slots.get(idx), name, 1);
+	  long t = stamps[idx];
+	  slots.set(idx, null);
+	  seqs.set(idx, pos + capacity);
+	  count.decrementAndGet();
+	  if (t != 0) recordWait(t, System.nanoTime());
+	  return el;
+	}
+      } else if (dif < 0) {
+	// Empty, or the producer has not yet published this slot
+	return null;
+      }
+      // Otherwise another consumer beat us to it; retry
+    }
+  }
+
+  // Remove a run of up to num ready elements from the head with a
+  // single CAS. If 'exact' is true, return null unless num are ready.
+  private QueueElementIF[] takeBatch(int num, boolean exact) {
+    while (true) {
+      long pos = head.get();
+      int n = 0;
+      while ((n < num) && (n < capacity) &&
+	  (seqs.get((int)((pos + n) & mask)) == pos + n + 1)) n++;
+      if ((n == 0) || (exact && (n < num))) return null;
+      if (head.compareAndSet(pos, pos + n)) {
+	QueueElementIF ret[] = new QueueElementIF[n];
+	long now = 0;
+	EventTracer.dequeuing();
+	for (int i = 0; i < n; i++) {
+	  int idx = (int)((pos + i) & mask);
+	  ret[i] = EventTracer.dequeued(slots.get(idx), name, n);
+	  long t = stamps[idx];
+	  if (t != 0) {
+	    if (now == 0) now = System.nanoTime();
+	    recordWait(t, now);
+	  }
+	  slots.set(idx, null);
+	  seqs.set(idx, pos + i + capacity);
+	}
+	count.addAndGet(-n);
+	return ret;
+      }
+      // Another consumer moved the head; retry
+    }
+  }
+
+  private void recordWait(long stamp, long now) {
+    WaitSampler ws = sampler;
+    if (ws != null) ws.record(stamp, now);
+  }
+
+  /**
+   * Record the time elements wait on the queue, in usec, into the
+   * given histogram, or stop recording if null. Elements already on 
+   * the queue are not measured.
+   */
+  public void setWaitHistogram(LatencyHistogram hist) {
+    this.sampler = (hist == null) ? null : new WaitSampler(hist);
+  }
+
+  // True if an element is ready to be dequeued
+  private boolean ready() {
+    long pos = head.get();
+    return (seqs.get((int)(pos & mask)) - (pos + 1)) >= 0;
+  }
+
+  // Block until an element may be ready or the deadline passes.
+  // timeout_millis of -1 blocks forever.
+  private void await(long goal_time, int timeout_millis) {
+    waiters.incrementAndGet();
+    try {
+      synchronized (blocker) {
+	if (ready()) return;
+	if (timeout_millis == -1) {
+	  blocker.wait();
+	} else {
+	  long delay = goal_time - System.currentTimeMillis();
+	  if (delay > 0) blocker.wait(delay);
+	}
+      }
+    } catch (InterruptedException ie) {
+      // Ignore
+    } finally {
+      waiters.decrementAndGet();
+    }
+  }
+
+  private void checkAccept(QueueElementIF enqueueMe[]) throws SinkException {
+    if (closed) {
+      throw new SinkClosedException("This queue is no longer accepting " + 
+				    " events.");
+    }
+    EnqueuePredicateIF p = pred;
+    if (p != null) {
+      for (int i = 0; i < enqueueMe.length; i++) {
+	if (!p.accept(enqueueMe[i])) throw new SinkFullException("LockFreeQueue is full!");
+      }
+    }
+  }
+
+  public void enqueue(QueueElementIF enqueueMe) throws SinkException {
+    if (DEBUG) System.err.println("**** ENQUEUE ("+name+") **** Entered");
+
+    if (closed) {
+      throw new SinkClosedException("This queue is no longer accepting " + 
+				    " events.");
+    }
+    EnqueuePredicateIF p = pred;
+    if ((p != null) && (!p.accept(enqueueMe))) 
+      throw new SinkFullException("LockFreeQueue is full!");
+    reserve(1);
+    publish(enqueueMe);
+  }
+
+  public boolean enqueue_lossy(QueueElementIF enqueueMe) {
+    try {
+      this.enqueue(enqueueMe);
+    } catch (Exception e) {
+      return false;
+    }
+    return true;
+  }
+
+  public void enqueue_many(QueueElementIF[] enqueueMe) throws SinkException {
+    checkAccept(enqueueMe);
+    if (enqueueMe.length == 0) return;
+    reserve(enqueueMe.length);
+    publish(enqueueMe);
+  }
+
+  public QueueElementIF dequeue() {
+    return take();
+  }
+
+  public QueueElementIF[] dequeue_all() {
+    return dequeue(Integer.MAX_VALUE);
+  }
+
+  public QueueElementIF[] dequeue(int num) {
+    return takeBatch(num, false);
+  }
+
+  public QueueElementIF[] dequeue(int num, boolean mustReturnNum) {
+    return takeBatch(num, mustReturnNum);
+  }
+
+  public QueueElementIF[] blocking_dequeue_all(int timeout_millis) {
+    return blocking_dequeue(timeout_millis, Integer.MAX_VALUE, false);
+  }
+
+  public QueueElementIF[] blocking_dequeue(int timeout_millis, int num, boolean mustReturnNum) {
+    QueueElementIF rets[];
+    long goal_time = System.currentTimeMillis() + timeout_millis;
+
+    while (true) {
+      rets = this.dequeue(num, mustReturnNum);
+      if ((rets != null) || (timeout_millis == 0)) {
+	return rets;
+      }
+
+      await(goal_time, timeout_millis);
+
+      rets = this.dequeue(num, mustReturnNum);
+      if (rets != null) {
+	return rets;
+      }
+
+      if (timeout_millis != -1) {
+	if (System.currentTimeMillis() >= goal_time) {
+	  // Timeout - take whatever we can get
+	  return this.dequeue(num);
+	}
+      }
+    }
+  }
+
+  public QueueElementIF[] blocking_dequeue(int timeout_millis, int num) {
+    return blocking_dequeue(timeout_millis, num, false);
+  }
+
+  public QueueElementIF blocking_dequeue(int timeout_millis) {
+    QueueElementIF ret;
+    long goal_time = System.currentTimeMillis() + timeout_millis;
+
+    while (true) {
+      ret = this.dequeue();
+      if ((ret != null) || (timeout_millis == 0)) {
+	return ret;
+      }
+
+      await(goal_time, timeout_millis);
+
+      ret = this.dequeue();
+      if (ret != null) {
+	return ret;
+      }
+
+      if (timeout_millis != -1) {
+	if (System.currentTimeMillis() >= goal_time) return null;
+      }
+    }
+  }
+
+  /**
+   * Dequeue a batch of at most <tt>target</tt> elements, waiting up to
+   * <tt>timeout_millis</tt> for the first element and then up to
+   * <tt>fill_millis</tt> for the batch to fill.
+   * @see seda.sandStorm.api.internal.BatchSourceIF
+   */
+  public QueueElementIF[] blocking_dequeue_batch(int timeout_millis, int target, int fill_millis) {
+    if (target <= 0) target = Integer.MAX_VALUE;
+    if (timeout_millis == 0) return takeBatch(target, false);
+
+    // Spin briefly before parking on an empty queue
+    if (!ready()) {
+      for (int i = 0; i < batchSpin; i++) {
+	if (ready()) {
+	  numBatchSpin.incrementAndGet();
+	  break;
+	}
+      }
+    }
+
+    // Park until the queue is non-empty
+    long goal_time = System.currentTimeMillis() + timeout_millis;
+    while (!ready()) {
+      if ((timeout_millis != -1) && (System.currentTimeMillis() >= goal_time)) {
+	numBatchTimeout.incrementAndGet();
+	return null;
+      }
+      numBatchPark.incrementAndGet();
+      await(goal_time, timeout_millis);
+    }
+
+    // Wait for the batch to fill, but only be woken when it has
+    if ((fill_millis > 0) && (count.get() < target)) {
+      long fill_goal = System.currentTimeMillis() + fill_millis;
+      batchWaiters.incrementAndGet();
+      if (target < batchTarget) batchTarget = target;
+      try {
+	synchronized (batchBlocker) {
+	  long delay;
+	  while ((count.get() < target) &&
+	      ((delay = fill_goal - System.currentTimeMillis()) > 0)) {
+	    numBatchPark.incrementAndGet();
+	    batchBlocker.wait(delay);
+	  }
+	}
+      } catch (InterruptedException ie) {
+	// Ignore
+      } finally {
+	if (batchWaiters.decrementAndGet() == 0) batchTarget = Integer.MAX_VALUE;
+      }
+    }
+    return takeBatch(target, false);
+  }
+
+  /**
+   * Set the number of times a batch dequeue polls an empty queue before
+   * parking.
+   */
+  public void setBatchSpin(int spin) {
+    this.batchSpin = spin;
+  }
+
+  /**
+   * Return the number of batch dequeues satisfied while spinning.
+   */
+  public long getBatchSpinCount() {
+    return numBatchSpin.get();
+  }
+
+  /**
+   * Return the number of times a batch dequeue has parked.
+   */
+  public long getBatchParkCount() {
+    return numBatchPark.get();
+  }
+
+  /**
+   * Return the number of batch dequeues which timed out empty.
+   */
+  public long getBatchTimeoutCount() {
+    return numBatchTimeout.get();
+  }
+
+  /** 
+   * Return the profile size of the queue.
+   */
+  public int profileSize() {
+    return size();
+  }
+
+  /**
+   * Provisionally enqueue the given elements.
+   */
+  public Object enqueue_prepare(QueueElementIF enqueueMe[]) throws SinkException {
+    checkAccept(enqueueMe);
+    reserve(enqueueMe.length);
+    return new provisionalKey(this, enqueueMe);
+  }
+
+  // Claim the given key for commit or abort
+  private QueueElementIF[] claim(Object key) {
+    if (!(key instanceof provisionalKey)) throw new IllegalArgumentException("Unknown enqueue key "+key);
+    provisionalKey pk = (provisionalKey)key;
+    synchronized (pk) {
+      if ((pk.queue != this) || pk.done) throw new IllegalArgumentException("Unknown enqueue key "+key);
+      pk.done = true;
+    }
+    return pk.elements;
+  }
+
+  /** 
+   * Commit a provisional enqueue.
+   */
+  public void enqueue_commit(Object key) {
+    QueueElementIF elements[] = claim(key);
+    if (elements.length > 0) publish(elements);
+  }
+
+  /** 
+   * Abort a provisional enqueue.
+   */
+  public void enqueue_abort(Object key) {
+    QueueElementIF elements[] = claim(key);
+    count.addAndGet(-elements.length);
+  }
+
+  /**
+   * Set the enqueue predicate for this sink. 
+   */
+  public void setEnqueuePredicate(EnqueuePredicateIF pred) {
+    this.pred = pred;
+  }
+
+  /**
+   * Return the enqueue predicate for this sink.
+   */
+  public EnqueuePredicateIF getEnqueuePredicate() {
+    return pred;
+  }
+
+  /**
+   * Indicate that this queue will not be used anymore.   Causes an
+   * exception to be thrown every time enqueue is called.
+   */
+  public void close() {
+    closed = true;
+  }
+
+  public String toString() {
+    return "LockFreeQueue <"+name+">";
+  }
+
+  // Transaction key returned by enqueue_prepare()
+  private static class provisionalKey {
+    LockFreeQueue queue;
+    QueueElementIF elements[];
+    boolean done;
+
+    provisionalKey(LockFreeQueue queue, QueueElementIF elements[]) {
+      this.queue = queue;
+      this.elements = elements;
+    }
+  }
+
+}
@@ -0,0 +1,88 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.sandStorm.core;
+
+import seda.sandStorm.internal.LatencyHistogram;
+
+/**
+ * Chooses which elements of a queue have their wait measured, and 
+ * records the waits into a LatencyHistogram. Reading the clock costs 
+ * more than the rest of an enqueue and dequeue together, so only one
+ * element in every 'stride' is stamped. The stride adapts so that 
+ * about TARGET_SAMPLES waits are recorded per EPOCH: at low rates every
+ * element is measured, and at high rates the overhead is bounded. 
+ * Sampling is by position in the queue and independent of the wait, 
+ * so the distribution is not biased.
+ *
+ * <p>Not synchronized; with concurrent callers the stride and sample
+ * counts are only approximate.
+ */
+class WaitSampler {
+
+  private static final long EPOCH = 1000000;
+  private static final int TARGET_SAMPLES = 50;
+  private static final int MAX_STRIDE = 64;
+
+  private LatencyHistogram hist;
+  private volatile int stride = 1;
+  private int countdown, samples;
+  private long epochStart;
+
+  WaitSampler(LatencyHistogram hist) {
+    this.hist = hist;
+    this.epochStart = System.nanoTime();
+  }
+
+  /**
+   * Return the stamp for an element being enqueued: the current time
+   * if its wait is to be measured, otherwise 0.
+   */
+  long stamp() {
+    if (--countdown > 0) return 0;
+    countdown = stride;
+    return System.nanoTime();
+  }
+
+  /**
+   * Record the wait of a dequeued element with a non-zero stamp.
+   */
+  void record(long stamp, long now) {
+    hist.record((now - stamp) / 1000);
+    samples++;
+    if (now - epochStart < EPOCH) {
+      // Double the stride as soon as an epoch has too many samples
+      if ((samples > TARGET_SAMPLES) && (stride < MAX_STRIDE)) {
+	stride = stride << 1;
+	samples = 0;
+	epochStart = now;
+      }
+      return;
+    }
+    if ((samples < TARGET_SAMPLES / 4) && (stride > 1)) {
+      stride = stride >> 1;
+    }
+    samples = 0;
+    epochStart = now;
+  }
+
+}
@@ -28,14 +28,28 @@ import seda.sandStorm.api.ProfilableIF;
 import seda.sandStorm.api.QueueElementIF;
 import seda.sandStorm.api.SinkIF;
 
+import java.util.IdentityHashMap;
+import java.util.Vector;
+
 /**
  * The ssTimer class provides a mechanism for registering
  * timer events that will go off at some future time.  The future time
  * can be specified in absolute or relative terms.  When the timer goes
- * off, an element is placed on a queue.  There is no way to unregister
- * a timer.  Events will be delivered guaranteed, but the time that they
- * are delivered may slip depending on stuff like how loaded the system
- * is and all that.
+ * off, an element is placed on a queue.  Events will be delivered 
+ * guaranteed, but the time that they are delivered may slip depending 
+ * on stuff like how loaded the system is and all that.
+ * <P>
+ * Pending events are kept in a hierarchical timing wheel: four levels
+ * of 64 slots each, where each slot at one level spans a full
+ * revolution of the level below. Registering and cancelling an event
+ * are O(1), regardless of how many events are pending; events in the
+ * upper levels are moved down a level each time the level below wraps
+ * around. Time is divided into ticks of <tt>tick_millis</tt> (1 ms by
+ * default), and an event fires on the first tick at or after its
+ * deadline. All events firing in the same pass of the timer thread 
+ * are delivered to each target sink with a single 
+ * <tt>enqueue_many()</tt>; if the sink rejects the batch, they are 
+ * enqueued one at a time with <tt>enqueue_lossy()</tt>.
  * <P>
  * WARNING: you should use cancelEvent to cancel timers that you no longer
  * need, otherwise you will waste many, many cycles on unneeded timer
@@ -50,16 +64,58 @@ import seda.sandStorm.api.SinkIF;
 public class ssTimer implements Runnable, ProfilableIF {
 
   private static final boolean DEBUG = false;
-  private ssTimerEvent                 head_event = null;
-  private ssTimerEvent                 tail_event = null;
+
+  private static final int WHEEL_BITS = 6;
+  private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+  private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+  private static final int NUM_LEVELS = 4;
+
+  // Maximum time to sleep when no events are pending
+  private static final int IDLE_WAIT = 500;
+
+  /** The default tick length in milliseconds. */
+  public static final int DEFAULT_TICK_MILLIS = 1;
+
+  // wheel[level][slot] is the sentinel of a circular list of events
+  private ssTimerEvent               wheel[][];
+  private int                        tick_millis;
+  // All events due at or before cur_tick have been fired
+  private volatile long              cur_tick;
+  // Tick at which the timer thread will next wake up
+  private long                       wakeup_tick;
   private Thread                     thr;
   private Object                     sync_o;
   private boolean                    die_thread;
   private int                        num_events = 0;
+  private volatile long              lag_millis = 0;
 
+  /**
+   * Create a timer with the default tick length.
+   */
   public ssTimer() {
+    this(DEFAULT_TICK_MILLIS);
+  }
+
+  /**
+   * Create a timer with the given tick length in milliseconds. Events
+   * are delivered on tick boundaries, so longer ticks trade timer 
+   * resolution for fewer wakeups of the timer thread.
+   */
+  public ssTimer(int tick_millis) {
+    if (tick_millis < 1) throw new IllegalArgumentException("ssTimer: tick_millis must be positive");
+    this.tick_millis = tick_millis;
     sync_o = new Object();
     die_thread = false;
+    wheel = new ssTimerEvent[NUM_LEVELS][WHEEL_SIZE];
+    for (int l = 0; l < NUM_LEVELS; l++) {
+      for (int i = 0; i < WHEEL_SIZE; i++) {
+	ssTimerEvent sentinel = new ssTimerEvent(0, null, null);
+	sentinel.nextE = sentinel.prevE = sentinel;
+	wheel[l][i] = sentinel;
+      }
+    }
+    cur_tick = System.currentTimeMillis() / tick_millis;
+    wakeup_tick = Long.MAX_VALUE;
     thr = new Thread(this, "SandStorm ssTimer thread");
     thr.start();
   }
@@ -70,6 +126,7 @@ public class ssTimer implements Runnable, ProfilableIF {
     public SinkIF queue;
     public ssTimerEvent      nextE;
     public ssTimerEvent      prevE;
+    long expire_tick;
     
     public ssTimerEvent(long m, QueueElementIF o, SinkIF q) {
       time_millis = m;
@@ -147,12 +204,39 @@ public class ssTimer implements Runnable, ProfilableIF {
     return size();
   }
 
+  /**
+   * Return how far behind the wall clock the timer was, in milliseconds,
+   * when it last fired events. This is the delay between the time the
+   * earliest of those events was due and the time it was fired.
+   */
+  public long getLag() {
+    return lag_millis;
+  }
+
+  /**
+   * Return the tick length of this timer in milliseconds.
+   */
+  public int getTickMillis() {
+    return tick_millis;
+  }
+
   /**
    * Cancels all events.
    */
   public void cancelAll() {
     synchronized(sync_o) {
-      head_event = tail_event = null;
+      for (int l = 0; l < NUM_LEVELS; l++) {
+	for (int i = 0; i < WHEEL_SIZE; i++) {
+	  ssTimerEvent sentinel = wheel[l][i];
+	  ssTimerEvent evt = sentinel.nextE;
+	  while (evt != sentinel) {
+	    ssTimerEvent next = evt.nextE;
+	    evt.nextE = evt.prevE = null;
+	    evt = next;
+	  }
+	  sentinel.nextE = sentinel.prevE = sentinel;
+	}
+      }
       num_events = 0;
     }
   }
@@ -167,168 +251,211 @@ public class ssTimer implements Runnable, ProfilableIF {
     if (evt == null)
       return;
 
-    try {
-      synchronized(sync_o) {
-	if (evt == tail_event) {
+    synchronized(sync_o) {
+      // make sure event didn't fire already
+      if (evt.nextE != null) {
+	unlink(evt);
+	num_events--;
+      }
+    }
+  }
 
-	  // is this only list item?
-	  if (tail_event == head_event) {
-	    tail_event = head_event = null;
-	    num_events--;
-	    return;
-	  }
+  // Remove evt from its slot; called with sync_o held
+  private void unlink(ssTimerEvent evt) {
+    evt.prevE.nextE = evt.nextE;
+    evt.nextE.prevE = evt.prevE;
+    evt.nextE = null;
+    evt.prevE = null;
+  }
 
-	  // not only list item, is at tail, so lop off tail
-	  tail_event = tail_event.prevE;
-	  tail_event.nextE = null;
-	  num_events--;
-	  return;
-
-	} else if (evt == head_event) {
-
-	  // not only list item, is at head, so lop off head
-	  head_event = head_event.nextE;
-	  head_event.prevE = null;
-	  num_events--;
-	  return;
-
-	} else {
-
-	  // make sure event didn't fire already
-	  if ((evt.prevE != null) && (evt.nextE != null)) {
-	    // in middle somewhere
-	    evt.prevE.nextE = evt.nextE;
-	    evt.nextE.prevE = evt.prevE;
-	    num_events--;
-	    return;
-	  }
-	}
-      }
-    } finally {
-      evt.nextE = null;
-      evt.prevE = null;
+  // Place evt into the wheel slot for its expiry tick; called with 
+  // sync_o held
+  private void place(ssTimerEvent evt) {
+    long expire = evt.expire_tick;
+    // Events already due go in the next slot to be processed
+    if (expire <= cur_tick) expire = cur_tick + 1;
+    long delta = expire - cur_tick;
+
+    int level = 0;
+    while ((level < NUM_LEVELS-1) && (delta >= (1L << (WHEEL_BITS * (level+1))))) {
+      level++;
     }
+    // Events beyond the top level are parked in its furthest slot, and
+    // re-placed when that slot is cascaded
+    long maxDelta = (1L << (WHEEL_BITS * NUM_LEVELS)) - 1;
+    if (delta > maxDelta) expire = cur_tick + maxDelta;
+
+    int slot = (int)((expire >> (WHEEL_BITS * level)) & WHEEL_MASK);
+    ssTimerEvent sentinel = wheel[level][slot];
+    evt.prevE = sentinel.prevE;
+    evt.nextE = sentinel;
+    sentinel.prevE.nextE = evt;
+    sentinel.prevE = evt;
   }
 
-  // takes the event, does insertion-sort into ssTimerEvent linked list
+  // Add a new event to the wheel
   private void insertEvent(ssTimerEvent newTimer) {
-    boolean do_notify = false;
+    // Round up so that the event never fires early
+    newTimer.expire_tick = (newTimer.time_millis + tick_millis - 1) / tick_millis;
 
     synchronized(sync_o) {
-      if (head_event == null) {
-        // list empty
-	if (DEBUG) System.err.println("ssTimer: Inserting first event, num pending "+num_events+" event "+newTimer);
-	tail_event = newTimer;
-	head_event = newTimer;
-	num_events++;
-        do_notify = true;
-      } else if (head_event.time_millis > newTimer.time_millis) {
-	// insert head
-	if (DEBUG) System.err.println("ssTimer: Inserting event at head, num pending "+num_events+" event "+newTimer);
-	newTimer.nextE = head_event;
-	head_event.prevE = newTimer;
-	head_event = newTimer;
-	num_events++;
-        do_notify = true;
-      } else if (tail_event.time_millis <= newTimer.time_millis) {
-        // insert tail
-	if (DEBUG) System.err.println("ssTimer: Inserting event at tail, num pending "+num_events+" event "+newTimer);
-	newTimer.prevE = tail_event;
-	tail_event.nextE = newTimer;
-	tail_event = newTimer;
-	num_events++;
-	// if not insert at head, no notify! :)
-      } else {
-        // insert somewhere in middle :(
-	if (DEBUG) System.err.println("ssTimer: Inserting new event in middle, num pending "+num_events+" event "+newTimer);
-        ssTimerEvent prevE = tail_event.prevE;
-        ssTimerEvent curE = tail_event;
-        boolean gotit = false;
-        while((prevE != null) && (gotit == false)) {
-          if (prevE.time_millis <= newTimer.time_millis) {
-	    prevE.nextE = newTimer;
-	    curE.prevE = newTimer;
-	    newTimer.nextE = curE;
-	    newTimer.prevE = prevE;
-	    // if not insert at head, no notify! :)
-            gotit = true;
-	  }
-	  curE = prevE;
-	  prevE = prevE.prevE;
-        }
-	num_events++;
-      }
+      if (DEBUG) System.err.println("ssTimer: Inserting event, num pending "+num_events+" event "+newTimer);
+      place(newTimer);
+      num_events++;
 
-      if (do_notify) {
+      // Only wake the timer thread if it will sleep past this event
+      if (newTimer.expire_tick < wakeup_tick) {
 	sync_o.notify();
       }
     }
   }
 
-  private void process_head() {
+  // Move the events in the given slot down a level; called with 
+  // sync_o held
+  private void cascade(int level, int slot) {
+    ssTimerEvent sentinel = wheel[level][slot];
+    ssTimerEvent evt = sentinel.nextE;
+    sentinel.nextE = sentinel.prevE = sentinel;
+    while (evt != sentinel) {
+      ssTimerEvent next = evt.nextE;
+      place(evt);
+      evt = next;
+    }
+  }
 
-    ssTimerEvent fire = null;
-    long wait_time = -1;
+  // Advance cur_tick by one and collect the events due in it; called 
+  // with sync_o held
+  private void advance(Vector fired) {
+    long tick = ++cur_tick;
+    int slot = (int)(tick & WHEEL_MASK);
 
-    long curTime = System.currentTimeMillis();
+    // Cascade the upper levels as each lower level wraps around
+    for (int level = 1; (level < NUM_LEVELS) && 
+	   (((tick >> (WHEEL_BITS * (level-1))) & WHEEL_MASK) == 0); level++) {
+      cascade(level, (int)((tick >> (WHEEL_BITS * level)) & WHEEL_MASK));
+    }
 
-    if (head_event.time_millis <= curTime) {
-      // fire off event
-      fire = head_event;
-      if (DEBUG) System.err.println("Firing "+fire+" -> "+head_event.nextE+" "+(num_events-1)+" pending");
-      head_event = head_event.nextE;
-      if (head_event == null) {
-	// was only event
-	tail_event = null;
-      } else {
-	// reset back pointer
-	head_event.prevE = null;
+    ssTimerEvent sentinel = wheel[0][slot];
+    ssTimerEvent evt = sentinel.nextE;
+    while (evt != sentinel) {
+      ssTimerEvent next = evt.nextE;
+      if (evt.expire_tick <= tick) {
+	unlink(evt);
+	num_events--;
+	fired.addElement(evt);
       }
+      evt = next;
+    }
+  }
 
-      if ((head_event == null) && (num_events != 1)) {
-	System.err.println("ssTimer: Warning: No more events to process, but still have "+(num_events-1)+" pending. This is a bug; please contact <mdw@cs.berkeley.edu>");
-      }
+  // Return the first tick after cur_tick at which there may be work:
+  // either a non-empty level 0 slot or the next cascade. Called with
+  // sync_o held.
+  private long nextWorkTick() {
+    if (num_events == 0) return Long.MAX_VALUE;
+    long tick = cur_tick + 1;
+    for (int i = 0; i < WHEEL_SIZE; i++, tick++) {
+      if ((tick & WHEEL_MASK) == 0) return tick;
+      ssTimerEvent sentinel = wheel[0][(int)(tick & WHEEL_MASK)];
+      if (sentinel.nextE != sentinel) return tick;
+    }
+    return tick;
+  }
 
-      fire.nextE = null;
-      fire.prevE = null;
-      num_events--;
+  // Return how late the earliest of the fired events is at now
+  private long lag(Vector fired, long now) {
+    long earliest = now;
+    for (int i = 0; i < fired.size(); i++) {
+      ssTimerEvent evt = (ssTimerEvent)fired.elementAt(i);
+      if (evt.time_millis < earliest) earliest = evt.time_millis;
+    }
+    return now - earliest;
+  }
 
-    } else {
-      // sleep till head
-      if (DEBUG) System.err.println("ssTimer: head is "+(head_event.time_millis - curTime)+" ms in the future");
-      wait_time = head_event.time_millis - curTime;
-      if (wait_time != -1) {
-	try {
-	  sync_o.wait(wait_time);
-	} catch (InterruptedException ie) {
-	  // Ignore
-	}
+  // Deliver fired events, batching those bound for the same sink
+  private void deliver(Vector fired) {
+    if (fired.size() == 1) {
+      ssTimerEvent evt = (ssTimerEvent)fired.elementAt(0);
+      evt.queue.enqueue_lossy(evt.obj);
+      return;
+    }
+
+    IdentityHashMap bySink = new IdentityHashMap();
+    Vector sinks = new Vector();
+    for (int i = 0; i < fired.size(); i++) {
+      ssTimerEvent evt = (ssTimerEvent)fired.elementAt(i);
+      Vector v = (Vector)bySink.get(evt.queue);
+      if (v == null) {
+	v = new Vector();
+	bySink.put(evt.queue, v);
+	sinks.addElement(evt.queue);
       }
+      v.addElement(evt.obj);
     }
 
-    if (fire != null) {
-      fire.queue.enqueue_lossy(fire.obj);
-    } 
+    for (int i = 0; i < sinks.size(); i++) {
+      SinkIF sink = (SinkIF)sinks.elementAt(i);
+      Vector v = (Vector)bySink.get(sink);
+      QueueElementIF arr[] = new QueueElementIF[v.size()];
+      v.copyInto(arr);
+      try {
+	sink.enqueue_many(arr);
+      } catch (Exception e) {
+	// Sink could not take the whole batch; deliver what we can
+	for (int j = 0; j < arr.length; j++) {
+	  sink.enqueue_lossy(arr[j]);
+	}
+      }
+    }
   }
 
   public void run() {
-    synchronized(sync_o) {
-      while(die_thread == false) {
-	try {
-       	  if (head_event != null) {
-	    process_head();
+    Vector fired = new Vector();
+
+    while (die_thread == false) {
+      try {
+	synchronized(sync_o) {
+	  long now = System.currentTimeMillis();
+	  long now_tick = now / tick_millis;
+
+	  if (num_events == 0) {
+	    cur_tick = Math.max(cur_tick, now_tick);
 	  } else {
+	    while (cur_tick < now_tick) {
+	      advance(fired);
+	    }
+	    if (fired.size() > 0) lag_millis = lag(fired, now);
+	  }
+
+	  if (fired.size() == 0) {
 	    if (die_thread == true)
 	      return;
 
-	    try {
-	      sync_o.wait(500);
-	    } catch (InterruptedException ie) {
+	    wakeup_tick = nextWorkTick();
+	    long wait_time = IDLE_WAIT;
+	    if (wakeup_tick != Long.MAX_VALUE) {
+	      wait_time = Math.min(IDLE_WAIT, (wakeup_tick * tick_millis) - now);
 	    }
+	    if (DEBUG) System.err.println("ssTimer: sleeping "+wait_time+" ms, "+num_events+" pending");
+	    if (wait_time > 0) {
+	      try {
+		sync_o.wait(wait_time);
+	      } catch (InterruptedException ie) {
+	      }
+	    }
+	    wakeup_tick = Long.MAX_VALUE;
+	    continue;
 	  }
-	} catch (Throwable t) {
-  	  t.printStackTrace();
- 	}
+	}
+
+	// Deliver outside of the lock
+	if (DEBUG) System.err.println("ssTimer: Firing "+fired.size()+" events");
+	deliver(fired);
+	fired.removeAllElements();
+
+      } catch (Throwable t) {
+	t.printStackTrace();
+	fired.removeAllElements();
       }
     }
   }
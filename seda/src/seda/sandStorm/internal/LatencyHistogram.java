@@ -0,0 +1,177 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.sandStorm.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds which may be recorded from
+ * many threads without locking. Buckets are logarithmic: each power of
+ * two is divided into SUB_BUCKETS linear buckets, so any percentile is
+ * reported to within 1/(2*SUB_BUCKETS) of the true value, over the 
+ * whole range of a long, in a fixed amount of space.
+ *
+ * <p>Controllers measure an interval by taking a snapshot at each
+ * end and subtracting the two; see <tt>Snapshot.minus()</tt>.
+ *
+ * @see StageStats
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int NUM_BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+  private AtomicLongArray buckets;
+  private AtomicLong count, sum;
+
+  public LatencyHistogram() {
+    buckets = new AtomicLongArray(NUM_BUCKETS);
+    count = new AtomicLong();
+    sum = new AtomicLong();
+  }
+
+  /** Record one latency sample in usec. */
+  public void record(long usec) {
+    record(usec, 1);
+  }
+
+  /** Record n latency samples of the same value in usec. */
+  public void record(long usec, int n) {
+    if (n <= 0) return;
+    if (usec < 0) usec = 0;
+    buckets.addAndGet(bucketFor(usec), n);
+    sum.addAndGet(usec * n);
+    count.addAndGet(n);
+  }
+
+  /** Return the number of samples recorded. */
+  public long getCount() {
+    return count.get();
+  }
+
+  /** Return the given percentile (0.0 to 1.0) of all samples, in usec. */
+  public long getPercentile(double p) {
+    return snapshot().getPercentile(p);
+  }
+
+  /** 
+   * Return a copy of the histogram. Samples being recorded while the 
+   * copy is made may or may not be included.
+   */
+  public Snapshot snapshot() {
+    long c[] = new long[NUM_BUCKETS];
+    long n = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      c[i] = buckets.get(i);
+      n += c[i];
+    }
+    return new Snapshot(c, n, sum.get());
+  }
+
+  /** 
+   * Clear the histogram. Samples recorded concurrently may be partly 
+   * lost.
+   */
+  public void reset() {
+    for (int i = 0; i < NUM_BUCKETS; i++) buckets.set(i, 0);
+    count.set(0);
+    sum.set(0);
+  }
+
+  // Values below SUB_BUCKETS have a bucket each; above, the top 
+  // SUB_BITS bits after the leading one select a bucket within the 
+  // power of two
+  private static int bucketFor(long v) {
+    if (v < SUB_BUCKETS) return (int)v;
+    int shift = (63 - Long.numberOfLeadingZeros(v)) - SUB_BITS;
+    return ((shift + 1) << SUB_BITS) + (int)((v >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  // Return the middle of the range of values in bucket b
+  private static long valueOf(int b) {
+    if (b < SUB_BUCKETS) return b;
+    int shift = (b >> SUB_BITS) - 1;
+    long low = ((long)(SUB_BUCKETS + (b & (SUB_BUCKETS - 1)))) << shift;
+    return low + ((1L << shift) >> 1);
+  }
+
+  /**
+   * An immutable copy of a LatencyHistogram, or the difference 
+   * between two copies.
+   */
+  public static class Snapshot {
+    private long counts[];
+    private long count, sum;
+
+    private Snapshot(long counts[], long count, long sum) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+    }
+
+    /** 
+     * Return the samples recorded since the given earlier snapshot of 
+     * the same histogram, which may be null.
+     */
+    public Snapshot minus(Snapshot earlier) {
+      if (earlier == null) return this;
+      long c[] = new long[NUM_BUCKETS];
+      long n = 0;
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+	c[i] = Math.max(0, counts[i] - earlier.counts[i]);
+	n += c[i];
+      }
+      return new Snapshot(c, n, sum - earlier.sum);
+    }
+
+    /** Return the number of samples. */
+    public long getCount() {
+      return count;
+    }
+
+    /** Return the mean of the samples in usec, or 0 if there are none. */
+    public double getMean() {
+      if (count == 0) return 0;
+      return (sum * 1.0) / count;
+    }
+
+    /** 
+     * Return the given percentile (0.0 to 1.0) of the samples in usec,
+     * or 0 if there are none.
+     */
+    public long getPercentile(double p) {
+      if (count == 0) return 0;
+      long target = (long)Math.ceil(p * count);
+      if (target < 1) target = 1;
+      long n = 0;
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+	n += counts[i];
+	if (n >= target) return valueOf(i);
+      }
+      return valueOf(NUM_BUCKETS - 1);
+    }
+  }
+
+}
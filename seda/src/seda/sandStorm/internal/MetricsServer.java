@@ -0,0 +1,108 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.sandStorm.internal;
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.core.BufferElement;
+import seda.sandStorm.core.EventTracer;
+import seda.sandStorm.lib.http.*;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * MetricsServer is a stage which serves the current profiler snapshot
+ * as plain text over HTTP, so that a running server can be scraped 
+ * without parsing its profile log. It is started by the runtime when
+ * global.metrics.enable is set and global.metrics.port is given; 
+ * requests for "/" or "/metrics" return MetricsSnapshot.writeText()
+ * output, "/traces" the EventTracer timelines, "/graph.dot" and 
+ * "/graph.json" the latest StageGraphAnalysis, and anything else a 404.
+ *
+ * @see MetricsSnapshot
+ */
+class MetricsServer implements EventHandlerIF {
+
+  private static final boolean DEBUG = false;
+  // Number of traces returned for "/traces"
+  private static final int MAX_TRACES = 100;
+
+  private ManagerIF mgr;
+  private int port;
+
+  MetricsServer(ManagerIF mgr, int port) {
+    this.mgr = mgr;
+    this.port = port;
+  }
+
+  public void init(ConfigDataIF config) throws Exception {
+    new httpServer(mgr, config.getStage().getSink(), port);
+  }
+
+  public void destroy() {
+  }
+
+  public void handleEvent(QueueElementIF item) {
+    if (DEBUG) System.err.println("MetricsServer: Got "+item);
+    if (item instanceof httpRequest) {
+      handleRequest((httpRequest)item);
+    }
+  }
+
+  public void handleEvents(QueueElementIF items[]) {
+    for (int i = 0; i < items.length; i++) {
+      handleEvent(items[i]);
+    }
+  }
+
+  private void handleRequest(httpRequest req) {
+    String url = req.getURL();
+    StringWriter sw = new StringWriter();
+    PrintWriter pw = new PrintWriter(sw);
+    httpResponse resp;
+    StageGraphAnalysis analysis = mgr.getProfiler().getGraphProfiler().getAnalysis();
+    if (url.equals("/") || url.equals("/metrics")) {
+      mgr.getProfiler().getSnapshot().writeText(pw);
+      resp = textResponse(pw, sw);
+    } else if (url.equals("/traces")) {
+      EventTracer.dump(pw, MAX_TRACES);
+      resp = textResponse(pw, sw);
+    } else if ((analysis != null) && url.equals("/graph.dot")) {
+      analysis.writeDot(pw);
+      resp = textResponse(pw, sw);
+    } else if ((analysis != null) && url.equals("/graph.json")) {
+      analysis.writeJSON(pw);
+      resp = textResponse(pw, sw);
+    } else {
+      resp = new httpNotFoundResponse(req, "No metrics at "+url);
+    }
+    req.getConnection().enqueue_lossy(new httpResponder(resp, req));
+  }
+
+  private httpResponse textResponse(PrintWriter pw, StringWriter sw) {
+    pw.flush();
+    return new httpOKResponse("text/plain", 
+	new BufferElement(sw.toString().getBytes()));
+  }
+
+}
@@ -0,0 +1,160 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.sandStorm.internal;
+
+import java.io.PrintWriter;
+import java.util.Hashtable;
+
+/**
+ * A MetricsSnapshot holds the values of every object and metric 
+ * registered with the profiler at one point in time, in order of 
+ * registration, along with the size of the Java heap. Snapshots are 
+ * taken by ProfilerIF.getSnapshot() and are not modified afterwards.
+ *
+ * @see seda.sandStorm.api.ProfilerIF
+ */
+public class MetricsSnapshot {
+
+  private long time;
+  private long totalmem, freemem;
+  private String names[];
+  private double values[];
+
+  MetricsSnapshot(long time, long totalmem, long freemem, 
+      String names[], double values[]) {
+    this.time = time;
+    this.totalmem = totalmem;
+    this.freemem = freemem;
+    this.names = names;
+    this.values = values;
+  }
+
+  /**
+   * Return the time at which the snapshot was taken, in milliseconds.
+   */
+  public long getTime() {
+    return time;
+  }
+
+  /**
+   * Return the total size of the Java heap in kilobytes.
+   */
+  public long getTotalMemory() {
+    return totalmem;
+  }
+
+  /**
+   * Return the free space in the Java heap in kilobytes.
+   */
+  public long getFreeMemory() {
+    return freemem;
+  }
+
+  /**
+   * Return the number of values in the snapshot.
+   */
+  public int size() {
+    return names.length;
+  }
+
+  /**
+   * Return the name of the i'th value, as it was registered.
+   */
+  public String getName(int i) {
+    return names[i];
+  }
+
+  /**
+   * Return the i'th value.
+   */
+  public double getValue(int i) {
+    return values[i];
+  }
+
+  /**
+   * Return the value registered under the given name, or NaN if 
+   * there is none.
+   */
+  public double getValue(String name) {
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].equals(name)) return values[i];
+    }
+    return Double.NaN;
+  }
+
+  /**
+   * Write the snapshot as text, one "name value" line per value, in
+   * the format understood by Prometheus and similar collectors. Names
+   * are reduced to letters, digits and underscores (so that
+   * "ThreadPool &lt;HttpRecv&gt;" becomes "ThreadPool_HttpRecv"), with 
+   * the registered name given in a comment line.
+   */
+  public void writeText(PrintWriter pw) {
+    pw.println("# Sandstorm metrics at "+time);
+    pw.println("jvm_totalmem_kb "+totalmem);
+    pw.println("jvm_freemem_kb "+freemem);
+    Hashtable seen = new Hashtable();
+    for (int i = 0; i < names.length; i++) {
+      String ename = exposedName(names[i]);
+      // Objects registered more than once under the same name
+      Integer n = (Integer)seen.get(ename);
+      seen.put(ename, new Integer((n == null)?1:(n.intValue()+1)));
+      if (n != null) ename = ename+"_"+(n.intValue()+1);
+      pw.println("# HELP "+ename+" "+names[i]);
+      pw.println(ename+" "+format(values[i]));
+    }
+  }
+
+  /**
+   * Format a value, omitting the fraction if it is a whole number.
+   */
+  static String format(double value) {
+    if ((value == Math.rint(value)) && (Math.abs(value) < 1e15)) {
+      return Long.toString((long)value);
+    }
+    return Double.toString(value);
+  }
+
+  // Replace each run of characters other than letters, digits and
+  // underscores with a single underscore
+  private static String exposedName(String name) {
+    StringBuffer sb = new StringBuffer(name.length());
+    boolean sep = false;
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) ||
+	  ((c >= '0') && (c <= '9')) || (c == '_')) {
+	if (sep && (sb.length() > 0)) sb.append('_');
+	sb.append(c);
+	sep = false;
+      } else {
+	sep = true;
+      }
+    }
+    if ((sb.length() == 0) || Character.isDigit(sb.charAt(0))) {
+      sb.insert(0, '_');
+    }
+    return sb.toString();
+  }
+
+}
@@ -29,12 +29,19 @@ import seda.sandStorm.api.ManagerIF;
 import seda.sandStorm.api.QueueElementIF;
 import seda.sandStorm.api.SandstormConfigIF;
 import seda.sandStorm.api.internal.ResponseTimeControllerIF;
+import seda.sandStorm.api.internal.StageStatsIF;
 import seda.sandStorm.api.internal.StageWrapperIF;
 
 /**
  * The ResponseTimeController attempts to keep the response time of
  * a given stage below a given target by adjusting admission control
  * parameters for a stage.
+ *
+ * <p>Response time is read from the stage's statistics (see 
+ * StageStats). If the stage's events carry timestamps (see 
+ * TimeStampedEvent), it is measured from the timestamp; otherwise it 
+ * is estimated from the time events wait on the stage's queue plus the
+ * time taken to process them.
  * 
  * @author   Matt Welsh
  */
@@ -47,9 +54,14 @@ public abstract class ResponseTimeController implements ResponseTimeControllerIF
   protected StageWrapperIF stage;
   protected EnqueuePredicateIF pred;
   protected double targetRT;
+  private StageGraph graph;
+
+  // Snapshots of the stage's latency histograms at the last measurement
+  private LatencyHistogram.Snapshot lastRT, lastWait, lastService;
 
   protected ResponseTimeController(ManagerIF mgr, StageWrapperIF stage) throws IllegalArgumentException {
     this.stage = stage;
+    this.graph = mgr.getProfiler().getGraphProfiler();
 
     SandstormConfigIF config = mgr.getConfig();
     this.targetRT = config.getDouble("stages."+stage.getStage().getName()+".rtController.targetResponseTime");
@@ -59,6 +71,71 @@ public abstract class ResponseTimeController implements ResponseTimeControllerIF
 	throw new IllegalArgumentException("ResponseTimeController: Must specify targetResponseTime");
       }
     }
+
+    StageStatsIF stats = stage.getStats();
+    lastRT = stats.getResponseTimeHistogram().snapshot();
+    lastWait = stats.getQueueDelayHistogram().snapshot();
+    lastService = stats.getServiceTimeHistogram().snapshot();
+  }
+
+  // True if response times are measured from event timestamps
+  private boolean timestamped() {
+    return (stage.getStats().getResponseTimeHistogram().getCount() != 0);
+  }
+
+  /**
+   * Return the number of events measured by the stage since the last
+   * call to measureRT().
+   */
+  protected long newSamples() {
+    StageStatsIF stats = stage.getStats();
+    if (timestamped()) {
+      return stats.getResponseTimeHistogram().getCount() - lastRT.getCount();
+    } else {
+      return stats.getServiceTimeHistogram().getCount() - lastService.getCount();
+    }
+  }
+
+  /**
+   * Return the given percentile (0.0 to 1.0) of the stage's response 
+   * time in msec, over the events measured since the last call. When
+   * estimated, the percentiles of queue wait and service time are added,
+   * which errs on the high side.
+   */
+  protected double measureRT(double p) {
+    StageStatsIF stats = stage.getStats();
+    boolean ts = timestamped();
+    LatencyHistogram.Snapshot rt = stats.getResponseTimeHistogram().snapshot();
+    LatencyHistogram.Snapshot wait = stats.getQueueDelayHistogram().snapshot();
+    LatencyHistogram.Snapshot service = stats.getServiceTimeHistogram().snapshot();
+    long usec;
+    if (ts) {
+      usec = rt.minus(lastRT).getPercentile(p);
+    } else {
+      usec = wait.minus(lastWait).getPercentile(p) + 
+	service.minus(lastService).getPercentile(p);
+    }
+    lastRT = rt; lastWait = wait; lastService = service;
+    return usec / 1.0e3;
+  }
+
+  /**
+   * Return false if the StageGraphAnalyzer has found a bottleneck 
+   * upstream of this stage, which has a response time controller of
+   * its own. Rejecting events after they have passed such a bottleneck
+   * discards the work done on them there, while the bottleneck's own
+   * controller is what limits the load on it. Stages which feed the
+   * bottleneck, such as the entry stage of a service, always throttle,
+   * since that is where the load on an uncontrolled bottleneck is shed.
+   * Controllers should not reduce admission unless this returns true.
+   */
+  protected boolean shouldThrottle() {
+    StageGraphAnalysis a = graph.getAnalysis();
+    if (a == null) return true;
+    StageWrapperIF b = a.getBottleneck();
+    if ((b == null) || (b == stage)) return true;
+    if (b.getResponseTimeController() == null) return true;
+    return !(a.reaches(b, stage) && !a.reaches(stage, b));
   }
 
   public void setTarget(double target) {
@@ -30,9 +30,6 @@ import seda.sandStorm.api.QueueElementIF;
 import seda.sandStorm.api.internal.StageWrapperIF;
 import seda.sandStorm.core.QueueThresholdPredicate;
 import seda.sandStorm.core.RateLimitingPredicate;
-import seda.sandStorm.core.TimeStampedEvent;
-
-import java.util.Arrays;
 
 /**
  * An implementation of ResponseTimeController that uses a direct 
@@ -51,7 +48,6 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
   private static final int MEASUREMENT_SIZE = 100;
   private static final long MEASUREMENT_TIME = 1000;
   private static final double SMOOTH_CONST = 0.7;
-  private static final int NINETIETH = (int)((double)MEASUREMENT_SIZE * 0.9);
 
   private static final double LOW_WATER = 0.9;
   private static final double HIGH_WATER = 1.2;
@@ -69,8 +65,7 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
   private static final double MIN_RATE = 0.05;
 
   private long adjtime;
-  private long measurements[], sortedmeasurements[];
-  private int curThreshold, cur_measurement;
+  private int curThreshold;
   private double curRate;
   private double ninetiethRT;
   private boolean enabled;
@@ -78,9 +73,6 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
   public ResponseTimeControllerDirect(ManagerIF mgr, StageWrapperIF stage) throws IllegalArgumentException {
     super(mgr, stage);
 
-    this.measurements = new long[MEASUREMENT_SIZE];
-    this.sortedmeasurements = new long[MEASUREMENT_SIZE];
-    this.cur_measurement = 0;
     this.adjtime = System.currentTimeMillis();
 
     // Add profile 
@@ -148,34 +140,12 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 
   public synchronized void adjustThreshold(QueueElementIF fetched[], long procTime) {
     long curtime = System.currentTimeMillis();
-    boolean adjust = false;
-
-    for (int i = 0; i < fetched.length; i++) {
-      if (fetched[i] instanceof TimeStampedEvent) {
-	TimeStampedEvent ev = (TimeStampedEvent)fetched[i];
-	long time = ev.timestamp;
-	if (time != 0) {
-	  measurements[cur_measurement] = curtime - time;
-	  cur_measurement++; 
-	  if (cur_measurement == MEASUREMENT_SIZE) {
-	    cur_measurement = 0;
-	    adjust = true;
-	  }
-	}
-      }
-    }
 
-    int numsort = MEASUREMENT_SIZE;
-    if ((curtime - adjtime) >= MEASUREMENT_TIME) {
-      adjust = true;
-      numsort = cur_measurement;
-      cur_measurement = 0;
-    } 
-
-    if (!adjust) return;
-    System.arraycopy(measurements, 0, sortedmeasurements, 0, numsort);
-    Arrays.sort(sortedmeasurements, 0, numsort);
-    long cur = sortedmeasurements[ (int)(0.9 * (double)numsort) ];
+    // Adjust after MEASUREMENT_SIZE samples or MEASUREMENT_TIME msec
+    if ((newSamples() < MEASUREMENT_SIZE) &&
+	((curtime - adjtime) < MEASUREMENT_TIME)) return;
+
+    double cur = measureRT(0.9);
     ninetiethRT = (SMOOTH_CONST * (double)ninetiethRT*1.0) + ((1.0 - SMOOTH_CONST) * ((double)cur * 1.0)); 
     stage.getStats().record90thRT(ninetiethRT);
 
@@ -189,7 +159,7 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 	curThreshold += ADDITIVE_INCREASE;
 	//curThreshold *= MULTIPLICATIVE_INCREASE;
 	if (curThreshold > MAX_THRESHOLD) curThreshold = MAX_THRESHOLD;
-      } else if (ninetiethRT > (HIGH_WATER * targetRT)) {
+      } else if ((ninetiethRT > (HIGH_WATER * targetRT)) && shouldThrottle()) {
 	curThreshold /= MULTIPLICATIVE_DECREASE;
 	if (curThreshold < MIN_THRESHOLD) curThreshold = MIN_THRESHOLD;
       }
@@ -202,7 +172,7 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 	curRate += ADDITIVE_INCREASE;
 	//curRate *= MULTIPLICATIVE_INCREASE;
 	if (curRate > MAX_RATE) curRate = MAX_RATE;
-      } else if (ninetiethRT > (HIGH_WATER * targetRT)) {
+      } else if ((ninetiethRT > (HIGH_WATER * targetRT)) && shouldThrottle()) {
 	curRate /= MULTIPLICATIVE_DECREASE;
 	if (curRate < MIN_RATE) curRate = MIN_RATE;
       }
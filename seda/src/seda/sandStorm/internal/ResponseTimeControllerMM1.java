@@ -30,11 +30,8 @@ import seda.sandStorm.api.QueueElementIF;
 import seda.sandStorm.api.internal.StageWrapperIF;
 import seda.sandStorm.core.QueueThresholdPredicate;
 import seda.sandStorm.core.RateLimitingPredicate;
-import seda.sandStorm.core.TimeStampedEvent;
 import seda.util.MDWUtil;
 
-import java.util.Arrays;
-
 /**
  * An implementation of ResponseTimeController that models the stage
  * as an M/M/1 queue.
@@ -77,15 +74,13 @@ public class ResponseTimeControllerMM1 extends ResponseTimeController {
 //  private static final long ESTIMATION_TIME = 1000; 
 
   private static final double SMOOTH_CONST = 0.1;
-  private static final int NINETIETH = (int)((double)MEASUREMENT_SIZE * 0.9);
 
   private static final boolean BIDIRECTIONAL_FILTER = true;
   private static final double SMOOTH_CONST_UP = 0.9;
   private static final double SMOOTH_CONST_DOWN = 0.1;
 
   private SinkProxy sinkProxy;
-  private long measurements[], sortedmeasurements[];
-  private int curThreshold, cur_measurement;
+  private int curThreshold;
   private double curRate; 
   private double measured_mu, measured_lambda, est_ninetiethRT;
   private double total_measured_mu, count_measured_mu, total_measured_lambda, 
@@ -115,9 +110,6 @@ public class ResponseTimeControllerMM1 extends ResponseTimeController {
     stage.getStage().getSink().setEnqueuePredicate(pred);
     enabled = true;
 
-    this.measurements = new long[MEASUREMENT_SIZE];
-    this.sortedmeasurements = new long[MEASUREMENT_SIZE];
-    this.cur_measurement = 0;
     this.startProcTime = Long.MAX_VALUE; this.endProcTime = 0L;
 
     // Add profile 
@@ -214,9 +206,6 @@ public class ResponseTimeControllerMM1 extends ResponseTimeController {
       long startTime, long endTime, boolean isFirst, int numThreads) {
 //    if (DEBUG) System.err.println("RTControllerMM1 <"+stage.getStage().getName()+">: adjustThreshold called, fetched.len="+fetched.length+", time="+(endTime-startTime)+", isFirst="+isFirst+", numThreads="+numThreads);
 
-    boolean adjust_meas = false;
-    boolean adjust_est = false;
-
     if (MOVING_AVERAGE) {
       avgNumThreads = (SMOOTH_CONST * avgNumThreads) + ((1.0 - SMOOTH_CONST) * (double)(numThreads*1.0)); 
     } else {
@@ -258,31 +247,10 @@ public class ResponseTimeControllerMM1 extends ResponseTimeController {
     numReceived += sinkProxy.enqueueSuccessCount;
     sinkProxy.enqueueSuccessCount = 0;
 
-    // Measure actual 90th RT
+    // Measure actual 90th RT over the last MEASUREMENT_SIZE samples
     long curtime = System.currentTimeMillis();
-    for (int i = 0; i < fetched.length; i++) {
-      if (fetched[i] instanceof TimeStampedEvent) {
-	adjust_est = true;
-	TimeStampedEvent ev = (TimeStampedEvent)fetched[i];
-	long time = ev.timestamp;
-	if (time != 0) {
-	  measurements[cur_measurement] = curtime - time;
-	  cur_measurement++; 
-	  if (cur_measurement == MEASUREMENT_SIZE) {
-	    cur_measurement = 0;
-	    adjust_meas = true;
-	    break; // XXX MDW TESTING
-	  }
-	}
-      }
-    }
-
-    // XXX MDW: Continuously update
-    adjust_meas = true;
-    if (adjust_meas) {
-      System.arraycopy(measurements, 0, sortedmeasurements, 0, MEASUREMENT_SIZE);
-      Arrays.sort(sortedmeasurements);
-      long cur = sortedmeasurements[NINETIETH];
+    if (newSamples() >= MEASUREMENT_SIZE) {
+      double cur = measureRT(0.9);
 
       if (MOVING_AVERAGE) {
         ninetiethRT = (SMOOTH_CONST * (double)ninetiethRT*1.0) + ((1.0 - SMOOTH_CONST) * ((double)(cur) * 1.0)); 
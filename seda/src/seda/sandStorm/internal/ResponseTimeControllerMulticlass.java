@@ -33,12 +33,13 @@ import seda.sandStorm.core.MulticlassRateLimitingPredicate;
 import seda.sandStorm.core.TimeStampedEvent;
 import seda.util.MDWUtil;
 
-import java.util.Arrays;
-
 /**
  * An implementation of ResponseTimeController that uses a direct 
  * adjustment of queue thresholds based on the error in the 90th
- * percentile response time. Allows multiple class SLAs.
+ * percentile response time. Allows multiple class SLAs. If the 
+ * stage's events carry no timestamps, all classes share the stage's
+ * estimated response time, so that lower classes are still throttled
+ * first when a higher class misses its target.
  * 
  * @author   Matt Welsh
  */
@@ -49,7 +50,6 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
   private static final int MEASUREMENT_SIZE = 100;
   private static final long MEASUREMENT_TIME = 1000;
   private static final double SMOOTH_CONST = 0.7;
-  private static final int NINETIETH = (int)((double)MEASUREMENT_SIZE * 0.9);
 
   private static final double LOW_WATER = -0.1;
   private static final double HIGH_WATER = 0.0;
@@ -74,14 +74,17 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
   private String name;
   private boolean enabled;
   private cinfo carr[];
+  private long sharedAdjtime;
 
   class cinfo {
     int theclass;
     double adjtime;
     double targetRT;
-    long measurements[], sortedmeasurements[];
+    LatencyHistogram measurements;
+    LatencyHistogram.Snapshot lastSnapshot;
     int cur_measurement = 0;
     int num_measurements = 0;
+    double sharedRT = -1;
     double curRate;
     int lowCount = 0;
     double ninetiethRT;
@@ -94,8 +97,8 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
     cinfo(int theclass, double target) {
       this.theclass = theclass;
       this.targetRT = target;
-      this.measurements = new long[MEASUREMENT_SIZE];
-      this.sortedmeasurements = new long[MEASUREMENT_SIZE];
+      this.measurements = new LatencyHistogram();
+      this.lastSnapshot = measurements.snapshot();
 
       this.curRate = ((MulticlassRateLimitingPredicate)pred).getTargetRate(theclass);
       this.adjtime = System.currentTimeMillis();
@@ -111,7 +114,7 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
     }
 
     void addMeasurement(long time) {
-      measurements[cur_measurement] = time;
+      measurements.record(time * 1000);
       cur_measurement++; 
       num_measurements++; 
       if (cur_measurement == MEASUREMENT_SIZE) {
@@ -120,33 +123,41 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
       }
     }
 
-    void record90th(int numsort, long curtime) {
-      System.arraycopy(measurements, 0, sortedmeasurements, 0, numsort);
-      Arrays.sort(sortedmeasurements, 0, numsort);
-      long cur = sortedmeasurements[ (int)(0.9 * (double)numsort) ];
+    // Use the stage's response time in place of this class's own
+    void setShared(double rt) {
+      sharedRT = rt;
+      num_measurements++;
+      adjust = true;
+    }
+
+    void record90th(long curtime) {
+      double cur;
+      if (sharedRT >= 0) {
+	cur = sharedRT;
+	sharedRT = -1;
+      } else {
+	LatencyHistogram.Snapshot snap = measurements.snapshot();
+	cur = snap.minus(lastSnapshot).getPercentile(0.9) / 1.0e3;
+	lastSnapshot = snap;
+      }
       ninetiethRT = (SMOOTH_CONST * (double)ninetiethRT*1.0) + ((1.0 - SMOOTH_CONST) * ((double)cur * 1.0)); 
       if (ninetiethRT < MIN_90th) ninetiethRT = 0;
 
       if (theclass == 0) stage.getStats().record90thRT(ninetiethRT);
       adjtime = curtime;
-
-      // Avoid timeout causing us to always read old value
-      if (cur_measurement == 0) sortedmeasurements[0] = 0L;
     }
 
     boolean adjust(long curtime) {
 
-      int numsort = MEASUREMENT_SIZE;
       if (num_measurements > 0 && (curtime - adjtime) >= MEASUREMENT_TIME) {
 	adjust = true;
-	numsort = cur_measurement;
 	cur_measurement = 0;
       } 
 
       if (!adjust) return false;
       adjust = false;
 
-      record90th(numsort, curtime);
+      record90th(curtime);
 
       if (!enabled) return false;
       if (targetRT == -1) return false;
@@ -167,7 +178,7 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 	last_increased = true;
 	lowCount = 0;
 
-      } else if (err > HIGH_WATER) {
+      } else if ((err > HIGH_WATER) && shouldThrottle()) {
 	// We are above our target - reduce rates of all lower classes
 	boolean found = false;
 	for (int c2 = 0; c2 < theclass; c2++) {
@@ -236,6 +247,7 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 
     System.err.println("RTControllerMulticlass9 <"+name+">: MEASUREMENT_SIZE="+MEASUREMENT_SIZE+", SMOOTH_CONST="+SMOOTH_CONST+", LOW_WATER="+LOW_WATER+", HIGH_WATER="+HIGH_WATER+", ADDITIVE_INCREASE="+ADDITIVE_INCREASE+", MULTIPLCATIVE_DECREASE="+MULTIPLICATIVE_DECREASE);
 
+    this.sharedAdjtime = System.currentTimeMillis();
     this.enabled = true;
   }
 
@@ -248,12 +260,14 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 
   public synchronized void adjustThreshold(QueueElementIF fetched[], long procTime) {
     long curtime = System.currentTimeMillis();
+    boolean stamped = false;
 
     for (int i = 0; i < fetched.length; i++) {
       if (fetched[i] instanceof TimeStampedEvent) {
 	TimeStampedEvent ev = (TimeStampedEvent)fetched[i];
 	long time = ev.timestamp;
 	if (time != 0) {
+	  stamped = true;
 	  int theclass = 0;
 	  if (ev instanceof ClassQueueElementIF) {
 	    ClassQueueElementIF cqel = (ClassQueueElementIF)ev;
@@ -265,6 +279,16 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
       }
     }
 
+    // Without timestamps, share the stage's estimated response time
+    if (!stamped && (stage.getStats().getResponseTimeHistogram().getCount() == 0)) {
+      if ((newSamples() >= MEASUREMENT_SIZE) || 
+	  ((curtime - sharedAdjtime) >= MEASUREMENT_TIME)) {
+	double rt = measureRT(0.9);
+	for (int c = 0; c < NUM_CLASSES; c++) carr[c].setShared(rt);
+	sharedAdjtime = curtime;
+      }
+    }
+
     boolean adjusted_any = false;
 
     for (int c = NUM_CLASSES-1; c >= 0; c--) {
@@ -30,11 +30,8 @@ import seda.sandStorm.api.QueueElementIF;
 import seda.sandStorm.api.internal.StageWrapperIF;
 import seda.sandStorm.core.QueueThresholdPredicate;
 import seda.sandStorm.core.RateLimitingPredicate;
-import seda.sandStorm.core.TimeStampedEvent;
 import seda.util.MDWUtil;
 
-import java.util.Arrays;
-
 /**
  * An implementation of ResponseTimeController that uses a PID control.
  * 
@@ -55,7 +52,6 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
   private static final double PROP_GAIN = 1.0;
   private static final double DERIV_GAIN = -0.5;
   private static final double INTR_GAIN = (0.2 / MEASUREMENT_SIZE);
-  private static final int NINETIETH = (int)((double)MEASUREMENT_SIZE * 0.9);
 
   protected final static int INIT_THRESHOLD = 1;
   protected final static int MIN_THRESHOLD = 1;
@@ -67,9 +63,8 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
   private static final double MIN_RATE = 0.05;
 
   private SinkProxy sinkProxy;
-  private long measurements[], sortedmeasurements[];
   private double errors[], lasterr, lastinterr, totalinterr;
-  private int curThreshold, cur_measurement, cur_error;
+  private int curThreshold, cur_error;
   private long numReceived;
   private double curRate;
   private double ninetiethRT, lambda;
@@ -80,10 +75,7 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
     super(mgr, stage);
     this.adjtime = System.currentTimeMillis();
     this.sinkProxy = (SinkProxy)stage.getStage().getSink();
-    this.measurements = new long[MEASUREMENT_SIZE];
-    this.sortedmeasurements = new long[MEASUREMENT_SIZE];
     this.errors = new double[MEASUREMENT_SIZE];
-    this.cur_measurement = 0;
     this.cur_error = 0;
 
     // Add profile 
@@ -147,35 +139,13 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
 
   public synchronized void adjustThreshold(QueueElementIF fetched[], long procTime) {
     long curtime = System.currentTimeMillis();
-    boolean adjust = false;
-
-    for (int i = 0; i < fetched.length; i++) {
-      if (fetched[i] instanceof TimeStampedEvent) {
-	TimeStampedEvent ev = (TimeStampedEvent)fetched[i];
-	long time = ev.timestamp;
-	if (time != 0) {
-	  measurements[cur_measurement] = curtime - time;
-	  cur_measurement++; 
-	  if (cur_measurement == MEASUREMENT_SIZE) {
-	    cur_measurement = 0;
-	    adjust = true;
-	  }
-	}
-      }
-    }
 
-    int numsort = MEASUREMENT_SIZE;
+    // Adjust after MEASUREMENT_SIZE samples or MEASUREMENT_TIME msec
     long elapsed = curtime - adjtime;
-    if (elapsed >= MEASUREMENT_TIME) {
-      adjust = true;
-      numsort = cur_measurement;
-      cur_measurement = 0;
-    }
+    if ((newSamples() < MEASUREMENT_SIZE) &&
+	(elapsed < MEASUREMENT_TIME)) return;
 
-    if (!adjust) return;
-    System.arraycopy(measurements, 0, sortedmeasurements, 0, numsort);
-    Arrays.sort(sortedmeasurements, 0, numsort);
-    long cur = sortedmeasurements[ (int)(0.9 * (double)numsort) ];
+    double cur = measureRT(0.9);
     ninetiethRT = (SMOOTH_CONST * (double)ninetiethRT*1.0) + ((1.0 - SMOOTH_CONST) * ((double)cur * 1.0));
     adjtime = curtime;
     stage.getStats().record90thRT(ninetiethRT);
@@ -191,9 +161,10 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
     double interr = (((lasterr + err)/2) * (double)((elapsed) * 1.0e-3));
     lasterr = err; adjtime = curtime;
 
-    totalinterr -= errors[cur_error];
+    int slot = cur_error;
+    totalinterr -= errors[slot];
     totalinterr += interr;
-    errors[cur_error] = interr;
+    errors[slot] = interr;
     cur_error++; if (cur_error == MEASUREMENT_SIZE) cur_error = 0;
 
 //    interr -= errors[cur_error];
@@ -208,6 +179,16 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
     } else {
       out = ((PROP_GAIN * err) + (DERIV_GAIN * derr) + (INTR_GAIN*totalinterr));
     }
+    // Hold the rate rather than reduce it while the bottleneck is elsewhere
+    boolean held = ((out < 0) && !shouldThrottle());
+    if (held) out = 0;
+
+    // Don't integrate the error while the output is held or saturated,
+    // so the integral term does not wind up
+    if (held || saturated(out)) {
+      totalinterr -= interr;
+      errors[slot] = 0;
+    }
 
     if (DEBUG) System.err.println("RTControllerPID <"+stage.getStage().getName()+">: lambda "+MDWUtil.format(lambda)+" 90th "+MDWUtil.format(ninetiethRT)+" err "+MDWUtil.format(err)+" derr "+MDWUtil.format(derr)+" interr "+MDWUtil.format(totalinterr)+" out "+MDWUtil.format(out));
 
@@ -245,4 +226,16 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
 
   }
 
+  // True if applying 'out' would push the threshold or rate past its
+  // limit
+  private boolean saturated(double out) {
+    if (ADJUST_THRESHOLD) {
+      return ((curThreshold + out < MIN_THRESHOLD) || 
+	  (curThreshold + out > MAX_THRESHOLD));
+    } else if (ADJUST_RATE && !BE_CREATIVE) {
+      return ((curRate + out < MIN_RATE) || (curRate + out > MAX_RATE));
+    }
+    return false;
+  }
+
 }
@@ -46,7 +46,10 @@ public class SinkProxy implements SinkIF, ProfilableIF {
   private StageWrapperIF toStage;
   private StageGraph stageGraph;
   public SinkIF thesink;
-  private Thread client = null;
+  // The edge from the stage of each client thread; the first client
+  // is kept outside the table, and is set only once
+  private volatile Thread client = null;
+  private StageGraphEdge clientEdge = null;
   private Hashtable clientTbl = null;
 
   /** 
@@ -92,28 +95,33 @@ public class SinkProxy implements SinkIF, ProfilableIF {
   }
 
   public void enqueue(QueueElementIF enqueueMe) throws SinkException {
-    recordUse();
+    StageGraphEdge edge = recordUse();
     enqueueCount++; 
     thesink.enqueue(enqueueMe);
     enqueueSuccessCount++; 
+    if (edge != null) edge.count.incrementAndGet();
   }
 
   public boolean enqueue_lossy(QueueElementIF enqueueMe) {
-    recordUse();
+    StageGraphEdge edge = recordUse();
     enqueueCount++; 
     boolean pass = thesink.enqueue_lossy(enqueueMe);
-    if (pass) enqueueSuccessCount++;
+    if (pass) {
+      enqueueSuccessCount++;
+      if (edge != null) edge.count.incrementAndGet();
+    }
     return pass;
   }
 
   public void enqueue_many(QueueElementIF[] enqueueMe) throws SinkException {
-    recordUse();
+    StageGraphEdge edge = recordUse();
     if (enqueueMe != null) {
       enqueueCount += enqueueMe.length;
     }
     thesink.enqueue_many(enqueueMe);
     if (enqueueMe != null) {
       enqueueSuccessCount += enqueueMe.length;
+      if (edge != null) edge.count.addAndGet(enqueueMe.length);
     }
   }
 
@@ -125,13 +133,14 @@ public class SinkProxy implements SinkIF, ProfilableIF {
   }
 
   public Object enqueue_prepare(QueueElementIF enqueueMe[]) throws SinkException {
-    recordUse();
+    StageGraphEdge edge = recordUse();
     if (enqueueMe != null) {
       enqueueCount += enqueueMe.length;
     }
     Object key = thesink.enqueue_prepare(enqueueMe);
     if (enqueueMe != null) {
       enqueueSuccessCount += enqueueMe.length;
+      if (edge != null) edge.count.addAndGet(enqueueMe.length);
     }
     return key;
   }
@@ -156,33 +165,43 @@ public class SinkProxy implements SinkIF, ProfilableIF {
     return "[SinkProxy for toStage="+toStage+"]";
   }
 
-  private void recordUse() {
+  // Return the graph edge from the calling thread's stage, adding it
+  // to the graph on first use; null if the thread has no stage
+  private StageGraphEdge recordUse() {
     if (DEBUG) System.err.println("SinkProxy: Recording use of "+this+" by thread "+Thread.currentThread());
 
+    Thread t = Thread.currentThread();
+    if (client == t) return clientEdge;
+    return recordUse(t);
+  }
+
+  private synchronized StageGraphEdge recordUse(Thread t) {
     if (client == null) {
-      client = Thread.currentThread();
+      clientEdge = addEdge(t);
+      client = t;
+      return clientEdge;
 
-      StageGraphEdge edge = new StageGraphEdge();
-      edge.fromStage = stageGraph.getStageFromThread(client);
-      edge.toStage = toStage;
-      edge.sink = this;
-      stageGraph.addEdge(edge);
+    } else if (client == t) {
+      return clientEdge;
 
     } else {
-      Thread t = Thread.currentThread();
-      if (client != t) {
-	if (clientTbl == null) clientTbl = new Hashtable();
-	if (clientTbl.get(t) == null) {
-	  clientTbl.put(t, t);
-
-	  StageGraphEdge edge = new StageGraphEdge();
-	  edge.fromStage = stageGraph.getStageFromThread(t);
-	  edge.toStage = toStage;
-	  edge.sink = this;
-	  stageGraph.addEdge(edge);
-	}
+      if (clientTbl == null) clientTbl = new Hashtable();
+      Object edge = clientTbl.get(t);
+      if (edge == null) {
+	// Threads without a stage map to the proxy itself
+	edge = addEdge(t);
+	clientTbl.put(t, (edge == null) ? (Object)this : edge);
       }
+      return (edge instanceof StageGraphEdge) ? (StageGraphEdge)edge : null;
     }
   }
 
+  private StageGraphEdge addEdge(Thread t) {
+    StageGraphEdge edge = new StageGraphEdge();
+    edge.fromStage = stageGraph.getStageFromThread(t);
+    edge.toStage = toStage;
+    edge.sink = this;
+    return stageGraph.addEdge(edge);
+  }
+
 }
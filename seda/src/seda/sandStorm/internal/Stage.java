@@ -45,7 +45,8 @@ public class Stage implements StageIF {
   // If true, instantate a SinkProxy for the stage's event queue 
   // when batchControllor or rtController are enabled. This should
   // be obsolete; older implementations of these controllers relied
-  // on the proxy, but it's no longer needed.
+  // on the proxy, but it's no longer needed. The graphAnalyzer always
+  // uses the proxy, to count the events passed between stages.
   private static final boolean ENABLE_SINK_PROXY = false;
 
   /**
@@ -58,9 +59,10 @@ public class Stage implements StageIF {
     SandstormConfigIF cf = config.getManager().getConfig();
     this.mainsink = mainsink;
 
-    if (ENABLE_SINK_PROXY && 
-	(cf.getBoolean("global.batchController.enable") || 
-	 cf.getBoolean("global.rtController.enable"))) {
+    if ((ENABLE_SINK_PROXY && 
+	 (cf.getBoolean("global.batchController.enable") || 
+	  cf.getBoolean("global.rtController.enable"))) ||
+	cf.getBoolean("global.graphAnalyzer.enable")) {
       this.mainsink = new SinkProxy((SinkIF)mainsink, config.getManager(), wrapper);
     }
   }
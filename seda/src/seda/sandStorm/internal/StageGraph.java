@@ -53,6 +53,7 @@ public class StageGraph {
   private Hashtable threads = new Hashtable(1);
   private Hashtable edgesFrom = new Hashtable(1);
   private PrintWriter graphpw = null;
+  private volatile StageGraphAnalysis analysis;
 
   StageGraph(ManagerIF mgr) {
     SandstormConfigIF config = mgr.getConfig();
@@ -102,12 +103,20 @@ public class StageGraph {
     threads.put(thread, stage);
   }
 
-  public synchronized void addEdge(StageGraphEdge edge) {
-    if (!edges.contains(edge)) {
-      if ((edge.fromStage == null) ||
-	  (edge.toStage == null) ||
-	  (edge.sink == null)) return;
-
+  /**
+   * Add an edge to the graph, and return the edge as held by the graph:
+   * either the given edge or an equal one added earlier. Returns null
+   * if the edge is incomplete.
+   */
+  public synchronized StageGraphEdge addEdge(StageGraphEdge edge) {
+    if ((edge.fromStage == null) ||
+	(edge.toStage == null) ||
+	(edge.sink == null)) return null;
+
+    int i = edges.indexOf(edge);
+    if (i >= 0) {
+      return (StageGraphEdge)edges.elementAt(i);
+    } else {
       addStage(edge.fromStage);
       addStage(edge.toStage);
 
@@ -122,9 +131,22 @@ public class StageGraph {
       } else {
 	list.add(edge);
       }
+      return edge;
     } 
   }
 
+  /**
+   * Return the most recent result of the StageGraphAnalyzer, or null
+   * if it is not running or has not yet completed a pass.
+   */
+  public StageGraphAnalysis getAnalysis() {
+    return analysis;
+  }
+
+  void setAnalysis(StageGraphAnalysis analysis) {
+    this.analysis = analysis;
+  }
+
   /**
    * Output the graph in a format that can be used by the AT&amp;T 
    * 'graphviz' program: http://www.research.att.com/sw/tools/graphviz/
@@ -140,12 +162,7 @@ public class StageGraph {
 	StageGraphEdge edge = (StageGraphEdge)e.nextElement();
 	String from = edge.fromStage.getStage().getName();
 	String to = edge.toStage.getStage().getName();
-	int count = 0;
-	try {
-	  count = ((SinkProxy)edge.sink).enqueueCount;
- 	} catch (ClassCastException cce) {
-	  // Ignore
-	}
+	long count = edge.count.get();
 	graphpw.println("  \""+from+"\" -> \""+to+"\" [label=\""+count+"\"];");
       }
       graphpw.println("}");
@@ -0,0 +1,229 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.sandStorm.internal;
+
+import seda.sandStorm.api.internal.StageWrapperIF;
+
+import java.io.PrintWriter;
+
+/**
+ * A StageGraphAnalysis is the result of one pass of the 
+ * StageGraphAnalyzer: the event rate, queue wait and service time of
+ * each stage in the StageGraph, the event rate along each edge, the
+ * bottleneck stage and the critical path, all measured over the 
+ * interval since the previous pass. Latencies are in microseconds
+ * and rates in events per second. Not modified once published.
+ *
+ * @see StageGraphAnalyzer
+ * @see StageGraph
+ */
+public class StageGraphAnalysis {
+
+  long time;
+  StageWrapperIF stages[];
+  double rate[], waitMean[], serviceMean[];
+  long waitP90[];
+  StageGraphEdge edges[];
+  double edgeRate[];
+  int bottleneck = -1;
+  int path[] = new int[0];
+  double pathLatency;
+
+  StageGraphAnalysis(long time, StageWrapperIF stages[], StageGraphEdge edges[]) {
+    this.time = time;
+    this.stages = stages;
+    this.edges = edges;
+    rate = new double[stages.length];
+    waitMean = new double[stages.length];
+    serviceMean = new double[stages.length];
+    waitP90 = new long[stages.length];
+    edgeRate = new double[edges.length];
+  }
+
+  /**
+   * Return the time at which the analysis was made, in milliseconds.
+   */
+  public long getTime() {
+    return time;
+  }
+
+  /**
+   * Return the bottleneck stage, or null if no stage is saturated.
+   */
+  public StageWrapperIF getBottleneck() {
+    return (bottleneck < 0) ? null : stages[bottleneck];
+  }
+
+  /**
+   * Return the stages on the critical path, in order.
+   */
+  public StageWrapperIF[] getCriticalPath() {
+    StageWrapperIF arr[] = new StageWrapperIF[path.length];
+    for (int i = 0; i < path.length; i++) arr[i] = stages[path[i]];
+    return arr;
+  }
+
+  /**
+   * Return the mean latency along the critical path: the sum of mean
+   * queue wait and service time of its stages, in microseconds.
+   */
+  public double getCriticalPathLatency() {
+    return pathLatency;
+  }
+
+  // Index of the given stage, or -1
+  int indexOf(StageWrapperIF stage) {
+    for (int i = 0; i < stages.length; i++) {
+      if (stages[i] == stage) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Return true if events from stage 'from' reached stage 'to' during
+   * the interval, directly or through other stages, along edges which
+   * carried events.
+   */
+  boolean reaches(StageWrapperIF from, StageWrapperIF to) {
+    int src = indexOf(from), dst = indexOf(to);
+    if ((src < 0) || (dst < 0)) return false;
+    boolean seen[] = new boolean[stages.length];
+    int stack[] = new int[stages.length];
+    int sp = 0;
+    stack[sp++] = src;
+    seen[src] = true;
+    while (sp > 0) {
+      StageWrapperIF cur = stages[stack[--sp]];
+      for (int i = 0; i < edges.length; i++) {
+	if ((edges[i].fromStage != cur) || (edgeRate[i] <= 0)) continue;
+	int next = indexOf(edges[i].toStage);
+	if (next == dst) return true;
+	if ((next >= 0) && !seen[next]) {
+	  seen[next] = true;
+	  stack[sp++] = next;
+	}
+      }
+    }
+    return false;
+  }
+
+  private boolean onPath(StageGraphEdge edge) {
+    for (int i = 0; i + 1 < path.length; i++) {
+      if ((stages[path[i]] == edge.fromStage) && 
+	  (stages[path[i+1]] == edge.toStage)) return true;
+    }
+    return false;
+  }
+
+  private static String fmt(double d) {
+    return Long.toString(Math.round(d));
+  }
+
+  /**
+   * Write the graph in the format used by the 'graphviz' dot program.
+   * The bottleneck is filled in red and the critical path drawn in 
+   * bold red.
+   */
+  public void writeDot(PrintWriter pw) {
+    pw.println("digraph sandstorm {");
+    pw.println("  rankdir=TB;");
+    for (int i = 0; i < stages.length; i++) {
+      String name = stages[i].getStage().getName();
+      pw.print("  "+dotString(name)+" [label="+dotString(name+"\n"+
+	    fmt(rate[i])+" ev/s\nwait "+fmt(waitMean[i])+" us (p90 "+
+	    waitP90[i]+")\nservice "+fmt(serviceMean[i])+" us"));
+      if (i == bottleneck) pw.print(", style=filled, fillcolor=red");
+      pw.println("];");
+    }
+    for (int i = 0; i < edges.length; i++) {
+      pw.print("  "+dotString(edges[i].fromStage.getStage().getName())+
+	  " -> "+dotString(edges[i].toStage.getStage().getName())+
+	  " [label=\""+fmt(edgeRate[i])+"/s\"");
+      if (onPath(edges[i])) pw.print(", color=red, style=bold");
+      pw.println("];");
+    }
+    pw.println("}");
+  }
+
+  /**
+   * Write the analysis as a JSON object.
+   */
+  public void writeJSON(PrintWriter pw) {
+    pw.println("{");
+    pw.println("  \"time\": "+time+",");
+    pw.println("  \"bottleneck\": "+((bottleneck < 0) ? "null" : 
+	  jsonString(stages[bottleneck].getStage().getName()))+",");
+    pw.print("  \"criticalPath\": [");
+    for (int i = 0; i < path.length; i++) {
+      pw.print(((i == 0) ? "" : ", ")+jsonString(stages[path[i]].getStage().getName()));
+    }
+    pw.println("],");
+    pw.println("  \"criticalPathUsec\": "+fmt(pathLatency)+",");
+    pw.println("  \"stages\": [");
+    for (int i = 0; i < stages.length; i++) {
+      pw.println("    {\"name\": "+jsonString(stages[i].getStage().getName())+
+	  ", \"rate\": "+fmt(rate[i])+", \"waitUsec\": "+fmt(waitMean[i])+
+	  ", \"waitP90Usec\": "+waitP90[i]+", \"serviceUsec\": "+
+	  fmt(serviceMean[i])+"}"+((i + 1 < stages.length) ? "," : ""));
+    }
+    pw.println("  ],");
+    pw.println("  \"edges\": [");
+    for (int i = 0; i < edges.length; i++) {
+      pw.println("    {\"from\": "+jsonString(edges[i].fromStage.getStage().getName())+
+	  ", \"to\": "+jsonString(edges[i].toStage.getStage().getName())+
+	  ", \"rate\": "+fmt(edgeRate[i])+"}"+((i + 1 < edges.length) ? "," : ""));
+    }
+    pw.println("  ]");
+    pw.println("}");
+  }
+
+  private static String dotString(String s) {
+    StringBuffer sb = new StringBuffer("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"') sb.append("\\\"");
+      else if (c == '\n') sb.append("\\n");
+      else sb.append(c);
+    }
+    return sb.append('"').toString();
+  }
+
+  private static String jsonString(String s) {
+    StringBuffer sb = new StringBuffer("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if ((c == '"') || (c == '\\')) {
+	sb.append('\\').append(c);
+      } else if (c < 0x20) {
+	String hex = Integer.toHexString(c);
+	sb.append("\\u");
+	for (int j = hex.length(); j < 4; j++) sb.append('0');
+	sb.append(hex);
+      } else {
+	sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+}
@@ -0,0 +1,240 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.sandStorm.internal;
+
+import seda.sandStorm.api.ManagerIF;
+import seda.sandStorm.api.MetricIF;
+import seda.sandStorm.api.SandstormConfigIF;
+import seda.sandStorm.api.internal.StageStatsIF;
+import seda.sandStorm.api.internal.StageWrapperIF;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * StageGraphAnalyzer is a thread which periodically combines the 
+ * StageGraph with the statistics of each stage to find where events
+ * spend their time. Every global.graphAnalyzer.delay msec it measures,
+ * over the preceding interval, the event rate, queue wait and service
+ * time of each stage and the rate along each edge of the graph, and
+ * publishes a StageGraphAnalysis to the StageGraph with:
+ *
+ * <ul>
+ * <li>the <b>bottleneck</b>: the stage with the longest 90th percentile
+ *   queue wait, if that is at least MIN_BOTTLENECK_WAIT. Events queue 
+ *   in front of the stage which cannot keep up, whatever its number of
+ *   threads.
+ * <li>the <b>critical path</b>: the path along edges which carried 
+ *   events in the interval with the greatest total of mean queue wait
+ *   plus mean service time.
+ * </ul>
+ *
+ * <p>The ThreadPoolController and the response time controllers read
+ * the bottleneck from the latest analysis. The analysis is also 
+ * written to the files named by global.graphAnalyzer.dotfile and 
+ * global.graphAnalyzer.jsonfile, replaced on each pass, and served
+ * by the MetricsServer.
+ *
+ * <p>Edges are only known for stages whose sink is a SinkProxy, 
+ * which is used whenever the analyzer is enabled, and are attributed
+ * through the threads of each stage's ThreadPool; stages run by the
+ * work-stealing or virtual-thread managers appear without edges.
+ *
+ * @see StageGraph
+ * @see StageGraphAnalysis
+ */
+class StageGraphAnalyzer extends Thread {
+
+  private static final boolean DEBUG = false;
+
+  // Minimum 90th percentile queue wait, in usec, for a stage to be
+  // considered the bottleneck
+  private static final long MIN_BOTTLENECK_WAIT = 1000;
+
+  // Limit on the paths visited in one search for the critical path
+  private static final int MAX_VISITS = 100000;
+
+  private StageGraph graph;
+  private int delay;
+  private String dotfile, jsonfile;
+  private long lastTime;
+  // StageWrapperIF -> sample, StageGraphEdge -> Long at the last pass
+  private Hashtable lastStage = new Hashtable();
+  private Hashtable lastEdge = new Hashtable();
+
+  // Critical path search state
+  private int adj[][];
+  private double cost[];
+  private int bestPath[];
+  private double bestCost;
+  private int visits;
+
+  StageGraphAnalyzer(ManagerIF mgr, StageGraph graph) {
+    super("StageGraphAnalyzer");
+    this.graph = graph;
+    SandstormConfigIF config = mgr.getConfig();
+    this.delay = config.getInt("global.graphAnalyzer.delay");
+    this.dotfile = config.getString("global.graphAnalyzer.dotfile");
+    this.jsonfile = config.getString("global.graphAnalyzer.jsonfile");
+    this.lastTime = System.currentTimeMillis();
+
+    mgr.getProfiler().addMetric("StageGraph criticalPath usec", new MetricIF() {
+      public double metricValue() {
+	StageGraphAnalysis a = StageGraphAnalyzer.this.graph.getAnalysis();
+	return (a == null) ? 0 : a.getCriticalPathLatency();
+      }
+    });
+  }
+
+  public void run() {
+    while (true) {
+      try {
+	Thread.sleep(delay);
+      } catch (InterruptedException ie) {
+	// Ignore
+      }
+
+      StageGraphAnalysis a = analyze();
+      graph.setAnalysis(a);
+      if (DEBUG) {
+	StageWrapperIF b = a.getBottleneck();
+	System.err.println("StageGraphAnalyzer: bottleneck "+((b == null) ? "none" : b.getStage().getName())+", critical path "+a.getCriticalPathLatency()+" usec");
+      }
+      if (dotfile != null) write(a, dotfile, false);
+      if (jsonfile != null) write(a, jsonfile, true);
+    }
+  }
+
+  // Measure each stage and edge since the last pass
+  private StageGraphAnalysis analyze() {
+    long now = System.currentTimeMillis();
+    double secs = Math.max(1, now - lastTime) / 1.0e3;
+    lastTime = now;
+    StageGraphAnalysis a = new StageGraphAnalysis(now, graph.getStages(), 
+	graph.getEdges());
+    int n = a.stages.length;
+
+    for (int i = 0; i < n; i++) {
+      StageStatsIF stats = a.stages[i].getStats();
+      if (stats == null) continue;
+      sample cur = new sample(stats);
+      sample prev = (sample)lastStage.put(a.stages[i], cur);
+      if (prev == null) continue;
+      a.rate[i] = (cur.events - prev.events) / secs;
+      LatencyHistogram.Snapshot wait = cur.wait.minus(prev.wait);
+      a.waitMean[i] = wait.getMean();
+      a.waitP90[i] = wait.getPercentile(0.9);
+      a.serviceMean[i] = cur.service.minus(prev.service).getMean();
+      if ((a.rate[i] > 0) && (a.waitP90[i] >= MIN_BOTTLENECK_WAIT) &&
+	  ((a.bottleneck < 0) || (a.waitP90[i] > a.waitP90[a.bottleneck]))) {
+	a.bottleneck = i;
+      }
+    }
+
+    Vector succ[] = new Vector[n];
+    for (int i = 0; i < n; i++) succ[i] = new Vector();
+    for (int i = 0; i < a.edges.length; i++) {
+      StageGraphEdge e = a.edges[i];
+      long count = e.count.get();
+      Long prev = (Long)lastEdge.put(e, new Long(count));
+      if (prev == null) continue;
+      a.edgeRate[i] = (count - prev.longValue()) / secs;
+      int from = a.indexOf(e.fromStage), to = a.indexOf(e.toStage);
+      if ((a.edgeRate[i] > 0) && (from >= 0) && (to >= 0) && 
+	  !succ[from].contains(new Integer(to))) {
+	succ[from].addElement(new Integer(to));
+      }
+    }
+
+    // Longest simple path by mean residence time, from every active stage
+    adj = new int[n][];
+    cost = new double[n];
+    for (int i = 0; i < n; i++) {
+      adj[i] = new int[succ[i].size()];
+      for (int j = 0; j < adj[i].length; j++) {
+	adj[i][j] = ((Integer)succ[i].elementAt(j)).intValue();
+      }
+      cost[i] = a.waitMean[i] + a.serviceMean[i];
+    }
+    bestPath = new int[0];
+    bestCost = 0;
+    visits = 0;
+    int path[] = new int[n];
+    boolean onPath[] = new boolean[n];
+    for (int i = 0; i < n; i++) {
+      if (a.rate[i] > 0) search(i, path, 0, 0, onPath);
+    }
+    a.path = bestPath;
+    a.pathLatency = bestCost;
+    return a;
+  }
+
+  private void search(int node, int path[], int len, double total, boolean onPath[]) {
+    path[len++] = node;
+    total += cost[node];
+    if (total > bestCost) {
+      bestCost = total;
+      bestPath = new int[len];
+      System.arraycopy(path, 0, bestPath, 0, len);
+    }
+    if (++visits >= MAX_VISITS) return;
+    onPath[node] = true;
+    for (int i = 0; i < adj[node].length; i++) {
+      if (!onPath[adj[node][i]]) search(adj[node][i], path, len, total, onPath);
+    }
+    onPath[node] = false;
+  }
+
+  // Replace the given file with the analysis
+  private void write(StageGraphAnalysis a, String filename, boolean json) {
+    File tmp = new File(filename+".tmp");
+    try {
+      PrintWriter pw = new PrintWriter(new FileWriter(tmp));
+      if (json) a.writeJSON(pw);
+      else a.writeDot(pw);
+      pw.close();
+      if (!tmp.renameTo(new File(filename))) {
+	System.err.println("StageGraphAnalyzer: Warning: Could not replace "+filename);
+      }
+    } catch (IOException e) {
+      System.err.println("StageGraphAnalyzer: Warning: Could not write "+filename+": "+e);
+    }
+  }
+
+  // Cumulative statistics of a stage at one pass
+  class sample {
+    long events;
+    LatencyHistogram.Snapshot wait, service;
+
+    sample(StageStatsIF stats) {
+      events = stats.getTotalEvents();
+      wait = stats.getQueueDelayHistogram().snapshot();
+      service = stats.getServiceTimeHistogram().snapshot();
+    }
+  }
+
+}
@@ -27,6 +27,8 @@ package seda.sandStorm.internal;
 import seda.sandStorm.api.SinkIF;
 import seda.sandStorm.api.internal.StageWrapperIF;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * This class represents an edge in the stage-connectivity graph.
  * Used by StageGraph.
@@ -38,6 +40,8 @@ class StageGraphEdge {
   StageWrapperIF fromStage;
   StageWrapperIF toStage;
   SinkIF sink;
+  // Number of events enqueued along this edge
+  AtomicLong count = new AtomicLong();
 
   public boolean equals(Object o) {
     if (!(o instanceof StageGraphEdge)) return false;
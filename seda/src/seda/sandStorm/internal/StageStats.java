@@ -25,14 +25,21 @@
 package seda.sandStorm.internal;
 
 import seda.sandStorm.api.ManagerIF;
-import seda.sandStorm.api.ProfilableIF;
+import seda.sandStorm.api.MetricIF;
+import seda.sandStorm.api.QueueElementIF;
 import seda.sandStorm.api.internal.StageStatsIF;
 import seda.sandStorm.api.internal.StageWrapperIF;
+import seda.sandStorm.core.TimeStampedEvent;
 import seda.sandStorm.main.Sandstorm;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * This class provides controllers with a view of statistics gathered
- * by the stage internally during execution.
+ * by the stage internally during execution. Statistics are recorded 
+ * by the stage's threads without locking; latencies are kept in 
+ * LatencyHistograms, from which controllers may read any percentile.
  * 
  * @author   Matt Welsh
  */
@@ -49,88 +56,142 @@ public class StageStats implements StageStatsIF {
   StageWrapperIF stage;
 
   /* Average service rate of events. */
-  private double serviceRate;
+  private volatile double serviceRate;
 
   /* 90th percentile response time of the stage. */
-  private double rt90thPercentile;
+  private volatile double rt90thPercentile;
+
+  private volatile boolean first = true;
+  private volatile long lastTime;
+  private AtomicInteger count;
+  private AtomicLong totalServiceTime, totalEvents, cumulativeEvents;
 
-  private boolean first = true;
-  private long lastTime;
-  private int count;
-  private long totalServiceTime, totalEvents, cumulativeEvents;
+  private LatencyHistogram serviceTime, queueDelay, responseTime;
 
   public StageStats(StageWrapperIF stage) {
     this.stage = stage;
+    count = new AtomicInteger();
+    totalServiceTime = new AtomicLong();
+    totalEvents = new AtomicLong();
+    cumulativeEvents = new AtomicLong();
+    serviceTime = new LatencyHistogram();
+    queueDelay = new LatencyHistogram();
+    responseTime = new LatencyHistogram();
     reset();
   }
 
   /** Reset all statistics. */
   public void reset() {
     serviceRate = 0.0;
-    count = 0;
+    count.set(0);
     lastTime = System.currentTimeMillis();
-    totalEvents = totalServiceTime = cumulativeEvents = 0;
+    totalEvents.set(0);
+    totalServiceTime.set(0);
+    cumulativeEvents.set(0);
+    serviceTime.reset();
+    queueDelay.reset();
+    responseTime.reset();
   }
 
   /** Return a moving average of the service rate. */
-  public synchronized double getServiceRate() {
+  public double getServiceRate() {
     return serviceRate;
   }
 
   /** Get total number of processed events. */
-  public synchronized long getTotalEvents() {
-    return this.cumulativeEvents;
+  public long getTotalEvents() {
+    return cumulativeEvents.get();
   }
 
   /** 
    * Record the service time for numEvents taking 'time' msec to
    * be processed.
    */
-  public synchronized void recordServiceRate(int numEvents, long time) {
+  public void recordServiceRate(int numEvents, long time) {
 
     // Only possible to add ourselves to the profile after we start running
     if (PROFILE && first) {
       first = false;
       ManagerIF mgr = Sandstorm.getSandstorm().getManager();
       if (mgr.getProfiler() != null) {
-	mgr.getProfiler().add("StageStats serviceRate <"+stage.getStage().getName()+">",
-	    new ProfilableIF() {
-	    public int profileSize() {
-	    return (int)serviceRate;
+	mgr.getProfiler().addMetric("StageStats serviceRate <"+stage.getStage().getName()+">",
+	    new MetricIF() {
+	    public double metricValue() {
+	    return serviceRate;
 	    }});
       }
     }
 
-    totalEvents += numEvents;
-    cumulativeEvents += numEvents;
-    totalServiceTime += time;
+    totalEvents.addAndGet(numEvents);
+    cumulativeEvents.addAndGet(numEvents);
+    totalServiceTime.addAndGet(time);
 
-    count++;
+    int n = count.incrementAndGet();
     long curTime = System.currentTimeMillis();
 
-    if ((count == ESTIMATION_SIZE) ||
+    if ((n >= ESTIMATION_SIZE) ||
 	(curTime - lastTime >= ESTIMATION_TIME)) {
-      if (totalServiceTime == 0) totalServiceTime = 1;
-      double rate = totalEvents / (totalServiceTime * 1.0e-3);
-      serviceRate = (rate * SMOOTH_ALPHA) + (serviceRate * (1.0 - SMOOTH_ALPHA));
-      if (DEBUG) System.err.println("Stats <"+stage.getStage().getName()+">: numEvents="+totalEvents+" time="+totalServiceTime+", rate="+serviceRate);
-      count = 0;
-      lastTime = curTime;
-      totalEvents = totalServiceTime = 0;
+      // Only one thread ends the estimation interval
+      synchronized (this) {
+	if ((count.get() < ESTIMATION_SIZE) && 
+	    (curTime - lastTime < ESTIMATION_TIME)) return;
+	count.set(0);
+	lastTime = curTime;
+	long events = totalEvents.getAndSet(0);
+	long stime = totalServiceTime.getAndSet(0);
+	if (stime == 0) stime = 1;
+	double rate = events / (stime * 1.0e-3);
+	serviceRate = (rate * SMOOTH_ALPHA) + (serviceRate * (1.0 - SMOOTH_ALPHA));
+	if (DEBUG) System.err.println("Stats <"+stage.getStage().getName()+">: numEvents="+events+" time="+stime+", rate="+serviceRate);
+      }
     }
   }
 
   /** Record 90th percentile response time in msec. */
-  public synchronized void record90thRT(double rt_sample) {
+  public void record90thRT(double rt_sample) {
     this.rt90thPercentile = rt_sample;
   }
 
   /** Get 90th percentile response time in msec. */
-  public synchronized double get90thRT() {
+  public double get90thRT() {
     return this.rt90thPercentile;
   }
 
+  /** 
+   * Record the latencies of a batch of events which took 'serviceNanos'
+   * nanoseconds to process. Queueing delay is recorded by the stage's
+   * queue, if it is a QueueTimingIF.
+   */
+  public void recordBatch(QueueElementIF events[], long serviceNanos) {
+    if (events.length == 0) return;
+    long service = serviceNanos / 1000;
+    serviceTime.record(service / events.length, events.length);
+
+    long curTime = 0;
+    for (int i = 0; i < events.length; i++) {
+      if (events[i] instanceof TimeStampedEvent) {
+	long ts = ((TimeStampedEvent)events[i]).timestamp;
+	if (ts == 0) continue;
+	if (curTime == 0) curTime = System.currentTimeMillis();
+	responseTime.record((curTime - ts) * 1000);
+      }
+    }
+  }
+
+  /** Get the histogram of per-event service times in usec. */
+  public LatencyHistogram getServiceTimeHistogram() {
+    return serviceTime;
+  }
 
+  /** Get the histogram of per-event queueing delays in usec. */
+  public LatencyHistogram getQueueDelayHistogram() {
+    return queueDelay;
+  }
+
+  /** Get the histogram of per-event response times in usec. */
+  public LatencyHistogram getResponseTimeHistogram() {
+    return responseTime;
+  }
 
 }
 
@@ -27,7 +27,9 @@ package seda.sandStorm.internal;
 import seda.sandStorm.api.*;
 import seda.sandStorm.api.internal.*;
 import seda.sandStorm.core.FiniteQueue;
+import seda.sandStorm.core.LockFreeQueue;
 import seda.sandStorm.core.QueueThresholdPredicate;
+import seda.sandStorm.main.SandstormConfig;
 
 /**
  * A StageWrapper is a basic implementation of StageWrapperIF for 
@@ -43,7 +45,7 @@ class StageWrapper implements StageWrapperIF {
   private StageIF stage;
   private EventHandlerIF handler;
   private ConfigDataIF config;
-  private FiniteQueue eventQ;
+  private QueueIF eventQ;
   private ThreadManagerIF threadmgr;
   private StageStatsIF stats;
   private ResponseTimeControllerIF rtcon;
@@ -59,7 +61,7 @@ class StageWrapper implements StageWrapperIF {
     this.handler = handler;
     this.config = config;
     this.threadmgr = threadmgr;
-    this.eventQ = new FiniteQueue(name, threadmgr);
+    this.eventQ = createQueue();
 
     setup();
   }
@@ -75,27 +77,67 @@ class StageWrapper implements StageWrapperIF {
     this.config = config;
     this.threadmgr = threadmgr;
 
-    this.eventQ = new FiniteQueue(name, threadmgr);
+    this.eventQ = createQueue();
     QueueThresholdPredicate pred = new QueueThresholdPredicate(eventQ, queueThreshold);
     eventQ.setEnqueuePredicate(pred);
 
     setup();
   }
 
+  // Create the event queue of the type given by the configuration
+  private QueueIF createQueue() {
+    SandstormConfigIF mgrcfg = mgr.getConfig();
+    String qtype = mgrcfg.getString("global.queue.type");
+    int capacity = mgrcfg.getInt("global.queue.capacity", LockFreeQueue.DEFAULT_CAPACITY);
+
+    // override from stage config
+    qtype = mgrcfg.getString("stages." + name + ".queue.type", qtype);
+    capacity = mgrcfg.getInt("stages." + name + ".queue.capacity", capacity);
+
+    // Thread managers which schedule stages individually want to know
+    // which queue an enqueue was made on
+    ThreadManagerIF qtm = threadmgr;
+    if (threadmgr instanceof StageSchedulerIF) {
+      qtm = ((StageSchedulerIF)threadmgr).getStageWaker(name);
+    }
+
+    if ((qtype == null) || qtype.equals(SandstormConfig.QUEUE_FINITE)) {
+      return new FiniteQueue(name, qtm);
+    } else if (qtype.equals(SandstormConfig.QUEUE_LOCKFREE)) {
+      return new LockFreeQueue(capacity, name, qtm);
+    } else {
+      throw new RuntimeException("StageWrapper <"+name+">: Bad queue type "+qtype);
+    }
+  }
+
   // Internal initialization
   private void setup() {
     System.err.print("Creating Stage <"+name+">");
 
     SandstormConfigIF mgrcfg = mgr.getConfig();
 
+    boolean batchDequeue = mgrcfg.getBoolean("stages." + name + ".batchDequeue.enable", 
+	mgrcfg.getBoolean("global.batchDequeue.enable"));
+
     if (mgrcfg.getBoolean("global.batchController.enable")) {
       System.err.print(", batch controller enabled");
       this.sorter = new AggThrottleBatchSorter();
+    } else if (batchDequeue) {
+      System.err.print(", batch dequeue enabled");
+      this.sorter = new FillBatchSorter();
     } else {
       this.sorter = new NullBatchSorter();
     }
 
     this.stats = new StageStats(this);
+
+    // Record the time each event waits on the queue
+    boolean recordWait = mgrcfg.getBoolean("stages." + name + ".queue.recordWait",
+	mgrcfg.getBoolean("global.queue.recordWait"));
+    if (recordWait && (eventQ instanceof QueueTimingIF)) {
+      ((QueueTimingIF)eventQ).setWaitHistogram(stats.getQueueDelayHistogram());
+    }
+
     this.stage = new Stage(name, this, (SinkIF)eventQ, config);
     config.setStage(this.stage);
 
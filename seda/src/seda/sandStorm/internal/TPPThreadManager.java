@@ -26,6 +26,7 @@ package seda.sandStorm.internal;
 
 import seda.sandStorm.api.*;
 import seda.sandStorm.api.internal.*;
+import seda.sandStorm.core.EventTracer;
 import seda.sandStorm.main.SandstormConfig;
 
 import java.util.Enumeration;
@@ -298,7 +299,7 @@ class TPPThreadManager implements ThreadManagerIF {
 
 	    // No need to pay synchronization cost here for
 	    // stages that are SingleThreaded
-	    handler.handleEvents(qelarr);		    
+	    EventTracer.handleEvents(handler, qelarr);
 
 	    if(DEBUG) System.err.println(name+": returned from handleEvents for "+element.stage);
 	  } 
@@ -26,6 +26,7 @@ package seda.sandStorm.internal;
 
 import seda.sandStorm.api.*;
 import seda.sandStorm.api.internal.*;
+import seda.sandStorm.core.EventTracer;
 
 import java.util.Enumeration;
 import java.util.Hashtable;
@@ -182,8 +183,6 @@ public class TPSThreadManager implements ThreadManagerIF, sandStormConst {
        	try {
 	  if (DEBUG_VERBOSE) System.err.println(name+": Doing blocking dequeue for "+wrapper);
 
-	  Thread.yield(); // only accomplishes delay
-
 	  // Run any pending batches
 	  boolean ranbatch = false;
 	  BatchDescrIF batch;
@@ -195,12 +194,15 @@ public class TPSThreadManager implements ThreadManagerIF, sandStormConst {
 
 	    // Call event handler
 	    tstart = System.currentTimeMillis();
-	    handler.handleEvents(events);
+	    long nstart = System.nanoTime();
+	    EventTracer.handleEvents(handler, events);
 	    batch.batchDone();
+	    long ntime = System.nanoTime() - nstart;
 	    tend = System.currentTimeMillis();
 
-	    // Record service rate 
+	    // Record service rate and latencies
 	    wrapper.getStats().recordServiceRate(events.length, tend-tstart);
+	    wrapper.getStats().recordBatch(events, ntime);
 
 	    // Run response time controller 
 	    if (rtController != null) {
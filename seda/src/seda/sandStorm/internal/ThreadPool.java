@@ -28,6 +28,7 @@ import seda.sandStorm.api.ManagerIF;
 import seda.sandStorm.api.ProfilableIF;
 import seda.sandStorm.api.SandstormConfigIF;
 import seda.sandStorm.api.internal.StageWrapperIF;
+import seda.sandStorm.api.internal.ThreadPoolIF;
 
 import java.util.Vector;
 
@@ -37,7 +38,7 @@ import java.util.Vector;
  * @author   Matt Welsh
  */
 
-public class ThreadPool implements ProfilableIF {
+public class ThreadPool implements ThreadPoolIF, ProfilableIF {
 
   private static final boolean DEBUG = false;
 
@@ -177,7 +178,7 @@ public class ThreadPool implements ProfilableIF {
   /**
    * Add threads to this pool.
    */
-  void addThreads(int num, boolean start) {
+  public void addThreads(int num, boolean start) {
     synchronized (this) {
       int numToAdd;
       if (maxThreads < 0) {
@@ -202,7 +203,7 @@ public class ThreadPool implements ProfilableIF {
   /**
    * Remove threads from pool.
    */
-  void removeThreads(int num) {
+  public void removeThreads(int num) {
     System.err.print("TP <"+poolname+">: Removing "+num+" threads from pool, ");
     synchronized (this) {
       for (int i = 0; (i < num) && (numThreads() > minThreads); i++) {
@@ -227,7 +228,7 @@ public class ThreadPool implements ProfilableIF {
   /**
    * Return the number of threads in this pool. 
    */
-  int numThreads() {
+  public int numThreads() {
     synchronized (this) {
       return threads.size();
     }
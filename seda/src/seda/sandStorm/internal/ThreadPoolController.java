@@ -28,6 +28,7 @@ import seda.sandStorm.api.ManagerIF;
 import seda.sandStorm.api.ProfilableIF;
 import seda.sandStorm.api.SandstormConfigIF;
 import seda.sandStorm.api.internal.StageWrapperIF;
+import seda.sandStorm.api.internal.ThreadPoolIF;
 
 import java.util.Random;
 import java.util.Vector;
@@ -97,7 +98,7 @@ public class ThreadPoolController {
    * Register a thread pool with this controller, using the queue threshold
    * specified by the system configuration.
    */
-  public void register(StageWrapperIF stage, ThreadPool tp) {
+  public void register(StageWrapperIF stage, ThreadPoolIF tp) {
     SandstormConfigIF config = mgr.getConfig();
     int thresh = config.getInt("stages."+stage.getStage().getName()+".threadPool.sizeController.threshold", controllerThreshold);
     tpvec.addElement(new tpcClient(stage, tp, null, thresh));
@@ -107,10 +108,16 @@ public class ThreadPoolController {
    * Register a thread pool with this controller, using the queue threshold
    * specified by the system configuration.
    */
-  public void register(StageWrapperIF stage, ThreadPool tp, ProfilableIF metric) {
+  public void register(StageWrapperIF stage, ThreadPoolIF tp, ProfilableIF metric) {
     tpvec.addElement(new tpcClient(stage, tp, metric, controllerThreshold));
   }
 
+  // True if the StageGraphAnalyzer has named this stage the bottleneck
+  private boolean isBottleneck(StageWrapperIF stage) {
+    StageGraphAnalysis a = mgr.getProfiler().getGraphProfiler().getAnalysis();
+    return ((a != null) && (stage != null) && (a.getBottleneck() == stage));
+  }
+
   private void start() {
     System.err.println("ThreadPoolController: Started, delay "+controllerDelay+" ms, threshold "+controllerThreshold+", autoMaxDetect "+autoMaxDetect);
     controller = new Thread(new controllerThread(), "TPC");
@@ -122,7 +129,7 @@ public class ThreadPoolController {
    */
   class tpcClient {
     private StageWrapperIF stage;
-    private ThreadPool tp;
+    private ThreadPoolIF tp;
     private int threshold;
     private ProfilableIF metric;
 
@@ -131,7 +138,7 @@ public class ThreadPoolController {
     double savedThroughput, avgThroughput;
     long last_time, reset_time;
 
-    tpcClient(final StageWrapperIF stage, ThreadPool tp, ProfilableIF metric, int threshold) {
+    tpcClient(final StageWrapperIF stage, ThreadPoolIF tp, ProfilableIF metric, int threshold) {
       this.stage = stage;
       this.tp = tp;
       this.threshold = threshold;
@@ -217,6 +224,8 @@ public class ThreadPoolController {
 	  //if (DEBUG) System.err.println("TP controller: "+tpc.tp+" has size "+sz+", threshold "+tpc.threshold);
 	  boolean addThread = false;
 	  if (sz >= tpc.threshold) addThread = true;
+	  // Grow the bottleneck stage as soon as it has work queued
+	  if ((sz > 0) && isBottleneck(tpc.stage)) addThread = true;
 
 	  if (addThread) {
 	    tpc.tp.addThreads(1, true);
@@ -0,0 +1,381 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.sandStorm.internal;
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.api.internal.*;
+import seda.sandStorm.core.EventTracer;
+
+import java.util.Hashtable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * VTThreadManager runs each stage batch on its own virtual thread, 
+ * rather than on a pool of OS threads dedicated to the stage. It is
+ * meant for stages whose event handlers block, such as file I/O or
+ * dynamic content generation, which would otherwise need large thread
+ * pools.
+ *
+ * <p>When events are enqueued onto a stage, a new runner is started 
+ * for it as long as the number of runners already active for the stage
+ * is below the stage's concurrency limit. Each runner processes batches
+ * from the stage's queue until the queue is empty, and then exits. The
+ * concurrency limit starts at <tt>threadPool.initialThreads</tt> and is 
+ * bounded by <tt>threadPool.minThreads</tt> and 
+ * <tt>threadPool.maxThreads</tt>, read from the stage's section and then
+ * from the global section as for ThreadPool. If the thread pool size 
+ * controller is enabled, it adjusts the limit rather than spawning 
+ * threads. A SingleThreadedEventHandlerIF stage always has a limit of 1.
+ *
+ * <p>Virtual threads require a JVM which supports them (Java 21 or
+ * later). On older JVMs runners are executed on a cached pool of daemon
+ * threads instead, which still avoids a dedicated pool per stage.
+ *
+ * @see seda.sandStorm.api.internal.StageSchedulerIF
+ */
+class VTThreadManager implements StageSchedulerIF, sandStormConst {
+
+  private static final boolean DEBUG = false;
+  private static final boolean DEBUG_VERBOSE = false;
+
+  private ManagerIF mgr;
+  private SandstormConfigIF config;
+  private boolean crashOnException;
+  private Hashtable entries;
+  private ExecutorService executor;
+  private ThreadPoolController sizeController;
+
+  /**
+   * Create a VTThreadManager.
+   */
+  VTThreadManager(ManagerIF mgr) {
+    this.mgr = mgr;
+    this.config = mgr.getConfig();
+    this.crashOnException = config.getBoolean("global.crashOnException");
+    this.entries = new Hashtable();
+
+    if (config.getBoolean("global.threadPool.sizeController.enable")) {
+      sizeController = new ThreadPoolController(mgr);
+    }
+
+    executor = createExecutor();
+  }
+
+  // Use a virtual-thread-per-task executor if this JVM has one
+  private ExecutorService createExecutor() {
+    try {
+      ExecutorService es = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      System.err.println("VTThreadManager: Using virtual threads");
+      return es;
+    } catch (Exception e) {
+      System.err.println("VTThreadManager: Virtual threads not supported by this JVM, using cached thread pool");
+      final AtomicInteger threadNum = new AtomicInteger(0);
+      return Executors.newCachedThreadPool(new ThreadFactory() {
+	public Thread newThread(Runnable r) {
+	  Thread t = new Thread(r, "VTTM-"+threadNum.getAndIncrement());
+	  t.setDaemon(true);
+	  return t;
+	}
+      });
+    }
+  }
+
+  // Return the entry for the given stage name, creating it if necessary
+  private stageEntry getEntry(String name) {
+    synchronized (entries) {
+      stageEntry e = (stageEntry)entries.get(name);
+      if (e == null) {
+	e = new stageEntry(name);
+	entries.put(name, e);
+      }
+      return e;
+    }
+  }
+
+  /**
+   * Return the ThreadManagerIF to be passed to the given stage's event
+   * queue, which starts a runner for the stage when events are enqueued.
+   */
+  public ThreadManagerIF getStageWaker(String stagename) {
+    return getEntry(stagename);
+  }
+
+  /**
+   * Register a stage with this thread manager.
+   */
+  public void register(StageWrapperIF stage) {
+    stageEntry e = getEntry(stage.getStage().getName());
+    e.bind(stage);
+    e.wake();
+  }
+
+  /**
+   * Deregister a stage with this thread manager.
+   */
+  public void deregister(StageWrapperIF stage) {
+    String name = stage.getStage().getName();
+    synchronized (entries) {
+      stageEntry e = (stageEntry)entries.get(name);
+      if ((e == null) || (e.wrapper != stage)) {
+	throw new IllegalArgumentException("Stage "+stage+" not registered with this TM");
+      }
+      e.dead = true;
+      entries.remove(name);
+    }
+  }
+
+  /**
+   * Stop the thread manager and all threads managed by it.
+   */
+  public void deregisterAll() {
+    synchronized (entries) {
+      java.util.Enumeration e = entries.elements();
+      while (e.hasMoreElements()) {
+	((stageEntry)e.nextElement()).dead = true;
+      }
+      entries.clear();
+    }
+    executor.shutdown();
+  }
+
+  /**
+   * Wake any thread waiting for work. Only called by queues which were
+   * given the thread manager itself rather than a stage waker; start 
+   * runners for every stage with pending events.
+   */
+  public void wake() {
+    Object arr[];
+    synchronized (entries) {
+      arr = entries.values().toArray();
+    }
+    for (int i = 0; i < arr.length; i++) {
+      stageEntry e = (stageEntry)arr[i];
+      if ((e.source != null) && (e.source.size() > 0)) e.wake();
+    }
+  }
+
+  /**
+   * Per-stage state. Also serves as the stage waker passed to the 
+   * stage's event queue, and as the ThreadPoolIF which the thread pool
+   * controller resizes.
+   */
+  class stageEntry implements ThreadManagerIF, ThreadPoolIF, ProfilableIF, Runnable {
+    String name;
+    StageWrapperIF wrapper;
+    SourceIF source;
+    BatchSorterIF sorter;
+    EventHandlerIF handler;
+    ResponseTimeControllerIF rtController;
+    AtomicInteger running = new AtomicInteger(0);
+    // Bumped by every wake(), so a runner can tell whether an enqueue
+    // arrived after its last empty dequeue
+    AtomicInteger wakes = new AtomicInteger(0);
+    volatile int limit;
+    int minLimit, maxLimit;
+    volatile boolean bound = false;
+    volatile boolean dead = false;
+
+    stageEntry(String name) {
+      this.name = name;
+    }
+
+    void bind(StageWrapperIF wrapper) {
+      this.wrapper = wrapper;
+      this.source = wrapper.getSource();
+      this.handler = wrapper.getEventHandler();
+      this.rtController = wrapper.getResponseTimeController();
+      this.sorter = wrapper.getBatchSorter();
+      if (this.sorter == null) this.sorter = new NullBatchSorter();
+      sorter.init(wrapper, mgr);
+
+      if (handler instanceof SingleThreadedEventHandlerIF) {
+	limit = minLimit = maxLimit = 1;
+      } else {
+	// First look for stages.[stageName] options, then global options
+	String tag = "stages."+name+".threadPool.";
+	String globaltag = "global.threadPool.";
+	limit = Math.max(1, config.getInt(tag+"initialThreads", config.getInt(globaltag+"initialThreads")));
+	minLimit = Math.max(1, config.getInt(tag+"minThreads", config.getInt(globaltag+"minThreads")));
+	maxLimit = config.getInt(tag+"maxThreads", config.getInt(globaltag+"maxThreads"));
+	if (maxLimit < 1) maxLimit = -1; // Infinite
+	if (limit < minLimit) limit = minLimit;
+	if ((maxLimit > 0) && (limit > maxLimit)) limit = maxLimit;
+
+	if (sizeController != null) {
+	  // The sizeController is globally enabled -- has the user disabled
+	  // it for this stage?
+	  String val = config.getString(tag+"sizeController.enable");
+	  if ((val == null) || val.equals("true") || val.equals("TRUE")) {
+	    sizeController.register(wrapper, this);
+	  }
+	}
+      }
+      System.err.println("VTTM <"+name+">: concurrency limit "+limit+", min "+minLimit+", max "+maxLimit);
+      mgr.getProfiler().add("ThreadPool <"+name+">", this);
+      bound = true;
+    }
+
+    // Claim a runner slot if below the limit
+    private boolean tryAcquire() {
+      while (true) {
+	int r = running.get();
+	if (r >= limit) return false;
+	if (running.compareAndSet(r, r+1)) return true;
+      }
+    }
+
+    /**
+     * Start a runner for this stage, if it is below its concurrency
+     * limit. Called by the stage's event queue on enqueue.
+     */
+    public void wake() {
+      if (!bound || dead) return;
+      wakes.incrementAndGet();
+      if (!tryAcquire()) return;
+      try {
+	executor.execute(this);
+      } catch (RuntimeException re) {
+	// Executor has been shut down
+	running.decrementAndGet();
+      }
+    }
+
+    /**
+     * Runner body: process batches until the queue is empty.
+     */
+    public void run() {
+      if (DEBUG_VERBOSE) System.err.println("VTTM <"+name+">: runner starting, running "+running.get());
+      while (true) {
+	int seen;
+	do {
+	  seen = wakes.get();
+	} while (!dead && (running.get() <= limit) && runBatch());
+	running.decrementAndGet();
+
+	// An enqueue may have arrived after our last dequeue but been
+	// refused a runner because we still held our slot. The queue size
+	// is no guide here: it includes provisional enqueues, which cannot
+	// be dequeued until their commit wakes us.
+	if (dead || (wakes.get() == seen) || !tryAcquire()) break;
+      }
+      if (DEBUG_VERBOSE) System.err.println("VTTM <"+name+">: runner exiting");
+    }
+
+    // Run one batch; return false if the queue was empty
+    private boolean runBatch() {
+      try {
+	BatchDescrIF batch = sorter.nextBatch(0);
+	if (batch == null) return false;
+	QueueElementIF events[] = batch.getBatch();
+	if (DEBUG_VERBOSE) System.err.println("VTTM <"+name+">: Got batch of "+events.length+" events");
+
+	long tstart = System.currentTimeMillis();
+	long nstart = System.nanoTime();
+	try {
+	  EventTracer.handleEvents(handler, events);
+	} finally {
+	  batch.batchDone();
+	}
+	long ntime = System.nanoTime() - nstart;
+	long tend = System.currentTimeMillis();
+
+	// Record service rate and latencies
+	wrapper.getStats().recordServiceRate(events.length, tend-tstart);
+	wrapper.getStats().recordBatch(events, ntime);
+
+	// Run response time controller 
+	if (rtController != null) {
+	  rtController.adjustThreshold(events, tend-tstart);
+	}
+      } catch (Exception e) {
+	System.err.println("Sandstorm: Stage <"+name+"> got exception: "+e);
+	e.printStackTrace();
+	if (crashOnException) {
+	  System.err.println("Sandstorm: Crashing runtime due to exception - goodbye");
+	  System.exit(-1);
+	}
+      }
+      return true;
+    }
+
+    /**
+     * Raise the concurrency limit; called by the thread pool controller.
+     */
+    public void addThreads(int num, boolean start) {
+      synchronized (this) {
+	int newLimit = limit + num;
+	if ((maxLimit > 0) && (newLimit > maxLimit)) newLimit = maxLimit;
+	if (newLimit == limit) return;
+	System.err.println("VTTM <"+name+">: Raising concurrency limit to "+newLimit);
+	limit = newLimit;
+      }
+      // Put the new capacity to work on any backlog
+      if (start) {
+	for (int i = 0; i < num; i++) wake();
+      }
+    }
+
+    /**
+     * Lower the concurrency limit; called by the thread pool controller.
+     * Runners above the new limit exit after their current batch.
+     */
+    public void removeThreads(int num) {
+      synchronized (this) {
+	int newLimit = Math.max(minLimit, limit - num);
+	System.err.println("VTTM <"+name+">: Lowering concurrency limit to "+newLimit);
+	limit = newLimit;
+      }
+    }
+
+    /**
+     * Return the current concurrency limit.
+     */
+    public int numThreads() {
+      return limit;
+    }
+
+    public int profileSize() {
+      return limit;
+    }
+
+    public void register(StageWrapperIF stage) {
+      VTThreadManager.this.register(stage);
+    }
+
+    public void deregister(StageWrapperIF stage) {
+      VTThreadManager.this.deregister(stage);
+    }
+
+    public void deregisterAll() {
+      VTThreadManager.this.deregisterAll();
+    }
+
+    public String toString() {
+      return "VTTM stage <"+name+">";
+    }
+  }
+
+}
@@ -0,0 +1,414 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.sandStorm.internal;
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.api.internal.*;
+import seda.sandStorm.core.EventTracer;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WSThreadManager is a work-stealing thread manager which runs all of
+ * its stages on a fixed pool of worker threads, by default one per CPU.
+ * This allows hundreds of stages to be run without hundreds of threads.
+ *
+ * <p>Each worker has a local deque of runnable stages. When an event is
+ * enqueued onto an idle stage, the stage is pushed onto the deque of 
+ * the enqueueing worker (or, for threads outside the pool, onto the deque
+ * of the next worker in round-robin order). A worker runs one batch
+ * from the stage at the head of its own deque; when its deque is empty
+ * it steals from the tail of its neighbours' deques, and parks only
+ * when no deque has work. There is no global run queue or lock on the
+ * scheduling path.
+ *
+ * <p>Each stage's batch is obtained from its BatchSorterIF without
+ * blocking. A stage whose handler is not a SingleThreadedEventHandlerIF
+ * is made runnable again as soon as a batch has been taken from it, so
+ * idle workers may steal it and run further batches concurrently.
+ * A SingleThreadedEventHandlerIF is never run by more than one worker
+ * at a time.
+ *
+ * <p>The number of workers is given by <tt>global.WSTM.numThreads</tt>;
+ * a value of 0 uses one worker per available processor. Since the pool
+ * is fixed, stage thread pool sizing options are ignored.
+ *
+ * @see seda.sandStorm.api.internal.StageSchedulerIF
+ */
+class WSThreadManager implements StageSchedulerIF, sandStormConst {
+
+  private static final boolean DEBUG = false;
+  private static final boolean DEBUG_VERBOSE = false;
+
+  // Maximum time an idle worker parks before rescanning for work
+  private static final int IDLE_TIMEOUT = 100;
+
+  // Stage scheduling states
+  private static final int IDLE = 0;
+  private static final int QUEUED = 1;
+  private static final int RUNNING = 2;
+  private static final int RUNNING_DIRTY = 3;
+
+  private ManagerIF mgr;
+  private SandstormConfigIF config;
+  private boolean crashOnException;
+  private Hashtable entries;
+  private workerThread workers[];
+  private AtomicInteger nextWorker;
+  private AtomicInteger idleWorkers;
+  private Object idleLock;
+  private volatile boolean stopped = false;
+
+  /**
+   * Create a WSThreadManager and start its worker threads.
+   */
+  WSThreadManager(ManagerIF mgr) {
+    this.mgr = mgr;
+    this.config = mgr.getConfig();
+    this.crashOnException = config.getBoolean("global.crashOnException");
+    this.entries = new Hashtable();
+    this.nextWorker = new AtomicInteger(0);
+    this.idleWorkers = new AtomicInteger(0);
+    this.idleLock = new Object();
+
+    int numThreads = config.getInt("global.WSTM.numThreads");
+    if (numThreads <= 0) numThreads = Runtime.getRuntime().availableProcessors();
+
+    workers = new workerThread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      workers[i] = new workerThread(i);
+    }
+    for (int i = 0; i < numThreads; i++) {
+      workers[i].start();
+    }
+  }
+
+  // Return the entry for the given stage name, creating it if necessary
+  private stageEntry getEntry(String name) {
+    synchronized (entries) {
+      stageEntry e = (stageEntry)entries.get(name);
+      if (e == null) {
+	e = new stageEntry(name);
+	entries.put(name, e);
+      }
+      return e;
+    }
+  }
+
+  /**
+   * Return the ThreadManagerIF to be passed to the given stage's event
+   * queue, which schedules the stage when events are enqueued.
+   */
+  public ThreadManagerIF getStageWaker(String stagename) {
+    return getEntry(stagename);
+  }
+
+  /**
+   * Register a stage with this thread manager.
+   */
+  public void register(StageWrapperIF stage) {
+    stageEntry e = getEntry(stage.getStage().getName());
+    e.bind(stage);
+    // Pick up any events enqueued before registration
+    e.wake();
+  }
+
+  /**
+   * Deregister a stage with this thread manager.
+   */
+  public void deregister(StageWrapperIF stage) {
+    String name = stage.getStage().getName();
+    synchronized (entries) {
+      stageEntry e = (stageEntry)entries.get(name);
+      if ((e == null) || (e.wrapper != stage)) {
+	throw new IllegalArgumentException("Stage "+stage+" not registered with this TM");
+      }
+      e.dead = true;
+      entries.remove(name);
+    }
+  }
+
+  /**
+   * Stop the thread manager and all threads managed by it.
+   */
+  public void deregisterAll() {
+    synchronized (entries) {
+      Enumeration e = entries.elements();
+      while (e.hasMoreElements()) {
+	((stageEntry)e.nextElement()).dead = true;
+      }
+      entries.clear();
+    }
+    stopped = true;
+    synchronized (idleLock) {
+      idleLock.notifyAll();
+    }
+  }
+
+  /**
+   * Wake any thread waiting for work. Queues created with a stage
+   * waker (see <tt>getStageWaker()</tt>) schedule their own stage;
+   * this method is only called by queues which were given the thread
+   * manager itself, so schedule every stage which has pending events.
+   */
+  public void wake() {
+    stageEntry arr[];
+    synchronized (entries) {
+      arr = new stageEntry[entries.size()];
+      Enumeration e = entries.elements();
+      for (int i = 0; i < arr.length; i++) arr[i] = (stageEntry)e.nextElement();
+    }
+    for (int i = 0; i < arr.length; i++) {
+      SourceIF src = arr[i].source;
+      if ((src != null) && (src.size() > 0)) arr[i].wake();
+    }
+  }
+
+  // Push a runnable stage onto a worker's deque and wake an idle worker
+  private void push(stageEntry e) {
+    Thread cur = Thread.currentThread();
+    workerThread w;
+    if ((cur instanceof workerThread) && (((workerThread)cur).owner() == this)) {
+      w = (workerThread)cur;
+    } else {
+      int n = nextWorker.getAndIncrement() & Integer.MAX_VALUE;
+      w = workers[n % workers.length];
+    }
+    w.deque.offerLast(e);
+
+    if (idleWorkers.get() > 0) {
+      synchronized (idleLock) {
+	idleLock.notify();
+      }
+    }
+  }
+
+  // True if any worker has work queued
+  private boolean haveWork() {
+    for (int i = 0; i < workers.length; i++) {
+      if (!workers[i].deque.isEmpty()) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Per-stage scheduling state. Also serves as the stage waker which 
+   * is passed to the stage's event queue.
+   */
+  class stageEntry implements ThreadManagerIF {
+    String name;
+    StageWrapperIF wrapper;
+    SourceIF source;
+    BatchSorterIF sorter;
+    EventHandlerIF handler;
+    ResponseTimeControllerIF rtController;
+    boolean exclusive;
+    AtomicInteger state = new AtomicInteger(IDLE);
+    volatile boolean bound = false;
+    volatile boolean dead = false;
+
+    stageEntry(String name) {
+      this.name = name;
+    }
+
+    void bind(StageWrapperIF wrapper) {
+      this.wrapper = wrapper;
+      this.source = wrapper.getSource();
+      this.handler = wrapper.getEventHandler();
+      this.exclusive = (handler instanceof SingleThreadedEventHandlerIF);
+      this.rtController = wrapper.getResponseTimeController();
+      this.sorter = wrapper.getBatchSorter();
+      if (this.sorter == null) this.sorter = new NullBatchSorter();
+      sorter.init(wrapper, mgr);
+      bound = true;
+    }
+
+    /**
+     * Schedule this stage. Called by the stage's event queue on enqueue.
+     */
+    public void wake() {
+      if (!bound || dead) return;
+      while (true) {
+	int s = state.get();
+	if (s == IDLE) {
+	  if (state.compareAndSet(IDLE, QUEUED)) {
+	    push(this);
+	    return;
+	  }
+	} else if (s == RUNNING) {
+	  if (state.compareAndSet(RUNNING, RUNNING_DIRTY)) return;
+	} else {
+	  // Already queued, or will be rescheduled when it finishes
+	  return;
+	}
+      }
+    }
+
+    public void register(StageWrapperIF stage) {
+      WSThreadManager.this.register(stage);
+    }
+
+    public void deregister(StageWrapperIF stage) {
+      WSThreadManager.this.deregister(stage);
+    }
+
+    public void deregisterAll() {
+      WSThreadManager.this.deregisterAll();
+    }
+
+    public String toString() {
+      return "WSTM stage <"+name+">";
+    }
+  }
+
+  /**
+   * A single WSTM worker thread.
+   */
+  class workerThread extends Thread {
+    int index;
+    ConcurrentLinkedDeque deque;
+
+    workerThread(int index) {
+      super("WSTM-"+index);
+      this.index = index;
+      this.deque = new ConcurrentLinkedDeque();
+    }
+
+    WSThreadManager owner() {
+      return WSThreadManager.this;
+    }
+
+    // Steal a stage from the tail of another worker's deque
+    private stageEntry steal() {
+      for (int i = 1; i < workers.length; i++) {
+	workerThread victim = workers[(index + i) % workers.length];
+	stageEntry e = (stageEntry)victim.deque.pollLast();
+	if (e != null) {
+	  if (DEBUG_VERBOSE) System.err.println(getName()+": stole "+e+" from "+victim.getName());
+	  return e;
+	}
+      }
+      return null;
+    }
+
+    private void park() {
+      idleWorkers.incrementAndGet();
+      try {
+	synchronized (idleLock) {
+	  if (!stopped && !haveWork()) idleLock.wait(IDLE_TIMEOUT);
+	}
+      } catch (InterruptedException ie) {
+	// Ignore
+      } finally {
+	idleWorkers.decrementAndGet();
+      }
+    }
+
+    public void run() {
+      if (DEBUG) System.err.println(getName()+": starting");
+
+      while (!stopped) {
+	stageEntry e = (stageEntry)deque.pollFirst();
+	if (e == null) e = steal();
+	if (e == null) {
+	  park();
+	  continue;
+	}
+	if (e.dead) continue;
+
+	try {
+	  if (e.exclusive) {
+	    runExclusive(e);
+	  } else {
+	    runShared(e);
+	  }
+	} catch (Exception ex) {
+	  System.err.println("Sandstorm: Stage <"+e.name+"> got exception: "+ex);
+	  ex.printStackTrace();
+	  if (crashOnException) {
+	    System.err.println("Sandstorm: Crashing runtime due to exception - goodbye");
+	    System.exit(-1);
+	  }
+	}
+      }
+      if (DEBUG) System.err.println(getName()+": Exiting");
+    }
+
+    // Run one batch of a stage which may run on several workers at once
+    private void runShared(stageEntry e) throws Exception {
+      e.state.set(IDLE);
+      BatchDescrIF batch = e.sorter.nextBatch(0);
+      if (batch == null) return;
+      // Let other workers pick up the rest of the queue while we run
+      if (e.source.size() > 0) e.wake();
+      runBatch(e, batch);
+    }
+
+    // Run one batch of a SingleThreadedEventHandlerIF stage
+    private void runExclusive(stageEntry e) throws Exception {
+      e.state.set(RUNNING);
+      BatchDescrIF batch = null;
+      try {
+	batch = e.sorter.nextBatch(0);
+	if (batch != null) runBatch(e, batch);
+      } finally {
+	// Reschedule if events remain or arrived while running. If
+	// nothing was dequeued, the remaining events (if any) are 
+	// provisional and will be scheduled when committed.
+	if (((batch != null) && (e.source.size() > 0)) || 
+	    !e.state.compareAndSet(RUNNING, IDLE)) {
+	  e.state.set(QUEUED);
+	  push(e);
+	}
+      }
+    }
+
+    private void runBatch(stageEntry e, BatchDescrIF batch) throws Exception {
+      QueueElementIF events[] = batch.getBatch();
+      if (DEBUG_VERBOSE) System.err.println(getName()+": <"+e.name+"> got batch of "+events.length+" events");
+
+      long tstart = System.currentTimeMillis();
+      long nstart = System.nanoTime();
+      try {
+	EventTracer.handleEvents(e.handler, events);
+      } finally {
+	batch.batchDone();
+      }
+      long ntime = System.nanoTime() - nstart;
+      long tend = System.currentTimeMillis();
+
+      // Record service rate and latencies
+      e.wrapper.getStats().recordServiceRate(events.length, tend-tstart);
+      e.wrapper.getStats().recordBatch(events, ntime);
+
+      // Run response time controller 
+      if (e.rtController != null) {
+	e.rtController.adjustThreshold(events, tend-tstart);
+      }
+    }
+  }
+
+}
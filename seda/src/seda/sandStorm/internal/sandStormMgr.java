@@ -25,9 +25,14 @@
 package seda.sandStorm.internal;
 
 import seda.sandStorm.api.*;
+import seda.sandStorm.api.internal.StageStatsIF;
 import seda.sandStorm.api.internal.StageWrapperIF;
 import seda.sandStorm.api.internal.SystemManagerIF;
 import seda.sandStorm.api.internal.ThreadManagerIF;
+import seda.sandStorm.core.BufferPool;
+import seda.sandStorm.core.EventTracer;
+import seda.sandStorm.core.QueueThresholdPredicate;
+import seda.sandStorm.core.RateLimitingPredicate;
 import seda.sandStorm.lib.aDisk.AFileMgr;
 import seda.sandStorm.lib.aSocket.aSocketMgr;
 import seda.sandStorm.main.SandstormConfig;
@@ -62,6 +67,7 @@ public class sandStormMgr implements ManagerIF, SystemManagerIF, sandStormConst
   private sandStormProfiler profiler;
   private SignalMgr signalMgr;
   private boolean crashOnException = false;
+  private boolean profiling, metrics;
 
   /**
    * Create a sandStormMgr which reads its configuration from the 
@@ -76,6 +82,9 @@ public class sandStormMgr implements ManagerIF, SystemManagerIF, sandStormConst
     signalMgr = new SignalMgr();
 
     crashOnException = mgrconfig.getBoolean("global.crashOnException");
+    profiling = mgrconfig.getBoolean("global.profile.enable");
+    metrics = mgrconfig.getBoolean("global.metrics.enable");
+    EventTracer.configure(mgrconfig);
     String dtm = mgrconfig.getString("global.defaultThreadManager");
     if (dtm == null) {
       throw new IllegalArgumentException("No threadmanager specified by configuration");
@@ -86,6 +95,10 @@ public class sandStormMgr implements ManagerIF, SystemManagerIF, sandStormConst
       defaulttm = new TPPThreadManager(mgrconfig);
     } else if (dtm.equals(SandstormConfig.THREADMGR_TPSTM)) {
       defaulttm = new TPSThreadManager(this);
+    } else if (dtm.equals(SandstormConfig.THREADMGR_WSTM)) {
+      defaulttm = new WSThreadManager(this);
+    } else if (dtm.equals(SandstormConfig.THREADMGR_VTTM)) {
+      defaulttm = new VTThreadManager(this);
     } else if (dtm.equals(SandstormConfig.THREADMGR_AggTPSTM)) {
       throw new Error("AggTPSThreadManager is no longer supported.");
       /* defaulttm = new AggTPSThreadManager(mgrconfig); */
@@ -107,6 +120,21 @@ public class sandStormMgr implements ManagerIF, SystemManagerIF, sandStormConst
     System.err.println("Sandstorm: Initializing stages");
     initStages();
 
+    int port = mgrconfig.getInt("global.metrics.port");
+    if (metrics && (port > 0)) {
+      if (mgrconfig.getBoolean("global.aSocket.enable")) {
+	System.err.println("Sandstorm: Exporting metrics on port "+port);
+	try {
+	  createStage("MetricsServer", new MetricsServer(this, port), 
+	      new String[] { "rtController.enable=false" });
+	} catch (Exception e) {
+	  System.err.println("Sandstorm: Cannot start metrics server: "+e);
+	}
+      } else {
+	System.err.println("Sandstorm: Not exporting metrics, aSocket is disabled");
+      }
+    }
+
     // Let the threads start
     try {
       System.err.println("Sandstorm: Waiting for all components to start...");
@@ -151,11 +179,29 @@ public class sandStormMgr implements ManagerIF, SystemManagerIF, sandStormConst
     // Create profiler even if disabled
     profiler = new sandStormProfiler(this);
 
-    if (mgrconfig.getBoolean("global.profile.enable")) {
+    if (profiling) {
       System.err.println("Sandstorm: Starting profiler");
       profiler.start();
     }
 
+    if (mgrconfig.getBoolean("global.graphAnalyzer.enable")) {
+      System.err.println("Sandstorm: Starting stage graph analyzer");
+      new StageGraphAnalyzer(this, profiler.getGraphProfiler()).start();
+    }
+
+    if (mgrconfig.getBoolean("global.bufferPool.enable")) {
+      System.err.println("Sandstorm: Enabling buffer pool");
+      BufferPool pool = BufferPool.getDefault();
+      pool.setMaxFree(mgrconfig.getInt("global.bufferPool.maxFree"));
+      pool.setLeakDetection(mgrconfig.getBoolean("global.bufferPool.leakDetection"));
+      pool.setEnabled(true);
+      if (profiling || metrics) {
+	for (int i = 0; i < pool.numSizeClasses(); i++) {
+	  profiler.add("BufferPool "+pool.getClassSize(i)+" outstanding", pool.getProfilable(i));
+	}
+      }
+    }
+
     if (mgrconfig.getBoolean("global.aSocket.enable")) {
       System.err.println("Sandstorm: Starting aSocket layer");
       aSocketMgr.initialize(this, this);
@@ -241,9 +287,24 @@ public class sandStormMgr implements ManagerIF, SystemManagerIF, sandStormConst
     }
     stagetbl.put(name, wrapper);
 
-    if (mgrconfig.getBoolean("global.profile.enable")) {
-      profiler.add(wrapper.getStage().getName()+" queueLength",
-	  (ProfilableIF)wrapper.getStage().getSink());
+    if (profiling || metrics) {
+      profileStage(wrapper);
+    }
+    if (profiling) {
+      if (wrapper.getStats() != null) {
+	final LatencyHistogram wait = wrapper.getStats().getQueueDelayHistogram();
+	profiler.add(wrapper.getStage().getName()+" queueWait90th",
+	    new ProfilableIF() {
+	    private LatencyHistogram.Snapshot last = wait.snapshot();
+	    // 90th percentile wait in usec since the last sample
+	    public int profileSize() {
+	      LatencyHistogram.Snapshot snap = wait.snapshot();
+	      long p = snap.minus(last).getPercentile(0.9);
+	      last = snap;
+	      return (int)Math.min(p, Integer.MAX_VALUE);
+	    }
+	    });
+      }
     }
 
     if (initialize) {
@@ -264,6 +325,44 @@ public class sandStormMgr implements ManagerIF, SystemManagerIF, sandStormConst
     return wrapper.getStage();
   } 
 
+  // Register the queue length, event count and admission control
+  // settings of the given stage with the profiler
+  private void profileStage(StageWrapperIF wrapper) {
+    final StageIF stage = wrapper.getStage();
+    String name = stage.getName();
+    profiler.add(name+" queueLength", (ProfilableIF)stage.getSink());
+
+    final StageStatsIF stats = wrapper.getStats();
+    if (stats != null) {
+      profiler.addMetric(name+" eventsProcessed", new MetricIF() {
+	public double metricValue() {
+	  return stats.getTotalEvents();
+	}
+      });
+    }
+
+    // The response time controller may replace the predicate at any
+    // time, so look it up on each read; -1 if not of that type
+    profiler.addMetric(name+" queueThreshold", new MetricIF() {
+      public double metricValue() {
+	SinkIF sink = stage.getSink();
+	if (sink == null) return -1;
+	EnqueuePredicateIF pred = sink.getEnqueuePredicate();
+	if (!(pred instanceof QueueThresholdPredicate)) return -1;
+	return ((QueueThresholdPredicate)pred).getThreshold();
+      }
+    });
+    profiler.addMetric(name+" targetRate", new MetricIF() {
+      public double metricValue() {
+	SinkIF sink = stage.getSink();
+	if (sink == null) return -1;
+	EnqueuePredicateIF pred = sink.getEnqueuePredicate();
+	if (!(pred instanceof RateLimitingPredicate)) return -1;
+	return ((RateLimitingPredicate)pred).getTargetRate();
+      }
+    });
+  }
+
   /**
    * Return the system profiler.
    */
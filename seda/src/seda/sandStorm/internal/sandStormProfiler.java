@@ -26,6 +26,7 @@
 package seda.sandStorm.internal;
 
 import seda.sandStorm.api.ManagerIF;
+import seda.sandStorm.api.MetricIF;
 import seda.sandStorm.api.ProfilableIF;
 import seda.sandStorm.api.ProfilerIF;
 import seda.sandStorm.api.SandstormConfigIF;
@@ -34,13 +35,19 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Date;
-import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * sandStormProfiler is an implementation of the ProfilerIF interface
  * for Sandstorm. It is implemented using a thread that periodically
  * samples the set of ProfilableIF's registered with it, and outputs
- * the profile to a file.
+ * the profile to a file. 
+ *
+ * <p>The registered objects are kept if either the profile or the
+ * metrics export (global.metrics.enable) is enabled, and can be read 
+ * at any time with getSnapshot(), which is what the profiling thread 
+ * and the metrics HTTP server do. The list of objects is copied on 
+ * write, so taking a snapshot holds no lock.
  *
  * @author Matt Welsh
  * @see ProfilerIF
@@ -50,7 +57,8 @@ class sandStormProfiler extends Thread implements sandStormConst, ProfilerIF {
 
   private int delay;
   private PrintWriter pw;
-  private Vector profilables;
+  private boolean registering;
+  private CopyOnWriteArrayList profilables;
   private boolean started = false;
   private StageGraph graphProfiler;
 
@@ -62,7 +70,8 @@ class sandStormProfiler extends Thread implements sandStormConst, ProfilerIF {
     if (config.getBoolean("global.profile.enable")) {
       pw = new PrintWriter(new FileWriter(filename, true));
     }
-    profilables = new Vector(1);
+    registering = (pw != null) || config.getBoolean("global.metrics.enable");
+    profilables = new CopyOnWriteArrayList();
   }
 
   /**
@@ -77,11 +86,41 @@ class sandStormProfiler extends Thread implements sandStormConst, ProfilerIF {
    */
   public void add(String name, ProfilableIF pr) {
     if (pr == null) return;
-    if (pw == null) return;
-    synchronized (profilables) {
-      pw.println("# Registered "+profilables.size()+" "+name);
-      profilables.addElement(new profile(name, pr));
+    register(new profile(name, pr, null));
+  }
+
+  /**
+   * Add a metric to this profiler.
+   */
+  public void addMetric(String name, MetricIF metric) {
+    if (metric == null) return;
+    register(new profile(name, null, metric));
+  }
+
+  // Synchronized so that the index logged matches the list position
+  private synchronized void register(profile p) {
+    if (!registering) return;
+    if (pw != null) pw.println("# Registered "+profilables.size()+" "+p.name);
+    profilables.add(p);
+  }
+
+  /**
+   * Read the current value of every registered object and metric.
+   */
+  public MetricsSnapshot getSnapshot() {
+    Runtime r = Runtime.getRuntime();
+    long totalmem = r.totalMemory()/1024;
+    long freemem = r.freeMemory()/1024;
+    Object arr[] = profilables.toArray();
+    String names[] = new String[arr.length];
+    double values[] = new double[arr.length];
+    for (int i = 0; i < arr.length; i++) {
+      profile p = (profile)arr[i];
+      names[i] = p.name;
+      values[i] = p.value();
     }
+    return new MetricsSnapshot(System.currentTimeMillis(), totalmem, freemem,
+	names, values);
   }
 
   public void run() {
@@ -90,22 +129,13 @@ class sandStormProfiler extends Thread implements sandStormConst, ProfilerIF {
     started = true;
     pw.println("##### Profile started at "+(new Date()).toString());
     pw.println("##### Sample delay "+delay+" msec");
-    Runtime r = Runtime.getRuntime();
 
     while (true) {
 
-      long totalmem = r.totalMemory()/1024;
-      long freemem = r.freeMemory()/1024;
-
-      pw.print("totalmem(kb) "+totalmem+" freemem(kb) "+freemem+" ");
-
-      synchronized(profilables) {
-        if (profilables.size() > 0) {
-          for (int i = 0; i < profilables.size(); i++) {
-	    profile p = (profile)profilables.elementAt(i);
-	    pw.print("pr"+i+" "+p.pr.profileSize()+" ");
-  	  }
-        }
+      MetricsSnapshot snap = getSnapshot();
+      pw.print("totalmem(kb) "+snap.getTotalMemory()+" freemem(kb) "+snap.getFreeMemory()+" ");
+      for (int i = 0; i < snap.size(); i++) {
+	pw.print("pr"+i+" "+MetricsSnapshot.format(snap.getValue(i))+" ");
       }
       pw.println("");
       pw.flush();
@@ -124,10 +154,17 @@ class sandStormProfiler extends Thread implements sandStormConst, ProfilerIF {
   class profile {
     String name;
     ProfilableIF pr;
+    MetricIF metric;
 
-    profile(String name, ProfilableIF pr) {
+    profile(String name, ProfilableIF pr, MetricIF metric) {
       this.name = name;
       this.pr = pr;
+      this.metric = metric;
+    }
+
+    double value() {
+      if (pr != null) return pr.profileSize();
+      return metric.metricValue();
     }
   }
 
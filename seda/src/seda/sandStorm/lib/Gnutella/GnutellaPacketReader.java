@@ -47,6 +47,7 @@ class GnutellaPacketReader implements GnutellaConst {
 
   private int cur_offset, packet_offset;
   private byte pktdata[];
+  private int pktlength;
 
   private GnutellaGUID guid;
   private int function;
@@ -70,8 +71,9 @@ class GnutellaPacketReader implements GnutellaConst {
 
     packet_offset = 0;
     pktdata = pkt.getBytes();
+    pktlength = pkt.size();
 
-    if (DEBUG) System.err.println("GPR: pushPacket called, size "+pktdata.length);
+    if (DEBUG) System.err.println("GPR: pushPacket called, size "+pktlength);
 
     boolean proceed = true;
 
@@ -107,7 +109,7 @@ class GnutellaPacketReader implements GnutellaConst {
   private boolean doReadHeader() throws IOException {
     if (DEBUG) System.err.println("GPR: doReadHeader called, cur "+cur_offset+", pkt "+packet_offset);
 
-    int tocopy = Math.min( header.length - cur_offset, pktdata.length - packet_offset );
+    int tocopy = Math.min( header.length - cur_offset, pktlength - packet_offset );
     if (tocopy != 0) {
       System.arraycopy(pktdata, packet_offset, header, cur_offset, tocopy);
       cur_offset += tocopy;
@@ -135,7 +137,7 @@ class GnutellaPacketReader implements GnutellaConst {
   private boolean doReadPayload() throws IOException {
     if (DEBUG) System.err.println("GPR: doReadPayload called, cur "+cur_offset+", pkt "+packet_offset);
 
-    int tocopy = Math.min( payload_length - cur_offset, pktdata.length - packet_offset );
+    int tocopy = Math.min( payload_length - cur_offset, pktlength - packet_offset );
     if (tocopy != 0) {
       System.arraycopy(pktdata, packet_offset, payload, cur_offset, tocopy);
       cur_offset += tocopy;
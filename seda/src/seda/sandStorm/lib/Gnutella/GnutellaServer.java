@@ -422,13 +422,14 @@ public class GnutellaServer implements EventHandlerIF, GnutellaConst {
     // Process a packet and see if it matches the target
     boolean process(ATcpInPacket packet) throws IOException {
       byte in[] = packet.getBytes();
-      if (DEBUG) System.err.println("GnutellaServer: process got bytes: "+new String(in)); 
+      int inlength = packet.size();
+      if (DEBUG) System.err.println("GnutellaServer: process got bytes: "+new String(in, 0, inlength)); 
 
       int c;
-      if (DEBUG) System.err.println("GnutellaServer: in.length="+in.length+", cur_off="+cur_offset+", lt="+cur_length_target);
+      if (DEBUG) System.err.println("GnutellaServer: inlength="+inlength+", cur_off="+cur_offset+", lt="+cur_length_target);
 
-      if (in.length < cur_length_target-cur_offset) {
-	c = in.length;
+      if (inlength < cur_length_target-cur_offset) {
+	c = inlength;
       } else {
         c = cur_length_target - cur_offset;
       }
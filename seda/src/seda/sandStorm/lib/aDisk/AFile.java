@@ -28,6 +28,7 @@ import seda.sandStorm.api.QueueElementIF;
 import seda.sandStorm.api.SinkException;
 import seda.sandStorm.api.SinkIF;
 import seda.sandStorm.core.BufferElement;
+import seda.sandStorm.core.BufferPool;
 import seda.sandStorm.core.SimpleSink;
 
 import java.io.IOException;
@@ -73,6 +74,9 @@ public class AFile extends SimpleSink {
       case AFileMgr.THREADPOOL_IMPL: 
 	impl = new AFileTPImpl(this, name, compQ, create, readOnly, (AFileTPTM)AFileMgr.getTM());
 	break;
+      case AFileMgr.NIO_IMPL: 
+	impl = new AFileNIOImpl(this, name, compQ, create, readOnly, (AFileNIOTM)AFileMgr.getTM());
+	break;
       default:
 	throw new LinkageError("Error: AFileMgr has bad value for IMPL_TO_USE; this is a bug - please contact <mdw@cs.berkeley.edu>");
     }
@@ -127,6 +131,35 @@ public class AFile extends SimpleSink {
     this.enqueue(new AFileReadRequest(buf, compQ));
   }
 
+  /**
+   * Enqueues a read request for 'size' bytes at the current file offset,
+   * into a buffer allocated from the default BufferPool. The buffer is
+   * returned, and may also be obtained from the request passed back in 
+   * the completion event; the caller should release() it when done.
+   */
+  public synchronized BufferElement read(int size) throws SinkException {
+    BufferElement buf = BufferPool.getDefault().allocate(size);
+    this.enqueue(new AFileReadRequest(buf, compQ));
+    return buf;
+  }
+
+  /**
+   * Enqueues a single read request for 'size' bytes at the current file
+   * offset, scattered into buffers of at most 'bufSize' bytes allocated
+   * from the default BufferPool. The buffers are returned, and may also
+   * be obtained from the request passed back in the completion event; 
+   * the caller should release() each when done.
+   */
+  public synchronized BufferElement[] read(int size, int bufSize) throws SinkException {
+    BufferPool pool = BufferPool.getDefault();
+    BufferElement bufs[] = new BufferElement[(size + bufSize - 1) / bufSize];
+    for (int i = 0; i < bufs.length; i++) {
+      bufs[i] = pool.allocate(Math.min(bufSize, size - (i * bufSize)));
+    }
+    this.enqueue(new AFileReadRequest(bufs, compQ));
+    return bufs;
+  }
+
   /**
    * Enqueues a read request at the given file offset. This is equivalent 
    * to a call to seek() before read().
@@ -0,0 +1,182 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+
+package seda.sandStorm.lib.aDisk;
+
+import seda.sandStorm.api.ManagerIF;
+import seda.sandStorm.api.ProfilableIF;
+import seda.sandStorm.api.ProfilerIF;
+import seda.sandStorm.api.internal.ThreadPoolIF;
+
+/**
+ * Sizes the thread pool of an aDisk thread manager. Unlike the 
+ * ThreadPoolController used for stages, which only adds threads while
+ * a queue is long, this controller also measures how busy the threads
+ * are and how long requests take, and removes threads again:
+ *
+ * <ul>
+ * <li>A thread is added when at least 'threshold' requests are waiting
+ * and the threads are mostly busy.
+ * <li>If adding a thread did not raise throughput, but did raise the 
+ * 90th percentile service time, the device is taken to be saturated:
+ * the thread is removed, and the pool is not grown to that size again 
+ * for a while.
+ * <li>A thread is removed when no requests are waiting and the threads
+ * are mostly idle.
+ * </ul>
+ *
+ * The measurements are added to the Sandstorm profiler.
+ */
+class AFileIOController implements Runnable {
+
+  private static final boolean DEBUG = false;
+
+  // Utilization above which the pool may grow
+  private static final double BUSY_UTILIZATION = 0.5;
+  // Utilization below which the pool may shrink
+  private static final double IDLE_UTILIZATION = 0.2;
+  // Minimum throughput gain for a new thread to be kept
+  private static final double MIN_GAIN = 1.05;
+  // Rise in service time taken to indicate saturation
+  private static final double LATENCY_RISE = 1.2;
+  // Number of intervals before probing beyond a saturation point again
+  private static final int SATURATION_HOLD = 15;
+
+  private String name;
+  private ThreadPoolIF tp;
+  private ProfilableIF depthMetric;
+  private AFileIOStats stats;
+  private int delay, threshold;
+
+  // Most recent measurements, for profiling
+  private int depth, numThreads, utilization, throughput;
+  private long p50, p90, p99;
+
+  // State of the last growth, evaluated at the next interval
+  private boolean grew;
+  private double grewFromThroughput;
+  private long grewFromP90;
+  // Pool size at which the device saturated, or 0
+  private int saturatedThreads;
+  private int saturatedIntervals;
+
+  /**
+   * Create a controller for the given thread pool, whose queue length
+   * is given by 'depthMetric' and whose requests are recorded in 
+   * 'stats'. The pool is adjusted every 'delay' ms.
+   */
+  AFileIOController(ManagerIF mgr, String name, ThreadPoolIF tp, 
+      ProfilableIF depthMetric, AFileIOStats stats, int delay, int threshold) {
+    this.name = name;
+    this.tp = tp;
+    this.depthMetric = depthMetric;
+    this.stats = stats;
+    this.delay = delay;
+    this.threshold = threshold;
+
+    ProfilerIF prof = mgr.getProfiler();
+    prof.add(name+" threads", new ProfilableIF() {
+      public int profileSize() { return numThreads; }
+    });
+    prof.add(name+" utilization %", new ProfilableIF() {
+      public int profileSize() { return utilization; }
+    });
+    prof.add(name+" throughput", new ProfilableIF() {
+      public int profileSize() { return throughput; }
+    });
+    prof.add(name+" p50 usec", new ProfilableIF() {
+      public int profileSize() { return (int)p50; }
+    });
+    prof.add(name+" p90 usec", new ProfilableIF() {
+      public int profileSize() { return (int)p90; }
+    });
+    prof.add(name+" p99 usec", new ProfilableIF() {
+      public int profileSize() { return (int)p99; }
+    });
+    prof.add(name+" saturated threads", new ProfilableIF() {
+      public int profileSize() { return saturatedThreads; }
+    });
+
+    System.err.println(name+": Started, delay "+delay+" ms, threshold "+threshold);
+    Thread t = new Thread(this, name);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  public void run() {
+    while (true) {
+      try {
+	Thread.sleep(delay);
+      } catch (InterruptedException ie) {
+	// Ignore
+      }
+      adjust();
+    }
+  }
+
+  private void adjust() {
+    stats.endInterval();
+    numThreads = tp.numThreads();
+    depth = depthMetric.profileSize();
+    double tput = stats.getThroughput();
+    double util = stats.getUtilization(numThreads);
+    throughput = (int)tput;
+    utilization = (int)(util * 100);
+    p50 = stats.getPercentile(0.5);
+    p90 = stats.getPercentile(0.9);
+    p99 = stats.getPercentile(0.99);
+    if (DEBUG) System.err.println(name+": threads "+numThreads+", depth "+depth+", throughput "+throughput+", utilization "+utilization+"%, p50 "+p50+" p90 "+p90+" p99 "+p99+" usec");
+
+    if (grew) {
+      grew = false;
+      if ((tput < grewFromThroughput * MIN_GAIN) && 
+	  (p90 > grewFromP90 * LATENCY_RISE)) {
+	// The new thread only added to the queue at the device
+	saturatedThreads = numThreads;
+	saturatedIntervals = 0;
+	System.err.println(name+": Device saturated at "+numThreads+" threads (throughput "+throughput+", p90 "+p90+" usec)");
+	tp.removeThreads(1);
+	return;
+      }
+    }
+
+    if ((saturatedThreads != 0) && (++saturatedIntervals >= SATURATION_HOLD)) {
+      // Conditions may have changed; allow probing again
+      saturatedThreads = 0;
+    }
+
+    if ((depth >= threshold) && (util >= BUSY_UTILIZATION) &&
+	((saturatedThreads == 0) || (numThreads + 1 < saturatedThreads))) {
+      tp.addThreads(1, true);
+      if (tp.numThreads() > numThreads) {
+	grew = true;
+	grewFromThroughput = tput;
+	grewFromP90 = p90;
+      }
+
+    } else if ((depth == 0) && (util < IDLE_UTILIZATION) && (numThreads > 1)) {
+      tp.removeThreads(1);
+    }
+  }
+
+}
@@ -0,0 +1,109 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+
+package seda.sandStorm.lib.aDisk;
+
+import seda.sandStorm.internal.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measurements of the I/O requests performed by an aDisk thread 
+ * manager, used by AFileIOController. Service times are kept in a 
+ * LatencyHistogram, so threads record them without locking. 
+ * Measurements accumulate until <tt>endInterval()</tt> is called, after
+ * which the getters describe the interval just ended.
+ */
+class AFileIOStats {
+
+  private LatencyHistogram times;
+  private AtomicLong busyNanos;
+  private LatencyHistogram.Snapshot last, interval;
+  private long lastBusyNanos, intervalBusyNanos;
+  private long intervalStart, lastIntervalNanos;
+
+  AFileIOStats() {
+    times = new LatencyHistogram();
+    busyNanos = new AtomicLong();
+    last = interval = times.snapshot();
+    intervalStart = System.nanoTime();
+  }
+
+  /**
+   * Record one request which took the given time to perform.
+   */
+  void record(long nanos) {
+    times.record(nanos / 1000);
+    busyNanos.addAndGet(nanos);
+  }
+
+  /**
+   * End the current measurement interval.
+   */
+  synchronized void endInterval() {
+    LatencyHistogram.Snapshot snap = times.snapshot();
+    interval = snap.minus(last);
+    last = snap;
+    long busy = busyNanos.get();
+    intervalBusyNanos = busy - lastBusyNanos;
+    lastBusyNanos = busy;
+    long now = System.nanoTime();
+    lastIntervalNanos = now - intervalStart;
+    intervalStart = now;
+  }
+
+  /**
+   * Return the number of requests completed in the last interval.
+   */
+  synchronized long getCount() {
+    return interval.getCount();
+  }
+
+  /**
+   * Return the completion rate in the last interval, in requests per
+   * second.
+   */
+  synchronized double getThroughput() {
+    if (lastIntervalNanos == 0) return 0;
+    return (interval.getCount() * 1.0e9) / lastIntervalNanos;
+  }
+
+  /**
+   * Return the fraction of the time in the last interval which the
+   * given number of threads spent performing requests.
+   */
+  synchronized double getUtilization(int numThreads) {
+    if ((lastIntervalNanos == 0) || (numThreads == 0)) return 0;
+    return (intervalBusyNanos * 1.0) / ((double)lastIntervalNanos * numThreads);
+  }
+
+  /**
+   * Return the given percentile (0.0 to 1.0) of request service times 
+   * in the last interval, in microseconds, or 0 if there were no 
+   * requests.
+   */
+  synchronized long getPercentile(double p) {
+    return interval.getPercentile(p);
+  }
+
+}
@@ -42,6 +42,7 @@ public class AFileMgr {
   private static final boolean DEBUG = false;
 
   static final int THREADPOOL_IMPL = 0;
+  static final int NIO_IMPL = 1;
   private static int IMPL_TO_USE;
 
   private static ThreadManagerIF aFileTM;
@@ -58,6 +59,17 @@ public class AFileMgr {
    */
   public static void initialize(ManagerIF mgr, SystemManagerIF sysmgr) throws Exception {
     synchronized (init_lock) {
+      String provider = mgr.getConfig().getString("global.aDisk.provider");
+      if ((provider == null) || provider.equals("TP")) {
+	IMPL_TO_USE = THREADPOOL_IMPL;
+      } else if (provider.equals("NIO")) {
+	IMPL_TO_USE = NIO_IMPL;
+	System.err.println("aDisk layer using java.nio FileChannel");
+      } else {
+	throw new RuntimeException("AFileMgr: Must specify either "+
+	    "'TP' or 'NIO' for global.aDisk.provider");
+      }
+
       switch (IMPL_TO_USE) {
 	case THREADPOOL_IMPL:
 	  // XXX Could replace with a TPSThreadManager - but need to augment 
@@ -70,6 +82,9 @@ public class AFileMgr {
 	  // an existing one.
 	  aFileTM = new AFileTPTM(mgr, sysmgr);
 	  break;
+	case NIO_IMPL:
+	  aFileTM = new AFileNIOTM(mgr, sysmgr);
+	  break;
 	default:
 	  throw new LinkageError("Error: AFileMgr has bad value for IMPL_TO_USE; this is a bug - please contact <mdw@cs.berkeley.edu>");
       }
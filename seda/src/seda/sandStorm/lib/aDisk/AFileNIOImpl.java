@@ -0,0 +1,250 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+
+package seda.sandStorm.lib.aDisk;
+
+import seda.sandStorm.api.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.Vector;
+
+/**
+ * This is an implementation of AFile which performs positional reads 
+ * and writes on a java.nio FileChannel, using a pool of threads shared
+ * by all files (see AFileNIOTM). Each read or write is assigned its 
+ * file offset when it is enqueued, from the offset given by the last 
+ * seek plus the sizes of the reads and writes enqueued since; requests
+ * then need no seek and are independent of each other, so several 
+ * threads may service requests on the same file at once. As a result,
+ * requests on one file may complete out of order.
+ *
+ * <p>Flush and close requests wait until every request enqueued on the
+ * file before them has completed. A flush forces written data to disk.
+ *
+ * @see AFile
+ * @see AFileTPImpl
+ */
+class AFileNIOImpl extends AFileImpl implements QueueElementIF {
+
+  private File f;
+  private RandomAccessFile raf;
+  FileChannel channel;
+  private AFile afile;
+  private AFileNIOTM tm;
+  private SinkIF compQ;
+  private boolean readOnly;
+  private boolean closed;
+
+  // File offset of the next read or write
+  private long position;
+  // Number of requests handed to the thread manager and not completed
+  private int outstanding;
+  // Flush and close requests waiting for 'outstanding' to reach zero
+  private Vector barriers;
+  // Requests waiting for a thread, and whether the file is on the
+  // thread manager's queue
+  private LinkedList pending;
+  private boolean ready;
+
+  /**
+   * Create an AFileNIOImpl with the given AFile, filename, completion
+   * queue, create/readOnly flags, and Thread Manager.
+   */
+  AFileNIOImpl(AFile afile, String fname, SinkIF compQ, boolean create, boolean readOnly, AFileNIOTM tm) throws IOException {
+    this.afile = afile;
+    this.tm = tm;
+    this.compQ = compQ;
+    this.readOnly = readOnly;
+    this.barriers = new Vector(1);
+    this.pending = new LinkedList();
+
+    f = new File(fname);
+    if (!f.exists() && !create) {
+      throw new FileNotFoundException("File not found: "+fname);
+    } 
+    if (f.isDirectory()) {
+      throw new FileIsDirectoryException("Is a directory: "+fname);
+    }
+
+    if (readOnly) {
+      raf = new RandomAccessFile(f, "r");
+    } else {
+      raf = new RandomAccessFile(f, "rw");
+    }
+    channel = raf.getChannel();
+    closed = false;
+  }
+
+  /**
+   * Enqueues the given request (which must be an AFileRequest)
+   * to the file.
+   */
+  public synchronized void enqueue(QueueElementIF req) throws SinkException {
+    AFileRequest areq = (AFileRequest)req;
+    if (closed) {
+      throw new SinkClosedException("Sink is closed");
+    }
+    if (readOnly && (areq instanceof AFileWriteRequest)) {
+      throw new BadQueueElementException("Cannot enqueue write request for read-only file", areq);
+    }
+    submit(areq);
+  }
+
+  /**
+   * Enqueues the given request (which must be an AFileRequest)
+   * to the file.
+   */
+  public synchronized boolean enqueue_lossy(QueueElementIF req) {
+    AFileRequest areq = (AFileRequest)req;
+    if (closed || (readOnly && (areq instanceof AFileWriteRequest))) {
+      return false;
+    }
+    submit(areq);
+    return true;
+  }
+
+  /**
+   * Enqueues the given requests (which must be AFileRequests)
+   * to the file.
+   */
+  public synchronized void enqueue_many(QueueElementIF[] elements) throws SinkException {
+    if (closed) {
+      throw new SinkClosedException("Sink is closed");
+    }
+    for (int i = 0; i < elements.length; i++) {
+      enqueue(elements[i]);
+    }
+  }
+
+  // Assign the request its offset and pass it to the thread manager.
+  // Called with this locked.
+  private void submit(AFileRequest areq) {
+    areq.afile = afile;
+    if (areq instanceof AFileSeekRequest) {
+      // Only affects the requests that follow
+      position = ((AFileSeekRequest)areq).offset;
+
+    } else if (areq instanceof AFileReadRequest) {
+      outstanding++;
+      tm.submit(new AFileNIOTM.positionedRequest(this, areq, position));
+      position += ((AFileReadRequest)areq).getSize();
+
+    } else if (areq instanceof AFileWriteRequest) {
+      outstanding++;
+      tm.submit(new AFileNIOTM.positionedRequest(this, areq, position));
+      position += ((AFileWriteRequest)areq).buf.size;
+
+    } else if (outstanding == 0) {
+      // Flush or close with nothing pending
+      outstanding++;
+      tm.submit(new AFileNIOTM.positionedRequest(this, areq, position));
+
+    } else {
+      barriers.addElement(areq);
+    }
+  }
+
+  /**
+   * Called by the thread manager when a request has completed.
+   */
+  synchronized void completed() {
+    outstanding--;
+    if ((outstanding == 0) && (barriers.size() > 0)) {
+      AFileRequest areq = (AFileRequest)barriers.remove(0);
+      outstanding++;
+      tm.submit(new AFileNIOTM.positionedRequest(this, areq, position));
+    }
+  }
+
+  /**
+   * Add a request for a thread to perform. Returns true if the file 
+   * must now be placed on the thread manager's queue.
+   */
+  synchronized boolean addPending(AFileNIOTM.positionedRequest preq) {
+    pending.addLast(preq);
+    if (ready) return false;
+    ready = true;
+    return true;
+  }
+
+  /**
+   * Take the next request to perform, once the file has been taken 
+   * from the thread manager's queue. more[0] is set if there are 
+   * further requests, in which case the file must be placed back on 
+   * the queue.
+   */
+  synchronized AFileNIOTM.positionedRequest takePending(boolean more[]) {
+    AFileNIOTM.positionedRequest preq = (AFileNIOTM.positionedRequest)pending.removeFirst();
+    more[0] = ready = !pending.isEmpty();
+    return preq;
+  }
+
+  /**
+   * Return information on the properties of the file.
+   */
+  AFileStat stat() {
+    AFileStat s = new AFileStat();
+    s.afile = afile;
+    s.isDirectory = f.isDirectory();
+    s.canRead = f.canRead();
+    s.canWrite = f.canWrite();
+    s.length = f.length();
+    return s;
+  }
+
+  /**
+   * Close the file after all enqueued requests have completed.
+   * Disallows any additional requests to be enqueued on this file.
+   * A SinkClosedEvent will be posted on the file's completion queue
+   * when the close is complete.
+   */
+  public synchronized void close() {
+    enqueue_lossy(new AFileCloseRequest(afile, compQ));
+    closed = true;
+  }
+
+  /**
+   * Causes a SinkFlushedEvent to be posted on the file's completion queue
+   * when all pending requests have completed.
+   */
+  public synchronized void flush() {
+    enqueue_lossy(new AFileFlushRequest(afile, compQ));
+  }
+
+  /**
+   * Close the underlying file.
+   */
+  void closeFile() throws IOException {
+    raf.close();
+  }
+
+  public String toString() {
+    return "AFileNIOImpl [file="+f+"]";
+  }
+
+}
@@ -0,0 +1,290 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+
+package seda.sandStorm.lib.aDisk;
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.api.internal.StageWrapperIF;
+import seda.sandStorm.api.internal.SystemManagerIF;
+import seda.sandStorm.api.internal.ThreadManagerIF;
+import seda.sandStorm.core.BufferElement;
+import seda.sandStorm.core.FiniteQueue;
+import seda.sandStorm.internal.ConfigData;
+import seda.sandStorm.internal.TPSThreadManager;
+import seda.sandStorm.internal.ThreadPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This is the ThreadManager implementation for AFileNIOImpl. It 
+ * manages a pool of threads which perform requests with positional 
+ * FileChannel reads and writes. Unlike AFileTPTM, requests on the same
+ * file are not serialized: each file with pending requests waits on a
+ * single queue, and a thread takes one request from the file at the 
+ * head and puts the file back at the tail if it has more, so several
+ * threads may work on one file while the others still get their turn.
+ * Reads into direct buffers (see BufferPool) avoid the copy the JDK 
+ * otherwise makes through a temporary direct buffer.
+ *
+ * <p>The pool is sized by an AFileIOController, using the 
+ * <tt>global.aDisk.threadPool</tt> options, as for AFileTPTM.
+ */
+class AFileNIOTM extends TPSThreadManager implements ThreadManagerIF, ProfilableIF {
+
+  private static final boolean DEBUG = false;
+
+  // Files with requests waiting for a thread
+  private FiniteQueue fileQ;
+  // Count of requests waiting for a thread
+  private int numOutstandingRequests;
+  private AFileIOStats stats;
+  private AFileIOController ioController;
+
+  AFileNIOTM(ManagerIF mgr, SystemManagerIF sysmgr) throws Exception {
+    super(mgr, false);
+
+    if (DEBUG) System.err.println("AFileNIOTM: Created");
+
+    fileQ = new FiniteQueue("AFileNIOTM files");
+    stats = new AFileIOStats();
+    sysmgr.addThreadManager("AFileNIOTM", this);
+    AFileTPStageWrapper sw = new AFileTPStageWrapper("AFileNIOTM Stage",
+	null, new ConfigData(mgr), this);
+    StageIF theStage = sysmgr.createStage(sw, true);
+
+    if (mgr.getProfiler() != null) {
+      mgr.getProfiler().add("AFileNIOTM outstanding reqs", this);
+    }
+  }
+
+  /**
+   * Register a stage with this thread manager.
+   */
+  public void register(StageWrapperIF stage) {
+    // Create a single threadPool - only one stage registered with us
+    AFileNIOThread at = new AFileNIOThread((AFileTPStageWrapper)stage);
+    SandstormConfigIF config = mgr.getConfig();
+    ThreadPool tp = new ThreadPool(stage, mgr, at,
+	config.getInt("global.aDisk.threadPool.initialThreads"),
+	config.getInt("global.aDisk.threadPool.minThreads"),
+	config.getInt("global.aDisk.threadPool.maxThreads"),
+	config.getInt("global.threadPool.blockTime"),
+	config.getInt("global.threadPool.sizeController.idleTimeThreshold"));
+    at.registerTP(tp);
+    // Use numOutstandingRequests as metric
+    if (config.getBoolean("global.aDisk.threadPool.sizeController.enable")) {
+      ioController = new AFileIOController(mgr, "AFileNIOTM", tp, this, stats,
+	  config.getInt("global.aDisk.threadPool.sizeController.delay"),
+	  config.getInt("global.aDisk.threadPool.sizeController.threshold"));
+    }
+    tp.start();
+  }
+
+  /**
+   * Queue a request to be performed.
+   */
+  void submit(positionedRequest preq) {
+    synchronized (fileQ) {
+      numOutstandingRequests++;
+    }
+    if (preq.impl.addPending(preq)) fileReady(preq.impl);
+  }
+
+  // Place the file on fileQ
+  private void fileReady(AFileNIOImpl impl) {
+    try {
+      fileQ.enqueue(impl);
+    } catch (SinkException se) {
+      throw new InternalError("AFileNIOTM.fileReady() got SinkException -- this should not happen, please contact <mdw@cs.berkeley.edu>");
+    }
+  }
+
+  // Return the number of outstanding elements, for profiling
+  public int profileSize() {
+    return numOutstandingRequests;
+  }
+
+  /**
+   * A request together with the file offset at which it is performed.
+   */
+  static class positionedRequest implements QueueElementIF {
+    AFileNIOImpl impl;
+    AFileRequest req;
+    long position;
+
+    positionedRequest(AFileNIOImpl impl, AFileRequest req, long position) {
+      this.impl = impl;
+      this.req = req;
+      this.position = position;
+    }
+  }
+
+  /**
+   * Internal class representing a single AFileNIOTM-managed thread.
+   */
+  class AFileNIOThread extends TPSThreadManager.stageRunnable implements Runnable {
+
+    AFileNIOThread(AFileTPStageWrapper wrapper) {
+      super(wrapper, null);
+    }
+
+    public void registerTP(ThreadPool tp) {
+      this.tp = tp;
+    }
+
+    public void run() {
+      int blockTime;
+      long t1, t2;
+
+      if (DEBUG) System.err.println(name+": starting");
+
+      t1 = System.currentTimeMillis();
+
+      while (true) {
+
+	try {
+
+	  blockTime = (int)tp.getBlockTime();
+
+	  AFileNIOImpl impl = (AFileNIOImpl)fileQ.blocking_dequeue(blockTime);
+	  if (impl == null) {
+	    t2 = System.currentTimeMillis();
+	    if (tp.timeToStop(t2-t1)) {
+	      if (DEBUG) System.err.println(name+": Exiting");
+	      return;
+	    }
+	    continue;
+	  }
+	  t1 = System.currentTimeMillis();
+
+	  boolean more[] = new boolean[1];
+	  positionedRequest preq = impl.takePending(more);
+	  // Let other threads take the file's next request meanwhile
+	  if (more[0]) fileReady(impl);
+	  synchronized (fileQ) {
+	    numOutstandingRequests--;
+	  }
+
+	  long t = System.nanoTime();
+	  try {
+	    processRequest(preq);
+	  } finally {
+	    impl.completed();
+	  }
+	  if ((preq.req instanceof AFileReadRequest) || 
+	      (preq.req instanceof AFileWriteRequest)) {
+	    stats.record(System.nanoTime() - t);
+	  }
+
+	  // Exit if removed from the pool by the controller
+	  if (tp.timeToStop(0)) {
+	    if (DEBUG) System.err.println(name+": Exiting");
+	    return;
+	  }
+
+	} catch (Exception e) {
+	  System.err.println(name+": got exception "+e);
+	  e.printStackTrace();
+	}
+      }
+    }
+
+    private void processRequest(positionedRequest preq) {
+      AFileRequest req = preq.req;
+      FileChannel channel = preq.impl.channel;
+      if (DEBUG) System.err.println(name+" processing request: "+req+" at "+preq.position);
+
+      // Read request
+      if (req instanceof AFileReadRequest) {
+	AFileReadRequest rreq = (AFileReadRequest)req;
+	int size = rreq.getSize();
+	try {
+	  int c = 0;
+	  for (int i = 0; i < rreq.bufs.length; i++) {
+	    BufferElement buf = rreq.bufs[i];
+	    int n = transfer(channel, buf.getWritableByteBuffer(), preq.position + c, true);
+	    c += n;
+	    if (n < buf.size) break;
+	  }
+	  if ((c == 0) && (size != 0)) {
+	    req.complete(new AFileEOFReached(req));
+	  } else if (c < size) {
+	    req.complete(new AFileIOCompleted(req, c));
+	    req.complete(new AFileEOFReached(req));
+	  } else {
+	    req.complete(new AFileIOCompleted(req, size));
+	  }
+	} catch (IOException ioe) {
+	  req.complete(new AFileIOExceptionOccurred(req, ioe));
+	}
+
+      // Write request
+      } else if (req instanceof AFileWriteRequest) {
+	AFileWriteRequest wreq = (AFileWriteRequest)req;
+	BufferElement buf = wreq.buf;
+	try {
+	  transfer(channel, buf.getByteBuffer(), preq.position, false);
+	  req.complete(new AFileIOCompleted(req, buf.size));
+	} catch (IOException ioe) {
+	  req.complete(new AFileIOExceptionOccurred(req, ioe));
+	}
+
+      // Close request
+      } else if (req instanceof AFileCloseRequest) {
+	try {
+	  preq.impl.closeFile();
+	} catch (IOException ioe) {
+	  req.complete(new AFileIOExceptionOccurred(req, ioe));
+	}
+	req.complete(new SinkClosedEvent(req.afile));
+
+      // Flush request
+      } else if (req instanceof AFileFlushRequest) {
+	try {
+	  channel.force(false);
+	} catch (IOException ioe) {
+	  req.complete(new AFileIOExceptionOccurred(req, ioe));
+	}
+	req.complete(new SinkFlushedEvent(req.afile));
+
+      } else {
+	throw new Error("AFileNIOTM.AFileNIOThread.processRequest got bad request: "+req);
+      }
+    }
+
+    // Read or write all of 'bb' at the given file offset, stopping 
+    // early only at end of file; returns the number of bytes moved
+    private int transfer(FileChannel channel, ByteBuffer bb, long position, boolean read) throws IOException {
+      int start = bb.position();
+      while (bb.hasRemaining()) {
+	long pos = position + (bb.position() - start);
+	int n = read ? channel.read(bb, pos) : channel.write(bb, pos);
+	if (n < 0) break;
+      }
+      return bb.position() - start;
+    }
+  }
+
+}
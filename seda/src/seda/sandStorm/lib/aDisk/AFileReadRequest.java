@@ -28,13 +28,16 @@ import seda.sandStorm.api.SinkIF;
 import seda.sandStorm.core.BufferElement;
 
 /**
- * A request to read data from a file.
+ * A request to read data from a file. A single request may scatter 
+ * the data into several buffers, which are filled in order from 
+ * consecutive regions of the file.
  *
  * @author Matt Welsh
  */
 public class AFileReadRequest extends AFileRequest {
 
   BufferElement buf;
+  BufferElement bufs[];
 
   /**
    * Create a read request to fill in the given BufferElement.
@@ -43,12 +46,41 @@ public class AFileReadRequest extends AFileRequest {
   public AFileReadRequest(BufferElement buf, SinkIF compQ) {
     super(compQ);
     this.buf = buf;
+    this.bufs = new BufferElement[] { buf };
   }
 
+  /**
+   * Create a read request to fill in each of the given BufferElements
+   * in turn. Completion events will be posted on the given completion 
+   * queue; the size completed is the total over all of the buffers.
+   */
+  public AFileReadRequest(BufferElement bufs[], SinkIF compQ) {
+    super(compQ);
+    this.buf = bufs[0];
+    this.bufs = bufs;
+  }
+
+  /**
+   * Return the (first) buffer being read into.
+   */
   public BufferElement getBuffer() {
     return buf;
   }
 
+  /**
+   * Return all of the buffers being read into.
+   */
+  public BufferElement[] getBuffers() {
+    return bufs;
+  }
+
+  // Return the total number of bytes requested
+  int getSize() {
+    int size = 0;
+    for (int i = 0; i < bufs.length; i++) size += bufs[i].size;
+    return size;
+  }
+
   public String toString() {
     return "AfileReadRequest (buf:"+buf+")";
   }
@@ -51,6 +51,9 @@ class AFileTPImpl extends AFileImpl implements QueueElementIF {
   private FiniteQueue eventQ;
   private boolean readOnly;
   private boolean closed;
+  // True while the file is on the thread manager's queue or being
+  // serviced, so that only one thread performs its requests at a time
+  private boolean ready;
 
   /**
    * Create an AFileTPIMpl with the given AFile, filename, completion
@@ -62,7 +65,7 @@ class AFileTPImpl extends AFileImpl implements QueueElementIF {
     this.compQ = compQ;
     this.readOnly = readOnly;
 
-    eventQ = new FiniteQueue();
+    eventQ = new FiniteQueue("AFileTPTM requests");
 
     f = new File(fname);
     if (!f.exists() && !create) {
@@ -98,7 +101,8 @@ class AFileTPImpl extends AFileImpl implements QueueElementIF {
     } catch (SinkException se) {
       throw new InternalError("AFileTPImpl.enqueue got SinkException - this should not happen, please contact <mdw@cs.berkeley.edu>");
     }
-    if (eventQ.size() == 1) {
+    tm.requestEnqueued();
+    if (markReady()) {
       tm.fileReady(this);
     }
   }
@@ -118,7 +122,8 @@ class AFileTPImpl extends AFileImpl implements QueueElementIF {
     } catch (SinkException se) {
       throw new InternalError("AFileTPImpl.enqueue got SinkException - this should not happen, please contact <mdw@cs.berkeley.edu>");
     }
-    if (eventQ.size() == 1) {
+    tm.requestEnqueued();
+    if (markReady()) {
       tm.fileReady(this);
     }
     return true;
@@ -137,6 +142,26 @@ class AFileTPImpl extends AFileImpl implements QueueElementIF {
     }
   }
 
+  /**
+   * Note that the file has a pending request. Returns true if the file
+   * must now be placed on the thread manager's queue.
+   */
+  private synchronized boolean markReady() {
+    if (ready) return false;
+    ready = true;
+    return true;
+  }
+
+  /**
+   * Called by the thread manager at the end of a turn on this file. 
+   * Returns true if requests are still pending, in which case the file
+   * must be placed back on the thread manager's queue.
+   */
+  synchronized boolean endTurn() {
+    ready = (eventQ.size() != 0);
+    return ready;
+  }
+
   /**
    * Return information on the properties of the file.
    */
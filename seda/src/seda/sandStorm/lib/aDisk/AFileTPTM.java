@@ -33,7 +33,6 @@ import seda.sandStorm.core.FiniteQueue;
 import seda.sandStorm.internal.ConfigData;
 import seda.sandStorm.internal.TPSThreadManager;
 import seda.sandStorm.internal.ThreadPool;
-import seda.sandStorm.internal.ThreadPoolController;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -42,7 +41,10 @@ import java.io.RandomAccessFile;
  * This is the ThreadManager implementation for AFileTPImpl.
  * It manages a pool of threads which perform blocking I/O
  * on disk files; this is a portable implementation and is not
- * meant to be high performance.
+ * meant to be high performance. Threads take turns among the files
+ * with pending requests, performing a limited number of requests and
+ * bytes on each, so a busy file cannot starve the others. The pool is
+ * sized by an AFileIOController.
  *
  * @author Matt Welsh
  */
@@ -52,12 +54,15 @@ class AFileTPTM extends TPSThreadManager implements ThreadManagerIF, ProfilableI
 
   // Global queue for files with pending entries
   private FiniteQueue fileQ;
-  // Count of outstanding file requests, derived from length of
-  // queue of each file on fileQ
+  // Count of requests enqueued on files and not yet started
   private int numOutstandingRequests;
+  private AFileIOStats stats;
+  private AFileIOController ioController;
 
   // Maximum number of consecutive requests to service per file
   private static final int MAX_REQUESTS_PER_FILE = 10;
+  // Maximum number of bytes to read or write per file before moving on
+  private static final int MAX_BYTES_PER_FILE = 256*1024;
   // Block time for file queue
   private static final int QUEUE_BLOCK_TIME = 1000;
 
@@ -66,13 +71,8 @@ class AFileTPTM extends TPSThreadManager implements ThreadManagerIF, ProfilableI
 
     if (DEBUG) System.err.println("AFileTPTM: Created");
 
-    if (config.getBoolean("global.aDisk.threadPool.sizeController.enable")) {
-      sizeController = new ThreadPoolController(mgr, 
-	  config.getInt("global.aDisk.threadPool.sizeController.delay"),
-	  config.getInt("global.aDisk.threadPool.sizeController.threshold"));
-    }
-
-    fileQ = new FiniteQueue();
+    fileQ = new FiniteQueue("AFileTPTM files");
+    stats = new AFileIOStats();
     numOutstandingRequests = 0;
     sysmgr.addThreadManager("AFileTPTM", this);
     AFileTPStageWrapper sw = new AFileTPStageWrapper("AFileTPTM Stage",
@@ -99,7 +99,11 @@ class AFileTPTM extends TPSThreadManager implements ThreadManagerIF, ProfilableI
 	config.getInt("global.threadPool.sizeController.idleTimeThreshold"));
     at.registerTP(tp);
     // Use numOutstandingRequests as metric
-    if (sizeController != null) sizeController.register(stage, tp, this); 
+    if (config.getBoolean("global.aDisk.threadPool.sizeController.enable")) {
+      ioController = new AFileIOController(mgr, "AFileTPTM", tp, this, stats,
+	  config.getInt("global.aDisk.threadPool.sizeController.delay"),
+	  config.getInt("global.aDisk.threadPool.sizeController.threshold"));
+    }
     tp.start();
   }
 
@@ -108,29 +112,32 @@ class AFileTPTM extends TPSThreadManager implements ThreadManagerIF, ProfilableI
    */
   public void fileReady(AFileTPImpl impl) {
     try {
-      fileQueueEntry fqe = new fileQueueEntry(impl);
-      fileQ.enqueue(fqe);
-      synchronized (fileQ) {
-	numOutstandingRequests += fqe.size;
-      }
+      fileQ.enqueue(new fileQueueEntry(impl));
     } catch (SinkException se) {
       throw new InternalError("AFileTPTM.fileReady() got SinkException -- this should not happen, please contact <mdw@cs.berkeley.edu>");
     }
   }
 
+  /**
+   * Indicate that a request has been enqueued on a file.
+   */
+  void requestEnqueued() {
+    synchronized (fileQ) {
+      numOutstandingRequests++;
+    }
+  }
+
   // Return the number of outstanding elements, for profiling
   public int profileSize() {
     return numOutstandingRequests;
   }
 
-  // Used to keep track of number of elements on fileQ
+  // Entry on fileQ
   class fileQueueEntry implements QueueElementIF {
     AFileTPImpl impl;
-    int size;
 
     fileQueueEntry(AFileTPImpl impl) {
       this.impl = impl;
-      this.size = ((SourceIF)impl.getQueue()).size();
     }
   }
 
@@ -174,20 +181,34 @@ class AFileTPTM extends TPSThreadManager implements ThreadManagerIF, ProfilableI
 	  t1 = System.currentTimeMillis();
 
 	  impl = fqe.impl;
-	  synchronized (fileQ) {
-	    numOutstandingRequests -= fqe.size;
-	  }
 
-	  int n = 0;
+	  int n = 0, bytes = 0;
 
-	  while (n < MAX_REQUESTS_PER_FILE) {
+	  while ((n < MAX_REQUESTS_PER_FILE) && (bytes < MAX_BYTES_PER_FILE)) {
 	    AFileRequest req = (AFileRequest)impl.getQueue().dequeue();
 	    if (req == null) break;
+	    synchronized (fileQ) {
+	      numOutstandingRequests--;
+	    }
+	    long t = System.nanoTime();
 	    processRequest(req);
+	    if (req instanceof AFileReadRequest) {
+	      stats.record(System.nanoTime() - t);
+	      bytes += ((AFileReadRequest)req).getSize();
+	    } else if (req instanceof AFileWriteRequest) {
+	      stats.record(System.nanoTime() - t);
+	      bytes += ((AFileWriteRequest)req).buf.size;
+	    }
 	    n++;
 	  }
 	  // If events still pending, place back on file queue
-	  if (((SourceIF)impl.getQueue()).size() != 0) fileReady(impl);
+	  if (impl.endTurn()) fileReady(impl);
+
+	  // Exit if removed from the pool by the controller
+	  if (tp.timeToStop(0)) {
+	    if (DEBUG) System.err.println(name+": Exiting");
+	    return;
+	  }
 
 	  Thread.yield(); // only accomplishes delay
 
@@ -206,17 +227,24 @@ class AFileTPTM extends TPSThreadManager implements ThreadManagerIF, ProfilableI
 	AFileReadRequest rreq = (AFileReadRequest)req;
 	AFileTPImpl impl = (AFileTPImpl)rreq.getImpl();
 	RandomAccessFile raf = impl.raf;
-	BufferElement buf = rreq.buf;
+	int size = rreq.getSize();
 	try {
-	  int c = raf.read(buf.data, buf.offset, buf.size);
-	  if (c == -1) {
+	  int c = 0;
+	  for (int i = 0; i < rreq.bufs.length; i++) {
+	    BufferElement buf = rreq.bufs[i];
+	    int n = raf.read(buf.data, buf.offset, buf.size);
+	    if (n == -1) break;
+	    c += n;
+	    if (n < buf.size) break;
+	  }
+	  if ((c == 0) && (size != 0)) {
 	    req.complete(new AFileEOFReached(req));
-	  } else if (c < buf.size) {
+	  } else if (c < size) {
 	    // This can occur if buf.size is less than the size of the file
 	    req.complete(new AFileIOCompleted(req, c));
 	    req.complete(new AFileEOFReached(req));
 	  } else {
-	    req.complete(new AFileIOCompleted(req, buf.size));
+	    req.complete(new AFileIOCompleted(req, size));
 	  }
 	} catch (IOException ioe) {
 	  req.complete(new AFileIOExceptionOccurred(req, ioe));
@@ -0,0 +1,166 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+
+import seda.sandStorm.api.*;
+import seda.sandStorm.core.BufferElement;
+import seda.sandStorm.core.FiniteQueue;
+import seda.sandStorm.lib.aDisk.AFile;
+import seda.sandStorm.lib.aDisk.AFileIOCompleted;
+import seda.sandStorm.lib.aDisk.AFileIOExceptionOccurred;
+import seda.sandStorm.lib.aDisk.AFileReadRequest;
+import seda.sandStorm.main.Sandstorm;
+import seda.sandStorm.main.SandstormConfig;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.text.DecimalFormat;
+import java.util.Random;
+
+/**
+ * Benchmark of many small random reads on a single file through the 
+ * aDisk library, to compare the thread pool ("TP") and FileChannel 
+ * ("NIO") providers. Keeps a fixed number of reads outstanding on one
+ * AFile, checks the data read, and reports throughput and mean latency.
+ * The file is created in the temporary directory and is normally 
+ * already in the OS page cache, so this measures the overhead of the
+ * library rather than of the disk. Giving 0 threads lets the aDisk 
+ * controller size the pool instead.
+ *
+ * <pre>
+ *   java RandomReadBench NIO 64 4096 200000 32 4
+ * </pre>
+ */
+public class RandomReadBench {
+
+  private static void usage() {
+    System.err.println("usage: RandomReadBench <TP|NIO> <file size (MB)> <read size> <number of reads> <outstanding reads> <threads, or 0 for adaptive>");
+    System.exit(1);
+  }
+
+  private static String provider;
+  private static int fileSize, readSize, numReads, depth, numThreads;
+  private static byte contents[];
+  private static Random rand = new Random(1);
+
+  public static void main(String args[]) throws Exception {
+    if (args.length != 6) usage();
+    provider = args[0];
+    fileSize = Integer.parseInt(args[1]) * 1024 * 1024;
+    readSize = Integer.parseInt(args[2]);
+    numReads = Integer.parseInt(args[3]);
+    depth = Integer.parseInt(args[4]);
+    numThreads = Integer.parseInt(args[5]);
+
+    SandstormConfig cfg = new SandstormConfig();
+    cfg.putBoolean("global.profile.enable", false);
+    cfg.putBoolean("global.aSocket.enable", false);
+    cfg.putBoolean("global.aDisk.enable", true);
+    cfg.putString("global.aDisk.provider", provider);
+    if (numThreads > 0) {
+      cfg.putInt("global.aDisk.threadPool.initialThreads", numThreads);
+      cfg.putInt("global.aDisk.threadPool.minThreads", numThreads);
+      cfg.putInt("global.aDisk.threadPool.maxThreads", numThreads);
+      cfg.putBoolean("global.aDisk.threadPool.sizeController.enable", false);
+    } else {
+      cfg.putInt("global.aDisk.threadPool.initialThreads", 1);
+      cfg.putInt("global.aDisk.threadPool.minThreads", 1);
+      cfg.putInt("global.aDisk.threadPool.maxThreads", 16);
+      cfg.putBoolean("global.aDisk.threadPool.sizeController.enable", true);
+    }
+    new Sandstorm(cfg);
+
+    File f = File.createTempFile("RandomReadBench", null);
+    f.deleteOnExit();
+    contents = new byte[fileSize];
+    rand.nextBytes(contents);
+    FileOutputStream fos = new FileOutputStream(f);
+    fos.write(contents);
+    fos.close();
+
+    FiniteQueue compQ = new FiniteQueue();
+    AFile af = new AFile(f.getPath(), compQ, false, true);
+
+    // Warm up, then measure
+    run(af, compQ, numReads / 10);
+    long t1 = System.currentTimeMillis();
+    long latency = run(af, compQ, numReads);
+    long t2 = System.currentTimeMillis();
+
+    DecimalFormat df = new DecimalFormat("0.0");
+    double secs = (t2 - t1) / 1000.0;
+    System.err.println("RandomReadBench: "+provider+", "+((numThreads > 0) ? (numThreads+" threads") : "adaptive")+", "+
+	depth+" outstanding reads of "+readSize+" bytes");
+    System.err.println("  "+numReads+" reads in "+secs+" sec, "+
+	(int)(numReads / secs)+" reads/sec, "+
+	df.format(((double)numReads * readSize) / (1024.0 * 1024.0 * secs))+" MB/sec");
+    System.err.println("  mean latency "+df.format((latency / 1000.0) / numReads)+" usec");
+    System.exit(0);
+  }
+
+  // Issue 'count' reads, keeping 'depth' outstanding; returns the total
+  // latency in ns
+  private static long run(AFile af, FiniteQueue compQ, int count) throws Exception {
+    int issued = 0, done = 0;
+    long latency = 0;
+    while (issued < Math.min(depth, count)) {
+      issue(af);
+      issued++;
+    }
+    while (done < count) {
+      QueueElementIF comp = compQ.blocking_dequeue(-1);
+      if (comp instanceof AFileIOExceptionOccurred) {
+	throw new RuntimeException("Read failed: "+comp);
+      }
+      if (!(comp instanceof AFileIOCompleted)) {
+	throw new RuntimeException("Unexpected event: "+comp);
+      }
+      AFileIOCompleted ioc = (AFileIOCompleted)comp;
+      BufferElement buf = ((AFileReadRequest)ioc.getRequest()).getBuffer();
+      long tag[] = (long[])buf.userTag;
+      latency += System.nanoTime() - tag[0];
+      check(buf, (int)tag[1]);
+      done++;
+      if (issued < count) {
+	issue(af);
+	issued++;
+      }
+    }
+    return latency;
+  }
+
+  private static void issue(AFile af) throws SinkException {
+    int offset = rand.nextInt(fileSize / readSize) * readSize;
+    BufferElement buf = new BufferElement(readSize);
+    buf.userTag = new long[] { System.nanoTime(), offset };
+    af.read(buf, offset);
+  }
+
+  private static void check(BufferElement buf, int offset) {
+    for (int i = 0; i < readSize; i += 511) {
+      if (buf.data[i] != contents[offset+i]) {
+	throw new RuntimeException("Bad data read at offset "+(offset+i));
+      }
+    }
+  }
+
+}
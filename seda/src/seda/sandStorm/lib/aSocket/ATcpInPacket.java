@@ -26,6 +26,9 @@ package seda.sandStorm.lib.aSocket;
 
 import seda.sandStorm.api.QueueElementIF;
 import seda.sandStorm.core.BufferElement;
+import seda.sandStorm.core.BufferPool;
+
+import java.nio.ByteBuffer;
 
 /** 
  * An ATcpInPacket represents a packet which was received from an
@@ -33,6 +36,15 @@ import seda.sandStorm.core.BufferElement;
  * an ATcpInPacket is pushed to the SinkIF associated with an
  * ATcpConnection.
  *
+ * <p>When the default BufferPool is enabled, the packet data is held in
+ * a pooled buffer: the array returned by getBytes() may be longer than
+ * size(), and the receiver should call release() once it is done with
+ * the data.
+ *
+ * <p>If the aSocket layer is configured to use direct buffers, the 
+ * packet data is held off-heap. getByteBuffer() gives access to it 
+ * without copying; getBytes() copies it into a new array.
+ *
  * @author Matt Welsh
  * @see ATcpConnection
  */
@@ -57,26 +69,23 @@ public class ATcpInPacket implements QueueElementIF {
 
   public ATcpInPacket(ATcpConnection conn, byte data[], int len) {
     this.conn = conn;
-    byte newdata[] = new byte[len];
-    System.arraycopy(data, 0, newdata, 0, len);
-    this.buf = new BufferElement(newdata);
+    this.buf = BufferPool.getDefault().allocate(len);
+    System.arraycopy(data, 0, buf.data, 0, len);
     this.seqNum = 0;
   }
 
   public ATcpInPacket(ATcpConnection conn, byte data[], int len, long seqNum) {
     this.conn = conn;
-    byte newdata[] = new byte[len];
-    System.arraycopy(data, 0, newdata, 0, len);
-    this.buf = new BufferElement(newdata);
+    this.buf = BufferPool.getDefault().allocate(len);
+    System.arraycopy(data, 0, buf.data, 0, len);
     this.seqNum = seqNum;
   }
 
   public ATcpInPacket(ATcpConnection conn, byte data[], int len, boolean copy) {
     this.conn = conn;
     if (copy) {
-      byte newdata[] = new byte[len];
-      System.arraycopy(data, 0, newdata, 0, len);
-      this.buf = new BufferElement(newdata);
+      this.buf = BufferPool.getDefault().allocate(len);
+      System.arraycopy(data, 0, buf.data, 0, len);
     } else {
       this.buf = new BufferElement(data, 0, len);
     }
@@ -86,9 +95,8 @@ public class ATcpInPacket implements QueueElementIF {
   public ATcpInPacket(ATcpConnection conn, byte data[], int len, boolean copy, long seqNum) {
     this.conn = conn;
     if (copy) {
-      byte newdata[] = new byte[len];
-      System.arraycopy(data, 0, newdata, 0, len);
-      this.buf = new BufferElement(newdata);
+      this.buf = BufferPool.getDefault().allocate(len);
+      System.arraycopy(data, 0, buf.data, 0, len);
     } else {
       this.buf = new BufferElement(data, 0, len);
     }
@@ -103,10 +111,19 @@ public class ATcpInPacket implements QueueElementIF {
   }
 
   /** 
-   * Return the data from an incoming TCP packet.
+   * Return the data from an incoming TCP packet. Only the first size() 
+   * bytes of the array are valid.
    */
   public byte[] getBytes() {
-    return buf.data;
+    return buf.getBytes();
+  }
+
+  /**
+   * Return a read-only ByteBuffer view of the packet data, positioned 
+   * at its first byte. No data is copied.
+   */
+  public ByteBuffer getByteBuffer() {
+    return buf.getByteBuffer();
   }
 
   /**
@@ -123,6 +140,15 @@ public class ATcpInPacket implements QueueElementIF {
     return buf;
   }
 
+  /**
+   * Release the buffer holding the packet data back to its pool; the
+   * data must not be used after this call. Has no effect if the buffer
+   * is not pooled.
+   */
+  public void release() {
+    buf.release();
+  }
+
   /**
    * Return the sequence number associated with this packet.
    * Sequence numbers range from 1 to Long.MAX_VALUE, then wrap
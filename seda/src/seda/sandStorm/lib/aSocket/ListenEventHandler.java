@@ -66,6 +66,7 @@ class ListenEventHandler extends aSocketEventHandler implements EventHandlerIF {
       SockState ss = aSocketMgr.getFactory().newSockState(conn, sock, lss.writeClogThreshold);
       if (DEBUG) System.err.println("ListenThread: Created new sockstate "+ss);
       conn.sockState = ss;
+      aSocketMgr.getShard(ss);
       if (DEBUG) System.err.println("ListenThread: Calling lss complete");
       lss.complete(conn);
     }
@@ -47,6 +47,8 @@ public abstract class SockState implements aSocketConst {
   protected byte readBuf[];
   protected boolean closed = false;
   protected long seqNum = 1;
+  // aSocket shard handling this connection; -1 if not yet assigned
+  int shard = -1;
 
   protected int outstanding_writes, numEmptyWrites;
   protected ssLinkedList writeReqList;
@@ -70,6 +72,19 @@ public abstract class SockState implements aSocketConst {
 
   protected abstract boolean tryWrite() throws SinkClosedException;
 
+  /**
+   * Write up to 'maxreqs' consecutive ATcpWriteRequests from the head of
+   * writeReqList with a single gathering write. Returns the number of
+   * requests that were written completely; these are left on the list
+   * for the caller to complete. If the next request was only partly
+   * written, it becomes the current write request. Returns -1 if
+   * gathering writes are not supported, in which case the caller should
+   * use initWrite() and tryWrite().
+   */
+  protected int tryGatherWrite(int maxreqs) throws SinkClosedException {
+    return -1;
+  }
+
   void writeReset() {
     this.cur_write_req = null;
     this.outstanding_writes--;
@@ -91,6 +106,12 @@ public abstract class SockState implements aSocketConst {
   // addWriteRequest
   protected abstract void close(SinkIF closeEventQueue);
 
+  // Called by close() implementations, once, so the connection no 
+  // longer counts towards the load of its shard
+  protected void releaseShard() {
+    aSocketMgr.releaseShard(this);
+  }
+
   public String toString() {
     return "SockState ["+nbsock+"]";
   }
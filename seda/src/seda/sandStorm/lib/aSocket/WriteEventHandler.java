@@ -90,6 +90,35 @@ class WriteEventHandler extends aSocketEventHandler implements EventHandlerIF, a
 	// Skip if locked
 	if ((ss.cur_write_req != null) && (ss.cur_write_req != req)) break;
 
+	// Write as many queued requests as possible in one go
+	int ngathered = -1;
+	try {
+	  ngathered = ss.tryGatherWrite(Math.min(MAX_GATHER_WRITES, MAX_WRITE_REQS_PER_SOCKET - num_reqs_processed));
+	} catch (SinkClosedException sde) {
+	  // As below, expect the SinkClosedEvent to be pushed up when 
+	  // read() fails
+	  return;
+	}
+	if (ngathered >= 0) {
+	  if (DEBUG) System.err.println("WriteEventHandler: Gathering write completed "+ngathered+" requests");
+	  for (int i = 0; i < ngathered; i++) {
+	    if (ss.isClosed()) return;
+	    ATcpWriteRequest donereq = (ATcpWriteRequest)ss.writeReqList.remove_head();
+	    ss.outstanding_writes--;
+
+	    // Send completion upcall
+	    SinkIF cq = donereq.buf.getCompletionQueue();
+	    if (cq != null) {
+	      SinkDrainedEvent sde = new SinkDrainedEvent(ss.conn, donereq.buf);
+	      cq.enqueue_lossy(sde);
+	    }
+	  }
+	  num_reqs_processed += ngathered;
+	  // Stop if a request was only partly written
+	  if ((ngathered == 0) || (ss.cur_write_req != null)) break;
+	  continue;
+	}
+
 	if (ss.cur_write_req == null) {
 	  if (DEBUG) System.err.println("WriteEventHandler: Doing initWrite");
           if (PROFILE) tracer.trace("initWrite called");
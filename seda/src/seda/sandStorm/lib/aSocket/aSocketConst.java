@@ -39,6 +39,8 @@ public interface aSocketConst {
   public static final int MAX_WRITE_LEN = -1; 
   /** Maximum number of write reqs on a socket to process at once */
   public static final int MAX_WRITE_REQS_PER_SOCKET = 1000;
+  /** Maximum number of write reqs to combine into one gathering write */
+  public static final int MAX_GATHER_WRITES = 64;
   /** Maximum number of writes to process at once */
   public static final int MAX_WRITES_AT_ONCE = -1;
   /** Maximum number of accepts to process at once */
@@ -24,11 +24,13 @@
 
 package seda.sandStorm.lib.aSocket;
 
+import seda.sandStorm.core.BufferElement;
 import seda.sandStorm.lib.util.MultiByteArrayInputStream;
 
 import java.util.Comparator;
 import java.util.NoSuchElementException;
 import java.util.TreeSet;
+import java.util.Vector;
 
 /**
  * This is a utility class that allows you to push multiple ATcpInPackets
@@ -38,6 +40,9 @@ import java.util.TreeSet;
  * ATcpInPacket sequence number; that is, if multiple threads in a stage
  * are receiving ATcpInPackets for the same connection, the aSocketInputStream
  * will internally reorder those packets.
+ * <p>
+ * The stream holds on to each packet's buffer until clear() is called,
+ * at which point pooled buffers are released.
  * 
  * @author Matt Welsh
  * @see MultiByteArrayInputStream
@@ -48,6 +53,7 @@ public class aSocketInputStream extends MultiByteArrayInputStream {
 
   protected TreeSet outoforder;
   protected long nextSeqNum;
+  protected Vector heldBufs;
 
   /**
    * Create an aSocketInputStream with an initial sequence number of 1.
@@ -56,6 +62,7 @@ public class aSocketInputStream extends MultiByteArrayInputStream {
     super();
     outoforder = new TreeSet(new seqNumComparator());
     nextSeqNum = 1;
+    heldBufs = new Vector();
   }
 
   /**
@@ -65,6 +72,7 @@ public class aSocketInputStream extends MultiByteArrayInputStream {
     super();
     outoforder = new TreeSet(new seqNumComparator());
     nextSeqNum = initialSeqNum;
+    heldBufs = new Vector();
   }
 
   // Internal class used to reorder elements of 'outoforder' according
@@ -89,13 +97,15 @@ public class aSocketInputStream extends MultiByteArrayInputStream {
    */
   public synchronized void addPacket(ATcpInPacket pkt) {
     long sn = pkt.getSequenceNumber();
+    BufferElement buf = pkt.getBufferElement();
+    if (buf.isPooled()) heldBufs.addElement(buf);
     if (sn == 0) {
       // No sequence number -- assume it's in order, but don't increment
       // the nextSeqNum
-      addArray(pkt.getBytes());
+      addPacketData(pkt);
       return;
     } else if (sn == nextSeqNum) {
-      addArray(pkt.getBytes());
+      addPacketData(pkt);
       nextSeqNum++;
       // seqNum of 0 is special
       if (nextSeqNum == 0) nextSeqNum = 1;
@@ -111,7 +121,7 @@ public class aSocketInputStream extends MultiByteArrayInputStream {
       ATcpInPacket first = (ATcpInPacket)outoforder.first();
       while (first != null && first.seqNum == nextSeqNum) {
 	outoforder.remove(first);
-	addArray(first.getBytes());
+	addPacketData(first);
 	nextSeqNum++;
 	// seqNum of 0 is special
 	if (nextSeqNum == 0) nextSeqNum = 1;
@@ -122,14 +132,27 @@ public class aSocketInputStream extends MultiByteArrayInputStream {
     }
   }
 
+  // Push the valid region of the packet's data
+  private void addPacketData(ATcpInPacket pkt) {
+    BufferElement buf = pkt.getBufferElement();
+    addArray(buf.getBytes(), buf.offset, buf.size);
+  }
+
   /**
    * Reinitialize the state of this input stream, clearing all
    * internal data and pointers. The next sequence number will 
-   * be preserved.
+   * be preserved. Any pooled packet buffers held by the stream are
+   * released.
    */
   public synchronized void clear() {
     super.clear();
     outoforder = new TreeSet(new seqNumComparator());
+    if (heldBufs.size() > 0) {
+      for (int i = 0; i < heldBufs.size(); i++) {
+	((BufferElement)heldBufs.elementAt(i)).release();
+      }
+      heldBufs.removeAllElements();
+    }
   }
 
   /**
@@ -27,16 +27,27 @@ package seda.sandStorm.lib.aSocket;
 import seda.sandStorm.api.*;
 import seda.sandStorm.api.internal.SystemManagerIF;
 import seda.sandStorm.api.internal.ThreadManagerIF;
+import seda.sandStorm.core.BufferPool;
 import seda.sandStorm.internal.ConfigData;
 import seda.sandStorm.main.Sandstorm;
 import seda.sandStorm.main.SandstormConfig;
 import seda.util.Tracer;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * The aSocketMgr is an internal class used to provide an interface between
  * the Sandstorm runtime and the aSocket library. Applications should not
  * make use of this class.
  *
+ * <p>Connections may be spread across several <i>shards</i>, each with
+ * its own read and write stage and selector thread; the number of shards
+ * is given by <tt>global.aSocket.numShards</tt>. Each TCP connection is
+ * assigned to a shard when it is accepted or first used, either in
+ * round-robin order or to the shard with the fewest open connections
+ * (<tt>global.aSocket.shardPolicy</tt>), and stays there. The listen 
+ * stage, and all UDP sockets, use shard 0.
+ *
  * @author Matt Welsh
  */
 public class aSocketMgr {
@@ -45,16 +56,24 @@ public class aSocketMgr {
   private static final boolean PROFILE = false;
 
   private static ThreadManagerIF aSocketTM, aSocketRCTM;
-  private static SinkIF read_sink;
+  private static SinkIF read_sinks[];
   private static SinkIF listen_sink;
-  private static SinkIF write_sink;
+  private static SinkIF write_sinks[];
+
+  private static ReadEventHandler read_handlers[];
 
-  private static ReadEventHandler read_handler;
+  private static int numShards = 1;
+  private static boolean leastLoad = false;
+  private static int nextShard = 0;
+  private static Object shard_lock = new Object();
+  // Connections assigned to each shard and not yet closed
+  private static AtomicInteger shardConns[];
 
   private static Object init_lock = new Object();
   private static boolean initialized = false;
 
   static boolean USE_NIO = false;
+  private static boolean USE_DIRECT_BUFFERS = false;
   private static aSocketImplFactory factory;
 
   public static Tracer tracer;
@@ -86,6 +105,18 @@ public class aSocketMgr {
                 "'NIO' or 'NBIO' for global.aSocket.provider");
       }
 
+      if (cfg.getBoolean("global.aSocket.directBuffers")) {
+	if (!USE_NIO) {
+	  System.err.println("aSocketMgr: Warning: global.aSocket.directBuffers requires the NIO provider, ignoring");
+	} else if (!BufferPool.getDefault().isEnabled()) {
+	  // Without the pool every read would allocate a new direct buffer
+	  System.err.println("aSocketMgr: Warning: global.aSocket.directBuffers requires global.bufferPool.enable, ignoring");
+	} else {
+	  USE_DIRECT_BUFFERS = true;
+	  System.err.println("aSocket layer using direct buffers");
+	}
+      }
+
       try {
 	factory = aSocketImplFactory.getFactory();
       } catch (Exception e) {
@@ -95,38 +126,80 @@ public class aSocketMgr {
       aSocketTM = new aSocketThreadManager(mgr);
       sysmgr.addThreadManager("aSocket", aSocketTM);
 
-      ReadEventHandler revh = new ReadEventHandler();
-      read_handler = revh;	// save this for calls to interruptSelect.
-      aSocketStageWrapper rsw;
-      if (cfg.getBoolean("global.aSocket.governor.enable")) {
+      numShards = cfg.getInt("global.aSocket.numShards");
+      if (numShards < 1) numShards = 1;
+      String policy = cfg.getString("global.aSocket.shardPolicy");
+      if ((policy == null) || policy.equals("roundrobin")) {
+	leastLoad = false;
+      } else if (policy.equals("leastload")) {
+	leastLoad = true;
+      } else {
+	throw new RuntimeException("aSocketMgr: global.aSocket.shardPolicy must be 'roundrobin' or 'leastload'");
+      }
+      shardConns = new AtomicInteger[numShards];
+      for (int i = 0; i < numShards; i++) shardConns[i] = new AtomicInteger(0);
+      if (numShards > 1) {
+	System.err.println("aSocket layer using "+numShards+" shards ("+(leastLoad ? "leastload" : "roundrobin")+")");
+      }
+
+      boolean governor = cfg.getBoolean("global.aSocket.governor.enable");
+      if (governor) {
 	aSocketRCTM = new aSocketRCTMSleep(mgr);
 	sysmgr.addThreadManager("aSocketRCTM", aSocketRCTM);
-	rsw = new aSocketStageWrapper(mgr, "aSocket ReadStage", 
-  	    revh, new ConfigData(mgr), aSocketRCTM);
-      } else {
-	rsw = new aSocketStageWrapper(mgr, "aSocket ReadStage", 
-	    revh, new ConfigData(mgr), aSocketTM);
       }
 
-      StageIF readStage = sysmgr.createStage(rsw, true);
-      read_sink = readStage.getSink();
+      read_handlers = new ReadEventHandler[numShards];
+      read_sinks = new SinkIF[numShards];
+      for (int i = 0; i < numShards; i++) {
+	ReadEventHandler revh = new ReadEventHandler();
+	read_handlers[i] = revh;	// save this for calls to interruptSelect.
+	aSocketStageWrapper rsw = new aSocketStageWrapper(mgr, 
+	    shardStageName(aSocketConst.READSTAGE_NAME, i), revh, new ConfigData(mgr), 
+	    (governor ? aSocketRCTM : aSocketTM));
+	StageIF readStage = sysmgr.createStage(rsw, true);
+	read_sinks[i] = readStage.getSink();
+	if (cfg.getBoolean("global.profile.enable")) {
+	  mgr.getProfiler().add(shardStageName("aSocket shard", i)+" activeSockets", new shardLoad(revh.getSelectSource()));
+	}
+      }
 
       ListenEventHandler levh = new ListenEventHandler();
-      aSocketStageWrapper lsw = new aSocketStageWrapper(mgr, "aSocket ListenStage", 
+      aSocketStageWrapper lsw = new aSocketStageWrapper(mgr, aSocketConst.LISTENSTAGE_NAME, 
 	  levh, new ConfigData(mgr), aSocketTM);
       StageIF listenStage = sysmgr.createStage(lsw, true);
       listen_sink = listenStage.getSink();
 
-      WriteEventHandler wevh = new WriteEventHandler();
-      aSocketStageWrapper wsw = new aSocketStageWrapper(mgr, "aSocket WriteStage", 
-	  wevh, new ConfigData(mgr), aSocketTM);
-      StageIF writeStage = sysmgr.createStage(wsw, true);
-      write_sink = writeStage.getSink();
+      write_sinks = new SinkIF[numShards];
+      for (int i = 0; i < numShards; i++) {
+	WriteEventHandler wevh = new WriteEventHandler();
+	aSocketStageWrapper wsw = new aSocketStageWrapper(mgr, 
+	    shardStageName(aSocketConst.WRITESTAGE_NAME, i), wevh, new ConfigData(mgr), aSocketTM);
+	StageIF writeStage = sysmgr.createStage(wsw, true);
+	write_sinks[i] = writeStage.getSink();
+      }
 
       initialized = true;
     }
   }
 
+  /**
+   * Returns true if incoming TCP data should be read into direct 
+   * ByteBuffers drawn from the default BufferPool, rather than heap
+   * arrays. Only supported by the NIO provider.
+   */
+  public static boolean useDirectBuffers() {
+    return USE_DIRECT_BUFFERS;
+  }
+
+  /**
+   * Returns true if the aSocket layer uses the NIO provider. Only NIO
+   * writes direct and mapped ByteBuffers without copying them onto the
+   * heap.
+   */
+  public static boolean usingNIO() {
+    return USE_NIO;
+  }
+
   /** 
    * Ensure that the aSocket layer is initialized, in case the library
    * is being used in standalone mode.
@@ -156,6 +229,71 @@ public class aSocketMgr {
     return factory;
   }
 
+  // Shard 0 keeps the unadorned stage name
+  private static String shardStageName(String base, int shard) {
+    if (shard == 0) return base;
+    return base+" "+shard;
+  }
+
+  /**
+   * Return the shard handling the given connection, assigning one if
+   * necessary.
+   */
+  static int getShard(SockState ss) {
+    if (numShards == 1) return 0;
+    synchronized (shard_lock) {
+      if (ss.shard == -1) {
+	if (leastLoad) {
+	  // Count assigned connections rather than registered sockets,
+	  // which lag behind a burst of accepts
+	  int best = 0, bestload = Integer.MAX_VALUE;
+	  for (int i = 0; i < numShards; i++) {
+	    int load = shardConns[i].get();
+	    if (load < bestload) {
+	      best = i; bestload = load;
+	    }
+	  }
+	  ss.shard = best;
+	} else {
+	  ss.shard = nextShard;
+	  nextShard = (nextShard + 1) % numShards;
+	}
+	shardConns[ss.shard].incrementAndGet();
+	if (DEBUG) System.err.println("aSocketMgr: assigned "+ss+" to shard "+ss.shard);
+      }
+      return ss.shard;
+    }
+  }
+
+  // Called once when a connection is closed
+  static void releaseShard(SockState ss) {
+    if (numShards == 1) return;
+    synchronized (shard_lock) {
+      if (ss.shard != -1) shardConns[ss.shard].decrementAndGet();
+    }
+  }
+
+  // Choose a shard for a request not yet tied to a connection
+  private static int nextShard() {
+    if (numShards == 1) return 0;
+    synchronized (shard_lock) {
+      int shard = nextShard;
+      nextShard = (nextShard + 1) % numShards;
+      return shard;
+    }
+  }
+
+  // Reports the number of active sockets in a shard to the profiler
+  private static class shardLoad implements ProfilableIF {
+    private SelectSourceIF selsource;
+    shardLoad(SelectSourceIF selsource) {
+      this.selsource = selsource;
+    }
+    public int profileSize() {
+      return selsource.numActive();
+    }
+  }
+
   static public void enqueueRequest(aSocketRequest req) {
     if (PROFILE) tracer.trace("enqueueRequest called");
     init();
@@ -170,9 +308,20 @@ public class aSocketMgr {
 	(req instanceof AUdpConnectRequest) ||
 	(req instanceof AUdpDisconnectRequest)) {
 
+      int shard = 0;
+      if (req instanceof ATcpWriteRequest) {
+	shard = getShard(((ATcpWriteRequest)req).conn.sockState);
+      } else if (req instanceof ATcpFlushRequest) {
+	shard = getShard(((ATcpFlushRequest)req).conn.sockState);
+      } else if (req instanceof ATcpCloseRequest) {
+	shard = getShard(((ATcpCloseRequest)req).conn.sockState);
+      } else if (req instanceof ATcpConnectRequest) {
+	shard = nextShard();
+      }
+
       try {
 	if (PROFILE) WriteEventHandler.tracer.trace("write_sink enqueue");
-	write_sink.enqueue(req);
+	write_sinks[shard].enqueue(req);
 	//Thread.currentThread().yield(); // XXX MDW TESTING
 	if (PROFILE) WriteEventHandler.tracer.trace("write_sink enqueue done");
       } catch (SinkException se) {
@@ -183,20 +332,18 @@ public class aSocketMgr {
     } else if ((req instanceof ATcpStartReadRequest) ||
                (req instanceof AUdpStartReadRequest)) {
 
+      int shard = 0;
+      if (req instanceof ATcpStartReadRequest) {
+	shard = getShard(((ATcpStartReadRequest)req).conn.sockState);
+      }
+
       try {
-	read_sink.enqueue(req);
+	read_sinks[shard].enqueue(req);
       } catch (SinkException se) {
 	System.err.println("aSocketMgr.enqueueRequest: Warning: Got SinkException "+se);
 	System.err.println("aSocketMgr.enqueueRequest: This is a bug - contact <mdw@cs.berkeley.edu>");
       }
-      if (req instanceof ATcpStartReadRequest) {
-	  ATcpStartReadRequest srreq = (ATcpStartReadRequest)req;
-	  SockState ss = srreq.conn.sockState;
-      } else if (req instanceof AUdpStartReadRequest) {
-	  AUdpStartReadRequest srreq = (AUdpStartReadRequest)req;
-	  DatagramSockState ss = srreq.sock.sockState;
-      }
-      read_handler.interruptSelect();
+      read_handlers[shard].interruptSelect();
 
     } else if ((req instanceof ATcpListenRequest) ||
 	(req instanceof ATcpSuspendAcceptRequest) ||
@@ -28,6 +28,7 @@ import seda.sandStorm.api.ManagerIF;
 import seda.sandStorm.api.QueueElementIF;
 import seda.sandStorm.api.internal.BatchDescrIF;
 import seda.sandStorm.api.internal.ThreadManagerIF;
+import seda.sandStorm.core.EventTracer;
 import seda.util.MDWUtil;
 
 /**
@@ -88,7 +89,7 @@ class aSocketRCTMSleep extends aSocketThreadManager implements ThreadManagerIF,
 	      QueueElementIF qelarr[] = batch.getBatch();
 	      if (DEBUG) System.err.println(name+": got "+qelarr.length+" new requests");
 	      num_events += qelarr.length;
-	      handler.handleEvents(qelarr);
+	      EventTracer.handleEvents(handler, qelarr);
 	    }
 	  }
 
@@ -99,7 +100,7 @@ class aSocketRCTMSleep extends aSocketThreadManager implements ThreadManagerIF,
 	    if (ret != null) {
 	      if (DEBUG) System.err.println(name+": select got "+ret.length+" elements");
 	      num_events += ret.length;
-	      handler.handleEvents(ret);
+	      EventTracer.handleEvents(handler, ret);
 	    } else if (DEBUG) System.err.println(name+": select got null");
 	  }
 
@@ -110,7 +111,7 @@ class aSocketRCTMSleep extends aSocketThreadManager implements ThreadManagerIF,
 	      QueueElementIF qelarr[] = batch.getBatch();
 	      if (DEBUG) System.err.println(name+": got "+qelarr.length+" new requests");
 	      num_events += qelarr.length;
-	      handler.handleEvents(qelarr);
+	      EventTracer.handleEvents(handler, qelarr);
 	      break;
 	    }
 	  }
@@ -60,9 +60,9 @@ class aSocketStageWrapper implements StageWrapperIF {
       queuelen = -1;
     }
     if (queuelen == -1) {
-      eventQ = new FiniteQueue(tm);
+      eventQ = new FiniteQueue(name, tm);
     } else {
-      eventQ = new FiniteQueue(tm);
+      eventQ = new FiniteQueue(name, tm);
       QueueThresholdPredicate pred = new QueueThresholdPredicate(eventQ, queuelen);
       eventQ.setEnqueuePredicate(pred);
     }
@@ -32,6 +32,7 @@ import seda.sandStorm.api.internal.BatchDescrIF;
 import seda.sandStorm.api.internal.BatchSorterIF;
 import seda.sandStorm.api.internal.StageWrapperIF;
 import seda.sandStorm.api.internal.ThreadManagerIF;
+import seda.sandStorm.core.EventTracer;
 import seda.sandStorm.internal.ThreadPool;
 import seda.util.Tracer;
 
@@ -144,7 +145,7 @@ class aSocketThreadManager implements ThreadManagerIF, aSocketConst {
 	      QueueElementIF qelarr[] = batch.getBatch();
 	      if (DEBUG) System.err.println(name+": got "+qelarr.length+" new requests");
 	      if (PROFILE) tracer.trace("sorter.nextBatch return non-null");
-      	      handler.handleEvents(qelarr);
+      	      EventTracer.handleEvents(handler, qelarr);
 	      if (PROFILE) tracer.trace("handle batch return");
 	    } else {
 	      if (PROFILE) tracer.trace("sorter.nextBatch return null");
@@ -161,9 +162,12 @@ class aSocketThreadManager implements ThreadManagerIF, aSocketConst {
 	      if (PROFILE) tracer.trace("selsource return non-null");
 
 	      long tstart = System.currentTimeMillis();
-	      handler.handleEvents(ret);
+	      long nstart = System.nanoTime();
+	      EventTracer.handleEvents(handler, ret);
+	      long ntime = System.nanoTime() - nstart;
 	      long tend = System.currentTimeMillis();
 	      wrapper.getStats().recordServiceRate(ret.length, tend-tstart);
+	      wrapper.getStats().recordBatch(ret, ntime);
 
 	    } else {
 	      if (DEBUG) System.err.println(name+": select got null");
@@ -179,7 +183,7 @@ class aSocketThreadManager implements ThreadManagerIF, aSocketConst {
 	      if (PROFILE) tracer.trace("eventq nextBatch ret non-null");
 	      QueueElementIF qelarr[] = batch.getBatch();
 	      if (DEBUG) System.err.println(name+": got "+qelarr.length+" new requests");
-	      handler.handleEvents(qelarr);
+	      EventTracer.handleEvents(handler, qelarr);
 	      if (PROFILE) tracer.trace("eventq nextBatch handler done");
 	      break;
 	    } else {
@@ -232,7 +232,7 @@ public class DatagramSockState extends seda.sandStorm.lib.aSocket.DatagramSockSt
 	AUdpPacket udpp = (AUdpPacket)cur_write_buf;
 	outgoing = new DatagramPacket(udpp.data, udpp.offset, udpp.size, udpp.address, udpp.port);
       } else {
-	outgoing = new DatagramPacket(cur_write_buf.data, cur_write_buf.offset, cur_write_buf.size);
+	outgoing = new DatagramPacket(cur_write_buf.getBytes(), cur_write_buf.offset, cur_write_buf.size);
       }
        ret = dgsock.nbSend(outgoing);
     } catch (IOException ioe) {
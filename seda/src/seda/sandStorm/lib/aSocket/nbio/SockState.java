@@ -26,11 +26,14 @@ package seda.sandStorm.lib.aSocket.nbio;
 
 import seda.nbio.*;
 import seda.sandStorm.api.*;
+import seda.sandStorm.core.FileRegion;
 import seda.sandStorm.core.ssLinkedList;
 import seda.sandStorm.lib.aSocket.*;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Internal class used to represent state of an active socket connection.
@@ -39,12 +42,21 @@ class SockState extends seda.sandStorm.lib.aSocket.SockState {
 
   private static final boolean DEBUG = false;
 
+  // File regions are read and written in chunks of this size
+  private static final int REGION_CHUNK_SIZE = 65536;
+
   private NonblockingInputStream nbis;
   private NonblockingOutputStream nbos;
   private SelectItem readsi, writesi;
 
   private SelectSource read_selsource;
   private SelectSource write_selsource;
+  // File region being streamed by the current write, if any
+  private FileRegion cur_region;
+  private FileChannel cur_region_channel;
+  private long region_sent;
+  // Held while the region is used; close() may end it from another thread
+  private Object region_lock = new Object();
 
   public SockState(ATcpConnection conn, Socket nbsock, int writeClogThreshold) throws IOException {
     if (DEBUG) System.err.println("SockState: Constructor called with "+conn+", "+nbsock+", "+writeClogThreshold);
@@ -106,6 +118,7 @@ class SockState extends seda.sandStorm.lib.aSocket.SockState {
 	if ((readClogTries != -1) &&
 	    (++clogged_numtries >= readClogTries)) {
 	  if (DEBUG) System.err.println("SockState: warning: readClogTries exceeded, dropping "+clogged_qel);
+	  if (clogged_qel instanceof ATcpInPacket) ((ATcpInPacket)clogged_qel).release();
 	  clogged_qel = null;
 	  clogged_numtries = 0;
 	} else {
@@ -213,12 +226,23 @@ class SockState extends seda.sandStorm.lib.aSocket.SockState {
 
   protected void initWrite(ATcpWriteRequest req) {
     this.cur_write_req = req;
-    this.writeBuf = req.buf.data;
+    if (req.buf instanceof FileRegion) {
+      // Streamed a chunk at a time by tryStream(), rather than read 
+      // into memory whole by getBytes()
+      this.cur_region = (FileRegion)req.buf;
+      this.region_sent = 0;
+      this.writeBuf = new byte[(int)Math.min(REGION_CHUNK_SIZE, req.buf.size)];
+      this.cur_offset = 0;
+      this.cur_length_target = 0;
+      return;
+    }
+    this.writeBuf = req.buf.getBytes();
     this.cur_offset = req.buf.offset;
     this.cur_length_target = req.buf.size + cur_offset;
   }
 
   protected boolean tryWrite() throws SinkClosedException {
+    if (cur_region != null) return tryStream();
     try {
       int tryLen;
       if (MAX_WRITE_LEN == -1) {
@@ -241,6 +265,62 @@ class SockState extends seda.sandStorm.lib.aSocket.SockState {
     else return false;
   }
 
+  // Write the next part of the current file region, reading the next
+  // chunk of the file once the last one has been written
+  private boolean tryStream() throws SinkClosedException {
+    String failed;
+    synchronized (region_lock) {
+      if (closed) throw new SinkClosedException("tryStream called on closed socket");
+      try {
+	if (cur_offset == cur_length_target) {
+	  if (cur_region_channel == null) {
+	    cur_region_channel = cur_region.openChannel();
+	  }
+	  int len = (int)Math.min(writeBuf.length, cur_region.size - region_sent);
+	  ByteBuffer bb = ByteBuffer.wrap(writeBuf, 0, len);
+	  while (bb.hasRemaining()) {
+	    int n = cur_region_channel.read(bb, cur_region.getPosition() + region_sent + bb.position());
+	    if (n < 0) throw new IOException("unexpected end of file");
+	  }
+	  cur_offset = 0;
+	  cur_length_target = len;
+	}
+	int n = nbos.nbWrite(writeBuf, cur_offset, cur_length_target - cur_offset);
+	cur_offset += n;
+	region_sent += n;
+	if (DEBUG) System.err.println("SockState: tryStream() sent "+n+" bytes of "+cur_region);
+	if (region_sent < cur_region.size) return false;
+	endStream();
+	return true;
+
+      } catch (IOException ioe) {
+	if (DEBUG) System.err.println("SockState: tryStream() got exception: "+ioe);
+	failed = "tryStream got exception sending "+cur_region+": "+ioe.getMessage();
+      }
+    }
+    // Either the file or the socket failed; the client cannot get the
+    // rest of this response, so give up on the connection. Called 
+    // without region_lock, which close() takes.
+    this.close(null);
+    throw new SinkClosedException(failed);
+  }
+
+  private void endStream() {
+    closeRegion();
+    cur_region = null;
+    writeBuf = null;
+  }
+
+  // Release the file being read by the current region, if any. The 
+  // region is left set, so that a write in progress on another thread
+  // still goes to tryStream(), which finds the socket closed.
+  private void closeRegion() {
+    synchronized (region_lock) {
+      if (cur_region != null) cur_region.closeChannel(cur_region_channel);
+      cur_region_channel = null;
+    }
+  }
+
   protected void writeMaskEnable() {
     numActiveWriteSockets++;
     writesi.events |= Selectable.WRITE_READY;
@@ -259,6 +339,7 @@ class SockState extends seda.sandStorm.lib.aSocket.SockState {
     if (closed) return;
 
     closed = true;
+    releaseShard();
 
     if (DEBUG) System.err.println("SockState.close(): Deregistering with selsources");
     if (read_selsource != null) read_selsource.deregister(readsi); 
@@ -270,6 +351,7 @@ class SockState extends seda.sandStorm.lib.aSocket.SockState {
     // addWriteRequest() -- need to serialize close() with other
     // queue operations on the socket.
     writeReqList = null;
+    closeRegion();
 
     try {
       if (DEBUG) System.err.println("SockState.close(): doing close ["+nbsock+"]");
@@ -253,7 +253,7 @@ public class DatagramSockState extends seda.sandStorm.lib.aSocket.DatagramSockSt
       } else {
 	// XXX Should check if !connected and throw IOException 
 	// (not just SinkClosedException)
-	bb = ByteBuffer.wrap(cur_write_buf.data, cur_write_buf.offset, cur_write_buf.size);
+	bb = cur_write_buf.getByteBuffer();
 	ret = nio_dgsock.write(bb);
       }
 
@@ -275,11 +275,11 @@ public class DatagramSockState extends seda.sandStorm.lib.aSocket.DatagramSockSt
   }
 
   protected void writeMaskEnable() {
-    wselkey.interestOps(wselkey.interestOps() | SelectionKey.OP_WRITE);
+    nio_write_selsource.setInterestOps(wselkey, wselkey.interestOps() | SelectionKey.OP_WRITE);
   }
 
   protected void writeMaskDisable() {
-    wselkey.interestOps(wselkey.interestOps() & ~SelectionKey.OP_WRITE);
+    nio_write_selsource.setInterestOps(wselkey, wselkey.interestOps() & ~SelectionKey.OP_WRITE);
   }
 
   // This is synchronized to avoid close() interfering with
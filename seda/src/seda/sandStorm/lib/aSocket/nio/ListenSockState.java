@@ -115,15 +115,13 @@ public class ListenSockState extends seda.sandStorm.lib.aSocket.ListenSockState
   protected void suspend() {
     if (nio_servsock == null) return; // If already closed
     System.err.println("LSS: Suspending accept on "+servsock);
-    selkey.interestOps(selkey.interestOps() & ~(SelectionKey.OP_ACCEPT));
-    listen_nio_selsource.update(selkey);
+    listen_nio_selsource.setInterestOps(selkey, selkey.interestOps() & ~(SelectionKey.OP_ACCEPT));
   }
 
   protected void resume() {
     if (nio_servsock == null) return; // If already closed
     System.err.println("LSS: Resuming accept on "+servsock);
-    selkey.interestOps(selkey.interestOps() | SelectionKey.OP_ACCEPT);
-    listen_nio_selsource.update(selkey);
+    listen_nio_selsource.setInterestOps(selkey, selkey.interestOps() | SelectionKey.OP_ACCEPT);
   }
 
   protected void close() {
@@ -46,6 +46,16 @@ import java.util.Set;
  * underlying O/S events to a particular order. This feature can be 
  * disabled by creating a SelectSource with the boolean flag 'do_balance'.
  *
+ * <p>In order to avoid generating garbage at high connection counts,
+ * NIOSelectSource reuses the arrays and queue elements it hands out:
+ * the results of a dequeue are only valid until the next call to one
+ * of the dequeue methods. At most MAX_BATCH elements are returned by
+ * each call; any remaining ready events are returned by subsequent
+ * calls without polling the selector again. The number of registered
+ * and active keys is tracked as keys are registered and deregistered,
+ * so the interest set of a registered key must only be changed through
+ * setInterestOps().
+ *
  * <p><b>Important note:</b> This class is not threadsafe with respect
  * to multiple threads calling dequeue() or blocking_dequeue() at once.
  * Clients must synchronize their access to this class. 
@@ -56,9 +66,20 @@ public class NIOSelectSource implements SelectSourceIF {
 
   private static final boolean DEBUG = false;
 
+  /** The maximum number of elements returned by a single dequeue. */
+  public static final int MAX_BATCH = 256;
+
   private Selector selector;
-  private SelectionKey ready[];
+  private SelectionKey ready[], polled[];
+  private NIOSelectorQueueElement elems[];
+  private NIOSelectorQueueElement retarrs[][];
   private int ready_offset, ready_size;
+  private volatile int num_registered, num_active;
+
+  // Set when a key has been cancelled but not yet flushed from the selector
+  private volatile boolean flush_pending;
+  // The thread calling doPoll()
+  private Thread poller;
 
   private boolean do_balance;
   private final int BALANCER_SEQUENCE_SIZE = 10000;
@@ -93,7 +114,10 @@ public class NIOSelectSource implements SelectSourceIF {
     } catch (IOException e) {
         System.err.println("NIOSelectSource ("+name+"): error creating selector: " + e);
     }
-    ready = null;
+    ready = new SelectionKey[16];
+    polled = new SelectionKey[16];
+    elems = new NIOSelectorQueueElement[16];
+    retarrs = new NIOSelectorQueueElement[MAX_BATCH+1][];
     ready_offset = ready_size = 0;
     this.do_balance = do_balance;
 
@@ -107,12 +131,10 @@ public class NIOSelectSource implements SelectSourceIF {
    * generally correspond to a Selectable along with a set of event flags
    * that we wish this SelectSource to test for. 
    *
-   * <p>The user is allowed to modify the event flags in the SelectItem 
-   * directly (say, to cause the SelectSource ignore a given SelectItem for 
-   * the purposes of future calls to one of the dequeue methods). However,
-   * modifying the event flags may not be synchronous with calls to dequeue -
-   * generally because SelectSource maintains a cache of recently-received
-   * events.
+   * <p>The event flags of the returned key may be changed later using
+   * setInterestOps(). However, modifying the event flags may not be 
+   * synchronous with calls to dequeue - generally because SelectSource 
+   * maintains a cache of recently-received events.
    */
   public Object register(Object nio_sc_obj, int ops) {
     if (DEBUG) System.err.println("NIOSelectSource ("+name+"): register " +nio_sc_obj +
@@ -132,12 +154,14 @@ public class NIOSelectSource implements SelectSourceIF {
       SelectionKey ret;
       try {
       	ret = nio_sc.register(selector, ops);
+	num_registered++;
+	if (ops != 0) num_active++;
       } catch (ClosedChannelException cce) {
       	System.err.println("Closed Channel Exception: " + cce);
      	ret = null;
       }
       if (DEBUG) System.err.println("returning " + ret);
-      if (DEBUG) System.err.println("numactive = " + numActive());
+      if (DEBUG) System.err.println("numactive = " + num_active);
       blocker.notify();
       return ret;
     }
@@ -151,11 +175,17 @@ public class NIOSelectSource implements SelectSourceIF {
       );
       return;
   }
+
   /**
    * Deregister a SelectItem with this SelectSource.
    * Note that after calling deregister, subsequent calls to dequeue
    * may in fact return this SelectItem as a result. This is because
    * the SelectQueue internally caches results.
+   *
+   * <p>The key is flushed from the selector (allowing its channel to
+   * be closed) by the next poll; if no poll is pending because no
+   * keys remain active, the polling thread flushes it the next time 
+   * it calls numActive() or one of the dequeue methods.
    */
   public void deregister(Object selkey_obj) {
     if (DEBUG) System.err.println("NIOSelectSource ("+name+"): deregister "+selkey_obj);
@@ -171,20 +201,36 @@ public class NIOSelectSource implements SelectSourceIF {
     synchronized (blocker) {
       SelectionKey selkey = (SelectionKey)selkey_obj;
       if (DEBUG) System.err.println("NIOSelectSource ("+name+"): cancel "+selkey);
-      selkey.cancel();
-      /* This must be done so that calls to close() actually close. */
-      try {
-        if (DEBUG) System.err.println("NIOSelectSource ("+name+"): selectNow");
-	selector.wakeup(); 
-	selector.selectNow();
-        if (DEBUG) System.err.println("NIOSelectSource ("+name+"): selectNow returned");
-      } catch (IOException ioe) {
-	// Ignore
+      if (selkey.isValid()) {
+	num_registered--;
+	if (selkey.interestOps() != 0) num_active--;
+	selkey.cancel();
+	flush_pending = true;
+	if (Thread.currentThread() != poller) selector.wakeup();
       }
       blocker.notify();
     }
   }
 
+  /**
+   * Change the set of events that this SelectSource tests for on the
+   * given key, which must be registered with this SelectSource.
+   */
+  public void setInterestOps(SelectionKey selkey, int ops) {
+    synchronized (blocker) {
+      if (!selkey.isValid()) return;
+      int old = selkey.interestOps();
+      if (old == ops) return;
+      selkey.interestOps(ops);
+      if (old == 0) {
+	num_active++;
+	blocker.notify();
+      } else if (ops == 0) {
+	num_active--;
+      }
+    }
+  }
+
   /**
    * Must be called if the 'events' mask of any SelectItem registered
    * with this SelectSource changes. Pushes event mask changes down to
@@ -212,10 +258,7 @@ public class NIOSelectSource implements SelectSourceIF {
    * Return the number of SelectItems registered with the SelectSource.
    */
   public int numRegistered() {
-    Set keys = selector.keys();
-    synchronized (keys) {
-      return keys.size();
-    }
+    return num_registered;
   }
   
   /**
@@ -224,19 +267,8 @@ public class NIOSelectSource implements SelectSourceIF {
    * interest mask.
    */
   public int numActive() {
-    Set keys = selector.keys();
-    synchronized (blocker) {
-      synchronized (keys) {
-  	Iterator key_iter = keys.iterator();
-   	SelectionKey sk;
-    	int n_active = 0;
-     	while (key_iter.hasNext()) {
-  	  sk = (SelectionKey)key_iter.next();
-  	  if (sk.isValid() && sk.interestOps() != 0) n_active++;
-   	}
-    	return n_active;
-      }
-    }
+    if (flush_pending && (num_active == 0)) flushCancelled();
+    return num_active;
   }
 
   /**
@@ -254,13 +286,16 @@ public class NIOSelectSource implements SelectSourceIF {
    * Returns null if no entries available.
    */
   public QueueElementIF dequeue() {
-    if (numRegistered() == 0) return null;
+    if (num_registered == 0) {
+      if (flush_pending) flushCancelled();
+      return null;
+    }
 
-    if ((ready_size == 0) || (ready_offset == ready_size)) {
+    if (ready_offset == ready_size) {
       doPoll(0);
     } 
-    if (ready_size == 0) return null;
-    return new NIOSelectorQueueElement(ready[ready_offset++]);
+    if (ready_offset == ready_size) return null;
+    return nextElements(1)[0];
   }
 
   /** 
@@ -268,18 +303,7 @@ public class NIOSelectSource implements SelectSourceIF {
    * Returns null if no entries available.
    */
   public QueueElementIF[] dequeue_all() {
-    if (numRegistered() == 0) return null;
-
-    if ((ready_size == 0) || (ready_offset == ready_size)) {
-      doPoll(0);
-    } 
-    if (ready_size == 0) return null;
-    NIOSelectorQueueElement ret[] =
-        new NIOSelectorQueueElement[ready_size-ready_offset];
-    for (int i = 0; i < ret.length; i++) {
-      ret[i] = new NIOSelectorQueueElement(ready[ready_offset++]);
-    }
-    return ret;
+    return dequeue(MAX_BATCH);
   }
 
   /** 
@@ -287,19 +311,16 @@ public class NIOSelectSource implements SelectSourceIF {
    * SelectSource. Returns null if no entries available.
    */
   public QueueElementIF[] dequeue(int num) {
-    if (numRegistered() == 0) return null;
+    if (num_registered == 0) {
+      if (flush_pending) flushCancelled();
+      return null;
+    }
 
-    if ((ready_size == 0) || (ready_offset == ready_size)) {
+    if (ready_offset == ready_size) {
       doPoll(0);
     } 
-    if (ready_size == 0) return null;
-    int numtoret = Math.min(ready_size - ready_offset, num);
-
-    NIOSelectorQueueElement ret[] = new NIOSelectorQueueElement[numtoret];
-    for (int i = 0; i < numtoret; i++) {
-      ret[i] = new NIOSelectorQueueElement(ready[ready_offset++]);
-    }
-    return ret;
+    if (ready_offset == ready_size) return null;
+    return nextElements(num);
   }
 
   /**
@@ -308,37 +329,17 @@ public class NIOSelectSource implements SelectSourceIF {
    * after that time. A timeout of -1 blocks forever.
    */
   public QueueElementIF blocking_dequeue(int timeout_millis) {
-
     if (DEBUG) System.err.println("NIOSelectSource ("+name+"): blocking_dequeue called");
-    synchronized (blocker) {
-      if (numRegistered() == 0) {
-	if (DEBUG) System.err.println("No keys in selector");
-
-	if (timeout_millis == 0) return null;
-
-        // Wait for something to be registered
-	if (timeout_millis == -1) {
-	  try {
-	    blocker.wait();
-	  } catch (InterruptedException ie) {
-	  }
-	} else {
-	  try {
-	    blocker.wait(timeout_millis);
-	  } catch (InterruptedException ie) {
-	  }
-	}
-      }
-    }
+    if (!waitForRegistered(timeout_millis)) return null;
 
-    if ((ready_size == 0) || (ready_offset == ready_size)) {
+    if (ready_offset == ready_size) {
       doPoll(timeout_millis);
     } 
-    if (ready_size == 0) {
+    if (ready_offset == ready_size) {
         if (DEBUG) System.err.println("still no ready");
         return null;
     }
-    return new NIOSelectorQueueElement(ready[ready_offset++]);
+    return nextElements(1)[0];
   }
 
   /**
@@ -348,42 +349,7 @@ public class NIOSelectSource implements SelectSourceIF {
    */
   public QueueElementIF[] blocking_dequeue_all(int timeout_millis) {
     if (DEBUG) System.err.println("NIOSelectSource ("+name+"): blocking_dequeue_all called");
-    /* have to do this to retain same semantics as before
-       nio expects 0 for indefinite.  there is no way to say
-       don't block at all, so hopefully 1ms isn't noticable to people */
-
-    synchronized (blocker) {
-      if (numRegistered() == 0) {
-	if (DEBUG) System.err.println("!!!!no keys");
-	if (timeout_millis == 0) return null;
-	// Wait for something to be registered
-	if (timeout_millis == -1) {
-	  try {
-	    blocker.wait();
-	  } catch (InterruptedException ie) {
-	  }
-	} else {
-	  try {
-	    blocker.wait(timeout_millis);
-	  } catch (InterruptedException ie) {
-	  }
-	}
-      }
-    }
-
-    if ((ready_size == 0) || (ready_offset == ready_size)) {
-      doPoll(timeout_millis);
-    } 
-    if (DEBUG) System.err.println("!!!!ready_size=" + ready_size);
-    if (ready_size == 0) return null;
-    if (DEBUG) System.err.println("!!!!ready_size-ready_offset=" + (ready_size - ready_offset));
-    NIOSelectorQueueElement ret[] =
-      new NIOSelectorQueueElement[ready_size-ready_offset];
-    for (int i = 0; i < ret.length; i++) {
-      if (DEBUG) System.err.println("ret["+i+"] = " + ready[ready_offset]);
-      ret[i] = new NIOSelectorQueueElement(ready[ready_offset++]);
-    }
-    return ret;
+    return blocking_dequeue(timeout_millis, MAX_BATCH);
   }
 
   /**
@@ -393,11 +359,28 @@ public class NIOSelectSource implements SelectSourceIF {
    */
   public QueueElementIF[] blocking_dequeue(int timeout_millis, int num) {
     if (DEBUG) System.err.println("NIOSelectSource ("+name+"): blocking_dequeue called");
+    if (!waitForRegistered(timeout_millis)) return null;
+
+    if (ready_offset == ready_size) {
+      doPoll(timeout_millis);
+    } 
+    if (DEBUG) System.err.println("NIOSelectSource ("+name+"): ready_size="+ready_size+", ready_offset="+ready_offset);
+    if (ready_offset == ready_size) return null;
+    return nextElements(num);
+  }
+
+  // Wait up to timeout_millis for a key to be registered. Returns false
+  // if there are still no keys registered.
+  private boolean waitForRegistered(int timeout_millis) {
+    if (flush_pending && (num_registered == 0)) flushCancelled();
 
     synchronized (blocker) {
-      if (numRegistered() == 0) {
-      	if (timeout_millis == 0) return null;
-       	// Wait for something to be registered
+      if (num_registered == 0) {
+	if (DEBUG) System.err.println("No keys in selector");
+
+	if (timeout_millis == 0) return false;
+
+        // Wait for something to be registered
 	if (timeout_millis == -1) {
 	  try {
 	    blocker.wait();
@@ -410,20 +393,45 @@ public class NIOSelectSource implements SelectSourceIF {
 	  }
 	}
       }
+      // Fall through to a poll, as before, even if the wait timed out
+      return true;
     }
+  }
 
-    if ((ready_size == 0) || (ready_offset == ready_size)) {
-      doPoll(timeout_millis);
-    } 
-    if (ready_size == 0) return null;
-    int numtoret = Math.min(ready_size - ready_offset, num);
-    NIOSelectorQueueElement ret[] = new NIOSelectorQueueElement[numtoret];
-    for (int i = 0; i < numtoret; i++) {
-      ret[i] = new NIOSelectorQueueElement(ready[ready_offset++]);
+  // Returns the next (at most num) ready elements, reusing the 
+  // result arrays and queue elements
+  private NIOSelectorQueueElement[] nextElements(int num) {
+    int n = ready_size - ready_offset;
+    if (n > num) n = num;
+    if (n > MAX_BATCH) n = MAX_BATCH;
+    NIOSelectorQueueElement ret[] = retarrs[n];
+    if (ret == null) {
+      ret = new NIOSelectorQueueElement[n];
+      retarrs[n] = ret;
+    }
+    for (int i = 0; i < n; i++) {
+      NIOSelectorQueueElement el = elems[ready_offset];
+      el.item = ready[ready_offset];
+      ready[ready_offset++] = null;
+      ret[i] = el;
     }
     return ret;
   }
 
+  // Flush cancelled keys from the selector, so that their channels
+  // can be closed. Only done by the polling thread, since a select
+  // may otherwise be in progress.
+  private void flushCancelled() {
+    if ((poller != null) && (Thread.currentThread() != poller)) return;
+    if (DEBUG) System.err.println("NIOSelectSource ("+name+"): flushing cancelled keys");
+    flush_pending = false;
+    try {
+      selector.selectNow();
+    } catch (IOException ioe) {
+      // Ignore
+    }
+  }
+
   // Actually performs the poll and sets ready[], ready_off, ready_size
   //
   // XXX MDW: There is a race condition here. If multiple threads
@@ -439,6 +447,11 @@ public class NIOSelectSource implements SelectSourceIF {
   private void doPoll(int timeout) {
     if (DEBUG) System.err.println("NIOSelectSource ("+name+"): Doing poll, timeout "+timeout);
 
+    poller = Thread.currentThread();
+    // Any select flushes the cancelled keys
+    flush_pending = false;
+    ready_offset = ready_size = 0;
+
     int c = 0;
     try {
         // to correct for changed semantics in nio from nbio.
@@ -455,71 +468,63 @@ public class NIOSelectSource implements SelectSourceIF {
       if (DEBUG) System.err.println("NIOSelectSource ("+name+"): Error doing select: " + e);
     }
     if (DEBUG) System.err.println("NIOSelectSource ("+name+"): poll returned "+c);
-    if (c == 0) {
-      ready = null; ready_offset = ready_size = 0; return;
-    }
 
+    // Keys left in the selected set by an earlier selectNow() are
+    // collected here too, even if c is zero
     Set skeys = selector.selectedKeys();
-
-    synchronized (skeys) {
-      if (skeys.size() > 0) {
-
-     	SelectionKey ret[] = new SelectionKey[skeys.size()];
-      	Iterator key_iter = skeys.iterator();
-
-       	int j = 0;
-	while (key_iter.hasNext() && j < ret.length) {
-	  ret[j] = (SelectionKey)key_iter.next();
-	  key_iter.remove();
-	  j++;
-	}
-
-  	if (ret.length != 0) {
-  	  // XXX We can't get ret == null if doPoll() is synchronized with 
-  	  // deregister() - but I'm not sure I want to do that
-  	  ready_offset = 0; ready_size = ret.length;
-  	  balance(ret);
-  	  return;
-   	}
-      }
+    int n = skeys.size();
+    if (n == 0) return;
+
+    if (n > polled.length) grow(n);
+    Iterator key_iter = skeys.iterator();
+    int j = 0;
+    while (key_iter.hasNext() && j < n) {
+      polled[j++] = (SelectionKey)key_iter.next();
+      key_iter.remove();
     }
+    balance(j);
+    ready_size = j;
+  }
 
-    // Didn't get anything
-    ready = null; ready_offset = ready_size = 0;
+  // Grow the key and element arrays to hold at least n entries
+  private void grow(int n) {
+    int newlen = polled.length;
+    while (newlen < n) newlen *= 2;
+    polled = new SelectionKey[newlen];
+    ready = new SelectionKey[newlen];
+    NIOSelectorQueueElement newelems[] = new NIOSelectorQueueElement[newlen];
+    System.arraycopy(elems, 0, newelems, 0, elems.length);
+    elems = newelems;
   }
 
-  // Balances selarr[] by shuffling the entries - sets ready[]
-  private void balance(SelectionKey selarr[]) {
-    if (DEBUG) System.err.println("NIOSelectSource ("+name+"): balance called, selarr size="+selarr.length);
+  // Balances the first n entries of polled[] by shuffling them into ready[]
+  private void balance(int n) {
+    if (DEBUG) System.err.println("NIOSelectSource ("+name+"): balance called, n="+n);
 
-    for (int i = 0; i < selarr.length; i++)
-        if (DEBUG) System.err.println("!!!!selar["+i+"] = " + selarr[i]);
+    for (int i = 0; i < n; i++) {
+      if (elems[i] == null) elems[i] = new NIOSelectorQueueElement(null);
+    }
 
-    if ((!do_balance) || (selarr.length < 2)) {
-      ready = selarr;
+    if ((!do_balance) || (n < 2)) {
+      System.arraycopy(polled, 0, ready, 0, n);
+      for (int i = 0; i < n; i++) polled[i] = null;
     } else {
-      SelectionKey a;
-      ready = new SelectionKey[selarr.length];
-
-      for (int i = 0; i < ready.length; i++) {
+      for (int i = 0; i < n; i++) {
       	if (balancer_seq_off == BALANCER_SEQUENCE_SIZE) {
      	  balancer_seq_off = 0;
       	}
-       	int n = balancer_seq[balancer_seq_off++] % selarr.length;
+       	int k = balancer_seq[balancer_seq_off++] % n;
 	int c = 0;
-	while (selarr[n] == null) {
-	  n++; c++;
-	  if (n == selarr.length) n = 0;
-	  if (c == selarr.length) {
-	    System.err.println("WARNING: NIOSelectSource.balance(): All items in selarr are null (n="+n+", c="+c+", len="+selarr.length);
-	    for (int k = 0; k < ready.length; k++) {
-	      System.err.println("["+k+"] ready:"+ready[k]+" selarr:"+selarr[k]);
-	    }
-	    throw new IllegalArgumentException("balance: All items in selarr are null! This is a bug - please contact mdw@cs.berkeley.edu");
+	while (polled[k] == null) {
+	  k++; c++;
+	  if (k == n) k = 0;
+	  if (c == n) {
+	    System.err.println("WARNING: NIOSelectSource.balance(): All items in polled are null (k="+k+", c="+c+", n="+n);
+	    throw new IllegalArgumentException("balance: All items in polled are null! This is a bug - please contact mdw@cs.berkeley.edu");
 	  }
 	}
-	if (DEBUG) System.err.println("NIOSelectSource ("+name+"): balance: "+n+"->"+i);
-	a = selarr[n]; selarr[n] = null; ready[i] = a;
+	if (DEBUG) System.err.println("NIOSelectSource ("+name+"): balance: "+k+"->"+i);
+	ready[i] = polled[k]; polled[k] = null;
       }
     }
   }
@@ -549,4 +554,3 @@ public class NIOSelectSource implements SelectSourceIF {
   }
 
 }
-
@@ -25,12 +25,16 @@
 package seda.sandStorm.lib.aSocket.nio;
 
 import seda.sandStorm.api.*;
+import seda.sandStorm.core.BufferElement;
+import seda.sandStorm.core.BufferPool;
+import seda.sandStorm.core.FileRegion;
 import seda.sandStorm.core.ssLinkedList;
 import seda.sandStorm.lib.aSocket.*;
 
 import java.io.IOException;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 
 /**
@@ -42,6 +46,13 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
 
   private SelectionKey rselkey, wselkey;
   private ByteBuffer byte_buffer, read_byte_buffer; 
+  private ATcpWriteRequest gather_reqs[];
+  // File region being sent by the current write, if any
+  private FileRegion cur_region;
+  private FileChannel cur_region_channel;
+  // Held while the region is used; close() may end it from another thread
+  private Object region_lock = new Object();
+  private ByteBuffer gather_bufs[];
 
   private NIOSelectSource read_selsource, write_selsource;
 
@@ -52,9 +63,11 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
     this.writeClogThreshold = writeClogThreshold;
     this.write_selsource = null;
 
-    if (DEBUG) System.err.println("SockState "+nbsock+": Const creating readBuf of size "+aSocketConst.READ_BUFFER_SIZE);
-    readBuf = new byte[aSocketConst.READ_BUFFER_SIZE];
-    read_byte_buffer = ByteBuffer.wrap(readBuf);
+    if (!aSocketMgr.useDirectBuffers()) {
+      if (DEBUG) System.err.println("SockState "+nbsock+": Const creating readBuf of size "+aSocketConst.READ_BUFFER_SIZE);
+      readBuf = new byte[aSocketConst.READ_BUFFER_SIZE];
+      read_byte_buffer = ByteBuffer.wrap(readBuf);
+    }
 
     if (DEBUG) System.err.println("SockState "+nbsock+": Setting flags");
     outstanding_writes = 0;
@@ -108,6 +121,7 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
 	if ((readClogTries != -1) &&
 	    (++clogged_numtries >= readClogTries)) {
 	  if (DEBUG) System.err.println("SockState: warning: readClogTries exceeded, dropping "+clogged_qel);
+	  if (clogged_qel instanceof ATcpInPacket) ((ATcpInPacket)clogged_qel).release();
 	  clogged_qel = null;
 	  clogged_numtries = 0;
 	} else {
@@ -120,6 +134,11 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
       }
     }
 
+    if (aSocketMgr.useDirectBuffers()) {
+      doDirectRead();
+      return;
+    }
+
     int len;
 
     try {
@@ -172,6 +191,44 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
       read_byte_buffer.rewind();
   }
 
+  // Read straight into a pooled direct buffer, which is passed up 
+  // without copying
+  private void doDirectRead() {
+    BufferElement buf = BufferPool.getDefault().allocateDirect(aSocketConst.READ_BUFFER_SIZE);
+    int len;
+
+    try {
+      len = nbsock.getChannel().read(buf.getWritableByteBuffer());
+      if (DEBUG) System.err.println("SockState: direct read returned "+len);
+    } catch (Exception e) {
+      if (DEBUG) System.err.println("ss.doDirectRead: read got IOException: "+e.getMessage());
+      len = -1;
+    }
+
+    if (len <= 0) {
+      buf.release();
+      // See doRead() regarding empty reads
+      if (len < 0) this.close(readCompQ);
+      return;
+    }
+
+    buf.size = len;
+    pkt = new ATcpInPacket(conn, buf, seqNum);
+    // 0 is special (indicates no sequence number)
+    seqNum++; if (seqNum == 0) seqNum = 1;
+
+    try {
+      readCompQ.enqueue(pkt);
+    } catch (SinkFullException qfe) {
+      clogged_qel = pkt;
+      clogged_numtries = 0;
+    } catch (SinkException sce) {
+      // User has gone away
+      pkt.release();
+      this.close(null);
+    }
+  }
+
   // XXX This is synchronized with close() to avoid a race with close()
   // removing the writeReqList while this method is being called.
   // Probably a better way to do this...
@@ -228,13 +285,25 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
 
   protected void initWrite(ATcpWriteRequest req) {
     this.cur_write_req = req;
-    this.writeBuf = req.buf.data;
     this.cur_offset = req.buf.offset;
     this.cur_length_target = req.buf.size + cur_offset;
-    this.byte_buffer = ByteBuffer.wrap(writeBuf, cur_offset, req.buf.size);
+    if (req.buf instanceof FileRegion) {
+      // Sent with transferTo() by tryWrite()
+      this.cur_region = (FileRegion)req.buf;
+      this.writeBuf = null;
+      this.byte_buffer = null;
+    } else if (req.buf.isDirect()) {
+      // Hand the off-heap buffer to the channel as is
+      this.writeBuf = null;
+      this.byte_buffer = req.buf.getByteBuffer();
+    } else {
+      this.writeBuf = req.buf.data;
+      this.byte_buffer = ByteBuffer.wrap(writeBuf, cur_offset, req.buf.size);
+    }
   }
 
   protected boolean tryWrite() throws SinkClosedException {
+    if (cur_region != null) return tryTransfer();
     try {
       int tryLen;
       if (DEBUG) System.err.println("SockState: tryWrite()");
@@ -260,14 +329,128 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
     else return false;
   }
 
+  // Send the current file region straight from the file to the socket
+  private boolean tryTransfer() throws SinkClosedException {
+    String failed;
+    synchronized (region_lock) {
+      if (closed) throw new SinkClosedException("tryTransfer called on closed socket");
+      try {
+	if (cur_region_channel == null) {
+	  cur_region_channel = cur_region.openChannel();
+	}
+	long n = cur_region_channel.transferTo(cur_region.getPosition() + cur_offset,
+	    cur_length_target - cur_offset, nbsock.getChannel());
+	cur_offset += (int)n;
+	if (DEBUG) System.err.println("SockState: tryTransfer() sent "+n+" bytes of "+cur_region);
+	if (cur_offset < cur_length_target) return false;
+	endTransfer();
+	return true;
+
+      } catch (IOException ioe) {
+	if (DEBUG) System.err.println("SockState: tryTransfer() got exception: "+ioe);
+	failed = "tryTransfer got exception sending "+cur_region+": "+ioe.getMessage();
+      }
+    }
+    // Either the file or the socket failed; the client cannot get the
+    // rest of this response, so give up on the connection. Called 
+    // without region_lock, which close() takes.
+    this.close(null);
+    throw new SinkClosedException(failed);
+  }
+
+  private void endTransfer() {
+    closeRegion();
+    cur_region = null;
+  }
+
+  // Release the file being read by the current region, if any. The 
+  // region is left set, so that a write in progress on another thread
+  // still goes to tryTransfer(), which finds the socket closed.
+  private void closeRegion() {
+    synchronized (region_lock) {
+      if (cur_region != null) cur_region.closeChannel(cur_region_channel);
+      cur_region_channel = null;
+    }
+  }
+
+  protected int tryGatherWrite(int maxreqs) throws SinkClosedException {
+    int n = 0;
+    ATcpWriteRequest first = null;
+
+    // Collect the run of write requests at the head of the queue; 
+    // synchronized with addWriteRequest() appending to it
+    synchronized (this) {
+      if (closed) throw new SinkClosedException("tryGatherWrite called on closed socket");
+      if ((gather_reqs == null) || (gather_reqs.length < maxreqs)) {
+	gather_reqs = new ATcpWriteRequest[maxreqs];
+	gather_bufs = new ByteBuffer[maxreqs];
+      }
+      java.util.Enumeration e = writeReqList.elements();
+      while ((n < maxreqs) && e.hasMoreElements()) {
+	Object o = e.nextElement();
+	if (!(o instanceof ATcpWriteRequest)) break;
+	// File regions are sent on their own with transferTo()
+	if (((ATcpWriteRequest)o).buf instanceof FileRegion) break;
+	gather_reqs[n++] = (ATcpWriteRequest)o;
+      }
+    }
+    if (n == 0) return -1;
+
+    for (int i = 0; i < n; i++) {
+      ATcpWriteRequest req = gather_reqs[i];
+      if ((i == 0) && (cur_write_req == req)) {
+	// Continue where the last partial write left off
+	gather_bufs[i] = byte_buffer;
+      } else if (req.buf.isDirect()) {
+	gather_bufs[i] = req.buf.getByteBuffer();
+      } else {
+	gather_bufs[i] = ByteBuffer.wrap(req.buf.data, req.buf.offset, req.buf.size);
+      }
+    }
+
+    // Write until everything is out or the socket stops taking data
+    int done = 0;
+    try {
+      for (int c = 0; c <= TRYWRITE_SPIN; c++) {
+	long ret = nbsock.getChannel().write(gather_bufs, done, n - done);
+	while ((done < n) && !gather_bufs[done].hasRemaining()) done++;
+	if ((done == n) || (ret == 0)) break;
+      }
+    } catch (IOException ioe) {
+      // Assume this is because socket was already closed
+      for (int i = 0; i < n; i++) {
+	gather_reqs[i] = null; gather_bufs[i] = null;
+      }
+      this.close(null);
+      throw new SinkClosedException("tryGatherWrite got exception doing write: "+ioe.getMessage());
+    }
+    if (DEBUG) System.err.println("SockState: tryGatherWrite() completed "+done+" of "+n+" requests");
+
+    // Keep the unfinished request, if any, as the current write
+    if (done < n) {
+      cur_write_req = gather_reqs[done];
+      byte_buffer = gather_bufs[done];
+      writeBuf = cur_write_req.buf.data;
+      cur_length_target = cur_write_req.buf.offset + cur_write_req.buf.size;
+      cur_offset = cur_length_target - byte_buffer.remaining();
+    } else {
+      cur_write_req = null;
+    }
+
+    for (int i = 0; i < n; i++) {
+      gather_reqs[i] = null; gather_bufs[i] = null;
+    }
+    return done;
+  }
+
   protected void writeMaskEnable() {
     numActiveWriteSockets++;
-    wselkey.interestOps(wselkey.interestOps() | SelectionKey.OP_WRITE);
+    write_selsource.setInterestOps(wselkey, wselkey.interestOps() | SelectionKey.OP_WRITE);
   }
 
   protected void writeMaskDisable() {
     numActiveWriteSockets--;
-    wselkey.interestOps(wselkey.interestOps() & ~SelectionKey.OP_WRITE);
+    write_selsource.setInterestOps(wselkey, wselkey.interestOps() & ~SelectionKey.OP_WRITE);
   }
 
   // This is synchronized to avoid close() interfering with
@@ -276,6 +459,7 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
     if (closed) return;
 
     closed = true;
+    releaseShard();
 
     if (DEBUG) System.err.println("SockState.close(): Deregistering with selsources");
     if (read_selsource != null) read_selsource.deregister(rselkey);
@@ -284,6 +468,7 @@ public class SockState extends seda.sandStorm.lib.aSocket.SockState {
 
     // Eliminate write queue
     writeReqList = null;
+    closeRegion();
 
     try {
       if (DEBUG) System.err.println("SockState.close(): doing close ["+nbsock+"]");
@@ -118,7 +118,7 @@ public class clientTest implements EventHandlerIF, aTLSConst{
     
     public void handleResponse (ATcpInPacket resp) {
 	byte[] data = resp.getBytes();
-	String response = new String (data);
+	String response = new String (data, 0, resp.size());
 	System.err.println ("Client just received a response: \n" + response);
 
 	if (DEBUGTEST) {
@@ -73,7 +73,7 @@ public class serverTest implements EventHandlerIF {
     // This is just to test the encryption/decryption of sending actual data between client/server
     public void readData (ATcpInPacket req) {
 	byte[] data = req.getBytes();
-	String request = new String (data);
+	String request = new String (data, 0, req.size());
 	System.err.println ("Server just received a request: " + request);
 	
 	String response = "<html><body bgcolor=\"white\"><h3>aTLS Web Server Response</h3><p><b>Hello, this is the aTLS test web server.</b><br><p>Your complete request was as follows: <p><pre> " + request + "</pre><p>And, by the way, your request (and this reply) were encrypted using TLS! Glad to be of service today.</body></html>\r\n\r\n";
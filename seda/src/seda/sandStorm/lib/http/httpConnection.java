@@ -27,10 +27,14 @@ package seda.sandStorm.lib.http;
 import seda.sandStorm.api.*;
 import seda.sandStorm.core.BufferElement;
 import seda.sandStorm.core.SimpleSink;
+import seda.sandStorm.core.ssLinkedList;
 import seda.sandStorm.lib.aSocket.ATcpConnection;
 import seda.sandStorm.lib.aSocket.ATcpInPacket;
 
 import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
 
 /**
  * This class represents a single HTTP connection. When an httpServer
@@ -38,6 +42,20 @@ import java.io.IOException;
  * To send HTTP responses to a client, you can enqueue an httpResponse
  * object on the corresponding httpConnection.
  *
+ * <p>Clients may pipeline requests, sending several before reading any
+ * response. Responses created from a request (see httpResponder) are 
+ * sent in the order the requests were received: a response that is
+ * ready before those to earlier requests is held until they have been
+ * sent, and a close() is deferred until all held responses are out. 
+ * If the response to a request has not come within the httpServer's
+ * held response timeout while later ones are held, it is skipped, so
+ * one lost response cannot hold up the connection for ever.
+ * A response may be sent in several parts, the first carrying the 
+ * header; it is complete once Content-Length bytes of payload have been
+ * sent. The httpServer may also limit the number of requests on a
+ * connection that are awaiting a response, in which case further
+ * requests are only pushed to the user as responses go out.
+ *
  * @author Matt Welsh
  * @see httpRequest
  * @see httpResponse
@@ -51,6 +69,34 @@ public class httpConnection extends SimpleSink implements httpConst, QueueElemen
   private SinkIF compQ;
   private httpPacketReader hpr;
 
+  // Maximum number of requests awaiting a response; 0 for no limit
+  private int maxPipelined;
+  // Sequence number of the next response to send
+  private int nextResponse = 1;
+  // Payload bytes remaining in the response now being sent; 
+  // -1 if no part of it has been sent
+  private long responseRemaining = -1;
+  // Sequence number -> Vector of responsePart, for responses that
+  // are ready but not yet next
+  private Hashtable heldResponses;
+  // Requests not yet pushed to the user because of maxPipelined
+  private ssLinkedList deferredRequests;
+  private boolean closePending;
+  private SinkIF closeCompQ;
+  // Milliseconds to wait for a missing response before skipping it;
+  // 0 to wait for ever
+  private int heldTimeout;
+  // Value of nextResponse when the held response timer was set; 0 if
+  // the timer is not set
+  private int stalledAt;
+
+  // Receives connections whose held response timer has fired
+  private static final SimpleSink heldTimerSink = new SimpleSink() {
+    public void enqueue(QueueElementIF qel) {
+      ((httpConnection)qel).heldTimedOut();
+    }
+  };
+
   /** 
    * Can be used by applications to associate an arbitrary data object 
    * with this connection.
@@ -66,6 +112,8 @@ public class httpConnection extends SimpleSink implements httpConst, QueueElemen
     this.hs = hs;
     this.compQ = compQ;
     this.hpr = new httpPacketReader(this, compQ);
+    this.maxPipelined = hs.getMaxPipelinedRequests();
+    this.heldTimeout = hs.getHeldResponseTimeout();
 
     // Push myself to user
     compQ.enqueue_lossy(this);
@@ -78,6 +126,158 @@ public class httpConnection extends SimpleSink implements httpConst, QueueElemen
     hpr.parsePacket(pkt);
   }
 
+  /**
+   * Package-internal: Called by the httpPacketReader for each request
+   * received. Pushes the request to the user unless maxPipelined
+   * requests are already awaiting a response.
+   */
+  synchronized void requestParsed(httpRequest req) {
+    if ((maxPipelined > 0) && 
+	((deferredRequests != null && deferredRequests.size() > 0) ||
+	 (req.seqNum - nextResponse >= maxPipelined))) {
+      if (deferredRequests == null) deferredRequests = new ssLinkedList();
+      deferredRequests.add_to_tail(req);
+      return;
+    }
+    pushRequest(req);
+  }
+
+  private void pushRequest(httpRequest req) {
+    if (!compQ.enqueue_lossy(req)) {
+      System.err.println("httpConnection: WARNING: Could not enqueue_lossy to user: "+req);
+      // No response will come, so don't wait for one
+      hold(req.seqNum, null);
+      sendHeld();
+    }
+  }
+
+  // Push deferred requests now allowed by maxPipelined
+  private void pushDeferred() {
+    if (deferredRequests == null) return;
+    while (deferredRequests.size() > 0) {
+      httpRequest req = (httpRequest)deferredRequests.get_head();
+      if (req.seqNum - nextResponse >= maxPipelined) return;
+      deferredRequests.remove_head();
+      pushRequest(req);
+    }
+  }
+
+  // Send the responder, or hold it if responses to earlier requests
+  // have not been sent yet
+  private synchronized void sendInOrder(httpResponder resp) throws SinkException {
+    int seq = resp.getSequenceNumber();
+    // Take the buffers now, as the response may be reused for its 
+    // next part before this one is sent
+    responsePart part = new responsePart(resp);
+    if (seq == 0) {
+      part.send();
+    } else if (seq - nextResponse < 0) {
+      // Request was skipped by heldTimedOut(); too late to send
+      if (DEBUG) System.err.println("httpConnection: Dropping late response "+seq);
+    } else if ((seq != nextResponse) || ((heldResponses != null) && (heldResponses.get(new Integer(seq)) != null))) {
+      hold(seq, part);
+    } else {
+      try {
+	part.send();
+      } finally {
+	if (responseDone(part)) sendHeld();
+      }
+    }
+  }
+
+  // Hold the part (null if the request will get no response)
+  private void hold(int seq, responsePart part) {
+    if (heldResponses == null) heldResponses = new Hashtable();
+    Integer key = new Integer(seq);
+    Vector parts = (Vector)heldResponses.get(key);
+    if (parts == null) {
+      parts = new Vector(1);
+      heldResponses.put(key, parts);
+    }
+    if (part != null) parts.addElement(part);
+    if ((heldTimeout > 0) && (stalledAt == 0) && (seq != nextResponse)) {
+      stalledAt = nextResponse;
+      hs.getTimer().registerEvent(heldTimeout, this, heldTimerSink);
+    }
+  }
+
+  // Called when the held response timer fires. If no part of the next
+  // response has come since the timer was set, skip to the earliest 
+  // held response; otherwise wait again while responses are held.
+  private synchronized void heldTimedOut() {
+    int stalled = stalledAt;
+    stalledAt = 0;
+    if ((heldResponses == null) || heldResponses.isEmpty()) return;
+    if ((nextResponse == stalled) && (responseRemaining < 0) &&
+	(heldResponses.get(new Integer(nextResponse)) == null)) {
+      // Find the earliest held sequence number, allowing for wrap
+      int next = 0;
+      for (Enumeration e = heldResponses.keys(); e.hasMoreElements(); ) {
+	int seq = ((Integer)e.nextElement()).intValue();
+	if ((next == 0) || (seq - nextResponse < next - nextResponse)) next = seq;
+      }
+      System.err.println("httpConnection: WARNING: No response to request "+nextResponse+" after "+heldTimeout+" ms, skipping to "+next+" on "+this);
+      nextResponse = next;
+      if (maxPipelined > 0) pushDeferred();
+      sendHeld();
+      if ((heldResponses == null) || heldResponses.isEmpty()) return;
+    }
+    stalledAt = nextResponse;
+    hs.getTimer().registerEvent(heldTimeout, this, heldTimerSink);
+  }
+
+  // Account for a part of the response now being sent; returns true 
+  // if the response is complete, in which case the next one may go
+  private boolean responseDone(responsePart part) {
+    if ((responseRemaining < 0) || part.sendHeader) {
+      responseRemaining = part.contentLength;
+    }
+    responseRemaining -= part.payloadSize;
+    if (responseRemaining > 0) return false;
+    nextResponseDone();
+    return true;
+  }
+
+  private void nextResponseDone() {
+    responseRemaining = -1;
+    nextResponse++;
+    // 0 means no sequence number
+    if (nextResponse == 0) nextResponse = 1;
+    if (maxPipelined > 0) pushDeferred();
+  }
+
+  // Send any held responses that are now next in order
+  private void sendHeld() {
+    while ((heldResponses != null) && !heldResponses.isEmpty()) {
+      Vector parts = (Vector)heldResponses.remove(new Integer(nextResponse));
+      if (parts == null) break;
+      if (parts.size() == 0) {
+	// Request was dropped
+	nextResponseDone();
+	continue;
+      }
+      boolean done = false;
+      for (int i = 0; i < parts.size(); i++) {
+	responsePart part = (responsePart)parts.elementAt(i);
+	try {
+	  part.send();
+	} catch (SinkException se) {
+	  // Connection has gone away
+	}
+	done = responseDone(part);
+      }
+      if (!done) break;
+    }
+    if (closePending && ((heldResponses == null) || heldResponses.isEmpty())) {
+      closePending = false;
+      try {
+	doClose(closeCompQ);
+      } catch (SinkClosedException sce) {
+	// Already closed
+      }
+    }
+  }
+
   /**
    * Return the ATcpConnection associated with this connection.
    */
@@ -97,10 +297,7 @@ public class httpConnection extends SimpleSink implements httpConst, QueueElemen
    */
   public void enqueue(QueueElementIF element) throws SinkException {
     if (DEBUG) System.err.println("httpConnection.enqueue: "+element);
-    httpResponder resp = (httpResponder)element;
-    httpResponse packet = resp.getResponse();
-    BufferElement bufarr[] = packet.getBuffers(resp.sendHeader());
-    tcpconn.enqueue_many(bufarr);
+    sendInOrder((httpResponder)element);
   }
 
   /**
@@ -109,11 +306,8 @@ public class httpConnection extends SimpleSink implements httpConst, QueueElemen
    */
   public boolean enqueue_lossy(QueueElementIF element) {
     if (DEBUG) System.err.println("httpConnection.enqueue_lossy: "+element);
-    httpResponder resp = (httpResponder)element;
-    httpResponse packet = resp.getResponse();
-    BufferElement bufarr[] = packet.getBuffers(resp.sendHeader());
     try {
-      tcpconn.enqueue_many(bufarr);
+      sendInOrder((httpResponder)element);
     } catch (SinkException se) {
       return false;
     }
@@ -138,9 +332,20 @@ public class httpConnection extends SimpleSink implements httpConst, QueueElemen
   }
 
   /**
-   * Close the connection.
+   * Close the connection. If responses are being held until those to
+   * earlier requests are ready, the connection is closed once they 
+   * have all been sent.
    */
-  public void close(final SinkIF compQ) throws SinkClosedException {
+  public synchronized void close(final SinkIF compQ) throws SinkClosedException {
+    if ((heldResponses != null) && !heldResponses.isEmpty()) {
+      closePending = true;
+      closeCompQ = compQ;
+      return;
+    }
+    doClose(compQ);
+  }
+
+  private void doClose(final SinkIF compQ) throws SinkClosedException {
     // XXX For now, allow a connection to be closed multiple times.
     // Tricky bit below: Provide anonymous SinkIF as 'compQ' which
     // we re-enqueue onto user compQ as appropriate SinkDrainedEvent!
@@ -173,5 +378,24 @@ public class httpConnection extends SimpleSink implements httpConst, QueueElemen
     tcpconn.enqueue_abort(key);
   }
 
+  // One part of a response, as it was when enqueued
+  private class responsePart {
+    BufferElement bufarr[];
+    boolean sendHeader;
+    int contentLength, payloadSize;
+
+    responsePart(httpResponder resp) {
+      httpResponse packet = resp.getResponse();
+      this.sendHeader = resp.sendHeader();
+      this.bufarr = packet.getBuffers(sendHeader);
+      this.contentLength = packet.contentLength;
+      BufferElement payload = packet.getPayload();
+      this.payloadSize = (payload == null) ? 0 : payload.size;
+    }
+
+    void send() throws SinkException {
+      if (bufarr != null) tcpconn.enqueue_many(bufarr);
+    }
+  }
 
 }
@@ -27,6 +27,9 @@ package seda.sandStorm.lib.http;
 import seda.sandStorm.api.QueueElementIF;
 import seda.sandStorm.api.SinkIF;
 import seda.sandStorm.core.BufferElement;
+import seda.sandStorm.core.FileRegion;
+
+import java.io.IOException;
 
 /**
  * An httpResponse corresponding to a '200 OK' response.
@@ -55,6 +58,16 @@ public class httpOKResponse extends httpResponse implements httpConst, QueueElem
     super(httpResponse.RESPONSE_OK, contentType, payload, contentLength);
   }
 
+  /**
+   * Create an httpOKResponse whose payload is the contents of the named
+   * file, using the given MIME content-type. The file is not read into
+   * memory; with the NIO aSocket provider it is sent directly from disk
+   * each time the response is sent.
+   */
+  public httpOKResponse(String contentType, String filename) throws IOException {
+    super(httpResponse.RESPONSE_OK, contentType, new FileRegion(filename));
+  }
+
   /**
    * Create an httpOKResponse with a given response payload size and
    * MIME type.
@@ -25,12 +25,11 @@
 package seda.sandStorm.lib.http;
 
 import seda.sandStorm.api.SinkIF;
+import seda.sandStorm.core.BufferElement;
 import seda.sandStorm.lib.aSocket.ATcpInPacket;
-import seda.sandStorm.lib.aSocket.aSocketInputStream;
 
 import java.io.IOException;
-import java.io.StreamTokenizer;
-import java.util.Vector;
+import java.util.Hashtable;
 
 /**
  * This is a package-internal class which reads HTTP request packets.
@@ -38,6 +37,14 @@ import java.util.Vector;
  * <tt>parsePacket</tt> method). When a complete packet has been
  * read, an httpRequest is pushed to the corresponding SinkIF.
  * This is the bulk of the HTTP protocol implementation.
+ *
+ * <p>The request header is parsed by a state machine which scans the
+ * packet bytes directly, one byte at a time, and can stop and resume at
+ * any packet boundary. The bytes of the request header are collected
+ * into a single array, which is handed to the httpRequest together
+ * with the offsets of the URL and of each header name and value; 
+ * strings are only created when the application asks for them.
+ * Any request body (as given by Content-Length) is skipped.
  * 
  * @author Matt Welsh
  */
@@ -45,21 +52,53 @@ class httpPacketReader implements httpConst {
 
   private static final boolean DEBUG = false;
 
-  private static final int STATE_START = 0;
-  private static final int STATE_HEADER = 1;
-  private static final int STATE_DONE = 2;
+  /** The largest request header that will be accepted. */
+  static final int MAX_HEADER_SIZE = 65536;
+
+  private static final int INITIAL_HEADER_SIZE = 1024;
+  private static final int INITIAL_HEADER_LINES = 16;
+
+  private static final int STATE_START = 0;	// Before the request line
+  private static final int STATE_METHOD = 1;	// In the request method
+  private static final int STATE_URL_SP = 2;	// Before the URL
+  private static final int STATE_URL = 3;	// In the URL
+  private static final int STATE_VER_SP = 4;	// Before the HTTP version
+  private static final int STATE_VER = 5;	// In the HTTP version
+  private static final int STATE_REQ_EOL = 6;	// After the HTTP version
+  private static final int STATE_LINE = 7;	// At the start of a header line
+  private static final int STATE_NAME = 8;	// In a header name
+  private static final int STATE_VALUE_SP = 9;	// Before a header value
+  private static final int STATE_VALUE = 10;	// In a header value
+  private static final int STATE_DONE = 11;	// Header complete
+  private static final int STATE_BODY = 12;	// Skipping the request body
+
+  private static final byte CR = (byte)'\r';
+  private static final byte LF = (byte)'\n';
 
   private int state;
-  private aSocketInputStream ais;
-  private StreamTokenizer tok;
-
-  private String request;
-  private String url;
-  private int httpver;
-  private Vector header;
   private httpConnection conn;
   private SinkIF compQ;
 
+  // Header bytes of the current request
+  private byte hdr[];
+  private int hdrlen;
+  // Offsets into hdr: method start/end, URL start/end, then four
+  // entries (name start/end, value start/end) per header line
+  private int offs[];
+  private int numoffs;
+  private int httpver;
+  // Offsets of the header value currently being scanned
+  private int valstart, valend;
+  private boolean continuation;
+  private int bodyleft;
+
+  // Sequence number of the last request
+  private int reqSeqNum = 0;
+
+  // Packets received ahead of their sequence number
+  private long nextSeqNum = 1;
+  private Hashtable outoforder;
+
   /**
    * Create an httpPacketReader with the given httpConnection
    * and completion queue.
@@ -67,44 +106,76 @@ class httpPacketReader implements httpConst {
   httpPacketReader(httpConnection conn, SinkIF compQ) {
     this.conn = conn;
     this.compQ = compQ;
-    this.ais = new aSocketInputStream();
+    this.offs = new int[4 + 4*INITIAL_HEADER_LINES];
     reset();
   }
 
   /**
    * Parse the given packet; returns true if a complete HTTP
-   * request has been received and parsed.
+   * request has been received and parsed. The packet is released
+   * once its data has been consumed.
    */
   boolean parsePacket(ATcpInPacket pkt) throws IOException {
-    if (DEBUG) System.err.println("GPR: pushPacket called, size "+pkt.getBytes().length);
-    ais.addPacket(pkt);
-
-    int origstate;
-
-    do {
-      origstate = state;
+    if (DEBUG) System.err.println("HPR: parsePacket called, size "+pkt.size());
+
+    long sn = pkt.getSequenceNumber();
+    if ((sn != 0) && (sn != nextSeqNum)) {
+      // Hold on to it until the packets before it have arrived
+      if (outoforder == null) outoforder = new Hashtable(1);
+      outoforder.put(new Long(sn), pkt);
+      return false;
+    }
 
-      switch (state) {
-	case STATE_START:
-	  state = parseURL();
-	  break;
+    boolean gotreq = consume(pkt);
+    if (sn != 0) {
+      advanceSeqNum();
+      while ((outoforder != null) && !outoforder.isEmpty()) {
+	ATcpInPacket next = (ATcpInPacket)outoforder.remove(new Long(nextSeqNum));
+	if (next == null) break;
+	gotreq |= consume(next);
+	advanceSeqNum();
+      }
+    }
+    return gotreq;
+  }
 
-	case STATE_HEADER:
-	  state = accumulateHeader();
-	  break;
+  private void advanceSeqNum() {
+    nextSeqNum++;
+    // seqNum of 0 is special
+    if (nextSeqNum == 0) nextSeqNum = 1;
+  }
 
-	case STATE_DONE:
+  // Parse all of the data in the packet, then release it
+  private boolean consume(ATcpInPacket pkt) throws IOException {
+    BufferElement buf = pkt.getBufferElement();
+    byte data[] = buf.getBytes();
+    int off = buf.offset;
+    int end = buf.offset + buf.size;
+    boolean gotreq = false;
+
+    try {
+      while (off < end) {
+	if (state == STATE_BODY) {
+	  int n = Math.min(bodyleft, end - off);
+	  off += n;
+	  bodyleft -= n;
+	  if (bodyleft == 0) state = STATE_START;
+	  continue;
+	}
+	off = scan(data, off, end);
+	if (state == STATE_DONE) {
 	  processHeader();
-	  reset();
-	  return true;
-
-	default:
-	  throw new Error("Bad state in pushPacket");
+	  gotreq = true;
+	}
       }
-
-    } while (state != origstate);
-
-    return false;
+    } catch (IOException ioe) {
+      // Drop the rest of this request
+      reset();
+      throw ioe;
+    } finally {
+      pkt.release();
+    }
+    return gotreq;
   }
 
   /**
@@ -112,152 +183,234 @@ class httpPacketReader implements httpConst {
    */
   private void reset() {
     state = STATE_START;
-    ais.clear();
-    tok = new StreamTokenizer(ais);
-    tok.resetSyntax();
-    tok.wordChars((char)0, (char)255);
-    tok.whitespaceChars('\u0000', '\u0020');
-    tok.eolIsSignificant(true);
-    request = null;
-    url = null;
-    header = null;
+    hdr = null;
+    hdrlen = 0;
+    numoffs = 4;
     httpver = 0;
+    continuation = false;
+    bodyleft = 0;
   }
 
   /**
-   * Parse the first line of the request header.
+   * Scan data[off..end) until the end of the request header or the 
+   * end of the data, whichever comes first, appending the bytes 
+   * consumed to the header. Returns the offset of the first byte not
+   * consumed.
    */
-  private int parseURL() throws IOException {
-    ais.mark(0);
-    String req = nextWord();
-    url = nextWord();
-    String ver = nextWord();
-    if ((req == null) || (url == null) || (ver == null)) {
-      ais.reset();
-      return STATE_START;
-    } else {
-      request = req;
-      if (ver.equals("HTTP/1.0")) {
-	httpver = httpRequest.HTTPVER_10;
-        String tmp = nextWord(); // Throw away EOL
-	return STATE_HEADER;
-      } else if (ver.equals("HTTP/1.1")) {
-	httpver = httpRequest.HTTPVER_11;
-        String tmp = nextWord(); // Throw away EOL
-	return STATE_HEADER;
-      } else {
-	if (!ver.equals(CRLF)) {
-	  throw new IOException("Unknown HTTP version in request: "+httpver);
-	}
-	httpver = httpRequest.HTTPVER_09;
-        return STATE_DONE;
-      }
-    }
-  }
+  private int scan(byte data[], int off, int end) throws IOException {
+    // Offsets are recorded relative to the start of hdr[]
+    int base = hdrlen - off;
+    int i;
 
-  /**
-   * Accumulate header lines.
-   */
-  private int accumulateHeader() throws IOException {
+    loop:
+    for (i = off; i < end; i++) {
+      byte b = data[i];
+      int pos = base + i;
 
-    String line;
+      switch (state) {
+	case STATE_START:
+	  // Skip any blank lines left over from a previous request
+	  if (b > ' ') {
+	    offs[0] = pos;
+	    state = STATE_METHOD;
+	  }
+	  break;
 
-    do {
-      line = nextLine();
-      if (DEBUG) System.err.println("hpr: accumulateHeader() read line "+line);
+	case STATE_METHOD:
+	  if (b <= ' ') {
+	    if ((b == CR) || (b == LF)) throw new IOException("Bad HTTP request line");
+	    offs[1] = pos;
+	    state = STATE_URL_SP;
+	  }
+	  break;
 
-      if (line == null) {
-	// End of buffer
-	return STATE_HEADER;
-      } else if (!line.equals("")) {
-	if (header == null) header = new Vector(1);
-	header.addElement(line);
-      }
+	case STATE_URL_SP:
+	  if ((b == CR) || (b == LF)) throw new IOException("Bad HTTP request line");
+	  if (b > ' ') {
+	    offs[2] = pos;
+	    state = STATE_URL;
+	  }
+	  break;
 
-    } while (!line.equals(""));
-    return STATE_DONE;
-  }
+	case STATE_URL:
+	  if ((b == CR) || (b == LF)) {
+	    // No version, so this is an HTTP/0.9 request
+	    offs[3] = pos;
+	    httpver = httpRequest.HTTPVER_09;
+	    state = STATE_DONE;
+	    i++;
+	    break loop;
+	  } else if (b <= ' ') {
+	    offs[3] = pos;
+	    state = STATE_VER_SP;
+	  }
+	  break;
 
-  /**
-   * Process the header, possibly pushing an httpRequest to the user.
-   */
-  private void processHeader() throws IOException {
-    httpRequest req = new httpRequest(conn,request,url,httpver,header);
-    if (DEBUG) System.err.println("httpPacketReader: Pushing req to user");
-    if (!compQ.enqueue_lossy(req)) {
-      System.err.println("httpPacketReader: WARNING: Could not enqueue_lossy to user: "+req);
-    }
-  }
+	case STATE_VER_SP:
+	  if ((b == CR) || (b == LF)) {
+	    httpver = httpRequest.HTTPVER_09;
+	    state = STATE_DONE;
+	    i++;
+	    break loop;
+	  } else if (b > ' ') {
+	    // Remember where the version starts in valstart
+	    valstart = pos;
+	    state = STATE_VER;
+	  }
+	  break;
 
-  /**
-   * Read the next whitespace-delimited word from the packet.
-   */
-  private String nextWord() throws IOException {
-    while (true) {
-      int type = tok.nextToken();
-      switch (type) {
+	case STATE_VER:
+	  if (b <= ' ') {
+	    appendTo(data, off, i);
+	    off = i;
+	    httpver = parseVersion(valstart, pos);
+	    state = (b == LF) ? STATE_LINE : STATE_REQ_EOL;
+	  }
+	  break;
+
+	case STATE_REQ_EOL:
+	  if (b == LF) state = STATE_LINE;
+	  break;
 
-	case StreamTokenizer.TT_EOL:
-	  return CRLF;
+	case STATE_LINE:
+	  if (b == LF) {
+	    // Blank line ends the header
+	    state = STATE_DONE;
+	    i++;
+	    break loop;
+	  } else if ((b == ' ') || (b == '\t')) {
+	    if (numoffs > 4) {
+	      // Folded continuation of the previous header value
+	      continuation = true;
+	      valstart = offs[numoffs-2];
+	      valend = offs[numoffs-1];
+	      state = STATE_VALUE;
+	    }
+	  } else if (b != CR) {
+	    if (numoffs + 4 > offs.length) {
+	      int newoffs[] = new int[offs.length * 2];
+	      System.arraycopy(offs, 0, newoffs, 0, numoffs);
+	      offs = newoffs;
+	    }
+	    offs[numoffs] = pos;
+	    state = STATE_NAME;
+	  }
+	  break;
 
-	case StreamTokenizer.TT_EOF:
-	  return null;
+	case STATE_NAME:
+	  if (b == ':') {
+	    offs[numoffs+1] = pos;
+	    valstart = valend = pos+1;
+	    state = STATE_VALUE_SP;
+	  } else if (b == LF) {
+	    // Not a header line; ignore it
+	    state = STATE_LINE;
+	  }
+	  break;
 
-	case StreamTokenizer.TT_WORD:
-	  if (DEBUG) System.err.println("nextWord returning "+tok.sval);
-	  return tok.sval;
+	case STATE_VALUE_SP:
+	  if (b == LF) {
+	    endValue();
+	  } else if (b > ' ') {
+	    valstart = pos;
+	    valend = pos+1;
+	    state = STATE_VALUE;
+	  } else if (b != CR) {
+	    valstart = valend = pos+1;
+	  }
+	  break;
 
-	case StreamTokenizer.TT_NUMBER:
-	  if (DEBUG) System.err.println("nextWord returning number");
-	  return Double.toString(tok.nval);
+	case STATE_VALUE:
+	  if (b == LF) {
+	    endValue();
+	  } else if (b > ' ') {
+	    // Trailing whitespace is not included in the value
+	    valend = pos+1;
+	  }
+	  break;
 
 	default:
-	  continue;
+	  throw new Error("Bad state in httpPacketReader.scan: "+state);
       }
     }
+
+    appendTo(data, off, i);
+    return i;
   }
 
-  /**
-   * Read the next line from the packet.
-   */
-  private String nextLine() throws IOException {
-    String line = new String("");
-    boolean first = true;
-
-    while (true) {
-      switch (tok.nextToken()) {
-
-	case StreamTokenizer.TT_EOL:
-	  if (DEBUG) System.err.println("nextLine returning "+line);
-	  return line;
-
-	case StreamTokenizer.TT_EOF:
-	  return null;
-
-	case StreamTokenizer.TT_WORD:
-	  if (DEBUG) System.err.println("nextLine got word "+tok.sval);
-	  if (first) {
-	    line = tok.sval;
-	    first = false;
-	  } else {
-	    line += " "+tok.sval;
-	  }
-	  break;
+  // Finish the current header line
+  private void endValue() {
+    if (continuation) {
+      offs[numoffs-1] = valend;
+      continuation = false;
+    } else {
+      offs[numoffs+2] = valstart;
+      offs[numoffs+3] = valend;
+      numoffs += 4;
+    }
+    state = STATE_LINE;
+  }
 
-	case StreamTokenizer.TT_NUMBER:
-	  if (DEBUG) System.err.println("nextLine got number "+tok.nval);
-	  if (first) {
-	    line = Double.toString(tok.nval);
-	    first = false;
-	  } else {
-	    line += " "+Double.toString(tok.nval);
-	  }
-	  break;
+  // Append data[from..to) to the header
+  private void appendTo(byte data[], int from, int to) throws IOException {
+    int n = to - from;
+    if (n == 0) return;
+    if (hdrlen + n > MAX_HEADER_SIZE) {
+      throw new IOException("HTTP request header exceeds "+MAX_HEADER_SIZE+" bytes");
+    }
+    if (hdr == null) {
+      hdr = new byte[Math.max(INITIAL_HEADER_SIZE, n)];
+    } else if (hdrlen + n > hdr.length) {
+      byte newhdr[] = new byte[Math.max(hdr.length * 2, hdrlen + n)];
+      System.arraycopy(hdr, 0, newhdr, 0, hdrlen);
+      hdr = newhdr;
+    }
+    System.arraycopy(data, from, hdr, hdrlen, n);
+    hdrlen += n;
+  }
 
-	default:
-	  continue;
+  // Determine the HTTP version from the bytes at hdr[start..end)
+  private int parseVersion(int start, int end) throws IOException {
+    if ((end - start == 8) && (hdr[start] == 'H') && (hdr[start+1] == 'T') &&
+	(hdr[start+2] == 'T') && (hdr[start+3] == 'P') && 
+	(hdr[start+4] == '/') && (hdr[start+5] == '1') && 
+	(hdr[start+6] == '.')) {
+      if (hdr[start+7] == '0') return httpRequest.HTTPVER_10;
+      if (hdr[start+7] == '1') return httpRequest.HTTPVER_11;
+    }
+    throw new IOException("Unknown HTTP version in request: "+new String(hdr, start, end-start));
+  }
+
+  /**
+   * Process the header, possibly pushing an httpRequest to the user.
+   */
+  private void processHeader() throws IOException {
+    int reqoffs[] = new int[numoffs];
+    System.arraycopy(offs, 0, reqoffs, 0, numoffs);
+    httpRequest req = new httpRequest(conn, hdr, reqoffs, httpver);
+    reset();
+    reqSeqNum++;
+    // 0 means no sequence number
+    if (reqSeqNum == 0) reqSeqNum = 1;
+    req.seqNum = reqSeqNum;
+
+    String cl = req.getHeader("Content-Length");
+    if (cl != null) {
+      try {
+	bodyleft = Integer.parseInt(cl);
+	if (bodyleft > 0) state = STATE_BODY;
+      } catch (NumberFormatException nfe) {
+	// Ignore it
       }
     }
+
+    if (DEBUG) System.err.println("httpPacketReader: Pushing req to user");
+    if (conn != null) {
+      // Let the connection limit the number of requests outstanding
+      conn.requestParsed(req);
+    } else if (!compQ.enqueue_lossy(req)) {
+      System.err.println("httpPacketReader: WARNING: Could not enqueue_lossy to user: "+req);
+    }
   }
 
 }
@@ -64,21 +64,37 @@ public class httpRequest extends TimeStampedEvent
   private String url;
   private int httpver;
   private int user_class = -2;
+  int seqNum;
 
-  private Vector rawHeader;
-  private Hashtable header;
+  private byte rawHeader[];
+  private int offs[];
+  private String names[], values[];
   private Hashtable query;
 
   /**
    * Package-internal: Create an httpRequest from the given connection,
-   * request string, URL, HTTP version, and header.
+   * raw request header and HTTP version. <tt>offs</tt> contains the
+   * offsets into <tt>hdr</tt> of the request method and URL (start
+   * and end of each), followed by the start and end offsets of the
+   * name and value of each header line.
    */
-  httpRequest(httpConnection conn, String requestStr, String url, 
-      int httpver, Vector header) throws IOException {
+  httpRequest(httpConnection conn, byte hdr[], int offs[], int httpver) 
+    throws IOException {
     this.conn = conn;
     this.httpver = httpver;
-    this.rawHeader = header;
-    this.header = null;
+    this.rawHeader = hdr;
+    this.offs = offs;
+
+    if (matches(offs[0], offs[1], "GET")) {
+      request = REQUEST_GET;
+    } else if (matches(offs[0], offs[1], "POST")) {
+      request = REQUEST_POST;
+    } else {
+      throw new IOException("Bad HTTP request: "+
+	  new String(hdr, offs[0], offs[1]-offs[0], "ISO-8859-1"));
+    }
+
+    String url = new String(hdr, offs[2], offs[3]-offs[2], "ISO-8859-1");
 
     // Check to see if there is a query string
     int question = url.indexOf('?');
@@ -100,14 +116,6 @@ public class httpRequest extends TimeStampedEvent
     } else {
       this.url = url;
     }
-
-    if (requestStr.equalsIgnoreCase("get")) {
-      request = REQUEST_GET;
-    } else if (requestStr.equalsIgnoreCase("post")) {
-      request = REQUEST_POST;
-    } else {
-      throw new IOException("Bad HTTP request: "+request);
-    }
   }
 
   // Decode special characters in URLs 
@@ -174,6 +182,18 @@ public class httpRequest extends TimeStampedEvent
     return httpver;
   }
 
+  /**
+   * Return the sequence number of this request on its connection. 
+   * Requests are numbered from 1 in the order they were received;
+   * responses created from a request carry its number, and the 
+   * httpConnection sends them in that order, whatever order they are
+   * generated in. Every request must therefore be answered with
+   * exactly one response (possibly sent in several parts).
+   */
+  public int getSequenceNumber() {
+    return seqNum;
+  }
+
   /**
    * Return the corresponding HTTP connection.
    */
@@ -184,14 +204,48 @@ public class httpRequest extends TimeStampedEvent
   /**
    * Return the header line corresponding to the given key.
    * For example, to get the 'User-Agent' field from the header,
-   * use <tt>getHeader("User-Agent")</tt>.
+   * use <tt>getHeader("User-Agent")</tt>. Keys are not case-sensitive;
+   * if the key appears more than once, the last value is returned.
    */
   public String getHeader(String key) {
-    if (header == null) {
-      parseHeader();
+    for (int i = getNumHeaders() - 1; i >= 0; i--) {
+      int n = 4 + i*4;
+      if (matches(offs[n], offs[n+1], key)) return getHeaderValue(i);
     }
-    if (header == null) return null;
-    return (String)header.get(key);
+    return null;
+  }
+
+  /**
+   * Return the number of header lines in this request.
+   */
+  public int getNumHeaders() {
+    return (offs.length - 4) / 4;
+  }
+
+  /**
+   * Return the name of the given header line, where 
+   * <tt>0 &lt;= i &lt; getNumHeaders()</tt>.
+   */
+  public String getHeaderName(int i) {
+    if (names == null) names = new String[getNumHeaders()];
+    if (names[i] == null) {
+      int n = 4 + i*4;
+      names[i] = materialize(offs[n], offs[n+1]).trim();
+    }
+    return names[i];
+  }
+
+  /**
+   * Return the value of the given header line, where 
+   * <tt>0 &lt;= i &lt; getNumHeaders()</tt>.
+   */
+  public String getHeaderValue(int i) {
+    if (values == null) values = new String[getNumHeaders()];
+    if (values[i] == null) {
+      int n = 4 + i*4;
+      values[i] = materialize(offs[n+2], offs[n+3]);
+    }
+    return values[i];
   }
 
   /**
@@ -252,18 +306,38 @@ public class httpRequest extends TimeStampedEvent
     }
   }
 
-  // Convert rawHeader to header (key, value) pairs
-  private void parseHeader() {
-    if (rawHeader == null) return;
-    header = new Hashtable(1);
-    for (int i = 0; i < rawHeader.size(); i++) {
-      String h = (String)rawHeader.elementAt(i);
-      StringTokenizer s = new StringTokenizer(h);
-      String k = s.nextToken(":").trim();
-      String v = s.nextToken().trim();
-      if (DEBUG) System.err.println("httpRequest: key="+k+", val="+v);
-      header.put(k,v);
+  // Compare rawHeader[start..end) against str, ignoring case and
+  // trailing whitespace
+  private boolean matches(int start, int end, String str) {
+    while ((end > start) && (rawHeader[end-1] <= ' ')) end--;
+    int len = str.length();
+    if (end - start != len) return false;
+    for (int i = 0; i < len; i++) {
+      int b = rawHeader[start+i] & 0xff;
+      int c = str.charAt(i);
+      if (b == c) continue;
+      if ((b | 0x20) != (c | 0x20) || ((b | 0x20) < 'a') || ((b | 0x20) > 'z')) {
+	return false;
+      }
+    }
+    return true;
+  }
+
+  // Convert rawHeader[start..end) to a string, replacing the line
+  // breaks in folded header values with spaces
+  private String materialize(int start, int end) {
+    char str[] = new char[end - start];
+    int len = 0;
+    for (int i = start; i < end; i++) {
+      char c = (char)(rawHeader[i] & 0xff);
+      if ((c == '\r') || (c == '\n')) {
+	// Drop the break and any whitespace after it
+	while ((i+1 < end) && (rawHeader[i+1] <= ' ')) i++;
+	c = ' ';
+      }
+      str[len++] = c;
     }
+    return new String(str, 0, len);
   }
 
   public String toString() {
@@ -280,14 +354,8 @@ public class httpRequest extends TimeStampedEvent
       case HTTPVER_11: s+="HTTP/1.1"; break;
     }
 
-    if (header == null) parseHeader(); 
-    if (header != null) {
-      Enumeration e = header.keys();
-      while (e.hasMoreElements()) {
-	String key = (String)e.nextElement();
-	String val = (String)header.get(key);
-	s += "\n\t"+key+" "+val;
-      }
+    for (int i = 0; i < getNumHeaders(); i++) {
+      s += "\n\t"+getHeaderName(i)+" "+getHeaderValue(i);
     }
     s += "]";
     return s;
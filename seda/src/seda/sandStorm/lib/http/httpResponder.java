@@ -40,6 +40,7 @@ public class httpResponder implements httpConst, QueueElementIF {
   private httpConnection conn;
   private boolean closeConnection;
   private boolean sendHeader;
+  private int seqNum;
 
   /**
    * Create an httpResponder with the given response and connection.
@@ -87,6 +88,7 @@ public class httpResponder implements httpConst, QueueElementIF {
   public httpResponder(httpResponse resp, httpRequest req,
       boolean closeConnection, boolean sendHeader) {
     this(resp, req.getConnection(), closeConnection, sendHeader);
+    this.seqNum = req.getSequenceNumber();
   }
 
   /**
@@ -98,6 +100,7 @@ public class httpResponder implements httpConst, QueueElementIF {
   public httpResponder(httpResponse resp, httpRequest req,
       boolean closeConnection) {
     this(resp, req.getConnection(), closeConnection);
+    this.seqNum = req.getSequenceNumber();
   }
 
   /**
@@ -107,6 +110,7 @@ public class httpResponder implements httpConst, QueueElementIF {
   public httpResponder(httpResponse resp, httpRequest req) {
     this(resp, req.getConnection(), 
 	((req.getHttpVer() < httpRequest.HTTPVER_11)?(true):(false)));
+    this.seqNum = req.getSequenceNumber();
   }
 
   /**
@@ -138,4 +142,15 @@ public class httpResponder implements httpConst, QueueElementIF {
     return sendHeader;
   }
 
+  /**
+   * Return the sequence number of the request this responder answers,
+   * or 0 if it was not created from a request. Responses with a 
+   * sequence number are sent in request order.
+   *
+   * @see httpRequest#getSequenceNumber
+   */
+  public int getSequenceNumber() {
+    return seqNum;
+  }
+
 }
@@ -28,6 +28,8 @@ import seda.sandStorm.api.QueueElementIF;
 import seda.sandStorm.api.SinkIF;
 import seda.sandStorm.core.BufferElement;
 
+import java.util.Hashtable;
+
 /**
  * This is an abstract class corresponding to an HTTP response.
  * Use one of the subclasses (such as httpOKResponse or httpNotFoundResponse)
@@ -62,6 +64,25 @@ public abstract class httpResponse implements httpConst, QueueElementIF {
   /** The default response header. */
   protected static String defaultHeader = "Server: Sandstorm (unknown version)"+CRLF;
 
+  // Header pieces are kept encoded as bytes, so that building a header
+  // involves no string manipulation
+  private static final byte STATUS_OK[] = encode(HTTP_VERSION+" 200 OK"+CRLF);
+  private static final byte STATUS_REDIRECT[] = encode(HTTP_VERSION+" 301 MOVED PERMANENTLY"+CRLF);
+  private static final byte STATUS_BAD_REQUEST[] = encode(HTTP_VERSION+" 400 BAD REQUEST"+CRLF);
+  private static final byte STATUS_NOT_FOUND[] = encode(HTTP_VERSION+" 404 NOT FOUND"+CRLF);
+  private static final byte STATUS_INTERNAL_SERVER_ERROR[] = encode(HTTP_VERSION+" 500 INTERNAL SERVER ERROR"+CRLF);
+  private static final byte STATUS_SERVICE_UNAVAILABLE[] = encode(HTTP_VERSION+" 503 SERVICE UNAVAILABLE"+CRLF);
+  private static final byte CONTENT_LENGTH[] = encode("Content-Length: ");
+  private static byte defaultHeaderBytes[] = encode(defaultHeader);
+
+  // Maps content type -> encoded Content-Type line
+  private static final int MAX_CONTENT_TYPES = 256;
+  private static Hashtable contentTypeLines = new Hashtable();
+  // Maps headerKey -> complete encoded header, for responses with
+  // no entity header
+  private static final int MAX_CACHED_HEADERS = 1024;
+  private static Hashtable headerCache = new Hashtable();
+
   /** The actual data of the response. */
   protected BufferElement combinedData;
   /** The header for the response. */
@@ -89,9 +110,7 @@ public abstract class httpResponse implements httpConst, QueueElementIF {
     this.contentLength = payload.size;
 
     this.combinedData = null;
-    String hdrString = genHeader();
-    byte hdr[] = hdrString.getBytes();
-    this.header = new BufferElement(hdr);
+    this.header = new BufferElement(genHeader());
     this.payload = payload;
   }
 
@@ -112,9 +131,7 @@ public abstract class httpResponse implements httpConst, QueueElementIF {
     this.contentLength = contentLength;
 
     this.combinedData = null;
-    String hdrString = genHeader();
-    byte hdr[] = hdrString.getBytes();
-    this.header = new BufferElement(hdr);
+    this.header = new BufferElement(genHeader());
     this.payload = payload;
   }
 
@@ -157,8 +174,7 @@ public abstract class httpResponse implements httpConst, QueueElementIF {
     this.contentType = contentType;
     this.contentLength = payloadSize;
 
-    String hdrString = genHeader();
-    byte hdr[] = hdrString.getBytes();
+    byte hdr[] = genHeader();
     this.combinedData = new BufferElement(hdr.length + payloadSize);
     combinedData.compQ = compQ;
     this.header = new BufferElement(combinedData.data, 0, hdr.length);
@@ -193,11 +209,13 @@ public abstract class httpResponse implements httpConst, QueueElementIF {
    * Used to set the payload after creating the response with an 
    * empty payload. XXX Should not be used if the payload was allocated 
    * by this response (that is, if the payloadSize was specified in the 
-   * constructor). 
+   * constructor). If the header has already been generated, the
+   * content length it gives is kept, so a large response can be sent
+   * in several parts by setting each in turn.
    */
   public void setPayload(BufferElement payload) {
     this.payload = payload;
-    this.contentLength = payload.size;
+    if (header == null) this.contentLength = payload.size;
   }
 
   /**
@@ -205,9 +223,7 @@ public abstract class httpResponse implements httpConst, QueueElementIF {
    */
   public BufferElement getHeader() {
     if (this.header == null) {
-      String hdrString = genHeader();
-      byte hdr[] = hdrString.getBytes();
-      this.header = new BufferElement(hdr);
+      this.header = new BufferElement(genHeader());
     }
     return this.header;
   }
@@ -224,6 +240,8 @@ public abstract class httpResponse implements httpConst, QueueElementIF {
    */
   public static void setDefaultHeader(String defhdr) {
     defaultHeader = defhdr;
+    defaultHeaderBytes = encode(defhdr);
+    headerCache.clear();
   }
 
   /**
@@ -234,39 +252,122 @@ public abstract class httpResponse implements httpConst, QueueElementIF {
   }
 
   /**
-   * Generate the header.
+   * Generate the header. Headers without an entity header depend only
+   * on the response code, content type and length, and are shared 
+   * between responses; the returned array must not be modified.
    */
-  private String genHeader() {
-    String hdrString;
+  private byte[] genHeader() {
+    String ehdr = getEntityHeader();
+    if (ehdr != null) return buildHeader(ehdr);
+
+    headerKey key = new headerKey(code, contentType, contentLength);
+    byte hdr[] = (byte[])headerCache.get(key);
+    if (hdr == null) {
+      hdr = buildHeader(null);
+      if (headerCache.size() >= MAX_CACHED_HEADERS) headerCache.clear();
+      headerCache.put(key, hdr);
+    }
+    return hdr;
+  }
+
+  // Encode the header into a new array of exactly the right size
+  private byte[] buildHeader(String ehdr) {
+    byte status[];
     switch (code) {
-      case RESPONSE_OK: 
-	hdrString = HTTP_VERSION+" 200 OK\n"; break;
-      case RESPONSE_REDIRECT:
-	hdrString = HTTP_VERSION+" 301 MOVED PERMANENTLY\n"; break;
-      case RESPONSE_BAD_REQUEST: 
-	hdrString = HTTP_VERSION+" 400 BAD REQUEST\n"; break;
-      case RESPONSE_NOT_FOUND:
-	hdrString = HTTP_VERSION+" 404 NOT FOUND\n"; break;
-      case RESPONSE_INTERNAL_SERVER_ERROR:
-      	hdrString = HTTP_VERSION+" 500 INTERNAL SERVER ERROR\n"; break;
-      case RESPONSE_SERVICE_UNAVAILABLE:
-      	hdrString = HTTP_VERSION+" 503 SERVICE UNAVAILABLE\n"; break;
+      case RESPONSE_OK: status = STATUS_OK; break;
+      case RESPONSE_REDIRECT: status = STATUS_REDIRECT; break;
+      case RESPONSE_BAD_REQUEST: status = STATUS_BAD_REQUEST; break;
+      case RESPONSE_NOT_FOUND: status = STATUS_NOT_FOUND; break;
+      case RESPONSE_INTERNAL_SERVER_ERROR: status = STATUS_INTERNAL_SERVER_ERROR; break;
+      case RESPONSE_SERVICE_UNAVAILABLE: status = STATUS_SERVICE_UNAVAILABLE; break;
       default: 
 	throw new Error("Bad code in httpResponse: "+code);
     } 
-    if (defaultHeader != null) hdrString += defaultHeader;
-    if (contentType != null) {
-      hdrString += "Content-Type: "+contentType+CRLF;
-    }
+    byte defhdr[] = defaultHeaderBytes;
+    byte ctype[] = null;
+    if (contentType != null) ctype = contentTypeLine(contentType);
+    int digits = 0;
     if (contentLength != 0) {
-      hdrString += "Content-Length: "+contentLength+CRLF;
+      digits = 1;
+      for (int n = contentLength; n >= 10; n /= 10) digits++;
+    }
+
+    int len = status.length + 2;
+    if (defhdr != null) len += defhdr.length;
+    if (ctype != null) len += ctype.length;
+    if (digits != 0) len += CONTENT_LENGTH.length + digits + 2;
+    if (ehdr != null) len += ehdr.length();
+
+    byte hdr[] = new byte[len];
+    int off = put(status, hdr, 0);
+    if (defhdr != null) off = put(defhdr, hdr, off);
+    if (ctype != null) off = put(ctype, hdr, off);
+    if (digits != 0) {
+      off = put(CONTENT_LENGTH, hdr, off);
+      for (int n = contentLength, i = off + digits - 1; i >= off; n /= 10, i--) {
+	hdr[i] = (byte)('0' + (n % 10));
+      }
+      off += digits;
+      hdr[off++] = (byte)'\r';
+      hdr[off++] = (byte)'\n';
     }
-    String ehdr = getEntityHeader();
     if (ehdr != null) {
-      hdrString += ehdr;
+      for (int i = 0; i < ehdr.length(); i++) {
+	hdr[off++] = (byte)ehdr.charAt(i);
+      }
+    }
+    hdr[off++] = (byte)'\r';
+    hdr[off++] = (byte)'\n';
+    return hdr;
+  }
+
+  // Return the encoded Content-Type line for the given type
+  private static byte[] contentTypeLine(String type) {
+    byte line[] = (byte[])contentTypeLines.get(type);
+    if (line == null) {
+      line = encode("Content-Type: "+type+CRLF);
+      if (contentTypeLines.size() >= MAX_CONTENT_TYPES) contentTypeLines.clear();
+      contentTypeLines.put(type, line);
+    }
+    return line;
+  }
+
+  private static int put(byte src[], byte dst[], int off) {
+    System.arraycopy(src, 0, dst, off, src.length);
+    return off + src.length;
+  }
+
+  private static byte[] encode(String str) {
+    if (str == null) return null;
+    byte arr[] = new byte[str.length()];
+    for (int i = 0; i < arr.length; i++) arr[i] = (byte)str.charAt(i);
+    return arr;
+  }
+
+  // Key for headerCache
+  private static class headerKey {
+    int code, contentLength;
+    String contentType;
+
+    headerKey(int code, String contentType, int contentLength) {
+      this.code = code;
+      this.contentType = contentType;
+      this.contentLength = contentLength;
+    }
+
+    public int hashCode() {
+      int h = code * 31 + contentLength;
+      if (contentType != null) h = h * 31 + contentType.hashCode();
+      return h;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof headerKey)) return false;
+      headerKey k = (headerKey)o;
+      return ((k.code == code) && (k.contentLength == contentLength) &&
+	  ((k.contentType == contentType) || 
+	   ((contentType != null) && contentType.equals(k.contentType))));
     }
-    hdrString += CRLF;
-    return hdrString;
   }
   
   /**
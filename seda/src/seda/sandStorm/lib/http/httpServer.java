@@ -25,6 +25,7 @@
 package seda.sandStorm.lib.http;
 
 import seda.sandStorm.api.*;
+import seda.sandStorm.core.ssTimer;
 import seda.sandStorm.lib.aSocket.*;
 
 import java.io.IOException;
@@ -53,6 +54,12 @@ public class httpServer implements EventHandlerIF, httpConst {
 
   // ATcpConnection -> httpConnection
   private Hashtable connTable; 
+  // Requests per connection awaiting a response; 0 for no limit
+  private int maxPipelined;
+  // Milliseconds a connection waits for a missing response while later
+  // ones are held; 0 to wait for ever
+  private int heldTimeout;
+  private ssTimer timer;
 
   private static int num_svrs = 0;
 
@@ -74,6 +81,8 @@ public class httpServer implements EventHandlerIF, httpConst {
     this.listenPort = listenPort;
 
     this.connTable = new Hashtable();
+    this.maxPipelined = mgr.getConfig().getInt("global.http.maxPipelinedRequests", 0);
+    this.heldTimeout = mgr.getConfig().getInt("global.http.heldResponseTimeout", 30000);
 
     // Create the stage and register it
     String sname = "httpServer "+num_svrs+" <port "+listenPort+">";
@@ -112,12 +121,16 @@ public class httpServer implements EventHandlerIF, httpConst {
 
       if (DEBUG) {
 	System.err.println("httpServer got packet: -----------------------");
-	String s = new String(pkt.getBytes());
+	String s = new String(pkt.getBytes(), 0, pkt.size());
 	System.err.println(s+"\n----------------------------------");
       }
 
       httpConnection hc = (httpConnection)connTable.get(pkt.getConnection());
-      if (hc == null) return; // Connection may have been closed
+      if (hc == null) {
+	// Connection may have been closed
+	pkt.release();
+	return; 
+      }
 
       try {
 	hc.parsePacket(pkt);
@@ -208,6 +221,50 @@ public class httpServer implements EventHandlerIF, httpConst {
     return mySink;
   }
 
+  /**
+   * Set the maximum number of requests on each connection that may be
+   * awaiting a response. Further requests pipelined by the client are
+   * held back, and pushed to the user as responses are sent. A value of
+   * 0 (the default) means no limit. Only affects connections accepted
+   * after this call.
+   */
+  public void setMaxPipelinedRequests(int maxPipelined) {
+    this.maxPipelined = maxPipelined;
+  }
+
+  /**
+   * Return the maximum number of requests on each connection that may 
+   * be awaiting a response, or 0 if there is no limit.
+   */
+  public int getMaxPipelinedRequests() {
+    return maxPipelined;
+  }
+
+  /**
+   * Set the time in milliseconds a connection waits for the response
+   * to a request while responses to later requests are held. After 
+   * this the missing response is skipped and the held ones are sent.
+   * A value of 0 means wait for ever. Only affects connections 
+   * accepted after this call.
+   */
+  public void setHeldResponseTimeout(int millis) {
+    this.heldTimeout = millis;
+  }
+
+  /**
+   * Return the time in milliseconds a connection waits for a missing
+   * response, or 0 if it waits for ever.
+   */
+  public int getHeldResponseTimeout() {
+    return heldTimeout;
+  }
+
+  // Timer for held responses, created when first needed
+  synchronized ssTimer getTimer() {
+    if (timer == null) timer = new ssTimer();
+    return timer;
+  }
+
   /**
    * Return the server socket being used by this httpServer.
    */
@@ -0,0 +1,324 @@
+/* 
+ * Copyright (c) 2002 by Matt Welsh and The Regents of the University of 
+ * California. All rights reserved.
+ *
+ * Permission to use, copy, modify, and distribute this software and its
+ * documentation for any purpose, without fee, and without written agreement is
+ * hereby granted, provided that the above copyright notice and the following
+ * two paragraphs appear in all copies of this software.
+ * 
+ * IN NO EVENT SHALL THE UNIVERSITY OF CALIFORNIA BE LIABLE TO ANY PARTY FOR
+ * DIRECT, INDIRECT, SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES ARISING OUT
+ * OF THE USE OF THIS SOFTWARE AND ITS DOCUMENTATION, EVEN IF THE UNIVERSITY OF
+ * CALIFORNIA HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * THE UNIVERSITY OF CALIFORNIA SPECIFICALLY DISCLAIMS ANY WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS FOR A PARTICULAR PURPOSE.  THE SOFTWARE PROVIDED HEREUNDER IS
+ * ON AN "AS IS" BASIS, AND THE UNIVERSITY OF CALIFORNIA HAS NO OBLIGATION TO
+ * PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR MODIFICATIONS.
+ *
+ */
+
+package seda.sandStorm.lib.http;
+
+import seda.sandStorm.api.QueueElementIF;
+import seda.sandStorm.core.FiniteQueue;
+import seda.sandStorm.lib.aSocket.ATcpInPacket;
+import seda.sandStorm.lib.aSocket.aSocketInputStream;
+
+import java.io.IOException;
+import java.io.StreamTokenizer;
+import java.util.Hashtable;
+import java.util.StringTokenizer;
+import java.util.Vector;
+
+/**
+ * A microbenchmark for httpPacketReader. It parses a typical browser
+ * GET request, delivered either in a single packet or split across 
+ * several, and looks up the Host and User-Agent headers of each request.
+ * For comparison the same is done with the original stream-based 
+ * request reader, a copy of which is included here. (That reader
+ * splits any word broken at a packet boundary in two, so with small
+ * packets some of its header lookups fail.) Although kept with the
+ * test programs, it is in the http package so that it can call the
+ * package-internal httpPacketReader directly.
+ *
+ * <p>Usage: <tt>java seda.sandStorm.lib.http.httpParserBench 
+ * [iterations] [split size]</tt>
+ */
+class httpParserBench {
+
+  private static final String REQUEST = 
+    "GET /images/logo.gif?size=large&lang=en HTTP/1.1\r\n"+
+    "Host: www.example.com:8080\r\n"+
+    "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"+
+    "Accept: image/avif,image/webp,*/*\r\n"+
+    "Accept-Language: en-US,en;q=0.5\r\n"+
+    "Accept-Encoding: gzip, deflate, br\r\n"+
+    "Referer: http://www.example.com:8080/index.html\r\n"+
+    "Connection: keep-alive\r\n"+
+    "Cookie: session=3f2a9c1d7e6b5a40; theme=dark; tz=America%2FLos_Angeles\r\n"+
+    "If-Modified-Since: Tue, 14 Mar 2023 09:21:07 GMT\r\n"+
+    "If-None-Match: \"5d8c72a5edda8\"\r\n"+
+    "Cache-Control: max-age=0\r\n"+
+    "\r\n";
+
+  private static int count;
+
+  public static void main(String args[]) throws Exception {
+    int iters = 200000;
+    int split = 100;
+    if (args.length > 0) iters = Integer.parseInt(args[0]);
+    if (args.length > 1) split = Integer.parseInt(args[1]);
+
+    byte req[] = REQUEST.getBytes("ISO-8859-1");
+    System.err.println("Request is "+req.length+" bytes");
+
+    // Warm up both readers before timing them
+    for (int i = 0; i < 3; i++) {
+      runNew(req, iters/4, req.length);
+      runOld(req, iters/4, req.length);
+    }
+
+    report("new, one packet", runNew(req, iters, req.length), iters);
+    report("old, one packet", runOld(req, iters, req.length), iters);
+    report("new, "+split+"-byte packets", runNew(req, iters, split), iters);
+    report("old, "+split+"-byte packets", runOld(req, iters, split), iters);
+  }
+
+  private static void report(String name, long nanos, int iters) {
+    System.err.println(name+": "+(nanos / iters)+" ns/request ("+
+	((iters * 1.0e9) / nanos)+" requests/sec)");
+  }
+
+  // Return the request split into packets of at most split bytes
+  private static ATcpInPacket[] packetize(byte req[], int split) {
+    int n = (req.length + split - 1) / split;
+    ATcpInPacket pkts[] = new ATcpInPacket[n];
+    for (int i = 0; i < n; i++) {
+      int len = Math.min(split, req.length - i*split);
+      byte data[] = new byte[len];
+      System.arraycopy(req, i*split, data, 0, len);
+      pkts[i] = new ATcpInPacket(null, data, len, false);
+    }
+    return pkts;
+  }
+
+  private static long runNew(byte req[], int iters, int split) throws IOException {
+    ATcpInPacket pkts[] = packetize(req, split);
+    FiniteQueue compQ = new FiniteQueue();
+    httpPacketReader hpr = new httpPacketReader(null, compQ);
+    long t1 = System.nanoTime();
+    for (int i = 0; i < iters; i++) {
+      for (int j = 0; j < pkts.length; j++) {
+	hpr.parsePacket(pkts[j]);
+      }
+      httpRequest hr = (httpRequest)compQ.dequeue();
+      count += hr.getHeader("Host").length() + 
+	hr.getHeader("User-Agent").length();
+    }
+    return System.nanoTime() - t1;
+  }
+
+  private static long runOld(byte req[], int iters, int split) throws IOException {
+    ATcpInPacket pkts[] = packetize(req, split);
+    FiniteQueue compQ = new FiniteQueue();
+    oldPacketReader hpr = new oldPacketReader(compQ);
+    long t1 = System.nanoTime();
+    for (int i = 0; i < iters; i++) {
+      for (int j = 0; j < pkts.length; j++) {
+	hpr.parsePacket(pkts[j]);
+      }
+      oldRequest hr = (oldRequest)compQ.dequeue();
+      String host = hr.getHeader("Host");
+      String agent = hr.getHeader("User-Agent");
+      if (host != null) count += host.length();
+      if (agent != null) count += agent.length();
+    }
+    return System.nanoTime() - t1;
+  }
+
+  /**
+   * The request produced by the original reader: the header lines
+   * are split into a table on the first lookup.
+   */
+  static class oldRequest implements QueueElementIF {
+    private String url;
+    private Vector rawHeader;
+    private Hashtable header;
+    private Hashtable query;
+
+    oldRequest(String requestStr, String url, Vector rawHeader) 
+      throws IOException {
+      this.rawHeader = rawHeader;
+      int question = url.indexOf('?');
+      if (question != -1) {
+	query = new Hashtable();
+	this.url = url.substring(0, question);
+	StringTokenizer st = new StringTokenizer(url.substring(question+1), ";&");
+	while (st.hasMoreTokens()) {
+	  String nv = st.nextToken();
+	  int equals = nv.indexOf('=');
+	  if (equals == -1) query.put(nv, httpRequest.QUERY_KEY_SET);
+	  else query.put(nv.substring(0,equals), nv.substring(equals+1));
+	}
+      } else {
+	this.url = url;
+      }
+      if (!requestStr.equalsIgnoreCase("get") && 
+	  !requestStr.equalsIgnoreCase("post")) {
+	throw new IOException("Bad HTTP request: "+requestStr);
+      }
+    }
+
+    String getHeader(String key) {
+      if (header == null) {
+	header = new Hashtable(1);
+	for (int i = 0; i < rawHeader.size(); i++) {
+	  String h = (String)rawHeader.elementAt(i);
+	  StringTokenizer s = new StringTokenizer(h);
+	  String k = s.nextToken(":").trim();
+	  // Lines broken at a packet boundary may have no value
+	  if (!s.hasMoreTokens()) continue;
+	  String v = s.nextToken().trim();
+	  header.put(k,v);
+	}
+      }
+      return (String)header.get(key);
+    }
+  }
+
+  /**
+   * The original httpPacketReader, which accumulates packets in an
+   * aSocketInputStream and tokenizes it with a StreamTokenizer.
+   */
+  static class oldPacketReader implements httpConst {
+    private static final int STATE_START = 0;
+    private static final int STATE_HEADER = 1;
+    private static final int STATE_DONE = 2;
+
+    private int state;
+    private aSocketInputStream ais;
+    private StreamTokenizer tok;
+    private String request;
+    private String url;
+    private Vector header;
+    private FiniteQueue compQ;
+
+    oldPacketReader(FiniteQueue compQ) {
+      this.compQ = compQ;
+      this.ais = new aSocketInputStream();
+      reset();
+    }
+
+    boolean parsePacket(ATcpInPacket pkt) throws IOException {
+      ais.addPacket(pkt);
+      int origstate;
+      do {
+	origstate = state;
+	switch (state) {
+	  case STATE_START:
+	    state = parseURL();
+	    break;
+	  case STATE_HEADER:
+	    state = accumulateHeader();
+	    break;
+	  case STATE_DONE:
+	    compQ.enqueue_lossy(new oldRequest(request, url, header));
+	    reset();
+	    return true;
+	}
+      } while (state != origstate);
+      return false;
+    }
+
+    private void reset() {
+      state = STATE_START;
+      ais.clear();
+      tok = new StreamTokenizer(ais);
+      tok.resetSyntax();
+      tok.wordChars((char)0, (char)255);
+      tok.whitespaceChars('\u0000', ' ');
+      tok.eolIsSignificant(true);
+      request = null;
+      url = null;
+      header = null;
+    }
+
+    private int parseURL() throws IOException {
+      ais.mark(0);
+      String req = nextWord();
+      url = nextWord();
+      String ver = nextWord();
+      if ((req == null) || (url == null) || (ver == null)) {
+	ais.reset();
+	return STATE_START;
+      }
+      request = req;
+      if (ver.equals("HTTP/1.0") || ver.equals("HTTP/1.1")) {
+	nextWord(); // Throw away EOL
+	return STATE_HEADER;
+      } else if (ver.equals(CRLF)) {
+	return STATE_DONE;
+      } else {
+	throw new IOException("Unknown HTTP version in request: "+ver);
+      }
+    }
+
+    private int accumulateHeader() throws IOException {
+      String line;
+      do {
+	line = nextLine();
+	if (line == null) {
+	  return STATE_HEADER;
+	} else if (!line.equals("")) {
+	  if (header == null) header = new Vector(1);
+	  header.addElement(line);
+	}
+      } while (!line.equals(""));
+      return STATE_DONE;
+    }
+
+    private String nextWord() throws IOException {
+      while (true) {
+	switch (tok.nextToken()) {
+	  case StreamTokenizer.TT_EOL:
+	    return CRLF;
+	  case StreamTokenizer.TT_EOF:
+	    return null;
+	  case StreamTokenizer.TT_WORD:
+	    return tok.sval;
+	  case StreamTokenizer.TT_NUMBER:
+	    return Double.toString(tok.nval);
+	  default:
+	    continue;
+	}
+      }
+    }
+
+    private String nextLine() throws IOException {
+      String line = new String("");
+      boolean first = true;
+      while (true) {
+	switch (tok.nextToken()) {
+	  case StreamTokenizer.TT_EOL:
+	    return line;
+	  case StreamTokenizer.TT_EOF:
+	    return null;
+	  case StreamTokenizer.TT_WORD:
+	    if (first) {
+	      line = tok.sval;
+	      first = false;
+	    } else {
+	      line += " "+tok.sval;
+	    }
+	    break;
+	  default:
+	    break;
+	}
+      }
+    }
+  }
+
+}
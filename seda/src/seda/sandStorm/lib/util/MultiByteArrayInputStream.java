@@ -48,6 +48,8 @@ public class MultiByteArrayInputStream extends NonblockingInputStream {
   protected int cur_offset;
   protected int cur_array;
   protected byte[] arrays[];
+  // Range of valid data within each array
+  protected int starts[], ends[];
   protected int push_array;
   protected int mark_array, mark_offset;
 
@@ -57,7 +59,12 @@ public class MultiByteArrayInputStream extends NonblockingInputStream {
    */
   public MultiByteArrayInputStream(byte barr[][]) {
     arrays = new byte[barr.length+NUMARRAYS][];
+    starts = new int[arrays.length];
+    ends = new int[arrays.length];
     System.arraycopy(barr, 0, arrays, 0, barr.length);
+    for (int i = 0; i < barr.length; i++) {
+      ends[i] = barr[i].length;
+    }
     push_array = barr.length;
     cur_offset = 0;
     cur_array = 0;
@@ -70,6 +77,8 @@ public class MultiByteArrayInputStream extends NonblockingInputStream {
    */
   public MultiByteArrayInputStream() {
     arrays = new byte[NUMARRAYS][];
+    starts = new int[NUMARRAYS];
+    ends = new int[NUMARRAYS];
     push_array = 0;
     cur_offset = 0;
     cur_array = 0;
@@ -81,7 +90,19 @@ public class MultiByteArrayInputStream extends NonblockingInputStream {
    * Add an array to this MultiByteArrayInputStream.
    */
   public synchronized void addArray(byte barr[]) {
+    addArray(barr, 0, barr.length);
+  }
+
+  /**
+   * Add 'len' bytes of the given array, starting at 'offset', to this
+   * MultiByteArrayInputStream. The rest of the array is never read.
+   */
+  public synchronized void addArray(byte barr[], int offset, int len) {
+    if (len == 0) return;
+    if (push_array == cur_array) cur_offset = offset;
     arrays[push_array] = barr;
+    starts[push_array] = offset;
+    ends[push_array] = offset + len;
     push_array++; if (push_array == arrays.length) expandArrays();
   }
 
@@ -90,6 +111,11 @@ public class MultiByteArrayInputStream extends NonblockingInputStream {
     byte[] oldarr[] = arrays;
     arrays = new byte[oldarr.length + NUMARRAYS][];
     System.arraycopy(oldarr, 0, arrays, 0, oldarr.length);
+    int oldstarts[] = starts, oldends[] = ends;
+    starts = new int[arrays.length];
+    ends = new int[arrays.length];
+    System.arraycopy(oldstarts, 0, starts, 0, oldstarts.length);
+    System.arraycopy(oldends, 0, ends, 0, oldends.length);
   }
 
   /**
@@ -102,13 +128,13 @@ public class MultiByteArrayInputStream extends NonblockingInputStream {
     if (cur_array == push_array) {
       return -1;
     } else {
-      if (DEBUG) System.err.println("read: cur_array "+cur_array+" num "+arrays.length+" cur_offset "+cur_offset+" len "+arrays[cur_array].length);
+      if (DEBUG) System.err.println("read: cur_array "+cur_array+" num "+arrays.length+" cur_offset "+cur_offset+" len "+ends[cur_array]);
 	   
       int c = (int)(arrays[cur_array][cur_offset] & 0xff);
       cur_offset++;
-      if (cur_offset == arrays[cur_array].length) {
-	cur_offset = 0;
+      if (cur_offset == ends[cur_array]) {
 	cur_array++;
+	cur_offset = starts[cur_array];
       }
       return c;
     }
@@ -127,9 +153,9 @@ public class MultiByteArrayInputStream extends NonblockingInputStream {
     } else {
       c = (int)(arrays[cur_array][cur_offset] & 0xff);
       cur_offset++;
-      if (cur_offset == arrays[cur_array].length) {
-	cur_offset = 0;
+      if (cur_offset == ends[cur_array]) {
 	cur_array++;
+	cur_offset = starts[cur_array];
       }
       return c;
     }
@@ -165,15 +191,15 @@ public class MultiByteArrayInputStream extends NonblockingInputStream {
     while ((cur_array < arrays.length) && (cur_array != push_array) && (n < last)) {
       if (DEBUG) System.err.println("MBS: read(byte[], int, int): cur_array "+cur_array+", push_array "+push_array+", arrays.length "+arrays.length+", n "+n+", last "+last);
 
-      int num_left = arrays[cur_array].length - cur_offset;
+      int num_left = ends[cur_array] - cur_offset;
       int tocopy = Math.min(num_left, last - n);
       System.arraycopy(arrays[cur_array], cur_offset, b, n, tocopy);
       total += tocopy;
       n += tocopy;
       cur_offset += tocopy;
-      if (cur_offset == arrays[cur_array].length) {
-	cur_offset = 0;
+      if (cur_offset == ends[cur_array]) {
 	cur_array++;
+	cur_offset = starts[cur_array];
       }
     }
     return total;
@@ -191,13 +217,16 @@ public class MultiByteArrayInputStream extends NonblockingInputStream {
 
     if (cur_array == push_array) return 0;
 
-    while ((cur_array < arrays.length) && (requested > 0)) {
-      int num_left = arrays[cur_array].length - cur_offset;
+    while ((cur_array != push_array) && (requested > 0)) {
+      int num_left = ends[cur_array] - cur_offset;
       int toskip = Math.min(num_left, requested);
       totalskipped += toskip;
       requested -= toskip;
-      cur_offset = 0;
-      cur_array++;
+      cur_offset += toskip;
+      if (cur_offset == ends[cur_array]) {
+	cur_array++;
+	cur_offset = starts[cur_array];
+      }
     }
     return totalskipped;
   }
@@ -208,10 +237,9 @@ public class MultiByteArrayInputStream extends NonblockingInputStream {
   public synchronized int available() throws IOException {
     if (closed) throw new EOFException("MultiByteArrayInputStream is closed!");
     if (cur_array == push_array) return 0;
-    int num_left = arrays[cur_array].length - cur_offset;
-    for (int i = cur_array+1; i < arrays.length; i++) {
-      if (arrays[i] == null) break;
-      num_left += arrays[i].length;
+    int num_left = ends[cur_array] - cur_offset;
+    for (int i = cur_array+1; i < push_array; i++) {
+      num_left += ends[i] - starts[i];
     }
     if (DEBUG) System.err.println("MBS: available() called, num_left="+num_left);
     return num_left;
@@ -268,6 +296,8 @@ public class MultiByteArrayInputStream extends NonblockingInputStream {
    */
   public synchronized void clear() {
     arrays = new byte[NUMARRAYS][];
+    starts = new int[NUMARRAYS];
+    ends = new int[NUMARRAYS];
     push_array = 0;
     cur_offset = 0;
     cur_array = 0;
@@ -57,6 +57,15 @@ public class SandstormConfig implements Cloneable,SandstormConfigIF {
   public static final String THREADMGR_TPSTM = "TPSTM";
   /** Value for defaultThreadMgr to use the aggregating TPSTM. */
   public static final String THREADMGR_AggTPSTM = "AggTPSTM";
+  /** Value for defaultThreadMgr to use the work-stealing thread manager. */
+  public static final String THREADMGR_WSTM = "WSTM";
+  /** Value for defaultThreadMgr to use the virtual thread manager. */
+  public static final String THREADMGR_VTTM = "VTTM";
+
+  /** Value for queue.type to use a FiniteQueue for stage event queues. */
+  public static final String QUEUE_FINITE = "finite";
+  /** Value for queue.type to use a LockFreeQueue for stage event queues. */
+  public static final String QUEUE_LOCKFREE = "lockfree";
 
   /** String value for setting boolean configuration entries to true. */
   public static final String CONFIG_TRUE = "true";
@@ -80,10 +89,19 @@ public class SandstormConfig implements Cloneable,SandstormConfigIF {
     "global.threadPool.sizeController.threshold", "1000", 
     "global.threadPool.sizeController.idleTimeThreshold", "1000",
 
+    "global.queue.type", QUEUE_FINITE,
+    "global.queue.capacity", "4096",
+    "global.queue.recordWait", CONFIG_TRUE,
+
     "global.batchController.enable", CONFIG_FALSE,
     "global.batchController.minBatch", "1",
     "global.batchController.maxBatch", "-1",
 
+    "global.batchDequeue.enable", CONFIG_FALSE,
+    "global.batchDequeue.target", "32",
+    "global.batchDequeue.fillDelay", "1",
+    "global.batchDequeue.spin", "100",
+
     "global.profile.enable", CONFIG_FALSE,
     "global.profile.delay", "1000",
     "global.profile.filename", "sandstorm-profile.txt",
@@ -91,6 +109,16 @@ public class SandstormConfig implements Cloneable,SandstormConfigIF {
     "global.profile.graph", CONFIG_FALSE,
     "global.profile.graphfilename", "sandstorm-graph.txt",
 
+    "global.metrics.enable", CONFIG_FALSE,
+    "global.metrics.port", "0",
+
+    "global.trace.enable", CONFIG_FALSE,
+    "global.trace.sampleInterval", "1000",
+    "global.trace.bufferSize", "16384",
+
+    "global.graphAnalyzer.enable", CONFIG_FALSE,
+    "global.graphAnalyzer.delay", "1000",
+
     /* Deprecated */
     "global.AggTPSTM.governor.enable", CONFIG_FALSE,
     "global.AggTPSTM.governor.delay", "2000",
@@ -100,12 +128,25 @@ public class SandstormConfig implements Cloneable,SandstormConfigIF {
     "global.TPPTM.numCpus", "1",
     "global.TPPTM.maxThreads", "1",
 
+    "global.WSTM.numThreads", "0",
+
+    "global.bufferPool.enable", CONFIG_FALSE,
+    "global.bufferPool.maxFree", "256",
+    "global.bufferPool.leakDetection", CONFIG_FALSE,
+
     "global.aSocket.enable", CONFIG_TRUE,
     "global.aSocket.provider", "NBIO",
+    "global.aSocket.directBuffers", CONFIG_FALSE,
+    "global.aSocket.numShards", "1",
+    "global.aSocket.shardPolicy", "roundrobin",
     "global.aSocket.rateController.enable", CONFIG_FALSE,
     "global.aSocket.rateController.rate", "100000.0",
 
+    "global.http.maxPipelinedRequests", "0",
+    "global.http.heldResponseTimeout", "30000",
+
     "global.aDisk.enable", CONFIG_FALSE,
+    "global.aDisk.provider", "TP",
     "global.aDisk.threadPool.initialThreads", "1",
     "global.aDisk.threadPool.minThreads", "1",
     "global.aDisk.threadPool.maxThreads", "20",
@@ -51,13 +51,14 @@ public class MessageReader implements SimpleP2PConst {
   void parse(ATcpInPacket pkt) {
 
     byte recv_data[] = pkt.getBytes();
+    int recv_length = pkt.size();
     int recv_offset = 0;
 
-    if (DEBUG) System.err.println("MessageReader: Got "+recv_data.length+" bytes, need "+(MSG_SIZE-cur_offset)+", cur_offset "+cur_offset);
+    if (DEBUG) System.err.println("MessageReader: Got "+recv_length+" bytes, need "+(MSG_SIZE-cur_offset)+", cur_offset "+cur_offset);
 
-    while (recv_offset < recv_data.length) {
-      int toread = Math.min(MSG_SIZE - cur_offset, recv_data.length - recv_offset);
-      if (DEBUG) System.err.println("MessageReader: recv_data.length "+recv_data.length+", recv_offset "+recv_offset+", cur_data.length "+cur_data.length+" cur_offset "+cur_offset+", toread "+toread);
+    while (recv_offset < recv_length) {
+      int toread = Math.min(MSG_SIZE - cur_offset, recv_length - recv_offset);
+      if (DEBUG) System.err.println("MessageReader: recv_length "+recv_length+", recv_offset "+recv_offset+", cur_data.length "+cur_data.length+" cur_offset "+cur_offset+", toread "+toread);
       System.arraycopy(recv_data, recv_offset, cur_data, cur_offset, toread);
       cur_offset += toread;
       recv_offset += toread;
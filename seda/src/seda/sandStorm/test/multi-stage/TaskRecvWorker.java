@@ -109,7 +109,7 @@ public class TaskRecvWorker implements EventHandlerIF {
     } else if (item instanceof ATcpInPacket) {
       ATcpInPacket pkt = (ATcpInPacket)item;
       byte in[] = pkt.getBytes();
-      int inlength = in.length;
+      int inlength = pkt.size();
       int inoff = 0;
       if (DEBUG) System.err.println("Received "+inlength+" bytes");
 